@@ -0,0 +1,15 @@
+package com.phoneremote.server;
+
+// A mono 16-bit PCM codec. Each encoded block must be decodable on its own so
+// that a lost packet never corrupts the ones after it.
+public interface AudioCodec {
+    int CODEC_IMA_ADPCM = 1;
+
+    int getId();
+
+    int maxEncodedSize(int sampleCount);
+
+    int encode(short[] pcm, int offset, int sampleCount, byte[] out, int outOffset);
+
+    int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset);
+}
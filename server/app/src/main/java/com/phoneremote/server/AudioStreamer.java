@@ -0,0 +1,206 @@
+package com.phoneremote.server;
+
+import android.annotation.SuppressLint;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioPlaybackCaptureConfiguration;
+import android.media.AudioRecord;
+import android.media.projection.MediaProjection;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+// Captures device playback audio from the MediaProjection and turns it into
+// small timestamped packets. Capture and encoding run on their own two threads
+// and share nothing with the video path except the projection itself.
+@RequiresApi(api = Build.VERSION_CODES.Q)
+public class AudioStreamer {
+    private static final String TAG = "AudioStreamer";
+
+    public static final int SAMPLE_RATE = 48000;
+    public static final int PACKET_MS = 20;
+    public static final int SAMPLES_PER_PACKET = SAMPLE_RATE * PACKET_MS / 1000;
+    public static final int HEADER_SIZE = 22;
+    private static final byte PACKET_VERSION = 1;
+    private static final int RING_MS = 500;
+
+    public interface OnAudioPacketListener {
+        void onAudioPacket(byte[] packet, long timestampNanos);
+    }
+
+    private final MediaProjection mediaProjection;
+    private final OnAudioPacketListener listener;
+    private final AudioCodec codec;
+    private final PcmRingBuffer ring = new PcmRingBuffer(SAMPLE_RATE * RING_MS / 1000);
+
+    private AudioRecord audioRecord;
+    private Thread captureThread;
+    private Thread encoderThread;
+    private volatile boolean running;
+    private volatile long startNanos;
+    private int sequence;
+
+    public AudioStreamer(MediaProjection mediaProjection, OnAudioPacketListener listener) {
+        this(mediaProjection, listener, new ImaAdpcmCodec());
+    }
+
+    public AudioStreamer(MediaProjection mediaProjection, OnAudioPacketListener listener, AudioCodec codec) {
+        this.mediaProjection = mediaProjection;
+        this.listener = listener;
+        this.codec = codec;
+    }
+
+    // RECORD_AUDIO is requested up front by MainActivity
+    @SuppressLint("MissingPermission")
+    public boolean start() {
+        if (running) {
+            return true;
+        }
+
+        AudioPlaybackCaptureConfiguration config = new AudioPlaybackCaptureConfiguration.Builder(mediaProjection)
+                .addMatchingUsage(AudioAttributes.USAGE_MEDIA)
+                .addMatchingUsage(AudioAttributes.USAGE_GAME)
+                .addMatchingUsage(AudioAttributes.USAGE_UNKNOWN)
+                .build();
+
+        AudioFormat format = new AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setSampleRate(SAMPLE_RATE)
+                .setChannelMask(AudioFormat.CHANNEL_IN_MONO)
+                .build();
+
+        int minBuffer = AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        try {
+            audioRecord = new AudioRecord.Builder()
+                    .setAudioFormat(format)
+                    .setBufferSizeInBytes(Math.max(minBuffer, SAMPLES_PER_PACKET * 4))
+                    .setAudioPlaybackCaptureConfig(config)
+                    .build();
+            audioRecord.startRecording();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to start playback capture", e);
+            release();
+            return false;
+        }
+
+        ring.clear();
+        startNanos = System.nanoTime();
+        running = true;
+
+        captureThread = new Thread(this::captureLoop, "AudioCapture");
+        encoderThread = new Thread(this::encodeLoop, "AudioEncoder");
+        captureThread.start();
+        encoderThread.start();
+        return true;
+    }
+
+    public void stop() {
+        running = false;
+        if (encoderThread != null) {
+            LockSupport.unpark(encoderThread);
+        }
+        // Stopping the recorder returns a blocked read(), so the joins below
+        // can wait for good; release() must not run while a read is in flight
+        stopRecording();
+        joinQuietly(captureThread);
+        joinQuietly(encoderThread);
+        captureThread = null;
+        encoderThread = null;
+        release();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getOverruns() {
+        return ring.getOverruns();
+    }
+
+    private void captureLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        short[] buffer = new short[SAMPLES_PER_PACKET];
+        while (running) {
+            int read = audioRecord.read(buffer, 0, buffer.length);
+            if (read > 0) {
+                ring.write(buffer, 0, read);
+                LockSupport.unpark(encoderThread);
+            } else if (read < 0) {
+                Log.e(TAG, "AudioRecord read failed: " + read);
+                break;
+            }
+        }
+    }
+
+    private void encodeLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        short[] pcm = new short[SAMPLES_PER_PACKET];
+        byte[] encoded = new byte[codec.maxEncodedSize(SAMPLES_PER_PACKET)];
+
+        while (running) {
+            if (ring.available() < SAMPLES_PER_PACKET) {
+                LockSupport.parkNanos(PACKET_MS * 1_000_000L / 4);
+                continue;
+            }
+
+            // Timestamps derive from the sample position, so they stay monotonic and
+            // gap-free even when the encoder thread is scheduled late
+            long position = ring.getReadPosition();
+            long timestampNanos = startNanos + position * 1_000_000_000L / SAMPLE_RATE;
+            int samples = ring.read(pcm, 0, SAMPLES_PER_PACKET);
+            int length = codec.encode(pcm, 0, samples, encoded, 0);
+
+            byte[] packet = new byte[HEADER_SIZE + length];
+            ByteBuffer.wrap(packet)
+                    .put(PACKET_VERSION)
+                    .put((byte) codec.getId())
+                    .put((byte) 1) // channels
+                    .put((byte) 0) // flags
+                    .putInt(SAMPLE_RATE)
+                    .putInt(sequence++)
+                    .putLong(timestampNanos / 1000)
+                    .putShort((short) samples)
+                    .put(encoded, 0, length);
+
+            try {
+                listener.onAudioPacket(packet, timestampNanos);
+            } catch (Exception e) {
+                Log.e(TAG, "Audio listener failed", e);
+            }
+        }
+    }
+
+    private void stopRecording() {
+        if (audioRecord != null) {
+            try {
+                audioRecord.stop();
+            } catch (IllegalStateException ignored) {
+                // Never started
+            }
+        }
+    }
+
+    private void release() {
+        if (audioRecord != null) {
+            stopRecording();
+            audioRecord.release();
+            audioRecord = null;
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.phoneremote.server;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.io.OutputStream;
+
+// FrameEncoder backed by the platform's Bitmap.compress
+public class BitmapFrameEncoder implements FrameEncoder {
+    private final int id;
+    private final String mimeType;
+    private final Bitmap.CompressFormat format;
+    private final boolean lossless;
+
+    private BitmapFrameEncoder(int id, String mimeType, Bitmap.CompressFormat format, boolean lossless) {
+        this.id = id;
+        this.mimeType = mimeType;
+        this.format = format;
+        this.lossless = lossless;
+    }
+
+    public static BitmapFrameEncoder jpeg() {
+        return new BitmapFrameEncoder(CODEC_JPEG, "image/jpeg", Bitmap.CompressFormat.JPEG, false);
+    }
+
+    public static BitmapFrameEncoder png() {
+        return new BitmapFrameEncoder(CODEC_PNG, "image/png", Bitmap.CompressFormat.PNG, true);
+    }
+
+    @SuppressWarnings("deprecation")
+    public static BitmapFrameEncoder webp() {
+        // Before Android 11 plain WEBP is lossy for any quality below 100
+        Bitmap.CompressFormat format = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+        return new BitmapFrameEncoder(CODEC_WEBP, "image/webp", format, false);
+    }
+
+    // Null before Android 11, where lossless WebP can't be requested explicitly
+    public static BitmapFrameEncoder webpLossless() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return null;
+        }
+        return new BitmapFrameEncoder(CODEC_WEBP_LOSSLESS, "image/webp", Bitmap.CompressFormat.WEBP_LOSSLESS, true);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    @Override
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    @Override
+    public boolean encode(Bitmap bitmap, int quality, OutputStream out) {
+        return bitmap.compress(format, lossless ? 100 : quality, out);
+    }
+}
@@ -0,0 +1,114 @@
+package com.phoneremote.server;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// Streams a camera through a CapturePipeline of its own into FrameBus.camera(),
+// so camera viewers get the same encode and fan-out as the screen. The camera
+// is only open between start() and stop(); the first start() picks the facing.
+public class CameraCapture {
+    private static final String TAG = "CameraCapture";
+    public static final int MAX_WIDTH = 1280;
+    public static final int MAX_HEIGHT = 720;
+    public static final int FRAME_RATE = 15;
+    private static final int QUALITY = 75;
+
+    private final Context context;
+    private final FrameEncoder jpeg = BitmapFrameEncoder.jpeg();
+    private final CapturePipeline pipeline = new CapturePipeline(this::encode, Runnable::run,
+            InputScheduler::awaitInputIdle);
+    private final ByteArrayOutputStream encodeBuffer = new ByteArrayOutputStream(64 * 1024);
+    private CameraFrameSource source;
+    private Timer timer;
+    private Bitmap bitmap;
+
+    public CameraCapture(Context context) {
+        this.context = context.getApplicationContext();
+        pipeline.setSink(FrameBus.camera());
+    }
+
+    // Blocks while the camera opens. Returns false if it couldn't be opened.
+    public synchronized boolean start(String facing) {
+        if (source != null) {
+            return true;
+        }
+        try {
+            source = CameraFrameSource.open(context, facing, MAX_WIDTH, MAX_HEIGHT, FRAME_RATE);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening camera", e);
+            return false;
+        }
+        pipeline.setSource(source);
+        timer = new Timer("CameraEncode");
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                captureFrame();
+            }
+        }, 0, 1000 / FRAME_RATE);
+        return true;
+    }
+
+    public synchronized void stop() {
+        if (source == null) {
+            return;
+        }
+        timer.cancel();
+        timer = null;
+        pipeline.setSource(null);
+        source.close();
+        source = null;
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return source != null;
+    }
+
+    // Holds the lock so stop() can't close the source mid-frame
+    private synchronized void captureFrame() {
+        if (source == null) {
+            return;
+        }
+        try {
+            pipeline.captureOnce();
+        } catch (Exception e) {
+            Log.e(TAG, "Error capturing camera frame", e);
+        }
+    }
+
+    // Converted frames are tightly packed, so the buffer copies straight into the bitmap
+    private EncodedImage encode(RawFrame frame) {
+        if (bitmap == null || bitmap.getWidth() != frame.width || bitmap.getHeight() != frame.height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(frame.width, frame.height, Bitmap.Config.ARGB_8888);
+        }
+        frame.rgba.rewind();
+        bitmap.copyPixelsFromBuffer(frame.rgba);
+        encodeBuffer.reset();
+        long start = System.nanoTime();
+        if (!jpeg.encode(bitmap, QUALITY, encodeBuffer)) {
+            return null;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        return new EncodedImage(jpeg.getId(), ContentClassifier.CLASS_PHOTO,
+                encodeBuffer.toByteArray(), micros);
+    }
+
+    public synchronized String statsJson() {
+        return "{\"running\":" + (source != null) +
+                ",\"source\":" + (source != null ? source.toJson() : "null") +
+                ",\"pipeline\":" + pipeline.statsJson() + "}";
+    }
+}
@@ -0,0 +1,276 @@
+package com.phoneremote.server;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Camera frames for the capture pipeline. The camera streams YUV_420_888 into
+// an ImageReader; each acquired image is converted to RGBA by a YuvConverter
+// and closed straight away, so the camera never waits on the encoder. The
+// converter also rotates by the sensor orientation, so frames are upright
+// with the device held in its natural orientation.
+// Camera callbacks run on a thread of their own.
+public class CameraFrameSource implements FrameSource {
+    private static final String TAG = "CameraFrameSource";
+    private static final long OPEN_TIMEOUT_MS = 3000;
+    // Frames converted but not yet encoded; more would only add latency
+    private static final int CONVERTED_FRAMES = 2;
+
+    public static final String FACING_BACK = "back";
+    public static final String FACING_FRONT = "front";
+
+    private final HandlerThread thread = new HandlerThread("CameraCapture");
+    private final Handler handler;
+    private final String cameraId;
+    private final int sensorOrientation;
+    private final ImageReader reader;
+    private final YuvConverter converter;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private volatile CameraDevice camera;
+    private volatile CameraCaptureSession session;
+    private volatile String failure;
+    private volatile boolean closed;
+
+    // Opens the camera facing that way and blocks until it is streaming at the
+    // largest size that fits in maxWidth x maxHeight
+    public static CameraFrameSource open(Context context, String facing, int maxWidth, int maxHeight,
+                                         int frameRate) throws IOException {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        int lensFacing = FACING_FRONT.equals(facing)
+                ? CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK;
+        try {
+            for (String id : manager.getCameraIdList()) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+                Integer idFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (idFacing != null && idFacing == lensFacing) {
+                    CameraFrameSource source = new CameraFrameSource(manager, id, characteristics,
+                            maxWidth, maxHeight, frameRate);
+                    source.awaitStarted();
+                    return source;
+                }
+            }
+        } catch (CameraAccessException | SecurityException e) {
+            throw new IOException("Camera unavailable: " + e.getMessage(), e);
+        }
+        throw new IOException("No " + facing + " camera");
+    }
+
+    private CameraFrameSource(CameraManager manager, String cameraId, CameraCharacteristics characteristics,
+                              int maxWidth, int maxHeight, final int frameRate) throws CameraAccessException {
+        this.cameraId = cameraId;
+        Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        this.sensorOrientation = orientation != null ? orientation : 0;
+        Size size = chooseSize(characteristics, maxWidth, maxHeight);
+        reader = ImageReader.newInstance(size.getWidth(), size.getHeight(), ImageFormat.YUV_420_888, 2);
+        converter = new YuvConverter(size.getWidth(), size.getHeight(), sensorOrientation, CONVERTED_FRAMES);
+        final Range<Integer> fpsRange = chooseFpsRange(characteristics, frameRate);
+
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        try {
+            openCamera(manager, fpsRange);
+        } catch (CameraAccessException | SecurityException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void openCamera(CameraManager manager, final Range<Integer> fpsRange) throws CameraAccessException {
+        manager.openCamera(cameraId, new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice device) {
+                if (closed) {
+                    // Gave up waiting before the camera came up
+                    device.close();
+                    return;
+                }
+                camera = device;
+                startSession(device, fpsRange);
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice device) {
+                device.close();
+                fail("Camera disconnected");
+            }
+
+            @Override
+            public void onError(CameraDevice device, int error) {
+                device.close();
+                fail("Camera error " + error);
+            }
+        }, handler);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void startSession(final CameraDevice device, final Range<Integer> fpsRange) {
+        try {
+            device.createCaptureSession(Collections.singletonList(reader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession configured) {
+                            session = configured;
+                            try {
+                                CaptureRequest.Builder request = device.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                                request.addTarget(reader.getSurface());
+                                if (fpsRange != null) {
+                                    request.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+                                }
+                                configured.setRepeatingRequest(request.build(), null, handler);
+                                started.countDown();
+                            } catch (CameraAccessException | IllegalStateException e) {
+                                Log.e(TAG, "Error starting camera stream", e);
+                                fail("Error starting camera stream");
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession failed) {
+                            fail("Camera session configuration failed");
+                        }
+                    }, handler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "Error creating camera session", e);
+            fail("Error creating camera session");
+        }
+    }
+
+    private void fail(String reason) {
+        failure = reason;
+        started.countDown();
+    }
+
+    private void awaitStarted() throws IOException {
+        try {
+            if (!started.await(OPEN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                failure = "Camera did not start in time";
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = "Interrupted while opening camera";
+        }
+        if (failure != null) {
+            close();
+            throw new IOException(failure);
+        }
+    }
+
+    // Largest YUV size within the bounds in either orientation, or the smallest there is
+    private static Size chooseSize(CameraCharacteristics characteristics, int maxWidth, int maxHeight) {
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size[] sizes = map != null ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+        if (sizes == null || sizes.length == 0) {
+            return new Size(640, 480);
+        }
+        int longSide = Math.max(maxWidth, maxHeight);
+        int shortSide = Math.min(maxWidth, maxHeight);
+        Size best = null;
+        Size smallest = sizes[0];
+        for (Size size : sizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (area < (long) smallest.getWidth() * smallest.getHeight()) {
+                smallest = size;
+            }
+            boolean fits = Math.max(size.getWidth(), size.getHeight()) <= longSide
+                    && Math.min(size.getWidth(), size.getHeight()) <= shortSide;
+            if (fits && (best == null || area > (long) best.getWidth() * best.getHeight())) {
+                best = size;
+            }
+        }
+        return best != null ? best : smallest;
+    }
+
+    // The steadiest range that reaches the frame rate: highest minimum, then lowest maximum
+    private static Range<Integer> chooseFpsRange(CameraCharacteristics characteristics, int frameRate) {
+        Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null) {
+            return null;
+        }
+        Range<Integer> best = null;
+        for (Range<Integer> range : ranges) {
+            if (range.getUpper() < frameRate) {
+                continue;
+            }
+            if (best == null || range.getLower() > best.getLower()
+                    || (range.getLower().equals(best.getLower()) && range.getUpper() < best.getUpper())) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    // Clockwise rotation that makes the sensor's frames upright in the device's
+    // natural orientation; already applied to the frames this source returns
+    public int getSensorOrientation() {
+        return sensorOrientation;
+    }
+
+    @Override
+    public RawFrame acquireLatestFrame() {
+        Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            // Closed concurrently
+            return null;
+        }
+        if (image == null) {
+            return null;
+        }
+        try {
+            Image.Plane[] planes = image.getPlanes();
+            // Camera timestamps may use another clock, so the pipeline stamps acquisition instead
+            return converter.convert(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[1].getRowStride(),
+                    planes[1].getPixelStride(), 0);
+        } finally {
+            image.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        CameraCaptureSession currentSession = session;
+        if (currentSession != null) {
+            currentSession.close();
+            session = null;
+        }
+        CameraDevice currentCamera = camera;
+        if (currentCamera != null) {
+            currentCamera.close();
+            camera = null;
+        }
+        reader.close();
+        thread.quitSafely();
+    }
+
+    public String toJson() {
+        return "{\"cameraId\":\"" + cameraId + "\"" +
+                ",\"sensorOrientation\":" + sensorOrientation +
+                ",\"failure\":" + (failure != null ? "\"" + failure + "\"" : "null") +
+                ",\"converter\":" + converter.toJson() + "}";
+    }
+}
@@ -0,0 +1,120 @@
+package com.phoneremote.server;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Locale;
+import java.util.Map;
+
+// Tunable capture and streaming parameters. Instances are immutable, so a
+// whole set of changes is published with a single reference swap and the
+// capture loop never sees half of an update.
+public class CaptureConfig {
+    private static final String PREF_NAME = "CaptureConfig";
+
+    public static final CaptureConfig DEFAULT = new CaptureConfig(5, 30, 60, 100, 0.8, 720, 1280);
+
+    public final int minFrameRate;
+    public final int maxFrameRate;
+    public final int minQuality;
+    public final int maxQuality;
+    // Fraction of the heap above which frame rate and quality are reduced
+    public final double memoryThreshold;
+    // Portrait dimensions; swapped when the display is in landscape
+    public final int width;
+    public final int height;
+
+    public CaptureConfig(int minFrameRate, int maxFrameRate, int minQuality, int maxQuality,
+                         double memoryThreshold, int width, int height) {
+        this.minFrameRate = minFrameRate;
+        this.maxFrameRate = maxFrameRate;
+        this.minQuality = minQuality;
+        this.maxQuality = maxQuality;
+        this.memoryThreshold = memoryThreshold;
+        this.width = width;
+        this.height = height;
+    }
+
+    public void validate() {
+        if (minFrameRate < 1 || maxFrameRate > 60 || minFrameRate > maxFrameRate) {
+            throw new IllegalArgumentException("Frame rates must satisfy 1 <= min <= max <= 60");
+        }
+        if (minQuality < 1 || maxQuality > 100 || minQuality > maxQuality) {
+            throw new IllegalArgumentException("Qualities must satisfy 1 <= min <= max <= 100");
+        }
+        if (memoryThreshold <= 0.1 || memoryThreshold > 0.95) {
+            throw new IllegalArgumentException("Memory threshold must be between 0.1 and 0.95");
+        }
+        if (width < 160 || height < 160 || width > 4096 || height > 4096) {
+            throw new IllegalArgumentException("Resolution must be between 160 and 4096 pixels per side");
+        }
+    }
+
+    public boolean sameResolution(CaptureConfig other) {
+        return width == other.width && height == other.height;
+    }
+
+    // Applies the keys present in params on top of this config. Throws
+    // IllegalArgumentException for malformed or out-of-range values.
+    public CaptureConfig merge(Map<String, String> params) {
+        try {
+            CaptureConfig merged = new CaptureConfig(
+                    intParam(params, "minFrameRate", minFrameRate),
+                    intParam(params, "maxFrameRate", maxFrameRate),
+                    intParam(params, "minQuality", minQuality),
+                    intParam(params, "maxQuality", maxQuality),
+                    params.get("memoryThreshold") != null ? Double.parseDouble(params.get("memoryThreshold")) : memoryThreshold,
+                    intParam(params, "width", width),
+                    intParam(params, "height", height));
+            merged.validate();
+            return merged;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + e.getMessage());
+        }
+    }
+
+    private static int intParam(Map<String, String> params, String key, int fallback) {
+        String value = params.get(key);
+        return value != null ? Integer.parseInt(value.trim()) : fallback;
+    }
+
+    public static CaptureConfig load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        CaptureConfig config = new CaptureConfig(
+                prefs.getInt("minFrameRate", DEFAULT.minFrameRate),
+                prefs.getInt("maxFrameRate", DEFAULT.maxFrameRate),
+                prefs.getInt("minQuality", DEFAULT.minQuality),
+                prefs.getInt("maxQuality", DEFAULT.maxQuality),
+                prefs.getFloat("memoryThreshold", (float) DEFAULT.memoryThreshold),
+                prefs.getInt("width", DEFAULT.width),
+                prefs.getInt("height", DEFAULT.height));
+        try {
+            config.validate();
+            return config;
+        } catch (IllegalArgumentException e) {
+            return DEFAULT;
+        }
+    }
+
+    public void save(Context context) {
+        context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit()
+                .putInt("minFrameRate", minFrameRate)
+                .putInt("maxFrameRate", maxFrameRate)
+                .putInt("minQuality", minQuality)
+                .putInt("maxQuality", maxQuality)
+                .putFloat("memoryThreshold", (float) memoryThreshold)
+                .putInt("width", width)
+                .putInt("height", height)
+                .apply();
+    }
+
+    public String toJson() {
+        return "{\"minFrameRate\":" + minFrameRate +
+                ",\"maxFrameRate\":" + maxFrameRate +
+                ",\"minQuality\":" + minQuality +
+                ",\"maxQuality\":" + maxQuality +
+                String.format(Locale.US, ",\"memoryThreshold\":%.2f", memoryThreshold) +
+                ",\"width\":" + width +
+                ",\"height\":" + height + "}";
+    }
+}
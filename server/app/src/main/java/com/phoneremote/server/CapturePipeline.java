@@ -0,0 +1,126 @@
+package com.phoneremote.server;
+
+import java.util.concurrent.Executor;
+
+// Acquire, encode and deliver, one frame per captureOnce() call. Nothing here
+// touches Android: frames come from a FrameSource, encoding and the wait for
+// pending input are plugged in, and delivery goes through an Executor.
+// ScreenCaptureService drives it from its capture timer with the ImageReader
+// source, the Bitmap encoders and InputScheduler; on a plain JVM it can be
+// driven with a SyntheticFrameSource into an InProcessFrameSink.
+public class CapturePipeline {
+    // Longest a frame encode waits for queued input to be injected first
+    public static final long INPUT_YIELD_MS = 8;
+
+    public interface Encoder {
+        // null drops the frame
+        EncodedImage encode(RawFrame frame) throws Exception;
+    }
+
+    // Lets queued input go ahead of the encode, waiting at most maxMillis.
+    // Returns whether any input was pending.
+    public interface InputYield {
+        boolean awaitInputIdle(long maxMillis);
+    }
+
+    // Sees every acquired frame before it is encoded
+    public interface FrameObserver {
+        void onRawFrame(RawFrame frame);
+    }
+
+    private final Encoder encoder;
+    private final Executor delivery;
+    private final InputYield inputYield;
+    private volatile FrameSource source;
+    private volatile FrameSink sink;
+    private volatile FrameObserver observer;
+
+    private volatile long frameSequence;
+    private volatile long framesEncoded;
+    private volatile long framesDropped;
+    private volatile long inputYields;
+
+    // inputYield may be null when nothing injects input
+    public CapturePipeline(Encoder encoder, Executor delivery, InputYield inputYield) {
+        this.encoder = encoder;
+        this.delivery = delivery;
+        this.inputYield = inputYield;
+    }
+
+    // Takes effect from the next captureOnce(); the caller closes the old source
+    public void setSource(FrameSource source) {
+        this.source = source;
+    }
+
+    public FrameSource getSource() {
+        return source;
+    }
+
+    // Frames are only encoded while there is a sink
+    public void setSink(FrameSink sink) {
+        this.sink = sink;
+    }
+
+    public void setFrameObserver(FrameObserver observer) {
+        this.observer = observer;
+    }
+
+    // Sequence of the next delivered frame
+    public long getFrameSequence() {
+        return frameSequence;
+    }
+
+    public long getInputYields() {
+        return inputYields;
+    }
+
+    // Returns false when the source had no new frame
+    public boolean captureOnce() throws Exception {
+        FrameSource current = source;
+        RawFrame frame = current != null ? current.acquireLatestFrame() : null;
+        if (frame == null) {
+            return false;
+        }
+        try {
+            long acquireNanos = System.nanoTime();
+            long captureNanos = frame.timestampNanos > 0 ? frame.timestampNanos : acquireNanos;
+            FrameObserver frameObserver = observer;
+            if (frameObserver != null) {
+                frameObserver.onRawFrame(frame);
+            }
+
+            // With nobody to deliver to, the observer was all the work there was
+            final FrameSink frameSink = sink;
+            if (frameSink == null) {
+                return true;
+            }
+
+            // Input goes first; the frame is late by at most INPUT_YIELD_MS
+            if (inputYield != null && inputYield.awaitInputIdle(INPUT_YIELD_MS)) {
+                inputYields++;
+            }
+            EncodedImage encoded = encoder.encode(frame);
+            if (encoded == null) {
+                framesDropped++;
+                return true;
+            }
+            framesEncoded++;
+
+            final CapturedFrame captured = new CapturedFrame(encoded.data, encoded.codec, frameSequence++,
+                    captureNanos, acquireNanos, System.nanoTime());
+            delivery.execute(() -> {
+                captured.deliveredNanos = System.nanoTime();
+                frameSink.onFrame(captured);
+            });
+            return true;
+        } finally {
+            frame.close();
+        }
+    }
+
+    public String statsJson() {
+        return "{\"framesEncoded\":" + framesEncoded +
+                ",\"framesDropped\":" + framesDropped +
+                ",\"inputYields\":" + inputYields + "}";
+    }
+}
@@ -0,0 +1,30 @@
+package com.phoneremote.server;
+
+// An encoded frame plus the monotonic (System.nanoTime) timestamps of each
+// pipeline stage it has passed through, so latency can be attributed per stage.
+public class CapturedFrame {
+    public final byte[] data;
+    public final int codec;
+    public final long sequence;
+    public final long captureNanos;
+    public final long acquireNanos;
+    public final long encodedNanos;
+    public volatile long deliveredNanos;
+
+    public CapturedFrame(byte[] data, int codec, long sequence, long captureNanos, long acquireNanos, long encodedNanos) {
+        this.data = data;
+        this.codec = codec;
+        this.sequence = sequence;
+        this.captureNanos = captureNanos;
+        this.acquireNanos = acquireNanos;
+        this.encodedNanos = encodedNanos;
+    }
+
+    public long getEncodeMicros() {
+        return (encodedNanos - acquireNanos) / 1000;
+    }
+
+    public long getQueueMicros() {
+        return deliveredNanos != 0 ? (deliveredNanos - encodedNanos) / 1000 : 0;
+    }
+}
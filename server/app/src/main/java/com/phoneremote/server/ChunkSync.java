@@ -0,0 +1,460 @@
+package com.phoneremote.server;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// rsync-style delta uploads. Files are cut into content-defined chunks with a
+// gear rolling hash, so an edit only changes the chunks around it and the
+// boundaries everywhere else stay put. A sync goes:
+//
+//   1. GET  /files/chunks/<name>          manifest of the file already on the device
+//   2. POST /files/sync/begin?name=       manifest of the new version -> session id, missing chunk indices
+//   3. POST /files/sync/chunk?session=&index=   raw bytes of each missing chunk
+//   4. POST /files/sync/commit?session=   verify, then rename over the old file
+//
+// Chunks already on the device are copied into a temporary file with
+// positional FileChannel writes, uploads land the same way, and commit renames
+// the temporary file into place so readers never see a mix of versions. The
+// temporary files live in a hidden staging directory beside the target (a
+// rename can't cross file systems), which file listings and the search index
+// don't descend into. Clients must chunk with the same parameters and gear table (see
+// gearTable()) to get any reuse; other chunkings still work but upload more.
+public class ChunkSync {
+    private static final String TAG = "ChunkSync";
+
+    public static final int MIN_CHUNK = 16 * 1024;
+    public static final int MAX_CHUNK = 256 * 1024;
+    // Top 16 bits: a cut on average every 64 KB past the minimum
+    private static final long CUT_MASK = 0xFFFFL << 48;
+    private static final long GEAR_SEED = 0x5052434443L; // "PRCDC"
+    private static final long[] GEAR = gearTable();
+
+    private static final int IO_BUFFER_SIZE = 1024 * 1024;
+    private static final long SESSION_TTL_MS = 10 * 60 * 1000;
+    private static final String STAGING_DIR = ".sync";
+    // Limits on what one client can make the device hold
+    public static final int MAX_MANIFEST_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_CHUNKS = 65536;
+    private static final long MAX_FILE_BYTES = 4L * 1024 * 1024 * 1024;
+    private static final int MAX_SESSIONS = 4;
+
+    public static class Chunk {
+        public final long offset;
+        public final int length;
+        public final String hash;
+
+        public Chunk(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    private static class Manifest {
+        final long size;
+        final long modified;
+        final List<Chunk> chunks;
+
+        Manifest(long size, long modified, List<Chunk> chunks) {
+            this.size = size;
+            this.modified = modified;
+            this.chunks = chunks;
+        }
+    }
+
+    private class Session {
+        final String id = UUID.randomUUID().toString();
+        final File target;
+        final File temp;
+        final RandomAccessFile file;
+        final List<Chunk> chunks;
+        final boolean[] present;
+        // Indices sharing a hash are filled by one upload
+        final Map<String, List<Integer>> indicesByHash = new HashMap<>();
+        int missing;
+        volatile long lastActivity = System.currentTimeMillis();
+
+        Session(File target, List<Chunk> chunks) throws IOException {
+            this.target = target;
+            this.temp = new File(stagingDir(target), id);
+            this.chunks = chunks;
+            this.present = new boolean[chunks.size()];
+            this.missing = chunks.size();
+            this.file = new RandomAccessFile(temp, "rw");
+            Chunk last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            file.setLength(last != null ? last.offset + last.length : 0);
+            for (int i = 0; i < chunks.size(); i++) {
+                List<Integer> indices = indicesByHash.get(chunks.get(i).hash);
+                if (indices == null) {
+                    indices = new ArrayList<>();
+                    indicesByHash.put(chunks.get(i).hash, indices);
+                }
+                indices.add(i);
+            }
+        }
+
+        void discard() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing sync file", e);
+            }
+            temp.delete();
+        }
+    }
+
+    private final Map<String, Manifest> manifests = new ConcurrentHashMap<>();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    // Returns the chunk manifest of a file as JSON, reusing the cached one while
+    // the file's size and modification time are unchanged
+    public String manifestJson(File file) throws IOException {
+        List<Chunk> chunks = manifest(file).chunks;
+        StringBuilder json = new StringBuilder("{\"size\":" + file.length());
+        json.append(",\"minChunk\":" + MIN_CHUNK + ",\"maxChunk\":" + MAX_CHUNK);
+        json.append(",\"chunks\":[");
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            if (i > 0) json.append(",");
+            json.append("{\"offset\":" + chunk.offset + ",\"length\":" + chunk.length +
+                    ",\"hash\":\"" + chunk.hash + "\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private Manifest manifest(File file) throws IOException {
+        Manifest cached = manifests.get(file.getAbsolutePath());
+        if (cached != null && cached.size == file.length() && cached.modified == file.lastModified()) {
+            return cached;
+        }
+        long modified = file.lastModified();
+        Manifest computed;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            computed = new Manifest(in.length(), modified, chunk(in.getChannel()));
+        }
+        manifests.put(file.getAbsolutePath(), computed);
+        return computed;
+    }
+
+    // Body: {"chunks":[{"hash":"..","length":N}, ...]} describing the new
+    // version in order. Returns the session id and the chunk indices to upload;
+    // everything else was copied from the current file.
+    public String begin(File target, String body) throws IOException {
+        expireSessions();
+
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            JSONArray specs = new JSONObject(body).getJSONArray("chunks");
+            if (specs.length() > MAX_CHUNKS) {
+                throw new IllegalArgumentException("More than " + MAX_CHUNKS + " chunks");
+            }
+            long offset = 0;
+            for (int i = 0; i < specs.length(); i++) {
+                JSONObject spec = specs.getJSONObject(i);
+                int length = spec.getInt("length");
+                String hash = spec.getString("hash").toLowerCase(Locale.ROOT);
+                if (length <= 0 || length > MAX_CHUNK || hash.length() != 64) {
+                    throw new IllegalArgumentException("Invalid chunk " + i);
+                }
+                chunks.add(new Chunk(offset, length, hash));
+                offset += length;
+            }
+            if (offset > MAX_FILE_BYTES) {
+                throw new IllegalArgumentException("File larger than " + MAX_FILE_BYTES + " bytes");
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid manifest: " + e.getMessage());
+        }
+
+        if (sessions.size() >= MAX_SESSIONS) {
+            throw new IllegalArgumentException("Too many sync sessions in progress");
+        }
+        File staging = stagingDir(target);
+        if (!staging.isDirectory() && !staging.mkdirs()) {
+            throw new IOException("Cannot create " + staging);
+        }
+        cleanStaging(staging);
+        Session session = new Session(target, chunks);
+        try {
+            if (target.isFile()) {
+                copyExisting(session);
+            }
+        } catch (IOException e) {
+            session.discard();
+            throw e;
+        }
+        sessions.put(session.id, session);
+
+        StringBuilder json = new StringBuilder("{\"session\":\"" + session.id + "\",\"missing\":[");
+        boolean first = true;
+        for (List<Integer> indices : session.indicesByHash.values()) {
+            int index = indices.get(0);
+            if (!session.present[index]) {
+                if (!first) json.append(",");
+                json.append(index);
+                first = false;
+            }
+        }
+        json.append("],\"reused\":" + (chunks.size() - session.missing));
+        return json.append("}").toString();
+    }
+
+    private void copyExisting(Session session) throws IOException {
+        Map<String, Chunk> existing = new HashMap<>();
+        for (Chunk chunk : manifest(session.target).chunks) {
+            existing.put(chunk.hash, chunk);
+        }
+        FileChannel out = session.file.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_CHUNK);
+        try (RandomAccessFile source = new RandomAccessFile(session.target, "r")) {
+            FileChannel in = source.getChannel();
+            for (Map.Entry<String, List<Integer>> entry : session.indicesByHash.entrySet()) {
+                Chunk old = existing.get(entry.getKey());
+                if (old == null || old.length != session.chunks.get(entry.getValue().get(0)).length) {
+                    continue;
+                }
+                buffer.clear().limit(old.length);
+                readFully(in, buffer, old.offset);
+                for (int index : entry.getValue()) {
+                    buffer.flip();
+                    writeFully(out, buffer, session.chunks.get(index).offset);
+                    session.present[index] = true;
+                    session.missing--;
+                }
+            }
+        }
+    }
+
+    // Reads the request body, checks it against the manifest hash and writes it
+    // at every offset that needs it. The body is consumed in full even when the
+    // chunk is rejected, so leftover bytes aren't read as the next request on a
+    // kept-alive connection; callers must reject bodies over MAX_CHUNK first.
+    public int writeChunk(String sessionId, int index, InputStream body, int bodyLength) throws IOException {
+        byte[] data = new byte[bodyLength];
+        int read = 0;
+        while (read < data.length) {
+            int n = body.read(data, read, data.length - read);
+            if (n < 0) {
+                throw new IllegalArgumentException("Chunk body shorter than " + bodyLength + " bytes");
+            }
+            read += n;
+        }
+
+        Session session = sessionId != null ? sessions.get(sessionId) : null;
+        if (session == null) {
+            throw new IllegalArgumentException("Unknown session");
+        }
+        if (index < 0 || index >= session.chunks.size()) {
+            throw new IllegalArgumentException("Invalid chunk index");
+        }
+        session.lastActivity = System.currentTimeMillis();
+        Chunk chunk = session.chunks.get(index);
+        if (bodyLength != chunk.length) {
+            throw new IllegalArgumentException("Chunk " + index + " is " + chunk.length + " bytes, got " + bodyLength);
+        }
+        if (!chunk.hash.equals(toHex(sha256().digest(data)))) {
+            throw new IllegalArgumentException("Chunk hash mismatch");
+        }
+
+        FileChannel out = session.file.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        List<Integer> indices = session.indicesByHash.get(chunk.hash);
+        for (int target : indices) {
+            buffer.rewind();
+            writeFully(out, buffer, session.chunks.get(target).offset);
+        }
+        synchronized (session) {
+            for (int target : indices) {
+                if (!session.present[target]) {
+                    session.present[target] = true;
+                    session.missing--;
+                }
+            }
+            return session.missing;
+        }
+    }
+
+    public boolean commit(String sessionId) throws IOException {
+        Session session = sessionId != null ? sessions.get(sessionId) : null;
+        if (session == null) {
+            throw new IllegalArgumentException("Unknown session");
+        }
+        synchronized (session) {
+            if (session.missing > 0) {
+                throw new IllegalArgumentException(session.missing + " chunks still missing");
+            }
+        }
+        sessions.remove(sessionId);
+        try {
+            session.file.getChannel().force(true);
+            session.file.close();
+        } catch (IOException e) {
+            session.temp.delete();
+            throw e;
+        }
+        if (!session.temp.renameTo(session.target)) {
+            session.temp.delete();
+            return false;
+        }
+        // The manifest of the new version is already known
+        manifests.put(session.target.getAbsolutePath(), new Manifest(session.target.length(),
+                session.target.lastModified(), session.chunks));
+        return true;
+    }
+
+    public boolean abort(String sessionId) {
+        Session session = sessionId != null ? sessions.remove(sessionId) : null;
+        if (session == null) {
+            return false;
+        }
+        session.discard();
+        return true;
+    }
+
+    public void close() {
+        for (String id : new ArrayList<>(sessions.keySet())) {
+            abort(id);
+        }
+        manifests.clear();
+    }
+
+    private void expireSessions() {
+        long now = System.currentTimeMillis();
+        for (Session session : new ArrayList<>(sessions.values())) {
+            if (now - session.lastActivity > SESSION_TTL_MS) {
+                Log.w(TAG, "Sync session expired for " + session.target.getName());
+                abort(session.id);
+            }
+        }
+    }
+
+    // Removes staged files left behind by a crash or a killed process
+    private void cleanStaging(File staging) {
+        File[] staged = staging.listFiles();
+        if (staged == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File file : staged) {
+            if (!sessions.containsKey(file.getName()) && now - file.lastModified() > SESSION_TTL_MS) {
+                file.delete();
+            }
+        }
+    }
+
+    private static File stagingDir(File target) {
+        return new File(target.getParentFile(), STAGING_DIR);
+    }
+
+    // Splits the channel's content into chunks. A boundary follows the first
+    // byte past MIN_CHUNK where the top bits of the gear hash are zero, or
+    // MAX_CHUNK, whichever comes first. The gear hash only depends on the last
+    // 64 bytes, so boundaries resynchronise shortly after an edit.
+    public static List<Chunk> chunk(FileChannel in) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = sha256();
+        byte[] bytes = new byte[IO_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = 0;
+        long chunkStart = 0;
+        long hash = 0;
+        int n;
+        while ((n = in.read(buffer, position)) > 0) {
+            int segmentStart = 0;
+            for (int i = 0; i < n; i++) {
+                hash = (hash << 1) + GEAR[bytes[i] & 0xFF];
+                long length = position + i + 1 - chunkStart;
+                if ((length >= MIN_CHUNK && (hash & CUT_MASK) == 0) || length >= MAX_CHUNK) {
+                    digest.update(bytes, segmentStart, i + 1 - segmentStart);
+                    chunks.add(new Chunk(chunkStart, (int) length, toHex(digest.digest())));
+                    chunkStart = position + i + 1;
+                    segmentStart = i + 1;
+                    hash = 0;
+                }
+            }
+            digest.update(bytes, segmentStart, n - segmentStart);
+            position += n;
+            buffer.clear();
+        }
+        if (position > chunkStart) {
+            chunks.add(new Chunk(chunkStart, (int) (position - chunkStart), toHex(digest.digest())));
+        }
+        return chunks;
+    }
+
+    // Client side: the /files/sync/begin body for a file chunked with chunk()
+    public static String beginBody(List<Chunk> chunks) {
+        StringBuilder json = new StringBuilder("{\"chunks\":[");
+        for (int i = 0; i < chunks.size(); i++) {
+            if (i > 0) json.append(",");
+            json.append("{\"hash\":\"").append(chunks.get(i).hash)
+                    .append("\",\"length\":").append(chunks.get(i).length).append("}");
+        }
+        return json.append("]}").toString();
+    }
+
+    // SplitMix64 from a fixed seed, so any client can rebuild the same table
+    public static long[] gearTable() {
+        long[] table = new long[256];
+        long state = GEAR_SEED;
+        for (int i = 0; i < table.length; i++) {
+            state += 0x9E3779B97F4A7C15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            table[i] = z ^ (z >>> 31);
+        }
+        return table;
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
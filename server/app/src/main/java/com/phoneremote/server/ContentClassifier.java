@@ -0,0 +1,85 @@
+package com.phoneremote.server;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+
+// Cheap content classification from a sparse sample of rows. Flat UI has long
+// runs of identical pixels and few distinct colors; photos and video have
+// almost none. Sampling 32 rows keeps this well under a millisecond.
+public class ContentClassifier {
+    public static final int CLASS_FLAT = 0;
+    public static final int CLASS_MIXED = 1;
+    public static final int CLASS_PHOTO = 2;
+    public static final int CLASS_COUNT = 3;
+
+    private static final int SAMPLE_ROWS = 32;
+    private static final int COLOR_TABLE_SIZE = 1024;
+    private static final int MAX_COUNTED_COLORS = COLOR_TABLE_SIZE / 2;
+
+    private static final double FLAT_RUN_RATIO = 0.85;
+    private static final int FLAT_MAX_COLORS = 256;
+    private static final double PHOTO_RUN_RATIO = 0.35;
+
+    private int[] row = new int[0];
+    private final int[] colorTable = new int[COLOR_TABLE_SIZE];
+    private final boolean[] colorUsed = new boolean[COLOR_TABLE_SIZE];
+
+    // Not thread-safe; keep one per encoding thread
+    public int classify(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width < 2 || height == 0) {
+            return CLASS_FLAT;
+        }
+        if (row.length < width) {
+            row = new int[width];
+        }
+        Arrays.fill(colorUsed, false);
+
+        long pairs = 0;
+        long equalPairs = 0;
+        int colors = 0;
+        int rows = Math.min(SAMPLE_ROWS, height);
+        for (int r = 0; r < rows; r++) {
+            int y = (int) ((r + 0.5) * height / rows);
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 1; x < width; x++) {
+                pairs++;
+                if (row[x] == row[x - 1]) {
+                    equalPairs++;
+                } else if (colors < MAX_COUNTED_COLORS && addColor(row[x])) {
+                    colors++;
+                }
+            }
+        }
+
+        double runRatio = (double) equalPairs / pairs;
+        if (runRatio >= FLAT_RUN_RATIO && colors < FLAT_MAX_COLORS) {
+            return CLASS_FLAT;
+        }
+        return runRatio <= PHOTO_RUN_RATIO ? CLASS_PHOTO : CLASS_MIXED;
+    }
+
+    public static String name(int contentClass) {
+        switch (contentClass) {
+            case CLASS_FLAT: return "flat";
+            case CLASS_MIXED: return "mixed";
+            default: return "photo";
+        }
+    }
+
+    // Open-addressing set; returns true if the color was new
+    private boolean addColor(int color) {
+        int slot = (color * 0x9E3779B1) >>> 22;
+        while (colorUsed[slot]) {
+            if (colorTable[slot] == color) {
+                return false;
+            }
+            slot = (slot + 1) & (COLOR_TABLE_SIZE - 1);
+        }
+        colorUsed[slot] = true;
+        colorTable[slot] = color;
+        return true;
+    }
+}
@@ -0,0 +1,17 @@
+package com.phoneremote.server;
+
+// Output of one frame encode: the codec that produced it, the content class it
+// was encoded for (-1 when not classified) and how long the encode took.
+public class EncodedImage {
+    public final int codec;
+    public final int contentClass;
+    public final byte[] data;
+    public final long encodeMicros;
+
+    EncodedImage(int codec, int contentClass, byte[] data, long encodeMicros) {
+        this.codec = codec;
+        this.contentClass = contentClass;
+        this.data = data;
+        this.encodeMicros = encodeMicros;
+    }
+}
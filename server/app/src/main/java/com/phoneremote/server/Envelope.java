@@ -0,0 +1,126 @@
+package com.phoneremote.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Versioned binary envelope multiplexing video, input, acks and control on a
+// single WebSocket. Layout (big-endian, 16 byte header):
+//
+//   0  version   u8
+//   1  type      u8
+//   2  channel   u8
+//   3  flags     u8
+//   4  sequence  u32
+//   8  timestamp i64, microseconds on the sender's clock
+//   16 payload
+//
+// The payload length is implied by the WebSocket message length. Receivers must
+// ignore types they don't understand, so new payloads need no new endpoint.
+public class Envelope {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    public static final int TYPE_FRAME = 1;
+    // 2 is reserved for delta frames; nothing sends them yet
+    public static final int TYPE_INPUT = 3;
+    public static final int TYPE_ACK = 4;
+    public static final int TYPE_CONTROL = 5;
+    // Injected pointer positions, see PointerStream
+    public static final int TYPE_POINTER = 6;
+
+    public static final int CHANNEL_CONTROL = 0;
+    public static final int CHANNEL_VIDEO = 1;
+    public static final int CHANNEL_INPUT = 2;
+    public static final int CHANNEL_POINTER = 3;
+
+    public static final int FLAG_KEYFRAME = 1;
+    public static final int FLAG_SUCCESS = 1 << 1;
+
+    // The upper four flag bits of a video frame carry its FrameEncoder codec id
+    public static final int CODEC_SHIFT = 4;
+    public static final int CODEC_MASK = 0xF0;
+
+    public final int version;
+    public final int type;
+    public final int channel;
+    public final int flags;
+    public final long sequence;
+    public final long timestampMicros;
+    public final byte[] buffer;
+    public final int payloadOffset;
+    public final int payloadLength;
+
+    private Envelope(int version, int type, int channel, int flags, long sequence, long timestampMicros,
+                     byte[] buffer, int payloadOffset, int payloadLength) {
+        this.version = version;
+        this.type = type;
+        this.channel = channel;
+        this.flags = flags;
+        this.sequence = sequence;
+        this.timestampMicros = timestampMicros;
+        this.buffer = buffer;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int codec() {
+        return (flags & CODEC_MASK) >>> CODEC_SHIFT;
+    }
+
+    public static int codecFlags(int codec) {
+        return (codec << CODEC_SHIFT) & CODEC_MASK;
+    }
+
+    public ByteBuffer payload() {
+        return ByteBuffer.wrap(buffer, payloadOffset, payloadLength).slice();
+    }
+
+    public String payloadText() {
+        return new String(buffer, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encode(int type, int channel, int flags, long sequence, long timestampMicros,
+                                byte[] payload, int offset, int length) {
+        byte[] message = new byte[HEADER_SIZE + length];
+        ByteBuffer.wrap(message)
+                .put((byte) VERSION)
+                .put((byte) type)
+                .put((byte) channel)
+                .put((byte) flags)
+                .putInt((int) sequence)
+                .putLong(timestampMicros);
+        System.arraycopy(payload, offset, message, HEADER_SIZE, length);
+        return message;
+    }
+
+    public static byte[] encode(int type, int channel, int flags, long sequence, long timestampMicros, byte[] payload) {
+        return encode(type, channel, flags, sequence, timestampMicros, payload, 0, payload.length);
+    }
+
+    public static byte[] encodeText(int type, int channel, int flags, long sequence, long timestampMicros, String text) {
+        return encode(type, channel, flags, sequence, timestampMicros, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Wraps the message without copying the payload
+    public static Envelope decode(byte[] message) {
+        if (message == null || message.length < HEADER_SIZE) {
+            throw new IllegalArgumentException("Message shorter than envelope header");
+        }
+        ByteBuffer header = ByteBuffer.wrap(message, 0, HEADER_SIZE);
+        int version = header.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported envelope version " + version);
+        }
+        int type = header.get() & 0xFF;
+        int channel = header.get() & 0xFF;
+        int flags = header.get() & 0xFF;
+        long sequence = header.getInt() & 0xFFFFFFFFL;
+        long timestamp = header.getLong();
+        return new Envelope(version, type, channel, flags, sequence, timestamp,
+                message, HEADER_SIZE, message.length - HEADER_SIZE);
+    }
+}
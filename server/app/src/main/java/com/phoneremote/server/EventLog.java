@@ -0,0 +1,169 @@
+package com.phoneremote.server;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// In-memory structured event log for hot paths. Events go into a fixed ring of
+// preallocated slots: a writer claims a slot with one atomic increment, fills
+// in primitive fields and references it already holds, and publishes the slot
+// with an ordered store. Nothing is formatted or allocated when an event is
+// recorded; strings are only built when /debug/events is read.
+//
+// Each category has its own level and a sample rate (record one of every N
+// events), so a noisy category can stay enabled without flooding the ring.
+// Callers check isEnabled() before computing anything that isn't free.
+public class EventLog {
+    public static final int CATEGORY_HTTP = 0;
+    public static final int CATEGORY_WEBSOCKET = 1;
+    public static final int CATEGORY_INPUT = 2;
+    public static final int CATEGORY_CAPTURE = 3;
+    public static final int CATEGORY_STREAM = 4;
+    private static final String[] CATEGORY_NAMES = {"http", "websocket", "input", "capture", "stream"};
+
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_ERROR = 1;
+    public static final int LEVEL_INFO = 2;
+    public static final int LEVEL_DEBUG = 3;
+    private static final String[] LEVEL_NAMES = {"off", "error", "info", "debug"};
+
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicLong cursor = new AtomicLong();
+    // Holds the index + 1 of the event in each slot once it is fully written
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final int[] categories = new int[CAPACITY];
+    private static final int[] levels = new int[CAPACITY];
+    private static final String[] events = new String[CAPACITY];
+    private static final String[] details = new String[CAPACITY];
+    private static final long[] firstArgs = new long[CAPACITY];
+    private static final long[] secondArgs = new long[CAPACITY];
+
+    private static final int[] categoryLevels = {LEVEL_INFO, LEVEL_INFO, LEVEL_INFO, LEVEL_INFO, LEVEL_INFO};
+    private static final int[] sampleRates = {1, 1, 1, 1, 1};
+    private static final AtomicLongArray sampleCounters = new AtomicLongArray(CATEGORY_NAMES.length);
+
+    private EventLog() {
+    }
+
+    public static boolean isEnabled(int category, int level) {
+        return level <= categoryLevels[category];
+    }
+
+    // event should be a constant; detail a string the caller already has
+    public static void log(int category, int level, String event, String detail, long firstArg, long secondArg) {
+        if (level > categoryLevels[category]) {
+            return;
+        }
+        int rate = sampleRates[category];
+        if (rate > 1 && sampleCounters.getAndIncrement(category) % rate != 0) {
+            return;
+        }
+
+        long index = cursor.getAndIncrement();
+        int slot = (int) (index & MASK);
+        // Readers treat the slot as torn until it is published again
+        published.set(slot, 0);
+        timestamps[slot] = System.nanoTime();
+        categories[slot] = category;
+        levels[slot] = level;
+        events[slot] = event;
+        details[slot] = detail;
+        firstArgs[slot] = firstArg;
+        secondArgs[slot] = secondArg;
+        published.lazySet(slot, index + 1);
+    }
+
+    public static void log(int category, int level, String event, String detail) {
+        log(category, level, event, detail, 0, 0);
+    }
+
+    public static void setLevel(int category, int level, int sampleRate) {
+        categoryLevels[category] = Math.max(LEVEL_OFF, Math.min(LEVEL_DEBUG, level));
+        sampleRates[category] = Math.max(1, sampleRate);
+    }
+
+    public static int categoryOf(String name) {
+        for (int i = 0; i < CATEGORY_NAMES.length; i++) {
+            if (CATEGORY_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static int levelOf(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Newest last. Slots overwritten while being read are skipped.
+    public static String toJson(int limit, int category) {
+        long end = cursor.get();
+        long start = Math.max(0, end - Math.min(limit, CAPACITY));
+        long now = System.nanoTime();
+
+        StringBuilder json = new StringBuilder("{\"levels\":{");
+        for (int c = 0; c < CATEGORY_NAMES.length; c++) {
+            if (c > 0) json.append(",");
+            json.append("\"").append(CATEGORY_NAMES[c]).append("\":{\"level\":\"")
+                    .append(LEVEL_NAMES[categoryLevels[c]]).append("\",\"sample\":")
+                    .append(sampleRates[c]).append("}");
+        }
+        json.append("},\"total\":").append(end).append(",\"events\":[");
+
+        boolean first = true;
+        for (long index = start; index < end; index++) {
+            int slot = (int) (index & MASK);
+            if (published.get(slot) != index + 1) {
+                continue;
+            }
+            long timestamp = timestamps[slot];
+            int eventCategory = categories[slot];
+            int level = levels[slot];
+            String event = events[slot];
+            String detail = details[slot];
+            long firstArg = firstArgs[slot];
+            long secondArg = secondArgs[slot];
+            if (published.get(slot) != index + 1) {
+                continue; // Overwritten while we copied it
+            }
+            if (category >= 0 && eventCategory != category) {
+                continue;
+            }
+
+            if (!first) json.append(",");
+            first = false;
+            json.append(String.format(Locale.US, "{\"ageMs\":%.3f", (now - timestamp) / 1e6));
+            json.append(",\"category\":\"").append(CATEGORY_NAMES[eventCategory]).append("\"");
+            json.append(",\"level\":\"").append(LEVEL_NAMES[level]).append("\"");
+            json.append(",\"event\":\"").append(escape(event)).append("\"");
+            if (detail != null) {
+                json.append(",\"detail\":\"").append(escape(detail)).append("\"");
+            }
+            json.append(",\"args\":[").append(firstArg).append(",").append(secondArg).append("]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,636 @@
+package com.phoneremote.server;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Incremental search index over the files in one directory. File names are
+// indexed by lowercase trigram; small text files also get their contents
+// indexed the same way. A query intersects the posting lists of its trigrams
+// and only the surviving candidates are checked against the real string, so
+// search cost follows the number of matches rather than the number of files.
+//
+// A FileObserver keeps the index current. All mutations happen on one worker
+// thread; queries take the lock only long enough to collect candidate ids.
+// The index is saved a few seconds after the last change and reloaded on
+// start, where only files whose size or modification time changed are read.
+//
+// Saved layout (big-endian, via DataOutputStream):
+//   magic "PRFS", version int, entry count int
+//   entries : name UTF, size long, modified long, content indexed boolean
+//   content : trigram count int, then per trigram: key long, id count varint, id deltas varint
+// Name trigrams are not saved; they are recomputed from the names on load.
+public class FileSearchIndex {
+    private static final String TAG = "FileSearchIndex";
+
+    private static final int MAGIC = 0x50524653; // "PRFS"
+    private static final int VERSION = 1;
+    private static final long MAX_CONTENT_BYTES = 256 * 1024;
+    private static final long SAVE_DELAY_MS = 5000;
+    private static final Set<String> TEXT_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "log", "md", "csv", "json", "xml", "html", "htm", "js", "css", "java", "kt",
+            "py", "sh", "ini", "conf", "cfg", "yaml", "yml", "properties"));
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.MOVED_FROM | FileObserver.DELETE;
+
+    public static class Match {
+        public final String name;
+        public final long size;
+        public final long modified;
+        public final boolean inContent;
+
+        Match(String name, long size, long modified, boolean inContent) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.inContent = inContent;
+        }
+    }
+
+    private static class Entry {
+        // Renumbered when removed entries are compacted away
+        int id;
+        final String name;
+        final String lowerName;
+        final long size;
+        final long modified;
+        boolean contentIndexed;
+
+        Entry(int id, String name, long size, long modified) {
+            this.id = id;
+            this.name = name;
+            this.lowerName = name.toLowerCase(Locale.ROOT);
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    // Ids only grow, so appending keeps every list sorted; compaction renumbers
+    // in the same order, so they stay sorted
+    private static class PostingList {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    private final File directory;
+    private final File indexFile;
+    private final boolean indexContents;
+
+    private final Map<String, Entry> entriesByName = new HashMap<>();
+    private final List<Entry> entriesById = new ArrayList<>();
+    private final Map<Long, PostingList> namePostings = new HashMap<>();
+    private final Map<Long, PostingList> contentPostings = new HashMap<>();
+    private int removedEntries;
+
+    private final ScheduledThreadPoolExecutor worker = new ScheduledThreadPoolExecutor(1,
+            runnable -> new Thread(runnable, "FileSearchIndex"));
+    private FileObserver observer;
+    private boolean savePending;
+    private volatile boolean ready;
+
+    public FileSearchIndex(File directory, File indexFile, boolean indexContents) {
+        this.directory = directory;
+        this.indexFile = indexFile;
+        this.indexContents = indexContents;
+        // stop() saves explicitly, so a delayed save need not outlive it
+        worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public void start() {
+        observer = new FileObserver(directory.getAbsolutePath(), EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (path != null) {
+                    worker.execute(() -> refresh(path));
+                }
+            }
+        };
+        // Watch before the initial scan so nothing written during it is missed
+        observer.startWatching();
+        worker.execute(() -> {
+            load();
+            reconcile();
+            ready = true;
+        });
+    }
+
+    public void stop() {
+        if (observer != null) {
+            observer.stopWatching();
+            observer = null;
+        }
+        worker.execute(this::save);
+        worker.shutdown();
+        try {
+            worker.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public synchronized int size() {
+        return entriesByName.size();
+    }
+
+    // Returns files whose name (or, when searchContents is set, whose indexed
+    // text) contains the query, case-insensitively. Content matches are
+    // confirmed lazily by the returned stream, so this call never reads files.
+    public CandidateSet search(String query, boolean searchContents) {
+        String needle = query.toLowerCase(Locale.ROOT);
+        List<Entry> nameCandidates = new ArrayList<>();
+        List<Entry> contentCandidates = new ArrayList<>();
+        synchronized (this) {
+            if (needle.length() < 3) {
+                // Too short for a trigram; names are cheap to scan
+                for (Entry entry : entriesByName.values()) {
+                    nameCandidates.add(entry);
+                }
+            } else {
+                collect(namePostings, needle, nameCandidates);
+                if (searchContents) {
+                    collect(contentPostings, needle, contentCandidates);
+                }
+            }
+        }
+        return new CandidateSet(needle, nameCandidates, contentCandidates);
+    }
+
+    // Iterates confirmed matches, names first
+    public class CandidateSet {
+        private final String needle;
+        private final List<Entry> names;
+        private final List<Entry> contents;
+        // By identity, since ids may be renumbered while the stream is read
+        private final Set<Entry> returned = new HashSet<>();
+        private int namePosition;
+        private int contentPosition;
+
+        CandidateSet(String needle, List<Entry> names, List<Entry> contents) {
+            this.needle = needle;
+            this.names = names;
+            this.contents = contents;
+        }
+
+        public Match next() {
+            while (namePosition < names.size()) {
+                Entry entry = names.get(namePosition++);
+                if (entry.lowerName.contains(needle)) {
+                    returned.add(entry);
+                    return new Match(entry.name, entry.size, entry.modified, false);
+                }
+            }
+            while (contentPosition < contents.size()) {
+                Entry entry = contents.get(contentPosition++);
+                if (!returned.contains(entry) && contentContains(entry, needle)) {
+                    return new Match(entry.name, entry.size, entry.modified, true);
+                }
+            }
+            return null;
+        }
+    }
+
+    // Streams matches as newline-delimited JSON, one file per line, reading
+    // further candidates only as the client consumes the response
+    public static class ResultStream extends InputStream {
+        private final CandidateSet candidates;
+        private int remaining;
+        private byte[] line = new byte[0];
+        private int position;
+
+        public ResultStream(CandidateSet candidates, int limit) {
+            this.candidates = candidates;
+            this.remaining = limit;
+        }
+
+        private boolean fill() {
+            while (position >= line.length) {
+                Match match = remaining > 0 ? candidates.next() : null;
+                if (match == null) {
+                    return false;
+                }
+                remaining--;
+                line = ("{\"name\":\"" + escape(match.name) + "\"," +
+                        "\"size\":" + match.size + "," +
+                        "\"date\":" + match.modified + "," +
+                        "\"content\":" + match.inContent + "}\n").getBytes(StandardCharsets.UTF_8);
+                position = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() {
+            return fill() ? line[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(length, line.length - position);
+            System.arraycopy(line, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+    }
+
+    private void collect(Map<Long, PostingList> postings, String needle, List<Entry> out) {
+        List<PostingList> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= needle.length(); i++) {
+            PostingList list = postings.get(trigram(needle, i));
+            if (list == null) {
+                return;
+            }
+            lists.add(list);
+        }
+        // Start from the rarest trigram so the intersection stays small
+        PostingList smallest = lists.get(0);
+        for (PostingList list : lists) {
+            if (list.size < smallest.size) {
+                smallest = list;
+            }
+        }
+        int[] positions = new int[lists.size()];
+        for (int i = 0; i < smallest.size; i++) {
+            int id = smallest.ids[i];
+            boolean inAll = true;
+            for (int l = 0; l < lists.size() && inAll; l++) {
+                PostingList list = lists.get(l);
+                if (list == smallest) {
+                    continue;
+                }
+                int position = positions[l];
+                while (position < list.size && list.ids[position] < id) {
+                    position++;
+                }
+                positions[l] = position;
+                inAll = position < list.size && list.ids[position] == id;
+            }
+            Entry entry = inAll ? entriesById.get(id) : null;
+            if (entry != null) {
+                out.add(entry);
+            }
+        }
+    }
+
+    private boolean contentContains(Entry entry, String needle) {
+        byte[] data = readText(new File(directory, entry.name));
+        return data != null && new String(data, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT).contains(needle);
+    }
+
+    // Worker thread from here on
+
+    private void refresh(String name) {
+        File file = new File(directory, name);
+        synchronized (this) {
+            Entry existing = entriesByName.get(name);
+            if (existing != null && file.isFile()
+                    && existing.size == file.length() && existing.modified == file.lastModified()) {
+                return;
+            }
+            if (existing != null) {
+                remove(existing);
+            }
+        }
+        if (file.isFile()) {
+            add(file);
+        }
+        scheduleSave();
+    }
+
+    private void reconcile() {
+        File[] files = directory.listFiles();
+        Set<String> present = new HashSet<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    present.add(file.getName());
+                    refresh(file.getName());
+                }
+            }
+        }
+        synchronized (this) {
+            for (Entry entry : new ArrayList<>(entriesByName.values())) {
+                if (!present.contains(entry.name)) {
+                    remove(entry);
+                }
+            }
+        }
+        scheduleSave();
+    }
+
+    private void add(File file) {
+        // Read outside the lock; queries keep running meanwhile
+        Set<Long> contentTrigrams = null;
+        if (indexContents && isText(file.getName()) && file.length() <= MAX_CONTENT_BYTES) {
+            byte[] data = readText(file);
+            if (data != null) {
+                contentTrigrams = trigrams(new String(data, StandardCharsets.UTF_8).toLowerCase(Locale.ROOT));
+            }
+        }
+        synchronized (this) {
+            Entry entry = addEntry(file.getName(), file.length(), file.lastModified());
+            if (contentTrigrams != null) {
+                entry.contentIndexed = true;
+                for (long key : contentTrigrams) {
+                    posting(contentPostings, key).add(entry.id);
+                }
+            }
+        }
+    }
+
+    // Callers hold the lock
+    private Entry addEntry(String name, long size, long modified) {
+        Entry entry = new Entry(entriesById.size(), name, size, modified);
+        entriesById.add(entry);
+        entriesByName.put(name, entry);
+        for (long key : trigrams(entry.lowerName)) {
+            posting(namePostings, key).add(entry.id);
+        }
+        return entry;
+    }
+
+    // Postings and entriesById keep the dead id until enough have piled up to compact
+    private void remove(Entry entry) {
+        entriesByName.remove(entry.name);
+        entriesById.set(entry.id, null);
+        removedEntries++;
+        if (removedEntries > 1024 && removedEntries > entriesByName.size()) {
+            compact();
+            removedEntries = 0;
+        }
+    }
+
+    // Renumbers live entries densely in their current order and drops the
+    // removed ones, so entriesById shrinks back to the live count
+    private void compact() {
+        int[] newIds = new int[entriesById.size()];
+        List<Entry> live = new ArrayList<>(entriesByName.size());
+        for (int i = 0; i < entriesById.size(); i++) {
+            Entry entry = entriesById.get(i);
+            if (entry == null) {
+                newIds[i] = -1;
+            } else {
+                newIds[i] = live.size();
+                entry.id = newIds[i];
+                live.add(entry);
+            }
+        }
+        renumber(namePostings, newIds);
+        renumber(contentPostings, newIds);
+        entriesById.clear();
+        entriesById.addAll(live);
+    }
+
+    private static void renumber(Map<Long, PostingList> postings, int[] newIds) {
+        for (Iterator<Map.Entry<Long, PostingList>> it = postings.entrySet().iterator(); it.hasNext(); ) {
+            PostingList list = it.next().getValue();
+            int kept = 0;
+            for (int i = 0; i < list.size; i++) {
+                int id = newIds[list.ids[i]];
+                if (id >= 0) {
+                    list.ids[kept++] = id;
+                }
+            }
+            list.size = kept;
+            if (kept == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        if (savePending || worker.isShutdown()) {
+            return;
+        }
+        savePending = true;
+        worker.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Serializes under the lock, which is only CPU work, and writes the file
+    // outside it so queries and updates don't wait on the disk
+    private void save() {
+        byte[] snapshot;
+        try {
+            snapshot = snapshot();
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving search index", e);
+            return;
+        }
+        File temp = new File(indexFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(snapshot);
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving search index", e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(indexFile)) {
+            Log.e(TAG, "Error replacing search index");
+            temp.delete();
+        }
+    }
+
+    private synchronized byte[] snapshot() throws IOException {
+        savePending = false;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Saved ids are renumbered densely, skipping removed entries
+        int[] savedIds = new int[entriesById.size()];
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(entriesByName.size());
+        int next = 0;
+        for (Entry entry : entriesById) {
+            if (entry == null) {
+                continue;
+            }
+            savedIds[entry.id] = next++;
+            out.writeUTF(entry.name);
+            out.writeLong(entry.size);
+            out.writeLong(entry.modified);
+            out.writeBoolean(entry.contentIndexed);
+        }
+
+        out.writeInt(contentPostings.size());
+        for (Map.Entry<Long, PostingList> posting : contentPostings.entrySet()) {
+            PostingList list = posting.getValue();
+            int live = 0;
+            for (int i = 0; i < list.size; i++) {
+                if (entriesById.get(list.ids[i]) != null) live++;
+            }
+            out.writeLong(posting.getKey());
+            writeVarint(out, live);
+            int previous = 0;
+            for (int i = 0; i < list.size; i++) {
+                if (entriesById.get(list.ids[i]) == null) continue;
+                int id = savedIds[list.ids[i]];
+                writeVarint(out, id - previous);
+                previous = id;
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private synchronized void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = addEntry(in.readUTF(), in.readLong(), in.readLong());
+                entry.contentIndexed = in.readBoolean();
+            }
+            int trigramCount = in.readInt();
+            for (int t = 0; t < trigramCount; t++) {
+                PostingList list = posting(contentPostings, in.readLong());
+                int ids = readVarint(in);
+                int id = 0;
+                for (int i = 0; i < ids; i++) {
+                    id += readVarint(in);
+                    if (id < 0 || id >= count) {
+                        throw new IOException("Posting id out of range");
+                    }
+                    list.add(id);
+                }
+            }
+        } catch (IOException e) {
+            // A damaged index is rebuilt from the directory
+            Log.e(TAG, "Error loading search index", e);
+            entriesByName.clear();
+            entriesById.clear();
+            namePostings.clear();
+            contentPostings.clear();
+        }
+    }
+
+    private static PostingList posting(Map<Long, PostingList> postings, long key) {
+        PostingList list = postings.get(key);
+        if (list == null) {
+            list = new PostingList();
+            postings.put(key, list);
+        }
+        return list;
+    }
+
+    private static long trigram(String text, int offset) {
+        return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+    }
+
+    private static Set<Long> trigrams(String text) {
+        Set<Long> keys = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            keys.add(trigram(text, i));
+        }
+        return keys;
+    }
+
+    private static boolean isText(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && TEXT_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    // Returns null for files that are missing, too large or look binary
+    private static byte[] readText(File file) {
+        long length = file.length();
+        if (length > MAX_CONTENT_BYTES) {
+            return null;
+        }
+        byte[] data = new byte[(int) length];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            for (int i = 0; i < read; i++) {
+                if (data[i] == 0) {
+                    return null;
+                }
+            }
+            return read == data.length ? data : Arrays.copyOf(data, read);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,211 @@
+package com.phoneremote.server;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Process-wide publish/subscribe for encoded frames, so producers and
+// consumers don't need to know about each other or start in a particular
+// order. Every subscription picks its own executor and delivery policy:
+//   latest-only  a slow subscriber skips to the newest frame
+//   every-frame  frames queue up to MAX_QUEUED_FRAMES, then the oldest is dropped
+// Subscribers share one SharedFrame per published frame and must release it.
+// Producers only do work while some subscription is active.
+public class FrameBus implements FrameSink {
+    private static final String TAG = "FrameBus";
+
+    public static final int POLICY_LATEST_ONLY = 0;
+    public static final int POLICY_EVERY_FRAME = 1;
+
+    private static final int MAX_QUEUED_FRAMES = 64;
+
+    // Full-size stream frames, dashboard thumbnails and the camera feed
+    private static final FrameBus screen = new FrameBus("screen");
+    private static final FrameBus preview = new FrameBus("preview");
+    private static final FrameBus camera = new FrameBus("camera");
+
+    public static FrameBus screen() {
+        return screen;
+    }
+
+    public static FrameBus preview() {
+        return preview;
+    }
+
+    public static FrameBus camera() {
+        return camera;
+    }
+
+    public interface Subscriber {
+        // The callee owns one reference to frame
+        void onFrame(SharedFrame frame);
+    }
+
+    public class Subscription {
+        final String name;
+        final int policy;
+        final Executor executor;
+        final Subscriber subscriber;
+        private final ArrayDeque<SharedFrame> queue = new ArrayDeque<>();
+        private volatile boolean active;
+        private boolean draining;
+        private long delivered;
+        private long dropped;
+
+        Subscription(String name, int policy, Executor executor, Subscriber subscriber) {
+            this.name = name;
+            this.policy = policy;
+            this.executor = executor;
+            this.subscriber = subscriber;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        // Inactive subscriptions receive nothing and don't keep producers running
+        public synchronized void setActive(boolean active) {
+            if (this.active == active) {
+                return;
+            }
+            this.active = active;
+            if (active) {
+                activeCount.incrementAndGet();
+            } else {
+                activeCount.decrementAndGet();
+                clear();
+            }
+        }
+
+        public void close() {
+            setActive(false);
+            subscriptions.remove(this);
+        }
+
+        void offer(SharedFrame frame) {
+            synchronized (this) {
+                if (policy == POLICY_LATEST_ONLY) {
+                    while (!queue.isEmpty()) {
+                        queue.poll().release();
+                        dropped++;
+                    }
+                } else if (queue.size() >= MAX_QUEUED_FRAMES) {
+                    queue.poll().release();
+                    dropped++;
+                }
+                queue.add(frame);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    draining = false;
+                }
+                clear();
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                SharedFrame frame;
+                synchronized (this) {
+                    frame = queue.poll();
+                    if (frame == null) {
+                        draining = false;
+                        return;
+                    }
+                    delivered++;
+                }
+                try {
+                    subscriber.onFrame(frame);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Subscriber " + name + " failed", e);
+                }
+            }
+        }
+
+        private void clear() {
+            synchronized (this) {
+                while (!queue.isEmpty()) {
+                    queue.poll().release();
+                    dropped++;
+                }
+            }
+        }
+
+        synchronized String toJson() {
+            return "{\"name\":\"" + name + "\"" +
+                    ",\"policy\":\"" + (policy == POLICY_LATEST_ONLY ? "latest" : "every") + "\"" +
+                    ",\"active\":" + active +
+                    ",\"queued\":" + queue.size() +
+                    ",\"delivered\":" + delivered +
+                    ",\"dropped\":" + dropped + "}";
+        }
+    }
+
+    private final String name;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger framesInFlight = new AtomicInteger();
+    private final Runnable frameFreed = framesInFlight::decrementAndGet;
+    private final AtomicLong published = new AtomicLong();
+
+    private FrameBus(String name) {
+        this.name = name;
+    }
+
+    // Starts inactive; call setActive(true) once the subscriber wants frames
+    public Subscription subscribe(String name, int policy, Executor executor, Subscriber subscriber) {
+        Subscription subscription = new Subscription(name, policy, executor, subscriber);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public boolean hasActiveSubscribers() {
+        return activeCount.get() > 0;
+    }
+
+    public void publish(CapturedFrame frame) {
+        framesInFlight.incrementAndGet();
+        SharedFrame shared = new SharedFrame(frame, frameFreed);
+        for (Subscription subscription : subscriptions) {
+            if (subscription.active) {
+                subscription.offer(shared.retain());
+            }
+        }
+        published.incrementAndGet();
+        // The publisher's own reference
+        shared.release();
+    }
+
+    @Override
+    public void onFrame(CapturedFrame frame) {
+        publish(frame);
+    }
+
+    public String statsJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"bus\":\"").append(name).append("\"")
+                .append(",\"published\":").append(published.get())
+                .append(",\"inFlight\":").append(framesInFlight.get())
+                .append(",\"subscriptions\":[");
+        boolean first = true;
+        for (Subscription subscription : subscriptions) {
+            if (!first) json.append(",");
+            json.append(subscription.toJson());
+            first = false;
+        }
+        json.append("]}");
+        return json.toString();
+    }
+}
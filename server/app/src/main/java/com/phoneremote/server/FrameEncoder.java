@@ -0,0 +1,25 @@
+package com.phoneremote.server;
+
+import android.graphics.Bitmap;
+
+import java.io.OutputStream;
+
+// A still-image codec for screen frames. The id travels with every frame so
+// the client knows how to decode it.
+public interface FrameEncoder {
+    int CODEC_JPEG = 1;
+    int CODEC_WEBP = 2;
+    int CODEC_PNG = 3;
+    int CODEC_WEBP_LOSSLESS = 4;
+    // Not an encoder: the frame is a StripFrame container of separately encoded strips
+    int CODEC_STRIPS = 15;
+
+    int getId();
+
+    String getMimeType();
+
+    // Lossless codecs ignore the quality
+    boolean isLossless();
+
+    boolean encode(Bitmap bitmap, int quality, OutputStream out);
+}
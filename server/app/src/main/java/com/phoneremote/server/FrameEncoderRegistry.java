@@ -0,0 +1,208 @@
+package com.phoneremote.server;
+
+import android.graphics.Bitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Picks a codec per frame from the frame's content class and what each codec
+// has actually cost on this device. For every (class, codec) pair it keeps a
+// moving average of output bytes per pixel and encode time per megapixel, and
+// chooses the smallest output among the codecs that fit the time budget.
+// Codecs that haven't been measured yet are tried first, and every
+// EXPLORE_INTERVAL frames the stalest candidate is re-measured, so the choice
+// follows the content instead of locking in on the first frames.
+public class FrameEncoderRegistry {
+    private static final int EXPLORE_INTERVAL = 30;
+    private static final double EMA_WEIGHT = 0.2;
+
+    // Lossy codecs ring badly around text, so flat UI never goes below this
+    private static final int FLAT_MIN_QUALITY = 90;
+
+    private static class CodecStats {
+        double bytesPerPixel;
+        double microsPerMegapixel;
+        long samples;
+        long lastMeasuredFrame;
+    }
+
+    private final List<FrameEncoder> encoders = new ArrayList<>();
+    private final List<List<FrameEncoder>> candidates = new ArrayList<>();
+    private final CodecStats[][] stats;
+    private final long[] framesPerClass = new long[ContentClassifier.CLASS_COUNT];
+    private final int[] lastCodecPerClass = new int[ContentClassifier.CLASS_COUNT];
+
+    public FrameEncoderRegistry() {
+        FrameEncoder jpeg = register(BitmapFrameEncoder.jpeg());
+        FrameEncoder webp = register(BitmapFrameEncoder.webp());
+        FrameEncoder png = register(BitmapFrameEncoder.png());
+        FrameEncoder webpLossless = register(BitmapFrameEncoder.webpLossless());
+
+        List<FrameEncoder> flat = new ArrayList<>();
+        if (webpLossless != null) flat.add(webpLossless);
+        flat.add(png);
+        flat.add(webp);
+        List<FrameEncoder> mixed = new ArrayList<>();
+        mixed.add(webp);
+        mixed.add(jpeg);
+        List<FrameEncoder> photo = new ArrayList<>();
+        photo.add(jpeg);
+        photo.add(webp);
+        candidates.add(flat);
+        candidates.add(mixed);
+        candidates.add(photo);
+
+        stats = new CodecStats[ContentClassifier.CLASS_COUNT][encoders.size()];
+        for (CodecStats[] row : stats) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = new CodecStats();
+            }
+        }
+    }
+
+    private FrameEncoder register(FrameEncoder encoder) {
+        if (encoder != null) {
+            encoders.add(encoder);
+        }
+        return encoder;
+    }
+
+    // Safe to call from several threads at once, each with its own classifier
+    public EncodedImage encode(Bitmap bitmap, int quality, long budgetMicros, ContentClassifier classifier) {
+        int contentClass = classifier.classify(bitmap);
+        long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        FrameEncoder encoder = select(contentClass, pixels, budgetMicros);
+        if (contentClass == ContentClassifier.CLASS_FLAT) {
+            quality = Math.max(quality, FLAT_MIN_QUALITY);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        long start = System.nanoTime();
+        if (!encoder.encode(bitmap, quality, out)) {
+            return null;
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        byte[] data = out.toByteArray();
+        record(contentClass, encoder, pixels, data.length, micros);
+        return new EncodedImage(encoder.getId(), contentClass, data, micros);
+    }
+
+    private synchronized FrameEncoder select(int contentClass, long pixels, long budgetMicros) {
+        long frame = ++framesPerClass[contentClass];
+        List<FrameEncoder> options = candidates.get(contentClass);
+
+        FrameEncoder stalest = null;
+        FrameEncoder best = null;
+        double bestBytes = Double.MAX_VALUE;
+        for (FrameEncoder encoder : options) {
+            CodecStats s = stats[contentClass][encoders.indexOf(encoder)];
+            if (s.samples == 0) {
+                return encoder;
+            }
+            if (stalest == null || s.lastMeasuredFrame < stats[contentClass][encoders.indexOf(stalest)].lastMeasuredFrame) {
+                stalest = encoder;
+            }
+            double expectedMicros = s.microsPerMegapixel * pixels / 1_000_000.0;
+            if (expectedMicros <= budgetMicros && s.bytesPerPixel < bestBytes) {
+                best = encoder;
+                bestBytes = s.bytesPerPixel;
+            }
+        }
+        if (frame % EXPLORE_INTERVAL == 0) {
+            return stalest;
+        }
+        // If nothing fits the budget, take the fastest
+        return best != null ? best : fastest(contentClass, options);
+    }
+
+    private FrameEncoder fastest(int contentClass, List<FrameEncoder> options) {
+        FrameEncoder fastest = options.get(0);
+        for (FrameEncoder encoder : options) {
+            if (stats[contentClass][encoders.indexOf(encoder)].microsPerMegapixel
+                    < stats[contentClass][encoders.indexOf(fastest)].microsPerMegapixel) {
+                fastest = encoder;
+            }
+        }
+        return fastest;
+    }
+
+    private synchronized void record(int contentClass, FrameEncoder encoder, long pixels, int bytes, long micros) {
+        if (pixels == 0) {
+            return;
+        }
+        CodecStats s = stats[contentClass][encoders.indexOf(encoder)];
+        double bytesPerPixel = (double) bytes / pixels;
+        double microsPerMegapixel = micros * 1_000_000.0 / pixels;
+        if (s.samples == 0) {
+            s.bytesPerPixel = bytesPerPixel;
+            s.microsPerMegapixel = microsPerMegapixel;
+        } else {
+            s.bytesPerPixel += EMA_WEIGHT * (bytesPerPixel - s.bytesPerPixel);
+            s.microsPerMegapixel += EMA_WEIGHT * (microsPerMegapixel - s.microsPerMegapixel);
+        }
+        s.samples++;
+        s.lastMeasuredFrame = framesPerClass[contentClass];
+        lastCodecPerClass[contentClass] = encoder.getId();
+    }
+
+    public FrameEncoder getEncoder(int codec) {
+        for (FrameEncoder encoder : encoders) {
+            if (encoder.getId() == codec) {
+                return encoder;
+            }
+        }
+        return null;
+    }
+
+    public static String codecName(int codec) {
+        switch (codec) {
+            case FrameEncoder.CODEC_JPEG: return "jpeg";
+            case FrameEncoder.CODEC_WEBP: return "webp";
+            case FrameEncoder.CODEC_PNG: return "png";
+            case FrameEncoder.CODEC_WEBP_LOSSLESS: return "webp-lossless";
+            case FrameEncoder.CODEC_STRIPS: return "strips";
+            default: return "unknown";
+        }
+    }
+
+    // Identifies stored frames by their magic bytes, whichever codec produced them
+    public static String sniffMimeType(byte[] data) {
+        if (data.length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+            return "image/jpeg";
+        }
+        if (data.length >= 8 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return "image/png";
+        }
+        if (data.length >= 12 && data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            return "image/webp";
+        }
+        return "application/octet-stream";
+    }
+
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (int c = 0; c < ContentClassifier.CLASS_COUNT; c++) {
+            if (c > 0) json.append(",");
+            json.append("\"").append(ContentClassifier.name(c)).append("\":{");
+            json.append("\"frames\":").append(framesPerClass[c]);
+            json.append(",\"codec\":\"").append(codecName(lastCodecPerClass[c])).append("\"");
+            json.append(",\"codecs\":{");
+            boolean first = true;
+            for (FrameEncoder encoder : candidates.get(c)) {
+                CodecStats s = stats[c][encoders.indexOf(encoder)];
+                if (!first) json.append(",");
+                first = false;
+                json.append("\"").append(codecName(encoder.getId())).append("\":{");
+                json.append("\"samples\":").append(s.samples);
+                json.append(String.format(Locale.US, ",\"bytesPerPixel\":%.4f", s.bytesPerPixel));
+                json.append(String.format(Locale.US, ",\"usPerMegapixel\":%.0f", s.microsPerMegapixel));
+                json.append("}");
+            }
+            json.append("}}");
+        }
+        return json.append("}").toString();
+    }
+}
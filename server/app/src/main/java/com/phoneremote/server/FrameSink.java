@@ -0,0 +1,7 @@
+package com.phoneremote.server;
+
+// Where a CapturePipeline delivers encoded frames: a FrameBus on a device, or
+// an InProcessFrameSink when the pipeline runs on its own.
+public interface FrameSink {
+    void onFrame(CapturedFrame frame);
+}
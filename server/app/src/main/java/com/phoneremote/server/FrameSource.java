@@ -0,0 +1,11 @@
+package com.phoneremote.server;
+
+// Where the capture pipeline gets its frames: the MediaProjection's
+// ImageReader on a device, or a SyntheticFrameSource anywhere else.
+public interface FrameSource {
+    // The newest frame not yet returned, or null if there is nothing new. At
+    // most one frame is outstanding; the caller closes it before asking again.
+    RawFrame acquireLatestFrame();
+
+    void close();
+}
@@ -0,0 +1,129 @@
+package com.phoneremote.server;
+
+// IMA ADPCM, 4 bits per sample. Every block starts with a 4 byte preamble
+// (predictor, step index) like the WAV IMA format, so blocks are independent.
+public class ImaAdpcmCodec implements AudioCodec {
+    private static final int BLOCK_HEADER_SIZE = 4;
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    // Encoder state carries across blocks for better prediction; each block
+    // still records it in its preamble
+    private int predictor;
+    private int stepIndex;
+
+    @Override
+    public int getId() {
+        return CODEC_IMA_ADPCM;
+    }
+
+    @Override
+    public int maxEncodedSize(int sampleCount) {
+        return BLOCK_HEADER_SIZE + (sampleCount + 1) / 2;
+    }
+
+    @Override
+    public int encode(short[] pcm, int offset, int sampleCount, byte[] out, int outOffset) {
+        out[outOffset] = (byte) predictor;
+        out[outOffset + 1] = (byte) (predictor >> 8);
+        out[outOffset + 2] = (byte) stepIndex;
+        out[outOffset + 3] = 0;
+
+        int pos = outOffset + BLOCK_HEADER_SIZE;
+        int pending = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            int nibble = encodeSample(pcm[offset + i]);
+            if ((i & 1) == 0) {
+                pending = nibble;
+            } else {
+                out[pos++] = (byte) (pending | (nibble << 4));
+            }
+        }
+        if ((sampleCount & 1) != 0) {
+            out[pos++] = (byte) pending;
+        }
+        return pos - outOffset;
+    }
+
+    @Override
+    public int decode(byte[] in, int offset, int length, short[] pcm, int pcmOffset) {
+        int pred = (short) ((in[offset] & 0xFF) | (in[offset + 1] << 8));
+        int index = clampIndex(in[offset + 2] & 0xFF);
+
+        int count = 0;
+        for (int i = offset + BLOCK_HEADER_SIZE; i < offset + length; i++) {
+            for (int shift = 0; shift <= 4; shift += 4) {
+                int nibble = (in[i] >> shift) & 0x0F;
+                int step = STEP_TABLE[index];
+                int diff = step >> 3;
+                if ((nibble & 4) != 0) diff += step;
+                if ((nibble & 2) != 0) diff += step >> 1;
+                if ((nibble & 1) != 0) diff += step >> 2;
+                pred = clampSample((nibble & 8) != 0 ? pred - diff : pred + diff);
+                index = clampIndex(index + INDEX_TABLE[nibble]);
+                pcm[pcmOffset + count++] = (short) pred;
+            }
+        }
+        return count;
+    }
+
+    public void reset() {
+        predictor = 0;
+        stepIndex = 0;
+    }
+
+    private int encodeSample(int sample) {
+        int step = STEP_TABLE[stepIndex];
+        int diff = sample - predictor;
+        int nibble = 0;
+        if (diff < 0) {
+            nibble = 8;
+            diff = -diff;
+        }
+
+        int delta = step >> 3;
+        if (diff >= step) {
+            nibble |= 4;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 2;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 1;
+            delta += step;
+        }
+
+        predictor = clampSample((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+        stepIndex = clampIndex(stepIndex + INDEX_TABLE[nibble]);
+        return nibble;
+    }
+
+    private static int clampSample(int value) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    private static int clampIndex(int index) {
+        return Math.max(0, Math.min(STEP_TABLE.length - 1, index));
+    }
+}
@@ -0,0 +1,37 @@
+package com.phoneremote.server;
+
+import android.graphics.PixelFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.view.Surface;
+
+// Frames rendered into an ImageReader, normally by the MediaProjection's
+// virtual display
+public class ImageReaderFrameSource implements FrameSource {
+    private final ImageReader reader;
+
+    public ImageReaderFrameSource(int width, int height) {
+        reader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
+    }
+
+    public Surface getSurface() {
+        return reader.getSurface();
+    }
+
+    @Override
+    public RawFrame acquireLatestFrame() {
+        final Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return null;
+        }
+        Image.Plane plane = image.getPlanes()[0];
+        // Image timestamps use the same monotonic clock as System.nanoTime()
+        return new RawFrame(plane.getBuffer(), image.getWidth(), image.getHeight(),
+                plane.getRowStride(), plane.getPixelStride(), image.getTimestamp(), image::close);
+    }
+
+    @Override
+    public void close() {
+        reader.close();
+    }
+}
@@ -0,0 +1,78 @@
+package com.phoneremote.server;
+
+// Stands in for the network fan-out when the pipeline runs without clients:
+// counts delivered frames and bytes and records how long each frame took from
+// capture to delivery, and how long its encode took. Thread-safe.
+public class InProcessFrameSink implements FrameSink {
+    private final LatencyHistogram frameLatency = new LatencyHistogram();
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private long frames;
+    private long bytes;
+    private long lastSequence = -1;
+    private long sequenceGaps;
+    private CapturedFrame latest;
+
+    @Override
+    public void onFrame(CapturedFrame frame) {
+        long now = System.nanoTime();
+        frameLatency.recordNanos(now - frame.captureNanos);
+        encodeTime.recordMicros(frame.getEncodeMicros());
+        synchronized (this) {
+            frames++;
+            bytes += frame.data.length;
+            if (lastSequence >= 0 && frame.sequence != lastSequence + 1) {
+                sequenceGaps++;
+            }
+            lastSequence = frame.sequence;
+            latest = frame;
+            notifyAll();
+        }
+    }
+
+    // Returns false if fewer than count frames arrived in time
+    public synchronized boolean awaitFrames(long count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (frames < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized long getFrames() {
+        return frames;
+    }
+
+    public synchronized CapturedFrame getLatest() {
+        return latest;
+    }
+
+    public LatencyHistogram getFrameLatency() {
+        return frameLatency;
+    }
+
+    public LatencyHistogram getEncodeTime() {
+        return encodeTime;
+    }
+
+    public synchronized void reset() {
+        frameLatency.reset();
+        encodeTime.reset();
+        frames = 0;
+        bytes = 0;
+        lastSequence = -1;
+        sequenceGaps = 0;
+        latest = null;
+    }
+
+    public synchronized String toJson() {
+        return "{\"frames\":" + frames +
+                ",\"bytes\":" + bytes +
+                ",\"sequenceGaps\":" + sequenceGaps +
+                ",\"latencyUs\":" + frameLatency.toJson() +
+                ",\"encodeUs\":" + encodeTime.toJson() + "}";
+    }
+}
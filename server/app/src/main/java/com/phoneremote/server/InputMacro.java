@@ -0,0 +1,213 @@
+package com.phoneremote.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A recorded input sequence. Steps are stored with their offset from the
+// previous step in microseconds, in a compact binary form:
+//
+//   magic "PRM1", step count varint, then per step:
+//   delta micros varint, opcode byte, operands
+//
+// Taps are the most common step and are stored as two varints; other commands
+// as length-prefixed UTF-8 strings.
+public class InputMacro {
+    private static final byte[] MAGIC = {'P', 'R', 'M', '1'};
+    // Delta varint, opcode and at least one operand byte
+    private static final int MIN_STEP_SIZE = 3;
+
+    public static final int OP_TAP = 1;
+    public static final int OP_COMMAND = 2;
+    public static final int OP_WAIT_SCREEN_CHANGE = 3;
+
+    public static class Step {
+        public final long deltaMicros;
+        public final int opcode;
+        public final String command;
+        public final String value;
+        public final int x;
+        public final int y;
+        public final long timeoutMillis;
+
+        private Step(long deltaMicros, int opcode, String command, String value, int x, int y, long timeoutMillis) {
+            this.deltaMicros = deltaMicros;
+            this.opcode = opcode;
+            this.command = command;
+            this.value = value;
+            this.x = x;
+            this.y = y;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public static Step command(long deltaMicros, String command, String value) {
+            if ("tap".equals(command) && value != null) {
+                String[] coords = value.split(",");
+                if (coords.length == 2) {
+                    try {
+                        int x = Integer.parseInt(coords[0].trim());
+                        int y = Integer.parseInt(coords[1].trim());
+                        if (x >= 0 && y >= 0) {
+                            return new Step(deltaMicros, OP_TAP, command, value, x, y, 0);
+                        }
+                    } catch (NumberFormatException e) {
+                        // Store it verbatim below
+                    }
+                }
+            }
+            return new Step(deltaMicros, OP_COMMAND, command, value, 0, 0, 0);
+        }
+
+        public static Step waitForScreenChange(long deltaMicros, long timeoutMillis) {
+            return new Step(deltaMicros, OP_WAIT_SCREEN_CHANGE, null, null, 0, 0, timeoutMillis);
+        }
+    }
+
+    private final List<Step> steps;
+
+    public InputMacro(List<Step> steps) {
+        this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public long getDurationMicros() {
+        long total = 0;
+        for (Step step : steps) {
+            total += step.deltaMicros;
+        }
+        return total;
+    }
+
+    public byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + steps.size() * 8);
+        out.write(MAGIC, 0, MAGIC.length);
+        writeVarint(out, steps.size());
+        for (Step step : steps) {
+            writeVarint(out, step.deltaMicros);
+            out.write(step.opcode);
+            switch (step.opcode) {
+                case OP_TAP:
+                    writeVarint(out, step.x);
+                    writeVarint(out, step.y);
+                    break;
+                case OP_COMMAND:
+                    writeString(out, step.command);
+                    writeString(out, step.value);
+                    break;
+                case OP_WAIT_SCREEN_CHANGE:
+                    writeVarint(out, step.timeoutMillis);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + step.opcode);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static InputMacro decode(byte[] data) {
+        Reader in = new Reader(data);
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new IllegalArgumentException("Not a macro file");
+            }
+        }
+        long count = in.readVarint();
+        // Every step takes at least MIN_STEP_SIZE bytes, so a count the data can't
+        // hold is rejected before anything is allocated for it
+        if (count < 0 || count > in.remaining() / MIN_STEP_SIZE) {
+            throw new IllegalArgumentException("Bad step count " + count);
+        }
+        List<Step> steps = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++) {
+            long delta = in.readVarint();
+            int opcode = in.readByte();
+            switch (opcode) {
+                case OP_TAP: {
+                    int x = (int) in.readVarint();
+                    int y = (int) in.readVarint();
+                    steps.add(new Step(delta, OP_TAP, "tap", x + "," + y, x, y, 0));
+                    break;
+                }
+                case OP_COMMAND:
+                    steps.add(new Step(delta, OP_COMMAND, in.readString(), in.readString(), 0, 0, 0));
+                    break;
+                case OP_WAIT_SCREEN_CHANGE:
+                    steps.add(Step.waitForScreenChange(delta, in.readVarint()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown opcode " + opcode);
+            }
+        }
+        return new InputMacro(steps);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    // Strings are stored as byte length + 1, so that 0 can mark null
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int remaining() {
+            return data.length - position;
+        }
+
+        int readByte() {
+            if (position >= data.length) {
+                throw new IllegalArgumentException("Truncated macro");
+            }
+            return data[position++];
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        String readString() {
+            int length = (int) readVarint();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (position + length > data.length) {
+                throw new IllegalArgumentException("Truncated macro");
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
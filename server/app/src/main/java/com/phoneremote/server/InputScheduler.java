@@ -0,0 +1,108 @@
+package com.phoneremote.server;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs input injection on one dedicated thread at display-urgent priority, in
+// arrival order, instead of on whichever socket thread received it. The
+// number of queued inputs is shared process-wide so the capture side can step
+// aside while input is waiting.
+public class InputScheduler {
+    private static final String TAG = "InputScheduler";
+
+    private static final AtomicInteger pendingInputs = new AtomicInteger();
+    private static final Object idleLock = new Object();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+                runnable.run();
+            }, "InputDispatch"));
+
+    // Queues the task and returns immediately
+    public void submit(final Runnable task) {
+        pendingInputs.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    finished();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finished();
+            Log.e(TAG, "Input dropped after shutdown", e);
+        }
+    }
+
+    // Runs the task on the input thread and waits for its result. Runtime
+    // exceptions thrown by the task are rethrown to the caller.
+    public <T> T call(final Callable<T> task) throws Exception {
+        pendingInputs.incrementAndGet();
+        Future<T> result;
+        try {
+            result = executor.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    finished();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finished();
+            throw e;
+        }
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public static boolean isInputPending() {
+        return pendingInputs.get() > 0;
+    }
+
+    // Blocks for at most maxMillis while input is queued or being injected, and
+    // returns whether there was any. Called before expensive frame work so it
+    // never competes with input for CPU.
+    public static boolean awaitInputIdle(long maxMillis) {
+        if (pendingInputs.get() == 0) {
+            return false;
+        }
+        long deadline = System.nanoTime() + maxMillis * 1_000_000L;
+        synchronized (idleLock) {
+            try {
+                long remaining;
+                while (pendingInputs.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                    idleLock.wait(Math.max(1, remaining / 1_000_000L));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    private static void finished() {
+        if (pendingInputs.decrementAndGet() == 0) {
+            synchronized (idleLock) {
+                idleLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.phoneremote.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Collects per-stage and per-client latency percentiles.
+//
+// Server-side stages come from CapturedFrame timestamps. The client echoes each
+// frame's sequence with its own decode and paint times, which gives the network
+// round trip and, with the server-side stages, an estimate of glass-to-glass
+// latency. Echoes also give an NTP-style clock offset, used to place client
+// timestamps on input events onto the server clock.
+public class LatencyTracker {
+    public static final String STAGE_CAPTURE = "capture";
+    public static final String STAGE_ENCODE = "encode";
+    public static final String STAGE_QUEUE = "queue";
+    public static final String STAGE_SEND = "send";
+    public static final String STAGE_NETWORK = "network";
+    public static final String STAGE_DECODE = "decode";
+    public static final String STAGE_PAINT = "paint";
+    public static final String STAGE_GLASS_TO_GLASS = "glassToGlass";
+    public static final String STAGE_INPUT_UPLINK = "inputUplink";
+    public static final String STAGE_INPUT_INJECT = "inputInject";
+
+    private static final String[] STAGES = {
+            STAGE_CAPTURE, STAGE_ENCODE, STAGE_QUEUE, STAGE_SEND, STAGE_NETWORK,
+            STAGE_DECODE, STAGE_PAINT, STAGE_GLASS_TO_GLASS, STAGE_INPUT_UPLINK, STAGE_INPUT_INJECT
+    };
+
+    private static final int SENT_HISTORY = 128;
+
+    private final Map<String, LatencyHistogram> stages = new ConcurrentHashMap<>();
+    private final Map<String, ClientLatency> clients = new ConcurrentHashMap<>();
+
+    public static class ClientLatency {
+        final LatencyHistogram network = new LatencyHistogram();
+        final LatencyHistogram glassToGlass = new LatencyHistogram();
+        final LatencyHistogram inputUplink = new LatencyHistogram();
+
+        // Recently sent frames, indexed by sequence modulo the history size
+        private final long[] sentSequence = new long[SENT_HISTORY];
+        private final long[] sentNanos = new long[SENT_HISTORY];
+        private final long[] sentCaptureNanos = new long[SENT_HISTORY];
+
+        // Client clock (ms) minus server monotonic clock (ms); NaN until the first echo
+        private volatile double clockOffsetMillis = Double.NaN;
+        private volatile long bestRoundTripNanos = Long.MAX_VALUE;
+
+        synchronized void onSent(long sequence, long captureNanos, long sentAt) {
+            int slot = (int) (sequence % SENT_HISTORY);
+            sentSequence[slot] = sequence;
+            sentNanos[slot] = sentAt;
+            sentCaptureNanos[slot] = captureNanos;
+        }
+
+        synchronized long[] lookup(long sequence) {
+            int slot = (int) (sequence % SENT_HISTORY);
+            if (sentSequence[slot] != sequence || sentNanos[slot] == 0) {
+                return null;
+            }
+            return new long[] {sentNanos[slot], sentCaptureNanos[slot]};
+        }
+    }
+
+    public LatencyTracker() {
+        for (String stage : STAGES) {
+            stages.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public void recordStage(String stage, long micros) {
+        LatencyHistogram histogram = stages.get(stage);
+        if (histogram != null && micros >= 0) {
+            histogram.recordMicros(micros);
+        }
+    }
+
+    public ClientLatency client(String clientId) {
+        ClientLatency client = clients.get(clientId);
+        if (client == null) {
+            client = new ClientLatency();
+            ClientLatency existing = clients.putIfAbsent(clientId, client);
+            if (existing != null) {
+                client = existing;
+            }
+        }
+        return client;
+    }
+
+    public void removeClient(String clientId) {
+        clients.remove(clientId);
+    }
+
+    // Called once the encoder has handed the frame to the delivery thread
+    public void onFrameDelivered(CapturedFrame frame) {
+        recordStage(STAGE_CAPTURE, (frame.acquireNanos - frame.captureNanos) / 1000);
+        recordStage(STAGE_ENCODE, frame.getEncodeMicros());
+        recordStage(STAGE_QUEUE, frame.getQueueMicros());
+    }
+
+    public void onFrameSent(String clientId, CapturedFrame frame, long sendStartNanos, long sendEndNanos) {
+        recordStage(STAGE_SEND, (sendEndNanos - sendStartNanos) / 1000);
+        client(clientId).onSent(frame.sequence, frame.captureNanos, sendEndNanos);
+    }
+
+    // Client echo: when it received the frame (its own clock, ms) and how long
+    // decode and paint took before the echo was sent. Returns the estimated
+    // one-way network latency, or -1 for an unknown frame.
+    public long onFrameEcho(String clientId, long sequence, double clientReceiveMillis,
+                            double decodeMillis, double paintMillis, long echoArrivalNanos) {
+        ClientLatency client = client(clientId);
+        long[] sent = client.lookup(sequence);
+        if (sent == null) {
+            return -1;
+        }
+        long sentNanos = sent[0];
+        long captureNanos = sent[1];
+
+        long clientProcessingNanos = (long) ((decodeMillis + paintMillis) * 1_000_000);
+        long roundTripNanos = Math.max(0, echoArrivalNanos - sentNanos - clientProcessingNanos);
+        long oneWayNanos = roundTripNanos / 2;
+
+        // Keep the offset from the least-delayed sample seen, as NTP does
+        if (roundTripNanos <= client.bestRoundTripNanos) {
+            client.bestRoundTripNanos = roundTripNanos;
+            client.clockOffsetMillis = clientReceiveMillis - (sentNanos + oneWayNanos) / 1_000_000.0;
+        }
+
+        long glassNanos = (sentNanos - captureNanos) + oneWayNanos + clientProcessingNanos;
+        recordStage(STAGE_NETWORK, oneWayNanos / 1000);
+        recordStage(STAGE_DECODE, (long) (decodeMillis * 1000));
+        recordStage(STAGE_PAINT, (long) (paintMillis * 1000));
+        recordStage(STAGE_GLASS_TO_GLASS, glassNanos / 1000);
+        client.network.recordNanos(oneWayNanos);
+        client.glassToGlass.recordNanos(glassNanos);
+        return oneWayNanos;
+    }
+
+    // Input carries the client's send time; once the clock offset is known the
+    // uplink latency can be measured on the server clock. The offset comes from
+    // frame echoes, so input from a client that never echoed one is skipped
+    // rather than tracked under a new entry nobody removes.
+    public void onInputReceived(String clientId, double clientSendMillis, long receivedNanos) {
+        ClientLatency client = clients.get(clientId);
+        if (client == null) {
+            return;
+        }
+        double offset = client.clockOffsetMillis;
+        if (Double.isNaN(offset) || clientSendMillis <= 0) {
+            return;
+        }
+        long uplinkMicros = (long) ((receivedNanos / 1_000_000.0 - (clientSendMillis - offset)) * 1000);
+        if (uplinkMicros >= 0) {
+            recordStage(STAGE_INPUT_UPLINK, uplinkMicros);
+            client.inputUplink.recordMicros(uplinkMicros);
+        }
+    }
+
+    public void onInputInjected(long receivedNanos, long injectedNanos) {
+        recordStage(STAGE_INPUT_INJECT, (injectedNanos - receivedNanos) / 1000);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : stages.values()) {
+            histogram.reset();
+        }
+        clients.clear();
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"unit\":\"us\",\"stages\":{");
+        boolean first = true;
+        for (String stage : STAGES) {
+            if (!first) json.append(",");
+            json.append("\"").append(stage).append("\":").append(stages.get(stage).toJson());
+            first = false;
+        }
+        json.append("},\"clients\":{");
+        first = true;
+        for (Map.Entry<String, ClientLatency> entry : clients.entrySet()) {
+            ClientLatency client = entry.getValue();
+            if (!first) json.append(",");
+            json.append("\"").append(entry.getKey()).append("\":{");
+            json.append("\"network\":").append(client.network.toJson());
+            json.append(",\"glassToGlass\":").append(client.glassToGlass.toJson());
+            json.append(",\"inputUplink\":").append(client.inputUplink.toJson());
+            json.append("}");
+            first = false;
+        }
+        json.append("}}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,486 @@
+package com.phoneremote.server;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Tails logcat into a bounded ring and streams only the lines each subscriber
+// asked for. Filtering happens here, so a viewer watching one tag costs one
+// tag's worth of bandwidth however chatty the device is.
+//
+// logcat only runs while someone is subscribed, and is started on the flush
+// thread rather than the subscriber's. Each time it starts, the ring is
+// refilled from logcat's own buffer and the live tail picks up from the
+// newest line's timestamp. Every subscriber gets up to its history's worth of
+// matching lines from the ring before live ones. Filters are matched outside
+// the ring's lock, so an expensive pattern only slows down the reader thread.
+// Matching lines are sent in batches every FLUSH_INTERVAL_MS. A subscriber
+// whose last batch is still being sent gets nothing new until it completes;
+// its lines pile up to MAX_PENDING_LINES, after which the oldest are dropped
+// and the count is reported in the next batch.
+//
+// Without READ_LOGS only this app's own lines are visible. It can be granted
+// over ADB: adb shell pm grant com.phoneremote.server android.permission.READ_LOGS
+public class LogcatTail {
+    private static final String TAG = "LogcatTail";
+    private static final int CAPACITY = 4096;
+    private static final long FLUSH_INTERVAL_MS = 100;
+    private static final int MAX_BATCH_LINES = 500;
+    private static final int MAX_PENDING_LINES = 2000;
+    public static final int DEFAULT_HISTORY = 200;
+    public static final int MAX_PATTERN_LENGTH = 256;
+    private static final String LEVELS = "VDIWEF";
+    // threadtime lines start with "MM-DD HH:MM:SS.mmm", the format -T takes
+    private static final int TIMESTAMP_LENGTH = 18;
+
+    // One parsed logcat line; the raw text is what gets sent
+    private static class LogLine {
+        final char level;
+        final String tag;
+        final String text;
+
+        LogLine(char level, String tag, String text) {
+            this.level = level;
+            this.tag = tag;
+            this.text = text;
+        }
+    }
+
+    // Level is a minimum (V, D, I, W, E or F); tags is a comma-separated list;
+    // pattern is searched for anywhere in the line. Empty or null means any.
+    public static class LogFilter {
+        final int minLevel;
+        final Set<String> tags;
+        final Pattern pattern;
+
+        private LogFilter(int minLevel, Set<String> tags, Pattern pattern) {
+            this.minLevel = minLevel;
+            this.tags = tags;
+            this.pattern = pattern;
+        }
+
+        // Throws IllegalArgumentException for an unknown level or a bad or
+        // overlong pattern
+        public static LogFilter parse(String tags, String level, String pattern) {
+            int minLevel = 0;
+            if (level != null && !level.isEmpty()) {
+                minLevel = LEVELS.indexOf(Character.toUpperCase(level.charAt(0)));
+                if (minLevel < 0 || level.length() > 1) {
+                    throw new IllegalArgumentException("Unknown log level " + level);
+                }
+            }
+            Set<String> tagSet = null;
+            if (tags != null && !tags.isEmpty()) {
+                tagSet = new HashSet<>();
+                for (String tag : tags.split(",")) {
+                    if (!tag.trim().isEmpty()) {
+                        tagSet.add(tag.trim());
+                    }
+                }
+            }
+            if (pattern != null && pattern.length() > MAX_PATTERN_LENGTH) {
+                throw new IllegalArgumentException("Pattern longer than " + MAX_PATTERN_LENGTH + " characters");
+            }
+            Pattern compiled = pattern != null && !pattern.isEmpty() ? Pattern.compile(pattern) : null;
+            return new LogFilter(minLevel, tagSet, compiled);
+        }
+
+        boolean matches(LogLine line) {
+            return levelIndex(line.level) >= minLevel
+                    && (tags == null || tags.contains(line.tag))
+                    && (pattern == null || pattern.matcher(line.text).find());
+        }
+    }
+
+    public interface Sink {
+        void send(String message) throws IOException;
+
+        void onSendFailed(IOException e);
+
+        // logcat couldn't be started; the subscription has already been closed
+        void onUnavailable(IOException e);
+    }
+
+    public class Subscription {
+        private final Sink sink;
+        private final Executor executor;
+        private final int history;
+        private final ArrayDeque<String> pending = new ArrayDeque<>();
+        private volatile LogFilter filter;
+        // Nothing is sent until the history is in front of the live lines
+        private boolean replayed;
+        private boolean sending;
+        private long sent;
+        private long dropped;
+        private long droppedUnreported;
+
+        Subscription(LogFilter filter, int history, Sink sink, Executor executor) {
+            this.filter = filter;
+            this.history = Math.min(history, MAX_PENDING_LINES);
+            this.sink = sink;
+            this.executor = executor;
+        }
+
+        // Applies to lines read from now on
+        public void setFilter(LogFilter filter) {
+            this.filter = filter;
+        }
+
+        public void close() {
+            unsubscribe(this);
+        }
+
+        private synchronized void offer(String text) {
+            if (pending.size() >= MAX_PENDING_LINES) {
+                pending.poll();
+                dropped++;
+                droppedUnreported++;
+            }
+            pending.add(text);
+        }
+
+        // Queues the newest history matching lines of the ring snapshot ahead
+        // of any live lines offered since the snapshot was taken
+        private void replay(LogLine[] ring) {
+            ArrayDeque<String> matched = new ArrayDeque<>();
+            LogFilter current = filter;
+            for (int i = ring.length - 1; i >= 0 && matched.size() < history; i--) {
+                if (current.matches(ring[i])) {
+                    matched.addFirst(ring[i].text);
+                }
+            }
+            synchronized (this) {
+                Iterator<String> newestFirst = matched.descendingIterator();
+                while (newestFirst.hasNext()) {
+                    pending.addFirst(newestFirst.next());
+                }
+                while (pending.size() > MAX_PENDING_LINES) {
+                    pending.poll();
+                    dropped++;
+                    droppedUnreported++;
+                }
+                replayed = true;
+            }
+        }
+
+        private void flush() {
+            final String message;
+            synchronized (this) {
+                if (!replayed || sending || pending.isEmpty()) {
+                    return;
+                }
+                StringBuilder json = new StringBuilder("{\"type\":\"logs\",\"dropped\":")
+                        .append(droppedUnreported).append(",\"lines\":[");
+                int count = Math.min(MAX_BATCH_LINES, pending.size());
+                for (int i = 0; i < count; i++) {
+                    if (i > 0) json.append(",");
+                    json.append("\"").append(escape(pending.poll())).append("\"");
+                }
+                message = json.append("]}").toString();
+                sent += count;
+                droppedUnreported = 0;
+                sending = true;
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        sink.send(message);
+                    } catch (IOException e) {
+                        sink.onSendFailed(e);
+                    } finally {
+                        synchronized (Subscription.this) {
+                            sending = false;
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    sending = false;
+                }
+            }
+        }
+
+        synchronized String toJson() {
+            return "{\"pending\":" + pending.size() +
+                    ",\"sent\":" + sent +
+                    ",\"dropped\":" + dropped + "}";
+        }
+    }
+
+    private final LogLine[] ring = new LogLine[CAPACITY];
+    private long ringCursor;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, "LogFlush"));
+    private Process process;
+    private boolean starting;
+    private ScheduledFuture<?> flushTask;
+    private volatile long linesRead;
+
+    // Queues up to history matching lines from the ring, then every new match.
+    // Returns straight away; if logcat isn't running yet it is started on the
+    // flush thread, and the sink hears about it if that fails.
+    public Subscription subscribe(LogFilter filter, int history, Sink sink, Executor executor) {
+        Subscription subscription = new Subscription(filter, history, sink, executor);
+        LogLine[] snapshot = null;
+        synchronized (this) {
+            // Added under the ring's lock, so no line is both replayed and delivered live
+            subscriptions.add(subscription);
+            if (process != null) {
+                snapshot = copyRing();
+            } else if (!starting) {
+                starting = true;
+                try {
+                    flusher.execute(this::start);
+                } catch (RejectedExecutionException e) {
+                    starting = false; // Shut down
+                }
+            }
+        }
+        if (snapshot != null) {
+            subscription.replay(snapshot);
+        }
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        subscriptions.remove(subscription);
+        if (subscriptions.isEmpty()) {
+            stop();
+        }
+    }
+
+    // Runs on the flush thread; the dump can take a while on a busy device
+    private void start() {
+        List<LogLine> dumped;
+        Process started;
+        try {
+            dumped = dump();
+            List<String> command = new ArrayList<>();
+            command.add("logcat");
+            command.add("-v");
+            command.add("threadtime");
+            if (!dumped.isEmpty()) {
+                // Inclusive, so lines sharing the newest timestamp come again and are skipped
+                command.add("-T");
+                command.add(timestamp(dumped.get(dumped.size() - 1).text));
+            }
+            started = new ProcessBuilder(command).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting logcat", e);
+            List<Subscription> failed;
+            synchronized (this) {
+                starting = false;
+                failed = new ArrayList<>(subscriptions);
+                subscriptions.clear();
+            }
+            for (Subscription subscription : failed) {
+                subscription.sink.onUnavailable(e);
+            }
+            return;
+        }
+
+        List<Subscription> waiting;
+        LogLine[] snapshot;
+        synchronized (this) {
+            starting = false;
+            if (subscriptions.isEmpty()) {
+                started.destroy(); // Everyone left while it started
+                return;
+            }
+            ringCursor = 0;
+            for (LogLine line : dumped) {
+                store(line);
+            }
+            process = started;
+            flushTask = flusher.scheduleWithFixedDelay(() -> {
+                for (Subscription subscription : subscriptions) {
+                    subscription.flush();
+                }
+            }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            // Everyone who subscribed while logcat was starting
+            waiting = new ArrayList<>(subscriptions);
+            snapshot = copyRing();
+        }
+        new Thread(() -> readLines(started, dumped), "LogcatReader").start();
+        for (Subscription subscription : waiting) {
+            subscription.replay(snapshot);
+        }
+    }
+
+    private void stop() {
+        if (process != null) {
+            process.destroy();
+            process = null;
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+    }
+
+    // Reads logcat's own buffer, which holds everything it could have missed
+    // since the last run, up to the ring's capacity
+    private static List<LogLine> dump() throws IOException {
+        Process dump = new ProcessBuilder("logcat", "-d", "-v", "threadtime", "-t", String.valueOf(CAPACITY))
+                .redirectErrorStream(true)
+                .start();
+        List<LogLine> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(dump.getInputStream()))) {
+            String text;
+            while ((text = in.readLine()) != null) {
+                LogLine line = parse(text);
+                if (line != null) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            dump.destroy();
+        }
+        return lines;
+    }
+
+    private void readLines(Process source, List<LogLine> dumped) {
+        // The dumped lines at the newest timestamp, which -T repeats
+        String resumeAt = null;
+        Set<String> repeated = new HashSet<>();
+        if (!dumped.isEmpty()) {
+            resumeAt = timestamp(dumped.get(dumped.size() - 1).text);
+            for (int i = dumped.size() - 1; i >= 0 && dumped.get(i).text.startsWith(resumeAt); i--) {
+                repeated.add(dumped.get(i).text);
+            }
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(source.getInputStream()))) {
+            String text;
+            while ((text = in.readLine()) != null) {
+                LogLine line = parse(text);
+                if (line == null) {
+                    continue; // Includes the "beginning of" separators -T starts with
+                }
+                if (resumeAt != null) {
+                    if (text.startsWith(resumeAt) && repeated.remove(text)) {
+                        continue;
+                    }
+                    resumeAt = null;
+                }
+                append(source, line);
+            }
+        } catch (IOException e) {
+            // Destroyed by stop()
+        }
+        synchronized (this) {
+            // logcat exited by itself; the next subscriber starts it again
+            if (process == source) {
+                stop();
+            }
+        }
+    }
+
+    private void append(Process source, LogLine line) {
+        Iterator<Subscription> targets;
+        synchronized (this) {
+            if (source != process) {
+                return; // Output still draining from a stopped logcat
+            }
+            store(line);
+            // A snapshot: anyone subscribing after this replays the line from the ring instead
+            targets = subscriptions.iterator();
+        }
+        while (targets.hasNext()) {
+            Subscription subscription = targets.next();
+            if (subscription.filter.matches(line)) {
+                subscription.offer(line.text);
+            }
+        }
+    }
+
+    private void store(LogLine line) {
+        ring[(int) (ringCursor % CAPACITY)] = line;
+        ringCursor++;
+        linesRead++;
+    }
+
+    // Oldest first
+    private LogLine[] copyRing() {
+        int count = (int) Math.min(ringCursor, CAPACITY);
+        LogLine[] copy = new LogLine[count];
+        for (int i = 0; i < count; i++) {
+            copy[i] = ring[(int) ((ringCursor - count + i) % CAPACITY)];
+        }
+        return copy;
+    }
+
+    private static String timestamp(String text) {
+        return text.length() >= TIMESTAMP_LENGTH ? text.substring(0, TIMESTAMP_LENGTH) : text;
+    }
+
+    // threadtime: "MM-DD HH:MM:SS.mmm  PID  TID L TAG: message". Separator
+    // lines such as "--------- beginning of main" are skipped.
+    private static LogLine parse(String text) {
+        String[] fields = text.trim().split("\\s+", 6);
+        if (fields.length < 6 || fields[4].length() != 1 || levelIndex(fields[4].charAt(0)) < 0) {
+            return null;
+        }
+        String rest = fields[5];
+        int colon = rest.indexOf(": ");
+        String tag = (colon >= 0 ? rest.substring(0, colon) : rest).trim();
+        return new LogLine(fields[4].charAt(0), tag, text);
+    }
+
+    // Assert sorts with fatal
+    private static int levelIndex(char level) {
+        return level == 'A' ? LEVELS.indexOf('F') : LEVELS.indexOf(level);
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    public synchronized void shutdown() {
+        subscriptions.clear();
+        stop();
+        flusher.shutdownNow();
+    }
+
+    public synchronized String statsJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"running\":").append(process != null)
+                .append(",\"starting\":").append(starting)
+                .append(",\"linesRead\":").append(linesRead)
+                .append(",\"buffered\":").append(Math.min(ringCursor, CAPACITY))
+                .append(",\"subscribers\":[");
+        boolean first = true;
+        for (Subscription subscription : subscriptions) {
+            if (!first) json.append(",");
+            json.append(subscription.toJson());
+            first = false;
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,220 @@
+package com.phoneremote.server;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps the radio and the CPU awake while clients are connected, and tunes
+// every accepted socket for latency rather than throughput. Wi-Fi power save
+// otherwise parks the radio between beacons, which shows up as 100-300 ms
+// bursts in the stream.
+//
+// Wi-Fi locks: the low-latency lock (Android 10+) only works while the app is
+// in the foreground with the screen on, so the high-performance lock is held
+// alongside it to cover the rest.
+// Sockets: Nagle is disabled so small control messages aren't held back
+// behind unacknowledged frame data, and the send buffer is sized to about one
+// frame. Anything bigger only queues stale frames in the kernel, where the
+// latest-only outbound queue can no longer replace them. Socket tuning only
+// applies to sockets accepted while the mode is enabled; turning it off
+// leaves open sockets as they are until they close.
+//
+// Network latency samples are split by whether the locks were held, so the
+// effect shows up in the metrics.
+public class LowLatencyMode {
+    private static final String TAG = "LowLatencyMode";
+    private static final String LOCK_TAG = "PhoneRemote:LowLatency";
+    private static final int MIN_SEND_BUFFER = 64 * 1024;
+    private static final int MAX_SEND_BUFFER = 1024 * 1024;
+    private static final int SEND_BUFFER_ROUNDING = 16 * 1024;
+    // Frame size smoothing, and how far the target moves before open sockets are retuned
+    private static final double FRAME_SIZE_WEIGHT = 0.1;
+    private static final double RETUNE_RATIO = 1.25;
+
+    private final WifiManager.WifiLock lowLatencyLock;
+    private final WifiManager.WifiLock highPerfLock;
+    private final PowerManager.WakeLock wakeLock;
+    private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final LatencyHistogram networkWithLocks = new LatencyHistogram();
+    private final LatencyHistogram networkWithoutLocks = new LatencyHistogram();
+
+    private volatile boolean enabled;
+    private volatile boolean held;
+    private boolean clientsConnected;
+    private long heldSince;
+    private long heldMillis;
+    private long acquisitions;
+
+    private volatile double averageFrameBytes;
+    private volatile int sendBufferTarget = MIN_SEND_BUFFER;
+    private volatile int sendBufferActual;
+    private final AtomicLong socketsTuned = new AtomicLong();
+    private final AtomicLong tuneErrors = new AtomicLong();
+
+    @SuppressWarnings("deprecation")
+    public LowLatencyMode(Context context, boolean enabled) {
+        Context app = context.getApplicationContext();
+        WifiManager wifi = (WifiManager) app.getSystemService(Context.WIFI_SERVICE);
+        PowerManager power = (PowerManager) app.getSystemService(Context.POWER_SERVICE);
+        if (wifi != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            lowLatencyLock = wifi.createWifiLock(WifiManager.WIFI_MODE_FULL_LOW_LATENCY, LOCK_TAG);
+            lowLatencyLock.setReferenceCounted(false);
+        } else {
+            lowLatencyLock = null;
+        }
+        if (wifi != null) {
+            highPerfLock = wifi.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, LOCK_TAG);
+            highPerfLock.setReferenceCounted(false);
+        } else {
+            highPerfLock = null;
+        }
+        if (power != null) {
+            wakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOCK_TAG);
+            wakeLock.setReferenceCounted(false);
+        } else {
+            wakeLock = null;
+        }
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        updateLocks();
+    }
+
+    // Locks are only held while someone is connected
+    public synchronized void setClientsConnected(boolean connected) {
+        clientsConnected = connected;
+        updateLocks();
+    }
+
+    private void updateLocks() {
+        boolean wanted = enabled && clientsConnected;
+        if (wanted == held) {
+            return;
+        }
+        try {
+            if (wanted) {
+                if (lowLatencyLock != null) lowLatencyLock.acquire();
+                if (highPerfLock != null) highPerfLock.acquire();
+                if (wakeLock != null) wakeLock.acquire();
+                heldSince = System.currentTimeMillis();
+                acquisitions++;
+            } else {
+                if (lowLatencyLock != null && lowLatencyLock.isHeld()) lowLatencyLock.release();
+                if (highPerfLock != null && highPerfLock.isHeld()) highPerfLock.release();
+                if (wakeLock != null && wakeLock.isHeld()) wakeLock.release();
+                heldMillis += System.currentTimeMillis() - heldSince;
+            }
+            held = wanted;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error " + (wanted ? "acquiring" : "releasing") + " locks", e);
+        }
+    }
+
+    // For every socket the server accepts, before any request is read
+    public void tuneSocket(Socket socket) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSendBufferSize(sendBufferTarget);
+            // The kernel may round or double the request
+            sendBufferActual = socket.getSendBufferSize();
+            pruneClosedSockets();
+            sockets.add(socket);
+            socketsTuned.incrementAndGet();
+        } catch (SocketException e) {
+            Log.e(TAG, "Error tuning socket", e);
+            tuneErrors.incrementAndGet();
+        }
+    }
+
+    // Called with every sent frame's size; retunes open sockets when the
+    // frames have grown or shrunk enough
+    public void onFrameSize(int bytes) {
+        double average = averageFrameBytes;
+        average = average == 0 ? bytes : average + (bytes - average) * FRAME_SIZE_WEIGHT;
+        averageFrameBytes = average;
+        int target = (int) Math.min(MAX_SEND_BUFFER, Math.max(MIN_SEND_BUFFER, average * 1.5));
+        target = (target + SEND_BUFFER_ROUNDING - 1) / SEND_BUFFER_ROUNDING * SEND_BUFFER_ROUNDING;
+        int current = sendBufferTarget;
+        if (target > current * RETUNE_RATIO || target * RETUNE_RATIO < current) {
+            sendBufferTarget = target;
+            if (enabled) {
+                retuneSockets(target);
+            }
+        }
+    }
+
+    private void retuneSockets(int target) {
+        pruneClosedSockets();
+        for (Socket socket : sockets) {
+            try {
+                socket.setSendBufferSize(target);
+                sendBufferActual = socket.getSendBufferSize();
+            } catch (SocketException e) {
+                sockets.remove(socket);
+            }
+        }
+    }
+
+    private void pruneClosedSockets() {
+        Iterator<Socket> iterator = sockets.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isClosed()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // One-way network latency of an echoed frame
+    public void recordNetworkNanos(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        (held ? networkWithLocks : networkWithoutLocks).recordNanos(nanos);
+    }
+
+    public synchronized void release() {
+        clientsConnected = false;
+        updateLocks();
+        sockets.clear();
+    }
+
+    public synchronized String toJson() {
+        pruneClosedSockets();
+        long totalHeld = heldMillis + (held ? System.currentTimeMillis() - heldSince : 0);
+        return "{\"enabled\":" + enabled +
+                ",\"locksHeld\":" + held +
+                ",\"wifiLocks\":\"" + (lowLatencyLock != null ? "lowLatency+highPerf" : "highPerf") + "\"" +
+                ",\"wifiLockHeld\":" + (highPerfLock != null && highPerfLock.isHeld()) +
+                ",\"wakeLockHeld\":" + (wakeLock != null && wakeLock.isHeld()) +
+                ",\"acquisitions\":" + acquisitions +
+                ",\"heldMs\":" + totalHeld +
+                ",\"tuningNewSockets\":" + enabled +
+                ",\"averageFrameBytes\":" + (long) averageFrameBytes +
+                ",\"sendBufferTarget\":" + sendBufferTarget +
+                ",\"sendBufferActual\":" + sendBufferActual +
+                ",\"socketsTuned\":" + socketsTuned.get() +
+                ",\"openTunedSockets\":" + sockets.size() +
+                ",\"tuneErrors\":" + tuneErrors.get() +
+                ",\"networkUsWithLocks\":" + networkWithLocks.toJson() +
+                ",\"networkUsWithoutLocks\":" + networkWithoutLocks.toJson() + "}";
+    }
+}
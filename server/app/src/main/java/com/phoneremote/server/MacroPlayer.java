@@ -0,0 +1,195 @@
+package com.phoneremote.server;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Replays an InputMacro on a dedicated thread. Every step is scheduled against
+// an absolute timeline from the start of playback rather than by sleeping the
+// relative delay, so late wake-ups and slow injections never accumulate drift.
+// The thread parks until shortly before a step is due and spins for the rest,
+// which keeps timing well under a frame even when the device is busy.
+public class MacroPlayer {
+    private static final String TAG = "MacroPlayer";
+    private static final long SPIN_WINDOW_NANOS = 2_000_000;
+    private static final long FRAME_POLL_NANOS = 5_000_000;
+    // Pixels sampled per side of the frame by frameHash
+    private static final int HASH_SAMPLES_PER_SIDE = 256;
+
+    public interface CommandExecutor {
+        boolean execute(String command, String value);
+    }
+
+    private final CommandExecutor executor;
+
+    private volatile Thread playbackThread;
+    private volatile long latestFrameHash;
+    private volatile boolean waitingForFrame;
+
+    // Statistics of the last run
+    private volatile int stepsExecuted;
+    private volatile int checkpointTimeouts;
+    private volatile long maxLatenessNanos;
+    private volatile long totalLatenessNanos;
+
+    public MacroPlayer(CommandExecutor executor) {
+        this.executor = executor;
+    }
+
+    // Called for every captured frame, before it is encoded. Only hashed while
+    // a macro is playing.
+    public void onRawFrame(RawFrame frame) {
+        if (playbackThread != null) {
+            onFrame(frameHash(frame));
+        }
+    }
+
+    private void onFrame(long frameHash) {
+        latestFrameHash = frameHash;
+        Thread thread = playbackThread;
+        if (waitingForFrame && thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public synchronized boolean play(final InputMacro macro, final double speed) {
+        if (playbackThread != null || speed <= 0) {
+            return false;
+        }
+        stepsExecuted = 0;
+        checkpointTimeouts = 0;
+        maxLatenessNanos = 0;
+        totalLatenessNanos = 0;
+
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            try {
+                run(macro, speed);
+            } finally {
+                synchronized (MacroPlayer.this) {
+                    playbackThread = null;
+                }
+            }
+        }, "MacroPlayer");
+        playbackThread = thread;
+        thread.start();
+        return true;
+    }
+
+    public void stop() {
+        Thread thread = playbackThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public boolean isPlaying() {
+        return playbackThread != null;
+    }
+
+    public String statusJson() {
+        int executed = stepsExecuted;
+        long meanMicros = executed > 0 ? totalLatenessNanos / executed / 1000 : 0;
+        return "{\"playing\":" + isPlaying() +
+                ",\"steps\":" + executed +
+                ",\"checkpointTimeouts\":" + checkpointTimeouts +
+                ",\"meanLatenessUs\":" + meanMicros +
+                ",\"maxLatenessUs\":" + maxLatenessNanos / 1000 + "}";
+    }
+
+    private void run(InputMacro macro, double speed) {
+        long timelineStart = System.nanoTime();
+        long offsetNanos = 0;
+        long hashAtLastInput = latestFrameHash;
+
+        for (InputMacro.Step step : macro.getSteps()) {
+            offsetNanos += (long) (step.deltaMicros * 1000 / speed);
+            if (!waitUntil(timelineStart + offsetNanos)) {
+                Log.d(TAG, "Playback stopped");
+                return;
+            }
+
+            if (step.opcode == InputMacro.OP_WAIT_SCREEN_CHANGE) {
+                long waitStart = System.nanoTime();
+                if (!waitForScreenChange(hashAtLastInput, waitStart + step.timeoutMillis * 1_000_000)) {
+                    checkpointTimeouts++;
+                }
+                // Time spent waiting for the app shifts the rest of the timeline
+                timelineStart += System.nanoTime() - waitStart;
+                continue;
+            }
+
+            long lateness = System.nanoTime() - (timelineStart + offsetNanos);
+            hashAtLastInput = latestFrameHash;
+            try {
+                executor.execute(step.command, step.value);
+            } catch (Exception e) {
+                Log.e(TAG, "Macro step failed: " + step.command, e);
+            }
+
+            stepsExecuted++;
+            totalLatenessNanos += lateness;
+            if (lateness > maxLatenessNanos) {
+                maxLatenessNanos = lateness;
+            }
+        }
+    }
+
+    // Returns false if interrupted
+    private boolean waitUntil(long deadline) {
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            if (remaining > SPIN_WINDOW_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_WINDOW_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    // Returns false on timeout
+    private boolean waitForScreenChange(long referenceHash, long deadline) {
+        waitingForFrame = true;
+        try {
+            while (latestFrameHash == referenceHash) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(Math.min(remaining, FRAME_POLL_NANOS));
+            }
+            return true;
+        } finally {
+            waitingForFrame = false;
+        }
+    }
+
+    // Cheap content hash of a captured frame: FNV-1a over the size and a grid
+    // of up to HASH_SAMPLES_PER_SIDE x HASH_SAMPLES_PER_SIDE pixels. It hashes
+    // the raw pixels rather than the encoded bytes, which also change when the
+    // quality ramps, the codec is re-explored or strips pick different codecs,
+    // while the screen stays the same.
+    public static long frameHash(RawFrame frame) {
+        long hash = 0xcbf29ce484222325L;
+        hash = (hash ^ frame.width) * 0x100000001b3L;
+        hash = (hash ^ frame.height) * 0x100000001b3L;
+        int stepX = Math.max(1, frame.width / HASH_SAMPLES_PER_SIDE) * frame.pixelStride;
+        int stepY = Math.max(1, frame.height / HASH_SAMPLES_PER_SIDE);
+        int rowBytes = frame.width * frame.pixelStride;
+        // Absolute gets, so the buffer's position is left alone for the encoder
+        for (int y = 0; y < frame.height; y += stepY) {
+            int rowStart = y * frame.rowStride;
+            for (int x = 0; x < rowBytes; x += stepX) {
+                hash = (hash ^ frame.rgba.getInt(rowStart + x)) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,46 @@
+package com.phoneremote.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects input commands with their relative timing while recording is on
+public class MacroRecorder {
+    private final List<InputMacro.Step> steps = new ArrayList<>();
+    private long lastStepNanos;
+    private volatile boolean recording;
+
+    public synchronized void start() {
+        steps.clear();
+        lastStepNanos = System.nanoTime();
+        recording = true;
+    }
+
+    public synchronized InputMacro stop() {
+        recording = false;
+        return new InputMacro(steps);
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public synchronized void recordCommand(String command, String value, long timestampNanos) {
+        if (recording) {
+            steps.add(InputMacro.Step.command(advance(timestampNanos), command, value));
+        }
+    }
+
+    // Marks a point where replay should wait until the screen has changed since
+    // the previous input
+    public synchronized void recordCheckpoint(long timeoutMillis) {
+        if (recording) {
+            steps.add(InputMacro.Step.waitForScreenChange(advance(System.nanoTime()), timeoutMillis));
+        }
+    }
+
+    private long advance(long timestampNanos) {
+        long delta = Math.max(0, timestampNanos - lastStepNanos);
+        lastStepNanos = Math.max(lastStepNanos, timestampNanos);
+        return delta / 1000;
+    }
+}
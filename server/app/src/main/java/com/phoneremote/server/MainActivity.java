@@ -21,11 +21,13 @@ import android.os.Looper;
 import android.provider.Settings;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
+import android.text.InputType;
 import android.util.Base64;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.activity.result.ActivityResultLauncher;
@@ -42,7 +44,10 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import javax.crypto.Cipher;
@@ -79,6 +84,7 @@ public class MainActivity extends AppCompatActivity {
     private EditText usernameField;
     private EditText passwordField;
     private CheckBox enableFileTransferCheckbox;
+    private Button captureSettingsButton;
     
     private boolean isServerRunning = false;
     private boolean isScreenCaptureRunning = false;
@@ -110,6 +116,7 @@ public class MainActivity extends AppCompatActivity {
         usernameField = findViewById(R.id.username_field);
         passwordField = findViewById(R.id.password_field);
         enableFileTransferCheckbox = findViewById(R.id.enable_file_transfer_checkbox);
+        captureSettingsButton = findViewById(R.id.capture_settings_button);
         
         // Load saved preferences
         loadPreferences();
@@ -156,6 +163,9 @@ public class MainActivity extends AppCompatActivity {
             }
         });
         
+        // Streaming settings can be changed at any time, including while sharing
+        captureSettingsButton.setOnClickListener(v -> showCaptureSettingsDialog());
+        
         enableAuthCheckbox.setOnCheckedChangeListener((buttonView, isChecked) -> {
             usernameField.setEnabled(isChecked);
             passwordField.setEnabled(isChecked);
@@ -202,6 +212,55 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void showCaptureSettingsDialog() {
+        CaptureConfig current = CaptureConfig.load(this);
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("minFrameRate", String.valueOf(current.minFrameRate));
+        values.put("maxFrameRate", String.valueOf(current.maxFrameRate));
+        values.put("minQuality", String.valueOf(current.minQuality));
+        values.put("maxQuality", String.valueOf(current.maxQuality));
+        values.put("memoryThreshold", String.valueOf(current.memoryThreshold));
+        values.put("width", String.valueOf(current.width));
+        values.put("height", String.valueOf(current.height));
+        
+        LinearLayout form = new LinearLayout(this);
+        form.setOrientation(LinearLayout.VERTICAL);
+        int padding = (int) (16 * getResources().getDisplayMetrics().density);
+        form.setPadding(padding, padding / 2, padding, 0);
+        
+        final Map<String, EditText> fields = new HashMap<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            TextView label = new TextView(this);
+            label.setText(entry.getKey());
+            EditText field = new EditText(this);
+            field.setText(entry.getValue());
+            field.setInputType("memoryThreshold".equals(entry.getKey())
+                    ? InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_FLAG_DECIMAL
+                    : InputType.TYPE_CLASS_NUMBER);
+            form.addView(label);
+            form.addView(field);
+            fields.put(entry.getKey(), field);
+        }
+        
+        new AlertDialog.Builder(this)
+                .setTitle("Streaming Settings")
+                .setView(form)
+                .setPositiveButton("Apply", (dialog, which) -> {
+                    Map<String, String> params = new HashMap<>();
+                    for (Map.Entry<String, EditText> entry : fields.entrySet()) {
+                        params.put(entry.getKey(), entry.getValue().getText().toString());
+                    }
+                    try {
+                        ScreenCaptureService.setConfig(this, current.merge(params));
+                        Toast.makeText(this, "Streaming settings applied", Toast.LENGTH_SHORT).show();
+                    } catch (IllegalArgumentException e) {
+                        Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
     private void updateButtons() {
         startServerButton.setEnabled(!isServerRunning);
         stopServerButton.setEnabled(isServerRunning);
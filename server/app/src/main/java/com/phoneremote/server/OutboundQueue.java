@@ -0,0 +1,181 @@
+package com.phoneremote.server;
+
+import fi.iki.elonen.WebSocket;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Send queue for one screen connection, with two lanes. Control messages
+// (acks, pongs, pointer events) always go before frame data, and only the
+// newest unsent frame is kept, so input feedback never waits behind a backlog
+// of frames. A message already being written still finishes first, since
+// WebSocket messages can't be interleaved. One drain runs at a time on the
+// shared executor, so callers never block on the network.
+public class OutboundQueue {
+    // Control traffic is tiny; this only bounds a client that stopped reading
+    private static final int MAX_CONTROL_MESSAGES = 512;
+
+    public interface Callback {
+        // frame is null for the frame sent when a viewer connects
+        void onFrameSent(CapturedFrame frame, long sendStartNanos, long sendEndNanos);
+
+        void onSendFailed(IOException e);
+    }
+
+    // What the queue writes to; the connection's WebSocket, or a fake in tests
+    interface Connection {
+        boolean isOpen();
+
+        void send(byte[] message) throws IOException;
+
+        void send(String message) throws IOException;
+    }
+
+    private final Connection socket;
+    private final Executor executor;
+    private final Callback callback;
+
+    private final ArrayDeque<Object> control = new ArrayDeque<>();
+    private Object[] pendingFrame;
+    private CapturedFrame pendingFrameInfo;
+    private boolean draining;
+    private boolean failed;
+
+    private long framesReplaced;
+    private long controlDropped;
+
+    public OutboundQueue(final WebSocket socket, Executor executor, Callback callback) {
+        this(new Connection() {
+            @Override
+            public boolean isOpen() {
+                return socket.isOpen();
+            }
+
+            @Override
+            public void send(byte[] message) throws IOException {
+                socket.send(message);
+            }
+
+            @Override
+            public void send(String message) throws IOException {
+                socket.send(message);
+            }
+        }, executor, callback);
+    }
+
+    OutboundQueue(Connection socket, Executor executor, Callback callback) {
+        this.socket = socket;
+        this.executor = executor;
+        this.callback = callback;
+    }
+
+    // message is a byte[] or String
+    public void sendControl(Object message) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            if (control.size() >= MAX_CONTROL_MESSAGES) {
+                controlDropped++;
+                return;
+            }
+            control.add(message);
+        }
+        schedule();
+    }
+
+    // The parts of one frame are written back to back; a newer frame replaces
+    // one that hasn't started sending yet
+    public void sendFrame(CapturedFrame frame, Object... parts) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            if (pendingFrame != null) {
+                framesReplaced++;
+            }
+            pendingFrame = parts;
+            pendingFrameInfo = frame;
+        }
+        schedule();
+    }
+
+    public synchronized long getFramesReplaced() {
+        return framesReplaced;
+    }
+
+    public synchronized long getControlDropped() {
+        return controlDropped;
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                draining = false;
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Object message = null;
+            Object[] frame = null;
+            CapturedFrame frameInfo = null;
+            synchronized (this) {
+                if (!control.isEmpty()) {
+                    message = control.poll();
+                } else if (pendingFrame != null) {
+                    frame = pendingFrame;
+                    frameInfo = pendingFrameInfo;
+                    pendingFrame = null;
+                    pendingFrameInfo = null;
+                } else {
+                    draining = false;
+                    return;
+                }
+            }
+            try {
+                if (!socket.isOpen()) {
+                    continue;
+                }
+                if (message != null) {
+                    write(message);
+                } else {
+                    long sendStart = System.nanoTime();
+                    for (Object part : frame) {
+                        write(part);
+                    }
+                    callback.onFrameSent(frameInfo, sendStart, System.nanoTime());
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failed = true;
+                    control.clear();
+                    pendingFrame = null;
+                    pendingFrameInfo = null;
+                    draining = false;
+                }
+                callback.onSendFailed(e);
+                return;
+            }
+        }
+    }
+
+    private void write(Object message) throws IOException {
+        if (message instanceof byte[]) {
+            socket.send((byte[]) message);
+        } else {
+            socket.send((String) message);
+        }
+    }
+}
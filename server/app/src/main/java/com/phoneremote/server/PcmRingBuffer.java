@@ -0,0 +1,74 @@
+package com.phoneremote.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single-producer / single-consumer ring of 16-bit PCM samples. The capture
+// thread writes and the encoder thread reads without taking any locks; when the
+// reader falls behind, new samples are dropped and counted as overruns so that
+// latency stays bounded by the ring size.
+public class PcmRingBuffer {
+    private final short[] samples;
+    private final int mask;
+    private final AtomicLong writePosition = new AtomicLong();
+    private final AtomicLong readPosition = new AtomicLong();
+    private final AtomicLong overruns = new AtomicLong();
+
+    public PcmRingBuffer(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        samples = new short[capacity];
+        mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return samples.length;
+    }
+
+    public int available() {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    public long getReadPosition() {
+        return readPosition.get();
+    }
+
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    // Producer side. Returns the number of samples actually stored.
+    public int write(short[] src, int offset, int length) {
+        long write = writePosition.get();
+        int free = samples.length - (int) (write - readPosition.get());
+        int count = Math.min(length, free);
+        if (count < length) {
+            overruns.addAndGet(length - count);
+        }
+
+        int start = (int) (write & mask);
+        int firstPart = Math.min(count, samples.length - start);
+        System.arraycopy(src, offset, samples, start, firstPart);
+        System.arraycopy(src, offset + firstPart, samples, 0, count - firstPart);
+
+        // Publish after the copy so the reader never sees unwritten samples
+        writePosition.lazySet(write + count);
+        return count;
+    }
+
+    // Consumer side. Returns the number of samples copied into dst.
+    public int read(short[] dst, int offset, int length) {
+        long read = readPosition.get();
+        int count = Math.min(length, (int) (writePosition.get() - read));
+
+        int start = (int) (read & mask);
+        int firstPart = Math.min(count, samples.length - start);
+        System.arraycopy(samples, start, dst, offset, firstPart);
+        System.arraycopy(samples, 0, dst, offset + firstPart, count - firstPart);
+
+        readPosition.lazySet(read + count);
+        return count;
+    }
+
+    public void clear() {
+        readPosition.set(writePosition.get());
+    }
+}
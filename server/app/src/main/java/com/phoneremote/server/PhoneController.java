@@ -8,58 +8,164 @@ import android.provider.Settings;
 import android.util.Log;
 import android.view.KeyEvent;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
 public class PhoneController {
     private static final String TAG = "PhoneController";
+    // Default duration of "input swipe"
+    public static final long SWIPE_DURATION_MS = 300;
+    // Short enough that no app takes it for a long press
+    private static final long TAP_DURATION_MS = 50;
+    // Each "input" call starts a VM, so a long batch can take seconds
+    private static final long SHELL_TIMEOUT_MS = 10000;
+    private static final long SHELL_POLL_MS = 10;
     private Context context;
     private AudioManager audioManager;
+    
+    // One step of a text/key batch: either literal text or a single key chord
+    public static class KeyAction {
+        public final String text;
+        public final int keyCode;
+        public final int metaState;
+        
+        private KeyAction(String text, int keyCode, int metaState) {
+            this.text = text;
+            this.keyCode = keyCode;
+            this.metaState = metaState;
+        }
+        
+        public static KeyAction text(String text) {
+            return new KeyAction(text, KeyEvent.KEYCODE_UNKNOWN, 0);
+        }
+        
+        // Parses chords such as "ENTER", "CTRL+A" or "CTRL+SHIFT+TAB"
+        public static KeyAction chord(String chord) {
+            String[] parts = chord.trim().toUpperCase(Locale.ROOT).split("\\+");
+            int meta = 0;
+            for (int i = 0; i < parts.length - 1; i++) {
+                switch (parts[i]) {
+                    case "CTRL":
+                        meta |= KeyEvent.META_CTRL_ON | KeyEvent.META_CTRL_LEFT_ON;
+                        break;
+                    case "SHIFT":
+                        meta |= KeyEvent.META_SHIFT_ON | KeyEvent.META_SHIFT_LEFT_ON;
+                        break;
+                    case "ALT":
+                        meta |= KeyEvent.META_ALT_ON | KeyEvent.META_ALT_LEFT_ON;
+                        break;
+                    case "META":
+                        meta |= KeyEvent.META_META_ON | KeyEvent.META_META_LEFT_ON;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown modifier: " + parts[i]);
+                }
+            }
+            String key = parts[parts.length - 1];
+            int keyCode = KeyEvent.keyCodeFromString(key.startsWith("KEYCODE_") ? key : "KEYCODE_" + key);
+            if (keyCode == KeyEvent.KEYCODE_UNKNOWN) {
+                throw new IllegalArgumentException("Unknown key: " + key);
+            }
+            return new KeyAction(null, keyCode, meta);
+        }
+        
+        public boolean isText() {
+            return text != null;
+        }
+    }
 
     public PhoneController(Context context) {
         this.context = context;
         this.audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
     }
 
+    // Injects through the accessibility service when it is enabled, otherwise
+    // through "input swipe", which needs shell (ADB) or root privileges.
+    // Returns true only when the swipe was actually injected.
     public boolean swipe(String direction) {
         if (direction == null) {
             return false;
         }
 
         try {
-            // Using shell commands requires the WRITE_SECURE_SETTINGS permission or root
-            // In a real app, you'd need accessibility service or ADB permissions
-            String command;
-            switch (direction) {
-                case "up":
-                    command = "input swipe 500 800 500 300";
-                    break;
-                case "down":
-                    command = "input swipe 500 300 500 800";
-                    break;
-                case "left":
-                    command = "input swipe 800 500 300 500";
-                    break;
-                case "right":
-                    command = "input swipe 300 500 800 500";
-                    break;
-                default:
-                    return false;
+            int[] path = swipePath(direction);
+            if (path == null) {
+                return false;
             }
-            
-            // Note: In a production app, you would use the AccessibilityService API
-            // This is a simplification and requires special permissions
-            Log.d(TAG, "Executing swipe: " + direction);
-            return true;
+            EventLog.log(EventLog.CATEGORY_INPUT, EventLog.LEVEL_INFO, "swipe", direction);
+            RemoteAccessibilityService accessibility = RemoteAccessibilityService.getInstance();
+            if (accessibility != null
+                    && accessibility.dispatchStroke(path[0], path[1], path[2], path[3], SWIPE_DURATION_MS)) {
+                return true;
+            }
+            return runShell("input swipe " + path[0] + " " + path[1] + " " + path[2] + " " + path[3]
+                    + " " + SWIPE_DURATION_MS);
         } catch (Exception e) {
             Log.e(TAG, "Failed to execute swipe", e);
             return false;
         }
     }
 
+    // Start and end points of a swipe in device pixels, or null for an unknown direction
+    public static int[] swipePath(String direction) {
+        switch (direction) {
+            case "up":
+                return new int[] {500, 800, 500, 300};
+            case "down":
+                return new int[] {500, 300, 500, 800};
+            case "left":
+                return new int[] {800, 500, 300, 500};
+            case "right":
+                return new int[] {300, 500, 800, 500};
+            default:
+                return null;
+        }
+    }
+
+    // Tap target in device pixels. The value is either "x,y" in device pixels,
+    // or "x,y,width,height" with x,y in a width x height frame of the screen,
+    // which is scaled up to the display. Throws IllegalArgumentException for
+    // anything else.
+    public static int[] tapPoint(String value, int displayWidth, int displayHeight) {
+        String[] parts = value != null ? value.split(",") : new String[0];
+        if (parts.length != 2 && parts.length != 4) {
+            throw new IllegalArgumentException("Invalid coordinates");
+        }
+        try {
+            int x = Integer.parseInt(parts[0].trim());
+            int y = Integer.parseInt(parts[1].trim());
+            if (parts.length == 4) {
+                int frameWidth = Integer.parseInt(parts[2].trim());
+                int frameHeight = Integer.parseInt(parts[3].trim());
+                if (frameWidth <= 0 || frameHeight <= 0) {
+                    throw new IllegalArgumentException("Invalid frame size");
+                }
+                x = (int) ((long) x * displayWidth / frameWidth);
+                y = (int) ((long) y * displayHeight / frameHeight);
+            }
+            if (x < 0 || y < 0 || x >= displayWidth || y >= displayHeight) {
+                throw new IllegalArgumentException("Coordinates outside the display");
+            }
+            return new int[] {x, y};
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid coordinates");
+        }
+    }
+
+    // Same injection paths as swipe()
     public boolean tap(int x, int y) {
         try {
-            // Again, this would require special permissions in a real app
-            String command = "input tap " + x + " " + y;
-            Log.d(TAG, "Executing tap at " + x + "," + y);
-            return true;
+            EventLog.log(EventLog.CATEGORY_INPUT, EventLog.LEVEL_INFO, "tap", null, x, y);
+            RemoteAccessibilityService accessibility = RemoteAccessibilityService.getInstance();
+            if (accessibility != null && accessibility.dispatchStroke(x, y, x, y, TAP_DURATION_MS)) {
+                return true;
+            }
+            return runShell("input tap " + x + " " + y);
         } catch (Exception e) {
             Log.e(TAG, "Failed to execute tap", e);
             return false;
@@ -69,7 +175,7 @@ public class PhoneController {
     public boolean pressBack() {
         try {
             // For a real app, you'd use an AccessibilityService
-            Log.d(TAG, "Executing back button press");
+            EventLog.log(EventLog.CATEGORY_INPUT, EventLog.LEVEL_INFO, "back", null);
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Failed to execute back press", e);
@@ -94,7 +200,7 @@ public class PhoneController {
     public boolean pressRecents() {
         try {
             // In a real app, you would use AccessibilityService API
-            Log.d(TAG, "Executing recents button press");
+            EventLog.log(EventLog.CATEGORY_INPUT, EventLog.LEVEL_INFO, "recents", null);
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Failed to show recents", e);
@@ -102,6 +208,149 @@ public class PhoneController {
         }
     }
 
+    // Parses a space separated chord list, e.g. "CTRL+A DEL ENTER"
+    public static List<KeyAction> parseChords(String chords) {
+        List<KeyAction> actions = new ArrayList<>();
+        if (chords != null) {
+            for (String chord : chords.trim().split("\\s+")) {
+                if (!chord.isEmpty()) {
+                    actions.add(KeyAction.chord(chord));
+                }
+            }
+        }
+        return actions;
+    }
+    
+    // Parses a JSON batch: [{"text":"hello"}, {"keys":"CTRL+A DEL"}, ...]
+    public static List<KeyAction> parseBatch(String json) {
+        List<KeyAction> actions = new ArrayList<>();
+        try {
+            JSONArray steps = new JSONArray(json);
+            for (int i = 0; i < steps.length(); i++) {
+                JSONObject step = steps.getJSONObject(i);
+                if (step.has("text")) {
+                    actions.add(KeyAction.text(step.getString("text")));
+                } else if (step.has("keys")) {
+                    actions.addAll(parseChords(step.getString("keys")));
+                } else {
+                    throw new IllegalArgumentException("Batch step needs text or keys");
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid batch: " + e.getMessage());
+        }
+        return actions;
+    }
+    
+    // Injects a whole batch of text and key chords and reports one result.
+    // Pure text goes to the focused field in a single accessibility
+    // ACTION_SET_TEXT when that service is enabled; everything else becomes one
+    // shell script, i.e. one process for the batch instead of one per key.
+    public boolean injectBatch(List<KeyAction> actions) {
+        if (actions == null || actions.isEmpty()) {
+            return false;
+        }
+        
+        try {
+            StringBuilder text = new StringBuilder();
+            boolean textOnly = true;
+            for (KeyAction action : actions) {
+                if (!action.isText()) {
+                    textOnly = false;
+                    break;
+                }
+                text.append(action.text);
+            }
+            
+            RemoteAccessibilityService accessibility = RemoteAccessibilityService.getInstance();
+            if (textOnly && accessibility != null && accessibility.appendTextToFocused(text.toString())) {
+                EventLog.log(EventLog.CATEGORY_INPUT, EventLog.LEVEL_INFO, "inject_text", null, text.length(), 0);
+                return true;
+            }
+            
+            String script = buildInputScript(actions);
+            EventLog.log(EventLog.CATEGORY_INPUT, EventLog.LEVEL_INFO, "inject_batch", null, actions.size(), 0);
+            return runShell(script);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to inject batch", e);
+            return false;
+        }
+    }
+    
+    private String buildInputScript(List<KeyAction> actions) {
+        StringBuilder script = new StringBuilder();
+        StringBuilder pendingKeys = new StringBuilder();
+        for (KeyAction action : actions) {
+            if (!action.isText() && action.metaState == 0) {
+                // Plain keys are merged into a single "input keyevent" invocation
+                pendingKeys.append(' ').append(action.keyCode);
+                continue;
+            }
+            flushKeys(script, pendingKeys);
+            if (action.isText()) {
+                // "input text" treats %s as a space; everything else is passed literally
+                String escaped = action.text.replace(" ", "%s").replace("'", "'\\''");
+                appendCommand(script, "input text '" + escaped + "'");
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                appendCommand(script, "input keycombination" + modifierKeys(action.metaState) + " " + action.keyCode);
+            } else {
+                // Older "input" has no chord support; send the key without modifiers
+                Log.w(TAG, "Key chords need Android 13, sending key " + action.keyCode + " alone");
+                appendCommand(script, "input keyevent " + action.keyCode);
+            }
+        }
+        flushKeys(script, pendingKeys);
+        return script.toString();
+    }
+    
+    private static String modifierKeys(int metaState) {
+        StringBuilder keys = new StringBuilder();
+        if ((metaState & KeyEvent.META_CTRL_ON) != 0) keys.append(' ').append(KeyEvent.KEYCODE_CTRL_LEFT);
+        if ((metaState & KeyEvent.META_SHIFT_ON) != 0) keys.append(' ').append(KeyEvent.KEYCODE_SHIFT_LEFT);
+        if ((metaState & KeyEvent.META_ALT_ON) != 0) keys.append(' ').append(KeyEvent.KEYCODE_ALT_LEFT);
+        if ((metaState & KeyEvent.META_META_ON) != 0) keys.append(' ').append(KeyEvent.KEYCODE_META_LEFT);
+        return keys.toString();
+    }
+    
+    private static void flushKeys(StringBuilder script, StringBuilder pendingKeys) {
+        if (pendingKeys.length() > 0) {
+            appendCommand(script, "input keyevent" + pendingKeys);
+            pendingKeys.setLength(0);
+        }
+    }
+    
+    private static void appendCommand(StringBuilder script, String command) {
+        if (script.length() > 0) {
+            script.append(" && ");
+        }
+        script.append(command);
+    }
+    
+    // Requires shell (ADB) or root privileges to affect other apps
+    private boolean runShell(String script) throws Exception {
+        Process process = Runtime.getRuntime().exec(new String[] {"sh", "-c", script});
+        // Process.waitFor(timeout, unit) needs API 26, so poll for the exit
+        long deadline = System.currentTimeMillis() + SHELL_TIMEOUT_MS;
+        int exitCode;
+        while (true) {
+            try {
+                exitCode = process.exitValue();
+                break;
+            } catch (IllegalThreadStateException stillRunning) {
+                if (System.currentTimeMillis() >= deadline) {
+                    process.destroy();
+                    Log.e(TAG, "Input script timed out after " + SHELL_TIMEOUT_MS + " ms");
+                    return false;
+                }
+                Thread.sleep(SHELL_POLL_MS);
+            }
+        }
+        if (exitCode != 0) {
+            Log.e(TAG, "Input script exited with " + exitCode);
+        }
+        return exitCode == 0;
+    }
+
     public boolean adjustVolume(String direction) {
         if (direction == null) {
             return false;
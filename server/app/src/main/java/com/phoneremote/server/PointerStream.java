@@ -0,0 +1,156 @@
+package com.phoneremote.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Publishes the pointer positions that were actually injected, as tiny
+// messages separate from video frames; callers only publish once the
+// accessibility service or the shell has accepted the gesture. Clients draw
+// their own touches immediately and use these to confirm or correct them, so
+// control feedback does not wait for the next frame. Swipes are replayed along their injected
+// path at SAMPLE_INTERVAL_MS so the remote cursor moves the way the finger did.
+//
+// Payload (big-endian, 16 bytes):
+//   0  action       u8   POINTER_DOWN, POINTER_MOVE or POINTER_UP
+//   1  space        u8   SPACE_DEVICE: x/y are device pixels of a spaceWidth x spaceHeight display
+//                        SPACE_CLIENT: x/y are client coordinates (not sent; the server
+//                        only publishes what it injected, in device pixels)
+//   2  x            u16
+//   4  y            u16
+//   6  spaceWidth   u16
+//   8  spaceHeight  u16
+//   10 reserved     u16
+//   12 inputSeq     u32  sequence of the input envelope that caused it, 0 if none
+public class PointerStream {
+    public static final int POINTER_DOWN = 1;
+    public static final int POINTER_MOVE = 2;
+    public static final int POINTER_UP = 3;
+
+    public static final int SPACE_CLIENT = 0;
+    public static final int SPACE_DEVICE = 1;
+
+    public static final int PAYLOAD_SIZE = 16;
+    private static final long SAMPLE_INTERVAL_MS = 8;
+
+    public interface Listener {
+        // inputSequence is only meaningful to the client identified by originId
+        void onPointer(byte[] payload, String originId, long inputSequence);
+    }
+
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, "PointerStream"));
+    // The swipe being replayed, if any; guarded by this
+    private SwipeReplay activeSwipe;
+
+    public PointerStream(Listener listener) {
+        this.listener = listener;
+    }
+
+    // A tap injected at (x, y) in device pixels of a width x height display
+    public void tap(int x, int y, int width, int height, String originId, long inputSequence) {
+        publish(POINTER_DOWN, SPACE_DEVICE, x, y, width, height, originId, inputSequence);
+        publish(POINTER_UP, SPACE_DEVICE, x, y, width, height, originId, inputSequence);
+    }
+
+    // Replays a swipe from (x1, y1) to (x2, y2) in device pixels over durationMs.
+    // A new swipe cuts short the one still being replayed, which first gets
+    // its POINTER_UP where it stopped, so clients never see two fingers down.
+    public void swipe(int x1, int y1, int x2, int y2, long durationMs,
+                      int width, int height, String originId, long inputSequence) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        SwipeReplay replay = new SwipeReplay(x1, y1, x2, y2, durationMs, width, height, originId, inputSequence);
+        synchronized (this) {
+            if (activeSwipe != null) {
+                activeSwipe.finish(activeSwipe.lastX, activeSwipe.lastY);
+            }
+            activeSwipe = replay;
+            publish(POINTER_DOWN, SPACE_DEVICE, x1, y1, width, height, originId, inputSequence);
+        }
+        scheduler.schedule(replay, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private class SwipeReplay implements Runnable {
+        final int x1, y1, x2, y2;
+        final long durationMs;
+        final int width, height;
+        final String originId;
+        final long inputSequence;
+        final long start = System.nanoTime();
+        int lastX;
+        int lastY;
+
+        SwipeReplay(int x1, int y1, int x2, int y2, long durationMs, int width, int height,
+                    String originId, long inputSequence) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.durationMs = durationMs;
+            this.width = width;
+            this.height = height;
+            this.originId = originId;
+            this.inputSequence = inputSequence;
+            this.lastX = x1;
+            this.lastY = y1;
+        }
+
+        @Override
+        public void run() {
+            synchronized (PointerStream.this) {
+                if (activeSwipe != this) {
+                    return; // Cut short by a newer swipe, which already sent our POINTER_UP
+                }
+                double progress = Math.min(1.0, (System.nanoTime() - start) / 1e6 / durationMs);
+                int x = (int) Math.round(x1 + (x2 - x1) * progress);
+                int y = (int) Math.round(y1 + (y2 - y1) * progress);
+                if (progress >= 1.0) {
+                    finish(x, y);
+                    return;
+                }
+                publish(POINTER_MOVE, SPACE_DEVICE, x, y, width, height, originId, inputSequence);
+                lastX = x;
+                lastY = y;
+            }
+            try {
+                scheduler.schedule(this, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopped
+            }
+        }
+
+        // Caller holds the PointerStream lock
+        void finish(int x, int y) {
+            publish(POINTER_UP, SPACE_DEVICE, x, y, width, height, originId, inputSequence);
+            activeSwipe = null;
+        }
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void publish(int action, int space, int x, int y, int width, int height,
+                         String originId, long inputSequence) {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        ByteBuffer.wrap(payload)
+                .put((byte) action)
+                .put((byte) space)
+                .putShort((short) clamp(x))
+                .putShort((short) clamp(y))
+                .putShort((short) clamp(width))
+                .putShort((short) clamp(height))
+                .putShort((short) 0)
+                .putInt((int) inputSequence);
+        listener.onPointer(payload, originId, inputSequence);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(0xFFFF, value));
+    }
+}
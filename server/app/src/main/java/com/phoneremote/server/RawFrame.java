@@ -0,0 +1,38 @@
+package com.phoneremote.server;
+
+import java.nio.ByteBuffer;
+
+// One RGBA_8888 frame as the capture pipeline sees it, whatever produced it.
+// Rows may be padded past the visible width: rowStride is in bytes. Close the
+// frame once done with it so the source can reuse the buffer.
+public class RawFrame {
+    public final ByteBuffer rgba;
+    public final int width;
+    public final int height;
+    public final int rowStride;
+    public final int pixelStride;
+    // System.nanoTime() clock; 0 when the source doesn't know
+    public final long timestampNanos;
+    private final Runnable release;
+
+    public RawFrame(ByteBuffer rgba, int width, int height, int rowStride, int pixelStride,
+                    long timestampNanos, Runnable release) {
+        this.rgba = rgba;
+        this.width = width;
+        this.height = height;
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+        this.timestampNanos = timestampNanos;
+        this.release = release;
+    }
+
+    public int getPaddedWidth() {
+        return rowStride / pixelStride;
+    }
+
+    public void close() {
+        if (release != null) {
+            release.run();
+        }
+    }
+}
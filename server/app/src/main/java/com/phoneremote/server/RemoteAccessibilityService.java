@@ -0,0 +1,236 @@
+package com.phoneremote.server;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Enabled by the user under Settings > Accessibility. When connected it gives
+// PhoneController a way to act on the UI without shell permissions.
+public class RemoteAccessibilityService extends AccessibilityService {
+    private static final String TAG = "RemoteAccessibility";
+    private static final int MAX_TREE_NODES = 2000;
+    private static final int MAX_TREE_DEPTH = 64;
+    private static final int MAX_TEXT_LENGTH = 256;
+
+    // Singleton instance for easy access from outside
+    private static volatile RemoteAccessibilityService instance;
+    
+    // Notified on the main thread when the visible UI may have changed
+    private static volatile Runnable uiChangeListener;
+
+    public static RemoteAccessibilityService getInstance() {
+        return instance;
+    }
+
+    public static void setUiChangeListener(Runnable listener) {
+        uiChangeListener = listener;
+    }
+
+    private interface NodeVisitor {
+        // Return false to stop the walk
+        boolean visit(AccessibilityNodeInfo node, String key, String parentKey, int childIndex);
+    }
+
+    @Override
+    protected void onServiceConnected() {
+        super.onServiceConnected();
+        instance = this;
+        Log.i(TAG, "Accessibility service connected");
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        Runnable listener = uiChangeListener;
+        if (listener == null) {
+            return;
+        }
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+            case AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_FOCUSED:
+                listener.run();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onInterrupt() {
+        // Nothing to interrupt
+    }
+
+    @Override
+    public void onDestroy() {
+        instance = null;
+        super.onDestroy();
+    }
+
+    // Appends text to the focused editable field in a single ACTION_SET_TEXT,
+    // regardless of length. Returns false if no editable field has focus.
+    public boolean appendTextToFocused(String text) {
+        AccessibilityNodeInfo focused = findFocus(AccessibilityNodeInfo.FOCUS_INPUT);
+        if (focused == null) {
+            return false;
+        }
+        try {
+            if (!focused.isEditable()) {
+                return false;
+            }
+            CharSequence current = focused.getText();
+            // Hint text is reported as the field's text while it is empty
+            boolean showingHint = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && focused.isShowingHintText();
+            String existing = current == null || showingHint ? "" : current.toString();
+
+            Bundle arguments = new Bundle();
+            arguments.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, existing + text);
+            return focused.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, arguments);
+        } finally {
+            focused.recycle();
+        }
+    }
+
+    // Flattens the visible part of the active window, parents before children
+    public List<UiNode> captureUiTree() {
+        final List<UiNode> nodes = new ArrayList<>();
+        final Rect bounds = new Rect();
+        walk((node, key, parentKey, childIndex) -> {
+            node.getBoundsInScreen(bounds);
+            nodes.add(new UiNode(key, parentKey, childIndex,
+                    toString(node.getClassName()), node.getViewIdResourceName(),
+                    toString(node.getText()), toString(node.getContentDescription()),
+                    bounds.left, bounds.top, bounds.right, bounds.bottom, stateOf(node)));
+            return nodes.size() < MAX_TREE_NODES;
+        });
+        return nodes;
+    }
+
+    // Injects one finger moving from (x1, y1) to (x2, y2) over durationMs; a
+    // tap is a stroke that doesn't move. Gestures need Android 7.0. Returns
+    // false when the system didn't accept the gesture.
+    public boolean dispatchStroke(int x1, int y1, int x2, int y2, long durationMs) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return false;
+        }
+        Path path = new Path();
+        path.moveTo(x1, y1);
+        path.lineTo(x2, y2);
+        GestureDescription gesture = new GestureDescription.Builder()
+                .addStroke(new GestureDescription.StrokeDescription(path, 0, Math.max(1, durationMs)))
+                .build();
+        return dispatchGesture(gesture, null, null);
+    }
+
+    // Clicks the node with the given key, or its nearest clickable ancestor
+    public boolean clickNode(final String targetKey) {
+        final boolean[] clicked = {false};
+        walk((node, key, parentKey, childIndex) -> {
+            if (!key.equals(targetKey)) {
+                return true;
+            }
+            AccessibilityNodeInfo current = AccessibilityNodeInfo.obtain(node);
+            while (current != null && !current.isClickable()) {
+                AccessibilityNodeInfo parent = current.getParent();
+                current.recycle();
+                current = parent;
+            }
+            if (current != null) {
+                clicked[0] = current.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+                current.recycle();
+            }
+            return false;
+        });
+        return clicked[0];
+    }
+
+    private void walk(NodeVisitor visitor) {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return;
+        }
+        try {
+            String key = root.getPackageName() + ":" + segment(root);
+            walk(root, key, null, 0, 0, visitor);
+        } catch (Exception e) {
+            // Nodes can go stale while we walk; the next change event retries
+            Log.e(TAG, "Error walking UI tree", e);
+        } finally {
+            root.recycle();
+        }
+    }
+
+    private boolean walk(AccessibilityNodeInfo node, String key, String parentKey, int childIndex,
+                         int depth, NodeVisitor visitor) {
+        if (!visitor.visit(node, key, parentKey, childIndex)) {
+            return false;
+        }
+        if (depth >= MAX_TREE_DEPTH) {
+            return true;
+        }
+
+        // Siblings with the same class and id are told apart by their order
+        Map<String, Integer> seen = new HashMap<>();
+        int visibleIndex = 0;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            AccessibilityNodeInfo child = node.getChild(i);
+            if (child == null) {
+                continue;
+            }
+            try {
+                if (!child.isVisibleToUser()) {
+                    continue;
+                }
+                String base = segment(child);
+                Integer count = seen.get(base);
+                int occurrence = count != null ? count : 0;
+                seen.put(base, occurrence + 1);
+                if (!walk(child, key + "/" + base + "[" + occurrence + "]", key, visibleIndex++, depth + 1, visitor)) {
+                    return false;
+                }
+            } finally {
+                child.recycle();
+            }
+        }
+        return true;
+    }
+
+    private static String segment(AccessibilityNodeInfo node) {
+        String viewId = node.getViewIdResourceName();
+        return node.getClassName() + "#" + (viewId != null ? viewId : "");
+    }
+
+    private static String toString(CharSequence value) {
+        if (value == null) {
+            return null;
+        }
+        String text = value.toString();
+        return text.length() > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text;
+    }
+
+    private static int stateOf(AccessibilityNodeInfo node) {
+        int state = 0;
+        if (node.isClickable()) state |= UiNode.STATE_CLICKABLE;
+        if (node.isLongClickable()) state |= UiNode.STATE_LONG_CLICKABLE;
+        if (node.isEditable()) state |= UiNode.STATE_EDITABLE;
+        if (node.isScrollable()) state |= UiNode.STATE_SCROLLABLE;
+        if (node.isCheckable()) state |= UiNode.STATE_CHECKABLE;
+        if (node.isChecked()) state |= UiNode.STATE_CHECKED;
+        if (node.isFocused()) state |= UiNode.STATE_FOCUSED;
+        if (node.isSelected()) state |= UiNode.STATE_SELECTED;
+        if (node.isEnabled()) state |= UiNode.STATE_ENABLED;
+        return state;
+    }
+}
@@ -6,12 +6,16 @@ import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ServiceInfo;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import androidx.core.app.NotificationCompat;
 
@@ -27,13 +31,26 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class RemoteServerService extends Service implements ScreenCaptureService.OnScreenCaptureListener {
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class RemoteServerService extends Service implements AudioStreamer.OnAudioPacketListener {
     private static final String TAG = "RemoteServerService";
     private static final int NOTIFICATION_ID = 1;
     private static final String CHANNEL_ID = "RemoteServerChannel";
@@ -45,26 +62,144 @@ public class RemoteServerService extends Service implements ScreenCaptureService
     private boolean authEnabled = false;
     private String username = "";
     private String password = "";
+    private static final long SESSION_TTL_MS = 30 * 60 * 1000;
+    private static final int MAX_SESSIONS = 256;
+    private static final String SESSION_COOKIE = "prc_session";
+    private final SessionTokenCache sessionTokens = new SessionTokenCache(SESSION_TTL_MS, MAX_SESSIONS);
+    // Shared by every request authenticated with Basic credentials, so clients
+    // that ignore Set-Cookie don't fill the cache with a token per request
+    private volatile String basicAuthToken;
     
     // File transfer settings
     private boolean fileTransferEnabled = false;
     private static final String DOWNLOAD_DIR = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).getAbsolutePath();
+    private static final int SEARCH_DEFAULT_LIMIT = 100;
+    private static final int SEARCH_MAX_LIMIT = 10000;
+    // Set on the main thread, read by request threads
+    private volatile FileSearchIndex fileSearchIndex;
+    private final ChunkSync chunkSync = new ChunkSync();
     
     // Screen sharing
     private Handler mainHandler = new Handler(Looper.getMainLooper());
     private byte[] latestScreenCapture = null;
-    private Map<WebSocket, Boolean> screenShareClients = new ConcurrentHashMap<>();
+    private int latestScreenCodec = FrameEncoder.CODEC_JPEG;
+    private Map<WebSocket, ScreenClient> screenShareClients = new ConcurrentHashMap<>();
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private final PointerStream pointerStream = new PointerStream(this::broadcastPointer);
+    
+    // Input is injected on its own high-priority thread; each screen connection
+    // drains its outbound queue on this pool, control messages first
+    private final InputScheduler inputScheduler = new InputScheduler();
+    private final ExecutorService outboundExecutor = Executors.newCachedThreadPool(
+            runnable -> new Thread(runnable, "ScreenSend"));
+    
+    // Audio streaming
+    private static final int MIN_JITTER_TARGET_MS = 2 * AudioStreamer.PACKET_MS;
+    private static final int MAX_JITTER_TARGET_MS = 500;
+    private Map<WebSocket, AudioClientState> audioClients = new ConcurrentHashMap<>();
+    
+    // Session recording
+    private static final long RECORDING_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int RECORDING_MAX_SEGMENTS = 8;
+    private SessionRecorder sessionRecorder;
+    
+    // Input macros
+    private static final String MACRO_CLIENT_ID = "macro";
+    private static final String MACRO_SUFFIX = ".macro";
+    private final MacroRecorder macroRecorder = new MacroRecorder();
+    private MacroPlayer macroPlayer;
+    private File macroDir;
+    
+    // UDP frame transport
+    private final UdpFrameSender udpFrameSender = new UdpFrameSender(UdpFrameSender.DEFAULT_MTU,
+            UdpFrameSender.DEFAULT_GROUP_SIZE);
+    
+    // UI tree streaming. The tree is captured and diffed on a thread of its
+    // own, since a deep hierarchy takes long enough to walk that it would
+    // stall the main looper; at most once per interval however many change
+    // events arrive.
+    private static final long UI_TREE_MIN_INTERVAL_MS = 100;
+    private final Set<WebSocket> uiTreeClients = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final HandlerThread uiTreeThread = new HandlerThread("UiTree");
+    private Handler uiTreeHandler;
+    
+    // Dashboard thumbnails; every preview viewer gets the same bytes
+    private final Set<WebSocket> previewClients = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private volatile byte[] latestPreview = null;
+    
+    // Frame bus subscriptions. Each is only active while something consumes
+    // it, and capture stops when none is. A polled image keeps its topic
+    // active for a while after the last request.
+    private static final long POLL_IDLE_MS = 10000;
+    private FrameBus.Subscription streamSubscription;
+    private FrameBus.Subscription recordingSubscription;
+    private FrameBus.Subscription previewSubscription;
+    private FrameBus.Subscription cameraSubscription;
+    private volatile long screenJpgWantedUntil;
+    private volatile long previewWantedUntil;
+    
+    // Camera feed for inspection devices. The camera is open exactly while
+    // someone watches; viewers get the same messages as screen viewers.
+    private final Map<WebSocket, ScreenClient> cameraClients = new ConcurrentHashMap<>();
+    private CameraCapture cameraCapture;
+    
+    // Wi-Fi and wake locks while clients are connected, tuned sockets
+    private LowLatencyMode lowLatencyMode;
+    
+    // Filtered logcat for remote debugging without a cable
+    private final LogcatTail logcatTail = new LogcatTail();
+    private final Map<WebSocket, LogcatTail.Subscription> logClients = new ConcurrentHashMap<>();
+    
+    // Full-resolution screenshots for bug reports
+    private final SnapshotCache snapshotCache = new SnapshotCache();
+    private final UiTreeTracker uiTree = new UiTreeTracker();
+    private volatile boolean uiTreeUpdatePending = false;
+    private volatile long lastUiTreeUpdate = 0;
+    private final Runnable publishUiTree = () -> {
+        uiTreeUpdatePending = false;
+        byte[] diff = refreshUiTree();
+        if (diff != null) {
+            for (WebSocket socket : uiTreeClients) {
+                sendUiTree(socket, diff);
+            }
+        }
+    };
 
     @Override
     public void onCreate() {
         super.onCreate();
         phoneController = new PhoneController(this);
+        sessionRecorder = new SessionRecorder(new File(getFilesDir(), "recordings"),
+                RECORDING_SEGMENT_BYTES, RECORDING_MAX_SEGMENTS);
+        macroDir = new File(getFilesDir(), "macros");
+        macroPlayer = new MacroPlayer((command, value) -> {
+            RemoteServer current = server;
+            return current != null && current.executeCommand(command, value, MACRO_CLIENT_ID, System.nanoTime(), 0, 0);
+        });
         startForeground();
+        uiTreeThread.start();
+        uiTreeHandler = new Handler(uiTreeThread.getLooper());
+        RemoteAccessibilityService.setUiChangeListener(this::scheduleUiTreeUpdate);
+        // Replay checkpoints wait for the screen content to change
+        ScreenCaptureService.setRawFrameObserver(macroPlayer::onRawFrame);
+        ScreenCaptureService.loadConfig(this);
         
-        // Register as listener for screen captures
-        if (ScreenCaptureService.getInstance() != null) {
-            ScreenCaptureService.getInstance().setOnScreenCaptureListener(this);
-        }
+        // The bus outlives both services, so it doesn't matter which starts first
+        streamSubscription = FrameBus.screen().subscribe("stream", FrameBus.POLICY_LATEST_ONLY,
+                mainHandler::post, this::onStreamFrame);
+        // Only enqueues; the recorder drops frames rather than block the stream
+        recordingSubscription = FrameBus.screen().subscribe("recording", FrameBus.POLICY_EVERY_FRAME,
+                Runnable::run, shared -> {
+                    sessionRecorder.recordFrame(shared.frame.data, shared.frame.captureNanos);
+                    shared.release();
+                });
+        previewSubscription = FrameBus.preview().subscribe("preview", FrameBus.POLICY_LATEST_ONLY,
+                mainHandler::post, this::onPreviewFrame);
+        cameraCapture = new CameraCapture(this);
+        lowLatencyMode = new LowLatencyMode(this, true);
+        cameraSubscription = FrameBus.camera().subscribe("camera", FrameBus.POLICY_LATEST_ONLY,
+                mainHandler::post, this::onCameraFrame);
+        updateFrameDemand();
     }
 
     @Override
@@ -77,11 +212,21 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                 password = intent.getStringExtra("password");
                 Log.d(TAG, "Authentication enabled with username: " + username);
             }
+            // Credentials may have changed, so previously issued sessions are void
+            sessionTokens.clear();
+            basicAuthToken = null;
+            
+            lowLatencyMode.setEnabled(intent.getBooleanExtra("lowLatency", true));
             
             // Get file transfer settings
             fileTransferEnabled = intent.getBooleanExtra("enableFileTransfer", false);
             if (fileTransferEnabled) {
                 Log.d(TAG, "File transfer enabled");
+                if (fileSearchIndex == null) {
+                    fileSearchIndex = new FileSearchIndex(new File(DOWNLOAD_DIR),
+                            new File(getFilesDir(), "file_search.idx"), true);
+                    fileSearchIndex.start();
+                }
             }
         }
         
@@ -96,10 +241,38 @@ public class RemoteServerService extends Service implements ScreenCaptureService
 
     @Override
     public void onDestroy() {
-        // Unregister as listener for screen captures
-        if (ScreenCaptureService.getInstance() != null) {
-            ScreenCaptureService.getInstance().setOnScreenCaptureListener(null);
+        // Stop taking frames
+        streamSubscription.close();
+        recordingSubscription.close();
+        previewSubscription.close();
+        cameraSubscription.close();
+        for (WebSocket socket : cameraClients.keySet()) {
+            try {
+                socket.close(WebSocketFrame.CloseCode.NormalClosure, "Service shutting down", false);
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing WebSocket", e);
+            }
+        }
+        cameraClients.clear();
+        cameraCapture.stop();
+        lowLatencyMode.release();
+        for (WebSocket socket : logClients.keySet()) {
+            try {
+                socket.close(WebSocketFrame.CloseCode.NormalClosure, "Service shutting down", false);
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing WebSocket", e);
+            }
         }
+        logClients.clear();
+        logcatTail.shutdown();
+        for (WebSocket socket : previewClients) {
+            try {
+                socket.close(WebSocketFrame.CloseCode.NormalClosure, "Service shutting down", false);
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing WebSocket", e);
+            }
+        }
+        previewClients.clear();
         
         // Close all active WebSocket connections
         for (WebSocket socket : screenShareClients.keySet()) {
@@ -111,6 +284,44 @@ public class RemoteServerService extends Service implements ScreenCaptureService
         }
         screenShareClients.clear();
         
+        if (ScreenCaptureService.getInstance() != null) {
+            ScreenCaptureService.getInstance().stopAudioStream();
+        }
+        for (WebSocket socket : audioClients.keySet()) {
+            try {
+                socket.close(WebSocketFrame.CloseCode.NormalClosure, "Service shutting down", false);
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing WebSocket", e);
+            }
+        }
+        audioClients.clear();
+        
+        RemoteAccessibilityService.setUiChangeListener(null);
+        ScreenCaptureService.setRawFrameObserver(null);
+        uiTreeHandler.removeCallbacks(publishUiTree);
+        uiTreeThread.quitSafely();
+        for (WebSocket socket : uiTreeClients) {
+            try {
+                socket.close(WebSocketFrame.CloseCode.NormalClosure, "Service shutting down", false);
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing WebSocket", e);
+            }
+        }
+        uiTreeClients.clear();
+        sessionTokens.clear();
+        sessionRecorder.stop();
+        macroPlayer.stop();
+        pointerStream.stop();
+        inputScheduler.shutdown();
+        outboundExecutor.shutdownNow();
+        udpFrameSender.stop();
+        FileSearchIndex searchIndex = fileSearchIndex;
+        fileSearchIndex = null;
+        if (searchIndex != null) {
+            searchIndex.stop();
+        }
+        chunkSync.close();
+        
         stopServer();
         super.onDestroy();
     }
@@ -127,29 +338,305 @@ public class RemoteServerService extends Service implements ScreenCaptureService
         }
     }
     
-    @Override
-    public void onScreenCaptureAvailable(byte[] jpegData) {
+    // A /screen viewer. Clients that connect with ?v=1 receive everything as
+    // Envelopes on this one socket and may send input over it; other clients get
+    // a JSON metadata message followed by the raw JPEG.
+    private static class ScreenClient {
+        final String id;
+        final boolean framed;
+        final AtomicLong outboundSequence = new AtomicLong();
+        OutboundQueue outbound;
+        
+        ScreenClient(String id, boolean framed) {
+            this.id = id;
+            this.framed = framed;
+        }
+    }
+    
+    // Main thread
+    private void onStreamFrame(SharedFrame shared) {
+        CapturedFrame frame = shared.frame;
+        byte[] imageData = frame.data;
+        lowLatencyMode.onFrameSize(imageData.length);
+        latencyTracker.onFrameDelivered(frame);
+        
         // Store the latest screen capture data
-        this.latestScreenCapture = jpegData;
+        this.latestScreenCodec = frame.codec;
+        this.latestScreenCapture = imageData;
         
-        // Send the screen capture to all connected WebSocket clients
-        for (WebSocket socket : screenShareClients.keySet()) {
+        // Hands off to the UDP send thread, which keeps only the newest frame
+        udpFrameSender.sendFrame(frame);
+        
+        // Queue the screen capture for all connected WebSocket clients. Both message
+        // forms are built at most once per frame and shared by every viewer; a
+        // frame still queued for a slow viewer is replaced by this one.
+        byte[] framed = null;
+        String meta = null;
+        byte[] legacyImage = null;
+        for (Map.Entry<WebSocket, ScreenClient> entry : screenShareClients.entrySet()) {
+            WebSocket socket = entry.getKey();
+            ScreenClient client = entry.getValue();
+            if (!socket.isOpen()) {
+                continue;
+            }
+            if (client.framed) {
+                if (framed == null) {
+                    framed = Envelope.encode(Envelope.TYPE_FRAME, Envelope.CHANNEL_VIDEO,
+                            Envelope.FLAG_KEYFRAME | Envelope.codecFlags(frame.codec),
+                            frame.sequence, frame.captureNanos / 1000, imageData);
+                }
+                client.outbound.sendFrame(frame, framed);
+            } else {
+                // Legacy viewers: metadata first so the client can echo timings back
+                if (meta == null) {
+                    meta = "{\"type\":\"frame\",\"seq\":" + frame.sequence +
+                            ",\"codec\":\"" + FrameEncoderRegistry.codecName(legacyCodec(frame.codec)) + "\"" +
+                            ",\"encodeUs\":" + frame.getEncodeMicros() +
+                            ",\"queueUs\":" + frame.getQueueMicros() + "}";
+                }
+                // Only the frames encoded before strips were switched off need stitching
+                if (legacyImage == null) {
+                    legacyImage = singleImage(imageData);
+                }
+                client.outbound.sendFrame(frame, meta, legacyImage);
+            }
+        }
+        // The bytes stay referenced as latestScreenCapture; they are never reused
+        shared.release();
+        // Lapsed UDP leases, finished macros and idle polling end here
+        updateFrameDemand();
+    }
+
+    // Pointer messages go to every framed viewer so observers see the cursor too;
+    // only the client whose input caused them gets the input sequence back
+    private void broadcastPointer(byte[] payload, String originId, long inputSequence) {
+        byte[] anonymous = null;
+        for (Map.Entry<WebSocket, ScreenClient> entry : screenShareClients.entrySet()) {
+            ScreenClient client = entry.getValue();
+            WebSocket socket = entry.getKey();
+            if (!client.framed || !socket.isOpen()) {
+                continue;
+            }
+            byte[] body = payload;
+            if (inputSequence != 0 && !client.id.equals(originId)) {
+                if (anonymous == null) {
+                    anonymous = Arrays.copyOf(payload, payload.length);
+                    ByteBuffer.wrap(anonymous).putInt(PointerStream.PAYLOAD_SIZE - 4, 0);
+                }
+                body = anonymous;
+            }
+            client.outbound.sendControl(Envelope.encode(Envelope.TYPE_POINTER, Envelope.CHANNEL_POINTER, 0,
+                    client.outboundSequence.incrementAndGet(), System.nanoTime() / 1000, body));
+        }
+    }
+
+    // Main thread
+    private void onPreviewFrame(SharedFrame shared) {
+        byte[] jpeg = shared.frame.data;
+        shared.release();
+        latestPreview = jpeg;
+        for (WebSocket socket : previewClients) {
             try {
                 if (socket.isOpen()) {
-                    socket.send(jpegData);
+                    socket.send(jpeg);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending preview", e);
+                removePreviewClient(socket);
+            }
+        }
+        updateFrameDemand();
+    }
+    
+    // Main thread
+    private void onCameraFrame(SharedFrame shared) {
+        CapturedFrame frame = shared.frame;
+        shared.release();
+        lowLatencyMode.onFrameSize(frame.data.length);
+        byte[] framed = null;
+        for (Map.Entry<WebSocket, ScreenClient> entry : cameraClients.entrySet()) {
+            ScreenClient client = entry.getValue();
+            if (!entry.getKey().isOpen()) {
+                continue;
+            }
+            if (client.framed) {
+                if (framed == null) {
+                    framed = Envelope.encode(Envelope.TYPE_FRAME, Envelope.CHANNEL_VIDEO,
+                            Envelope.FLAG_KEYFRAME | Envelope.codecFlags(frame.codec),
+                            frame.sequence, frame.captureNanos / 1000, frame.data);
+                }
+                client.outbound.sendFrame(frame, framed);
+            } else {
+                client.outbound.sendFrame(frame, frame.data);
+            }
+        }
+    }
+    
+    private void removeCameraClient(WebSocket socket) {
+        // Under the capture's lock so a viewer connecting meanwhile can't be left without a camera
+        synchronized (cameraCapture) {
+            cameraClients.remove(socket);
+            if (cameraClients.isEmpty()) {
+                cameraCapture.stop();
+            }
+        }
+        updateFrameDemand();
+    }
+    
+    private void removePreviewClient(WebSocket socket) {
+        previewClients.remove(socket);
+        updateFrameDemand();
+    }
+    
+    // Turns each bus subscription on or off to match what currently consumes it
+    private void updateFrameDemand() {
+        long now = System.currentTimeMillis();
+        streamSubscription.setActive(!screenShareClients.isEmpty() || udpFrameSender.hasSubscribers()
+                || macroPlayer.isPlaying() || now < screenJpgWantedUntil);
+        recordingSubscription.setActive(sessionRecorder.isRecording());
+        previewSubscription.setActive(!previewClients.isEmpty() || now < previewWantedUntil);
+        cameraSubscription.setActive(!cameraClients.isEmpty());
+        updateLowLatencyLocks();
+    }
+    
+    private void updateLowLatencyLocks() {
+        lowLatencyMode.setClientsConnected(!screenShareClients.isEmpty() || !cameraClients.isEmpty()
+                || !audioClients.isEmpty() || !previewClients.isEmpty() || udpFrameSender.hasSubscribers());
+    }
+
+    // Called on the main thread for every accessibility change event
+    private void scheduleUiTreeUpdate() {
+        if (uiTreeClients.isEmpty() || uiTreeUpdatePending) {
+            return;
+        }
+        uiTreeUpdatePending = true;
+        long delay = Math.max(0, lastUiTreeUpdate + UI_TREE_MIN_INTERVAL_MS - SystemClock.uptimeMillis());
+        uiTreeHandler.postDelayed(publishUiTree, delay);
+    }
+    
+    // UI tree thread only. Returns the diff against the previous capture, or null.
+    private byte[] refreshUiTree() {
+        lastUiTreeUpdate = SystemClock.uptimeMillis();
+        RemoteAccessibilityService service = RemoteAccessibilityService.getInstance();
+        if (service == null) {
+            return null;
+        }
+        return uiTree.update(service.captureUiTree());
+    }
+    
+    private void sendUiTree(WebSocket socket, byte[] message) {
+        try {
+            if (socket.isOpen()) {
+                socket.send(message);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending UI tree", e);
+            uiTreeClients.remove(socket);
+        }
+    }
+
+    // Legacy viewers display the frame bytes as one image, so strip encoding is
+    // only used while every viewer understands strip containers
+    private void updateStripEncoding() {
+        ScreenCaptureService captureService = ScreenCaptureService.getInstance();
+        if (captureService == null) {
+            return;
+        }
+        boolean legacyViewers = false;
+        for (ScreenClient client : screenShareClients.values()) {
+            if (!client.framed) {
+                legacyViewers = true;
+                break;
+            }
+        }
+        captureService.setStripEncodingEnabled(!legacyViewers);
+    }
+    
+    private String outboundStatsJson() {
+        long framesReplaced = 0;
+        long controlDropped = 0;
+        for (ScreenClient client : screenShareClients.values()) {
+            framesReplaced += client.outbound.getFramesReplaced();
+            controlDropped += client.outbound.getControlDropped();
+        }
+        return "{\"framesReplaced\":" + framesReplaced +
+                ",\"controlDropped\":" + controlDropped +
+                ",\"inputPending\":" + InputScheduler.isInputPending() + "}";
+    }
+    
+    private static int legacyCodec(int codec) {
+        return codec == FrameEncoder.CODEC_STRIPS ? FrameEncoder.CODEC_JPEG : codec;
+    }
+    
+    // Strip containers are stitched into one JPEG for consumers that need a single image
+    private static byte[] singleImage(byte[] data) {
+        if (StripFrame.isStripFrame(data)) {
+            byte[] jpeg = StripFrame.toJpeg(data, 90);
+            if (jpeg != null) {
+                return jpeg;
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public void onAudioPacket(byte[] packet, long timestampNanos) {
+        // Runs on the audio encoder thread, never on the handler that delivers frames
+        for (Map.Entry<WebSocket, AudioClientState> entry : audioClients.entrySet()) {
+            WebSocket socket = entry.getKey();
+            AudioClientState state = entry.getValue();
+            try {
+                if (!socket.isOpen()) {
+                    continue;
+                }
+                socket.send(packet);
+                int hint = state.onPacketSent(timestampNanos, System.nanoTime());
+                if (hint > 0) {
+                    socket.send("{\"type\":\"jitter\",\"targetMs\":" + hint + "}");
                 }
             } catch (Exception e) {
-                Log.e(TAG, "Error sending screen capture over WebSocket", e);
-                // Close problematic connections
+                Log.e(TAG, "Error sending audio over WebSocket", e);
+                audioClients.remove(socket);
+                updateLowLatencyLocks();
                 try {
                     socket.close(WebSocketFrame.CloseCode.AbnormalClosure, "Error sending data", false);
-                    screenShareClients.remove(socket);
                 } catch (Exception closeError) {
                     Log.e(TAG, "Error closing WebSocket", closeError);
                 }
             }
         }
     }
+    
+    // Tracks how irregularly packets leave for one client (RFC 3550 style
+    // interarrival jitter) and derives the playout buffer the client should keep
+    private static class AudioClientState {
+        private long lastTimestampNanos;
+        private long lastSentNanos;
+        private double jitterNanos;
+        private int lastHintMs;
+        private long lastHintSentNanos;
+        
+        // Returns a new hint in milliseconds, or 0 if the previous one still holds
+        synchronized int onPacketSent(long timestampNanos, long sentNanos) {
+            if (lastSentNanos != 0) {
+                long transitDelta = (sentNanos - lastSentNanos) - (timestampNanos - lastTimestampNanos);
+                jitterNanos += (Math.abs(transitDelta) - jitterNanos) / 16.0;
+            }
+            lastTimestampNanos = timestampNanos;
+            lastSentNanos = sentNanos;
+            
+            int hint = (int) Math.min(MAX_JITTER_TARGET_MS,
+                    Math.max(MIN_JITTER_TARGET_MS, MIN_JITTER_TARGET_MS + 3 * jitterNanos / 1_000_000));
+            boolean changed = Math.abs(hint - lastHintMs) >= 10;
+            boolean stale = sentNanos - lastHintSentNanos > 2_000_000_000L;
+            if (changed || stale) {
+                lastHintMs = hint;
+                lastHintSentNanos = sentNanos;
+                return hint;
+            }
+            return 0;
+        }
+    }
 
     private void stopServer() {
         if (server != null) {
@@ -177,11 +664,24 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                 .setSmallIcon(R.drawable.ic_notification)
                 .build();
 
-        startForeground(NOTIFICATION_ID, notification);
+        // Android 11+ only lets a background service use the camera with the camera type
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_CAMERA);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
     }
 
     private class RemoteServer extends NanoHTTPD {
         private WebSocketResponseHandler webSocketHandler;
+        private final AtomicLong nextConnectionId = new AtomicLong();
+        
+        // Every connection, WebSockets included, starts out as an accepted socket
+        @Override
+        protected ClientHandler createClientHandler(Socket finalAccept, InputStream inputStream) {
+            lowLatencyMode.tuneSocket(finalAccept);
+            return super.createClientHandler(finalAccept, inputStream);
+        }
         
         public RemoteServer() {
             super(8080);
@@ -190,7 +690,7 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                 @Override
                 public WebSocket openWebSocket(IHTTPSession handshake) {
                     // Check authentication if enabled
-                    if (authEnabled) {
+                    if (authEnabled && !hasValidSession(handshake)) {
                         String auth = handshake.getHeaders().get("authorization");
                         if (auth == null || !validateBasicAuth(auth)) {
                             return null; // Reject connection if auth fails
@@ -199,7 +699,31 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                     
                     // Create a new WebSocket for screen sharing
                     if ("/screen".equals(handshake.getUri())) {
-                        return createScreenShareWebSocket();
+                        boolean framed = String.valueOf(Envelope.VERSION).equals(handshake.getParms().get("v"));
+                        return createScreenShareWebSocket(new ScreenClient(connectionId(handshake), framed));
+                    }
+                    
+                    if ("/audio".equals(handshake.getUri())) {
+                        return createAudioWebSocket();
+                    }
+                    
+                    if ("/uitree".equals(handshake.getUri())) {
+                        return createUiTreeWebSocket();
+                    }
+                    
+                    if ("/preview".equals(handshake.getUri())) {
+                        return createPreviewWebSocket();
+                    }
+                    
+                    if ("/logs".equals(handshake.getUri())) {
+                        return createLogsWebSocket(handshake.getParms());
+                    }
+                    
+                    if ("/camera".equals(handshake.getUri())) {
+                        boolean framed = String.valueOf(Envelope.VERSION).equals(handshake.getParms().get("v"));
+                        String facing = handshake.getParms().get("facing");
+                        return createCameraWebSocket(new ScreenClient(connectionId(handshake), framed),
+                                facing != null ? facing : CameraFrameSource.FACING_BACK);
                     }
                     
                     return null; // Reject other WebSocket connections
@@ -207,19 +731,26 @@ public class RemoteServerService extends Service implements ScreenCaptureService
             };
         }
         
-        private WebSocket createScreenShareWebSocket() {
-            return new WebSocket() {
+        private WebSocket createScreenShareWebSocket(final ScreenClient client) {
+            final String clientId = client.id;
+            final WebSocket screenSocket = new WebSocket() {
                 @Override
                 public void onOpen() {
                     Log.d(TAG, "WebSocket connection opened for screen sharing");
-                    screenShareClients.put(this, true);
+                    screenShareClients.put(this, client);
+                    updateStripEncoding();
+                    updateFrameDemand();
                     
                     // Send the latest screen capture immediately if available
-                    if (latestScreenCapture != null) {
-                        try {
-                            this.send(latestScreenCapture);
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error sending initial screen capture", e);
+                    int latestCodec = latestScreenCodec;
+                    byte[] latest = latestScreenCapture;
+                    if (latest != null) {
+                        if (client.framed) {
+                            client.outbound.sendFrame(null, Envelope.encode(Envelope.TYPE_FRAME, Envelope.CHANNEL_VIDEO,
+                                    Envelope.FLAG_KEYFRAME | Envelope.codecFlags(latestCodec), 0,
+                                    System.nanoTime() / 1000, latest));
+                        } else {
+                            client.outbound.sendFrame(null, singleImage(latest));
                         }
                     }
                 }
@@ -228,12 +759,32 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                 public void onClose(WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
                     Log.d(TAG, "WebSocket connection closed: " + reason);
                     screenShareClients.remove(this);
+                    latencyTracker.removeClient(clientId);
+                    updateStripEncoding();
+                    updateFrameDemand();
                 }
                 
                 @Override
                 public void onMessage(WebSocketFrame message) {
-                    // We don't expect any messages from client, but could implement commands here
-                    Log.d(TAG, "Received WebSocket message: " + message.getTextPayload());
+                    long arrivalNanos = System.nanoTime();
+                    if (message.getOpCode() == WebSocketFrame.OpCode.Binary) {
+                        handleEnvelope(client, message.getBinaryPayload(), arrivalNanos);
+                        return;
+                    }
+                    
+                    String text = message.getTextPayload();
+                    try {
+                        JSONObject json = new JSONObject(text);
+                        if ("echo".equals(json.optString("type"))) {
+                            lowLatencyMode.recordNetworkNanos(latencyTracker.onFrameEcho(clientId,
+                                    json.getLong("seq"), json.getDouble("recvMs"),
+                                    json.optDouble("decodeMs", 0), json.optDouble("paintMs", 0), arrivalNanos));
+                            return;
+                        }
+                    } catch (JSONException e) {
+                        // Not a latency echo
+                    }
+                    EventLog.log(EventLog.CATEGORY_WEBSOCKET, EventLog.LEVEL_DEBUG, "message", text, text.length(), 0);
                 }
                 
                 @Override
@@ -245,8 +796,405 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                 public void onException(IOException exception) {
                     Log.e(TAG, "WebSocket error", exception);
                     screenShareClients.remove(this);
+                    latencyTracker.removeClient(clientId);
+                    updateStripEncoding();
+                    updateFrameDemand();
+                }
+            };
+            client.outbound = new OutboundQueue(screenSocket, outboundExecutor, new OutboundQueue.Callback() {
+                @Override
+                public void onFrameSent(CapturedFrame frame, long sendStartNanos, long sendEndNanos) {
+                    if (frame != null) {
+                        latencyTracker.onFrameSent(clientId, frame, sendStartNanos, sendEndNanos);
+                    }
+                }
+                
+                @Override
+                public void onSendFailed(IOException e) {
+                    Log.e(TAG, "Error sending to " + clientId, e);
+                    // Close problematic connections
+                    try {
+                        screenSocket.close(WebSocketFrame.CloseCode.AbnormalClosure, "Error sending data", false);
+                    } catch (Exception closeError) {
+                        Log.e(TAG, "Error closing WebSocket", closeError);
+                    }
+                    screenShareClients.remove(screenSocket);
+                    latencyTracker.removeClient(clientId);
+                    updateStripEncoding();
+                    updateFrameDemand();
+                }
+            });
+            return screenSocket;
+        }
+
+        private void handleEnvelope(final ScreenClient client, byte[] data, final long arrivalNanos) {
+            Envelope envelope;
+            try {
+                envelope = Envelope.decode(data);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Dropping malformed envelope", e);
+                return;
+            }
+            
+            switch (envelope.type) {
+                case Envelope.TYPE_INPUT: {
+                    // Payload: command, NUL, value (UTF-8); timestamp is the client's clock
+                    String text = envelope.payloadText();
+                    int separator = text.indexOf('\0');
+                    final String command = separator >= 0 ? text.substring(0, separator) : text;
+                    final String value = separator >= 0 && separator + 1 < text.length()
+                            ? text.substring(separator + 1) : null;
+                    final Envelope input = envelope;
+                    
+                    // Injected off the socket thread; the ack jumps ahead of any queued frame
+                    inputScheduler.submit(() -> {
+                        boolean success;
+                        try {
+                            success = executeCommand(command, value, client.id, arrivalNanos,
+                                    input.timestampMicros / 1000.0, input.sequence);
+                        } catch (IllegalArgumentException e) {
+                            success = false;
+                        }
+                        client.outbound.sendControl(Envelope.encode(Envelope.TYPE_ACK, Envelope.CHANNEL_INPUT,
+                                success ? Envelope.FLAG_SUCCESS : 0, input.sequence, System.nanoTime() / 1000, new byte[0]));
+                    });
+                    break;
+                }
+                case Envelope.TYPE_ACK:
+                    if (envelope.channel == Envelope.CHANNEL_VIDEO && envelope.payloadLength >= 16) {
+                        // Frame ack: client receive time (f64 ms), decode and paint time (f32 ms)
+                        ByteBuffer payload = envelope.payload();
+                        double receivedMillis = payload.getDouble();
+                        double decodeMillis = payload.getFloat();
+                        double paintMillis = payload.getFloat();
+                        lowLatencyMode.recordNetworkNanos(latencyTracker.onFrameEcho(client.id,
+                                envelope.sequence, receivedMillis, decodeMillis, paintMillis, arrivalNanos));
+                    }
+                    break;
+                case Envelope.TYPE_CONTROL:
+                    if ("ping".equals(envelope.payloadText())) {
+                        client.outbound.sendControl(Envelope.encodeText(Envelope.TYPE_CONTROL, Envelope.CHANNEL_CONTROL,
+                                0, client.outboundSequence.incrementAndGet(), System.nanoTime() / 1000, "pong"));
+                    }
+                    break;
+                default:
+                    // Unknown types are ignored so newer clients stay compatible
+                    break;
+            }
+        }
+        
+        private WebSocket createAudioWebSocket() {
+            return new WebSocket() {
+                @Override
+                public void onOpen() {
+                    Log.d(TAG, "WebSocket connection opened for audio");
+                    audioClients.put(this, new AudioClientState());
+                    updateLowLatencyLocks();
+                    
+                    ScreenCaptureService captureService = ScreenCaptureService.getInstance();
+                    if (captureService == null || !captureService.startAudioStream(RemoteServerService.this)) {
+                        audioClients.remove(this);
+                        updateLowLatencyLocks();
+                        try {
+                            this.close(WebSocketFrame.CloseCode.PolicyViolation, "Audio capture unavailable", false);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error closing WebSocket", e);
+                        }
+                    }
+                }
+                
+                @Override
+                public void onClose(WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+                    Log.d(TAG, "Audio WebSocket closed: " + reason);
+                    removeAudioClient(this);
+                }
+                
+                @Override
+                public void onMessage(WebSocketFrame message) {
+                    // Audio is one-way
+                }
+                
+                @Override
+                public void onPong(WebSocketFrame pong) {
+                    // Keep connection alive
+                }
+                
+                @Override
+                public void onException(IOException exception) {
+                    Log.e(TAG, "Audio WebSocket error", exception);
+                    removeAudioClient(this);
+                }
+            };
+        }
+        
+        private WebSocket createUiTreeWebSocket() {
+            return new WebSocket() {
+                @Override
+                public void onOpen() {
+                    Log.d(TAG, "WebSocket connection opened for UI tree");
+                    if (RemoteAccessibilityService.getInstance() == null) {
+                        try {
+                            this.close(WebSocketFrame.CloseCode.PolicyViolation, "Accessibility service not enabled", false);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error closing WebSocket", e);
+                        }
+                        return;
+                    }
+                    
+                    // Bring existing clients up to date first, so the snapshot and
+                    // every later diff line up for the new one
+                    final WebSocket socket = this;
+                    uiTreeHandler.post(() -> {
+                        publishUiTree.run();
+                        sendUiTree(socket, uiTree.snapshot());
+                        uiTreeClients.add(socket);
+                    });
+                }
+                
+                @Override
+                public void onClose(WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+                    Log.d(TAG, "UI tree WebSocket closed: " + reason);
+                    removeUiTreeClient(this);
+                }
+                
+                @Override
+                public void onMessage(WebSocketFrame message) {
+                    // Clicks go through the click_node command
+                }
+                
+                @Override
+                public void onPong(WebSocketFrame pong) {
+                    // Keep connection alive
+                }
+                
+                @Override
+                public void onException(IOException exception) {
+                    Log.e(TAG, "UI tree WebSocket error", exception);
+                    removeUiTreeClient(this);
+                }
+            };
+        }
+        
+        // Sends each thumbnail as a binary JPEG message, starting with the latest one
+        private WebSocket createPreviewWebSocket() {
+            return new WebSocket() {
+                @Override
+                public void onOpen() {
+                    previewClients.add(this);
+                    updateFrameDemand();
+                    byte[] latest = latestPreview;
+                    if (latest != null) {
+                        try {
+                            this.send(latest);
+                        } catch (IOException e) {
+                            Log.e(TAG, "Error sending initial preview", e);
+                        }
+                    }
+                }
+                
+                @Override
+                public void onClose(WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+                    removePreviewClient(this);
+                }
+                
+                @Override
+                public void onMessage(WebSocketFrame message) {
+                    // Viewers only receive
+                }
+                
+                @Override
+                public void onPong(WebSocketFrame pong) {
+                    // Keep connection alive
+                }
+                
+                @Override
+                public void onException(IOException exception) {
+                    Log.e(TAG, "Preview WebSocket error", exception);
+                    removePreviewClient(this);
+                }
+            };
+        }
+        
+        // Streams the camera while open. Framed viewers (?v=) get FRAME envelopes,
+        // others the bare JPEG. facing=front|back only applies to the first viewer.
+        private WebSocket createCameraWebSocket(final ScreenClient client, final String facing) {
+            final WebSocket cameraSocket = new WebSocket() {
+                @Override
+                public void onOpen() {
+                    boolean started;
+                    synchronized (cameraCapture) {
+                        cameraClients.put(this, client);
+                        started = cameraCapture.start(facing);
+                    }
+                    if (!started) {
+                        try {
+                            this.close(WebSocketFrame.CloseCode.InternalServerError, "Camera unavailable", false);
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error closing WebSocket", e);
+                        }
+                        removeCameraClient(this);
+                        return;
+                    }
+                    updateFrameDemand();
+                }
+                
+                @Override
+                public void onClose(WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+                    removeCameraClient(this);
+                }
+                
+                @Override
+                public void onMessage(WebSocketFrame message) {
+                    // Viewers only receive
+                }
+                
+                @Override
+                public void onPong(WebSocketFrame pong) {
+                    // Keep connection alive
+                }
+                
+                @Override
+                public void onException(IOException exception) {
+                    Log.e(TAG, "Camera WebSocket error", exception);
+                    removeCameraClient(this);
                 }
             };
+            client.outbound = new OutboundQueue(cameraSocket, outboundExecutor, new OutboundQueue.Callback() {
+                @Override
+                public void onFrameSent(CapturedFrame frame, long sendStartNanos, long sendEndNanos) {
+                    // Camera frames aren't part of the screen latency figures
+                }
+                
+                @Override
+                public void onSendFailed(IOException e) {
+                    Log.e(TAG, "Error sending camera frame to " + client.id, e);
+                    try {
+                        cameraSocket.close(WebSocketFrame.CloseCode.AbnormalClosure, "Error sending data", false);
+                    } catch (Exception closeError) {
+                        Log.e(TAG, "Error closing WebSocket", closeError);
+                    }
+                    removeCameraClient(cameraSocket);
+                }
+            });
+            return cameraSocket;
+        }
+        
+        // Streams logcat lines matching tag=A,B, level=V|D|I|W|E|F and grep=<regex>,
+        // after up to history=N matching lines from before. Sending
+        // {"type":"filter","tag":..,"level":..,"grep":..} replaces the filter.
+        private WebSocket createLogsWebSocket(final Map<String, String> parms) {
+            return new WebSocket() {
+                @Override
+                public void onOpen() {
+                    LogcatTail.LogFilter filter;
+                    int history = LogcatTail.DEFAULT_HISTORY;
+                    try {
+                        filter = LogcatTail.LogFilter.parse(parms.get("tag"), parms.get("level"), parms.get("grep"));
+                        if (parms.get("history") != null) {
+                            history = Math.max(0, Integer.parseInt(parms.get("history")));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        closeLogs(this, WebSocketFrame.CloseCode.PolicyViolation, e.getMessage());
+                        return;
+                    }
+                    final WebSocket socket = this;
+                    LogcatTail.Subscription subscription = logcatTail.subscribe(filter, history, new LogcatTail.Sink() {
+                        @Override
+                        public void send(String message) throws IOException {
+                            if (socket.isOpen()) {
+                                socket.send(message);
+                            }
+                        }
+                        
+                        @Override
+                        public void onSendFailed(IOException e) {
+                            Log.e(TAG, "Error sending logs", e);
+                            closeLogs(socket, WebSocketFrame.CloseCode.AbnormalClosure, "Error sending data");
+                        }
+
+                        @Override
+                        public void onUnavailable(IOException e) {
+                            closeLogs(socket, WebSocketFrame.CloseCode.InternalServerError, "logcat unavailable");
+                        }
+                    }, outboundExecutor);
+                    logClients.put(this, subscription);
+                    if (!this.isOpen()) {
+                        removeLogClient(this); // Closed while subscribing
+                    }
+                }
+                
+                @Override
+                public void onClose(WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+                    removeLogClient(this);
+                }
+                
+                @Override
+                public void onMessage(WebSocketFrame message) {
+                    LogcatTail.Subscription subscription = logClients.get(this);
+                    if (subscription == null) {
+                        return;
+                    }
+                    try {
+                        JSONObject json = new JSONObject(message.getTextPayload());
+                        if ("filter".equals(json.optString("type"))) {
+                            subscription.setFilter(LogcatTail.LogFilter.parse(json.optString("tag", null),
+                                    json.optString("level", null), json.optString("grep", null)));
+                        }
+                    } catch (JSONException | IllegalArgumentException e) {
+                        try {
+                            this.send("{\"type\":\"error\",\"message\":" + JSONObject.quote(String.valueOf(e.getMessage())) + "}");
+                        } catch (IOException sendError) {
+                            Log.e(TAG, "Error sending logs error", sendError);
+                        }
+                    }
+                }
+                
+                @Override
+                public void onPong(WebSocketFrame pong) {
+                    // Keep connection alive
+                }
+                
+                @Override
+                public void onException(IOException exception) {
+                    Log.e(TAG, "Logs WebSocket error", exception);
+                    removeLogClient(this);
+                }
+            };
+        }
+        
+        private void closeLogs(WebSocket socket, WebSocketFrame.CloseCode code, String reason) {
+            try {
+                socket.close(code, reason, false);
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing WebSocket", e);
+            }
+            removeLogClient(socket);
+        }
+        
+        private void removeLogClient(WebSocket socket) {
+            LogcatTail.Subscription subscription = logClients.remove(socket);
+            if (subscription != null) {
+                subscription.close();
+            }
+        }
+        
+        private void removeUiTreeClient(WebSocket socket) {
+            uiTreeClients.remove(socket);
+            uiTreeHandler.post(() -> {
+                // Forget node ids once nobody is watching
+                if (uiTreeClients.isEmpty()) {
+                    uiTree.reset();
+                }
+            });
+        }
+        
+        private void removeAudioClient(WebSocket socket) {
+            audioClients.remove(socket);
+            updateLowLatencyLocks();
+            // Stop capturing once nobody is listening
+            if (audioClients.isEmpty() && ScreenCaptureService.getInstance() != null) {
+                ScreenCaptureService.getInstance().stopAudioStream();
+            }
         }
 
         @Override
@@ -262,18 +1210,36 @@ public class RemoteServerService extends Service implements ScreenCaptureService
             Map<String, String> params = session.getParms();
             Method method = session.getMethod();
             
-            Log.d(TAG, "Received " + method + " request: " + uri);
+            EventLog.log(EventLog.CATEGORY_HTTP, EventLog.LEVEL_DEBUG, method.name(), uri);
             
-            // Check authentication if enabled
-            if (authEnabled) {
+            if (method == Method.POST && uri.equals("/api/login")) {
+                return handleLogin(session, params);
+            }
+            if (method == Method.POST && uri.equals("/api/logout")) {
+                return handleLogout(session);
+            }
+            
+            // Check authentication if enabled. A valid session token is a single
+            // map lookup; Basic credentials are only decoded when no session exists.
+            String issuedToken = null;
+            if (authEnabled && !hasValidSession(session)) {
                 String auth = session.getHeaders().get("authorization");
                 if (auth == null || !validateBasicAuth(auth)) {
                     Response response = newFixedLengthResponse(Response.Status.UNAUTHORIZED, MIME_PLAINTEXT, "Unauthorized");
                     response.addHeader("WWW-Authenticate", "Basic realm=\"Phone Remote Control\"");
                     return response;
                 }
+                issuedToken = basicAuthSessionToken();
             }
             
+            Response response = route(session, uri, method, params);
+            if (issuedToken != null) {
+                response.addHeader("Set-Cookie", sessionCookie(issuedToken));
+            }
+            return response;
+        }
+        
+        private Response route(IHTTPSession session, String uri, Method method, Map<String, String> params) {
             // Serve files and handle API requests
             if (method == Method.GET) {
                 if (uri.equals("/")) {
@@ -284,13 +1250,89 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                     return newFixedLengthResponse(Response.Status.OK, "text/css", getStyleCSS());
                 } else if (uri.startsWith("/files") && fileTransferEnabled) {
                     return handleFileOperation(uri, session);
-                } else if (uri.equals("/screen.jpg") && latestScreenCapture != null) {
+                } else if (uri.startsWith("/recordings")) {
+                    return handleRecordingOperation(uri, params);
+                } else if (uri.equals("/api/macro/list")) {
+                    return handleMacroList();
+                } else if (uri.equals("/api/macro/status")) {
+                    return newFixedLengthResponse(Response.Status.OK, "application/json", macroPlayer.statusJson());
+                } else if (uri.equals("/api/metrics")) {
+                    ScreenCaptureService captureService = ScreenCaptureService.getInstance();
+                    return newFixedLengthResponse(Response.Status.OK, "application/json",
+                            "{\"latency\":" + latencyTracker.toJson() +
+                            ",\"udp\":" + udpFrameSender.statsJson() +
+                            ",\"outbound\":" + outboundStatsJson() +
+                            ",\"bus\":[" + FrameBus.screen().statsJson() + "," + FrameBus.preview().statsJson() +
+                            "," + FrameBus.camera().statsJson() + "]" +
+                            ",\"camera\":" + cameraCapture.statsJson() +
+                            ",\"network\":" + lowLatencyMode.toJson() +
+                            ",\"logs\":" + logcatTail.statsJson() +
+                            ",\"capture\":" + (captureService != null ? captureService.getCaptureStatsJson() : "null") +
+                            ",\"encoder\":" + (captureService != null ? captureService.getEncoderStatsJson() : "null") + "}");
+                } else if (uri.equals("/api/config")) {
+                    return newFixedLengthResponse(Response.Status.OK, "application/json",
+                            ScreenCaptureService.getConfig().toJson());
+                } else if (uri.equals("/debug/events")) {
+                    return handleEventQuery(params);
+                } else if (uri.equals("/preview.jpg")) {
+                    // Polling keeps thumbnails coming for a while; the first poll may find none yet
+                    previewWantedUntil = System.currentTimeMillis() + POLL_IDLE_MS;
+                    updateFrameDemand();
+                    byte[] preview = latestPreview;
+                    if (preview == null) {
+                        return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "No preview yet");
+                    }
+                    Response response = newFixedLengthResponse(Response.Status.OK, "image/jpeg",
+                            new ByteArrayInputStream(preview), preview.length);
+                    response.addHeader("Cache-Control", "no-store");
+                    return response;
+                } else if (uri.equals("/snapshot")) {
+                    return handleSnapshot(params);
+                } else if (uri.equals("/screen.jpg")) {
                     // Serve the latest screen capture for browsers that don't support WebSockets
-                    return newFixedLengthResponse(Response.Status.OK, "image/jpeg", new ByteArrayInputStream(latestScreenCapture), latestScreenCapture.length);
+                    // Kept under its old name; the content type follows the codec in use.
+                    // Polling keeps frames coming for a while; the first poll may find none yet.
+                    screenJpgWantedUntil = System.currentTimeMillis() + POLL_IDLE_MS;
+                    updateFrameDemand();
+                    if (latestScreenCapture == null) {
+                        return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "No frame yet");
+                    }
+                    byte[] latest = singleImage(latestScreenCapture);
+                    return newFixedLengthResponse(Response.Status.OK, FrameEncoderRegistry.sniffMimeType(latest),
+                            new ByteArrayInputStream(latest), latest.length);
                 }
             } else if (method == Method.POST) {
                 if (uri.equals("/api/command")) {
-                    return handleCommand(params);
+                    long receivedNanos = System.nanoTime();
+                    try {
+                        // The web client posts FormData, whose fields only appear after parsing
+                        session.parseBody(new HashMap<String, String>());
+                        params = session.getParms();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error parsing command request", e);
+                    }
+                    return handleCommand(params, commandOrigin(session), receivedNanos);
+                } else if (uri.equals("/api/recording")) {
+                    return handleRecordingControl(params);
+                } else if (uri.equals("/api/network")) {
+                    // lowLatency=true|false; applies to sockets accepted from now on
+                    String lowLatency = params.get("lowLatency");
+                    if (lowLatency != null) {
+                        lowLatencyMode.setEnabled(Boolean.parseBoolean(lowLatency));
+                    }
+                    return newFixedLengthResponse(Response.Status.OK, "application/json", lowLatencyMode.toJson());
+                } else if (uri.equals("/api/config")) {
+                    return handleConfigUpdate(session, params);
+                } else if (uri.equals("/debug/events")) {
+                    return handleEventLevel(params);
+                } else if (uri.equals("/debug/source")) {
+                    return handleFrameSource(params);
+                } else if (uri.startsWith("/api/macro/")) {
+                    return handleMacroControl(uri, params);
+                } else if (uri.startsWith("/api/udp/")) {
+                    return handleUdpSubscription(uri, session, params);
+                } else if (uri.startsWith("/files/sync/") && fileTransferEnabled) {
+                    return handleFileSync(uri, session, params);
                 } else if (uri.startsWith("/api/upload") && fileTransferEnabled) {
                     try {
                         // Parse multipart form data for file uploads
@@ -326,67 +1368,596 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                 }
             }
             
-            return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+        }
+        
+        private boolean validateBasicAuth(String authHeader) {
+            if (authHeader != null && authHeader.startsWith("Basic ")) {
+                String base64Credentials = authHeader.substring("Basic ".length());
+                String credentials;
+                try {
+                    credentials = new String(Base64.decode(base64Credentials, Base64.DEFAULT));
+                } catch (IllegalArgumentException e) {
+                    return false;
+                }
+                final String[] values = credentials.split(":", 2);
+                
+                if (values.length == 2) {
+                    return validateCredentials(values[0], values[1]);
+                }
+            }
+            return false;
+        }
+        
+        private boolean validateCredentials(String providedUsername, String providedPassword) {
+            // Evaluate both comparisons so timing doesn't reveal which one failed
+            boolean userOk = SessionTokenCache.constantTimeEquals(username, providedUsername);
+            boolean passOk = SessionTokenCache.constantTimeEquals(password, providedPassword);
+            return userOk & passOk;
+        }
+        
+        private boolean hasValidSession(IHTTPSession session) {
+            // Browsers can't set headers on WebSocket upgrades, so the cookie and
+            // the token query parameter are accepted alongside the header
+            return sessionTokens.validate(presentedToken(session));
+        }
+        
+        private String presentedToken(IHTTPSession session) {
+            String token = session.getHeaders().get("x-session-token");
+            if (token == null) {
+                token = session.getCookies().read(SESSION_COOKIE);
+            }
+            if (token == null) {
+                token = session.getParms().get("token");
+            }
+            return token;
+        }
+        
+        // One token for the Basic credential, reissued only once it has expired
+        private synchronized String basicAuthSessionToken() {
+            String token = basicAuthToken;
+            if (token == null || !sessionTokens.validate(token)) {
+                token = sessionTokens.issue();
+                basicAuthToken = token;
+            }
+            return token;
+        }
+        
+        private String sessionCookie(String token) {
+            return SESSION_COOKIE + "=" + token + "; Path=/; Max-Age=" + (sessionTokens.getTtlMillis() / 1000) +
+                    "; HttpOnly; SameSite=Strict";
+        }
+        
+        private Response handleLogout(IHTTPSession session) {
+            String token = presentedToken(session);
+            sessionTokens.revoke(token);
+            if (token != null && token.equals(basicAuthToken)) {
+                basicAuthToken = null;
+            }
+            Response response = newFixedLengthResponse(Response.Status.OK, "application/json", "{\"success\":true}");
+            response.addHeader("Set-Cookie", SESSION_COOKIE + "=; Path=/; Max-Age=0; HttpOnly; SameSite=Strict");
+            return response;
+        }
+        
+        private Response handleLogin(IHTTPSession session, Map<String, String> params) {
+            if (!authEnabled) {
+                return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"token\":null,\"expiresIn\":0}");
+            }
+            
+            try {
+                // Credentials arrive as form fields, which are only visible after parsing the body
+                session.parseBody(new HashMap<String, String>());
+                params = session.getParms();
+            } catch (Exception e) {
+                Log.e(TAG, "Error parsing login request", e);
+            }
+            
+            boolean valid;
+            String providedUsername = params.get("username");
+            String providedPassword = params.get("password");
+            if (providedUsername != null && providedPassword != null) {
+                valid = validateCredentials(providedUsername, providedPassword);
+            } else {
+                valid = validateBasicAuth(session.getHeaders().get("authorization"));
+            }
+            
+            if (!valid) {
+                return newFixedLengthResponse(Response.Status.UNAUTHORIZED, MIME_PLAINTEXT, "Unauthorized");
+            }
+            
+            String token = sessionTokens.issue();
+            Response response = newFixedLengthResponse(Response.Status.OK, "application/json",
+                    "{\"token\":\"" + token + "\",\"expiresIn\":" + (sessionTokens.getTtlMillis() / 1000) + "}");
+            response.addHeader("Set-Cookie", sessionCookie(token));
+            return response;
+        }
+        
+        private Response handleFileOperation(String uri, IHTTPSession session) {
+            if ("/files/list".equals(uri)) {
+                // List files in the download directory
+                File downloadDir = new File(DOWNLOAD_DIR);
+                File[] files = downloadDir.listFiles();
+                
+                StringBuilder json = new StringBuilder("{\"files\":[");
+                
+                if (files != null) {
+                    boolean first = true;
+                    for (File file : files) {
+                        if (file.isFile()) {
+                            if (!first) json.append(",");
+                            json.append("{\"name\":\"" + file.getName() + "\",");
+                            json.append("\"size\":" + file.length() + ",");
+                            json.append("\"date\":" + file.lastModified() + "}");
+                            first = false;
+                        }
+                    }
+                }
+                
+                json.append("]}");
+                return newFixedLengthResponse(Response.Status.OK, "application/json", json.toString());
+            } else if (uri.startsWith("/files/download/")) {
+                // Download a specific file
+                String fileName = uri.substring("/files/download/".length());
+                File file = new File(DOWNLOAD_DIR, fileName);
+                
+                if (file.exists() && file.isFile()) {
+                    try {
+                        FileInputStream fis = new FileInputStream(file);
+                        Response response = newFixedLengthResponse(Response.Status.OK, getMimeTypeForFile(fileName), fis, file.length());
+                        response.addHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+                        return response;
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error serving file", e);
+                    }
+                }
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "File not found");
+            } else if ("/files/search".equals(uri)) {
+                return handleFileSearch(session.getParms());
+            } else if (uri.startsWith("/files/chunks/")) {
+                // Chunk manifest for delta uploads, see ChunkSync
+                String fileName = uri.substring("/files/chunks/".length());
+                File file = new File(DOWNLOAD_DIR, fileName);
+                if (!isPlainFileName(fileName) || !file.isFile()) {
+                    return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "File not found");
+                }
+                try {
+                    return newFixedLengthResponse(Response.Status.OK, "application/json", chunkSync.manifestJson(file));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error chunking file", e);
+                    return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error reading file");
+                }
+            }
+            
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid file operation");
+        }
+        
+        // -1 when the header is missing or malformed
+        private long contentLength(IHTTPSession session) {
+            try {
+                return Long.parseLong(session.getHeaders().get("content-length"));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        
+        private Response closeAfter(Response response) {
+            response.closeConnection(true);
+            return response;
+        }
+        
+        private Response handleFileSync(String uri, IHTTPSession session, Map<String, String> params) {
+            try {
+                if ("/files/sync/begin".equals(uri)) {
+                    String fileName = params.get("name");
+                    if (fileName == null || !isPlainFileName(fileName)) {
+                        return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid file name");
+                    }
+                    if (contentLength(session) > ChunkSync.MAX_MANIFEST_BYTES) {
+                        return closeAfter(newFixedLengthResponse(Response.Status.PAYLOAD_TOO_LARGE, MIME_PLAINTEXT,
+                                "Manifest larger than " + ChunkSync.MAX_MANIFEST_BYTES + " bytes"));
+                    }
+                    Map<String, String> body = new HashMap<>();
+                    session.parseBody(body);
+                    String manifest = body.get("postData");
+                    if (manifest == null) {
+                        return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Missing manifest");
+                    }
+                    return newFixedLengthResponse(Response.Status.OK, "application/json",
+                            chunkSync.begin(new File(DOWNLOAD_DIR, fileName), manifest));
+                } else if ("/files/sync/chunk".equals(uri)) {
+                    // The raw body is the chunk; it is read straight off the socket.
+                    // Bodies that can't be drained are refused and the connection
+                    // closed, so their bytes are never parsed as a request.
+                    long length = contentLength(session);
+                    if (length < 0 || length > ChunkSync.MAX_CHUNK) {
+                        return closeAfter(newFixedLengthResponse(Response.Status.PAYLOAD_TOO_LARGE, MIME_PLAINTEXT,
+                                "Chunk body must have a Content-Length of at most " + ChunkSync.MAX_CHUNK));
+                    }
+                    // A bad index is only rejected by writeChunk, once the body is drained
+                    int index = -1;
+                    try {
+                        index = Integer.parseInt(params.get("index"));
+                    } catch (NumberFormatException e) {
+                        // Missing or malformed; stays -1
+                    }
+                    int remaining;
+                    try {
+                        remaining = chunkSync.writeChunk(params.get("session"), index,
+                                session.getInputStream(), (int) length);
+                    } catch (IOException e) {
+                        // Part of the body may still be unread
+                        Log.e(TAG, "Error writing chunk", e);
+                        return closeAfter(newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+                                "Error syncing file"));
+                    }
+                    return newFixedLengthResponse(Response.Status.OK, "application/json",
+                            "{\"missing\":" + remaining + "}");
+                } else if ("/files/sync/commit".equals(uri)) {
+                    boolean committed = chunkSync.commit(params.get("session"));
+                    return newFixedLengthResponse(committed ? Response.Status.OK : Response.Status.INTERNAL_ERROR,
+                            "application/json", "{\"committed\":" + committed + "}");
+                } else if ("/files/sync/abort".equals(uri)) {
+                    return newFixedLengthResponse(Response.Status.OK, "application/json",
+                            "{\"aborted\":" + chunkSync.abort(params.get("session")) + "}");
+                }
+            } catch (IllegalArgumentException e) {
+                // Also covers a missing or malformed chunk index
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+            } catch (Exception e) {
+                Log.e(TAG, "Error during file sync", e);
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error syncing file");
+            }
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+        }
+        
+        private boolean isPlainFileName(String fileName) {
+            return !fileName.isEmpty() && !fileName.contains("/") && !fileName.equals("..") && !fileName.equals(".");
+        }
+        
+        // ?q=text&content=1&limit=N. Results are newline-delimited JSON objects
+        // streamed as they are confirmed, so the first matches arrive before
+        // content candidates have been checked.
+        private Response handleFileSearch(Map<String, String> params) {
+            String query = params.get("q");
+            if (query == null || query.isEmpty()) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Missing query");
+            }
+            // Read once: onDestroy may clear the field mid-request
+            FileSearchIndex searchIndex = fileSearchIndex;
+            if (searchIndex == null) {
+                return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Search index not running");
+            }
+            int limit = SEARCH_DEFAULT_LIMIT;
+            try {
+                if (params.get("limit") != null) {
+                    limit = Math.max(1, Math.min(SEARCH_MAX_LIMIT, Integer.parseInt(params.get("limit"))));
+                }
+            } catch (NumberFormatException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid limit");
+            }
+            boolean contents = "1".equals(params.get("content")) || "true".equals(params.get("content"));
+            
+            FileSearchIndex.CandidateSet candidates = searchIndex.search(query, contents);
+            Response response = newChunkedResponse(Response.Status.OK, "application/x-ndjson",
+                    new FileSearchIndex.ResultStream(candidates, limit));
+            // Lets clients tell an empty result from one that is still being built
+            response.addHeader("X-Index-Ready", String.valueOf(searchIndex.isReady()));
+            return response;
+        }
+        
+        // ?format=png|webp (default png) and ?region=x,y,width,height in native
+        // pixels. The image is lossless at the display's real resolution,
+        // whatever size the live stream is running at.
+        private Response handleSnapshot(Map<String, String> params) {
+            ScreenCaptureService captureService = ScreenCaptureService.getInstance();
+            if (captureService == null) {
+                return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Screen capture not running");
+            }
+            String format = params.get("format") != null ? params.get("format").toLowerCase() : SnapshotCache.FORMAT_PNG;
+            if (!SnapshotCache.isSupportedFormat(format)) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT,
+                        SnapshotCache.FORMAT_WEBP.equals(format)
+                                ? "Lossless WebP needs Android 11 or later; use format=png" : "Unsupported format");
+            }
+            
+            SnapshotCache.Snapshot snapshot;
+            try {
+                snapshot = snapshotCache.take(captureService, format, SnapshotCache.parseRegion(params.get("region")));
+            } catch (IllegalArgumentException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+            } catch (IllegalStateException e) {
+                return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, e.getMessage());
+            } catch (TimeoutException e) {
+                // Capture is running but produced nothing, e.g. a secure window or the screen turning off
+                Response response = newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT,
+                        "Timed out waiting for a screen frame: " + e.getMessage());
+                response.addHeader("Retry-After", "1");
+                return response;
+            } catch (Exception e) {
+                Log.e(TAG, "Error taking snapshot", e);
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Snapshot failed");
+            }
+            
+            Response response = newFixedLengthResponse(Response.Status.OK, snapshot.mimeType,
+                    new ByteArrayInputStream(snapshot.data), snapshot.data.length);
+            response.addHeader("Cache-Control", "no-store");
+            response.addHeader("X-Frame-Sequence", String.valueOf(snapshot.sequence));
+            response.addHeader("Content-Disposition", "inline; filename=\"snapshot-" + snapshot.sequence + "." + format + "\"");
+            return response;
         }
         
-        private boolean validateBasicAuth(String authHeader) {
-            if (authHeader != null && authHeader.startsWith("Basic ")) {
-                String base64Credentials = authHeader.substring("Basic ".length());
-                String credentials = new String(Base64.decode(base64Credentials, Base64.DEFAULT));
-                final String[] values = credentials.split(":", 2);
-                
-                if (values.length == 2) {
-                    String providedUsername = values[0];
-                    String providedPassword = values[1];
-                    
-                    return username.equals(providedUsername) && password.equals(providedPassword);
+        // Accepts any subset of the CaptureConfig fields as query or form
+        // parameters. The whole update is validated and applied together.
+        private Response handleConfigUpdate(IHTTPSession session, Map<String, String> params) {
+            try {
+                session.parseBody(new HashMap<String, String>());
+                params = session.getParms();
+            } catch (Exception e) {
+                Log.e(TAG, "Error parsing config request", e);
+            }
+            
+            try {
+                CaptureConfig next = ScreenCaptureService.getConfig().merge(params);
+                ScreenCaptureService.setConfig(RemoteServerService.this, next);
+                return newFixedLengthResponse(Response.Status.OK, "application/json", next.toJson());
+            } catch (IllegalArgumentException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+            }
+        }
+        
+        // ?limit=N returns the newest N events, ?category= narrows to one category
+        private Response handleEventQuery(Map<String, String> params) {
+            int limit = 200;
+            int category = -1;
+            try {
+                if (params.get("limit") != null) {
+                    limit = Math.max(1, Integer.parseInt(params.get("limit")));
                 }
+            } catch (NumberFormatException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid limit");
             }
-            return false;
+            if (params.get("category") != null) {
+                category = EventLog.categoryOf(params.get("category"));
+                if (category < 0) {
+                    return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unknown category");
+                }
+            }
+            return newFixedLengthResponse(Response.Status.OK, "application/json", EventLog.toJson(limit, category));
         }
         
-        private Response handleFileOperation(String uri, IHTTPSession session) {
-            if ("/files/list".equals(uri)) {
-                // List files in the download directory
-                File downloadDir = new File(DOWNLOAD_DIR);
-                File[] files = downloadDir.listFiles();
-                
-                StringBuilder json = new StringBuilder("{\"files\":[")
-                
-                if (files != null) {
-                    boolean first = true;
-                    for (File file : files) {
-                        if (file.isFile()) {
-                            if (!first) json.append(",");
-                            json.append("{\"name\":\"" + file.getName() + "\",");
-                            json.append("\"size\":" + file.length() + ",");
-                            json.append("\"date\":" + file.lastModified() + "}");
-                            first = false;
-                        }
-                    }
+        // ?scene=static|scroll|video streams a synthetic scene instead of the
+        // screen; ?scene=screen switches back
+        private Response handleFrameSource(Map<String, String> params) {
+            ScreenCaptureService captureService = ScreenCaptureService.getInstance();
+            if (captureService == null) {
+                return newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "Screen capture not running");
+            }
+            String scene = params.get("scene");
+            try {
+                captureService.setSyntheticScene(scene == null || "screen".equals(scene) ? null : scene);
+            } catch (IllegalArgumentException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+            }
+            String active = captureService.getSyntheticScene();
+            return newFixedLengthResponse(Response.Status.OK, "application/json",
+                    "{\"scene\":\"" + (active != null ? active : "screen") + "\"}");
+        }
+        
+        // ?category=input&level=debug&sample=10 records one in ten debug input events
+        private Response handleEventLevel(Map<String, String> params) {
+            int category = EventLog.categoryOf(params.get("category"));
+            int level = EventLog.levelOf(params.get("level"));
+            if (category < 0 || level < 0) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unknown category or level");
+            }
+            int sample = 1;
+            try {
+                if (params.get("sample") != null) {
+                    sample = Integer.parseInt(params.get("sample"));
+                }
+            } catch (NumberFormatException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid sample rate");
+            }
+            EventLog.setLevel(category, level, sample);
+            return newFixedLengthResponse(Response.Status.OK, "application/json", EventLog.toJson(0, -1));
+        }
+        
+        private Response handleRecordingControl(Map<String, String> params) {
+            String action = params.get("action");
+            if ("start".equals(action)) {
+                sessionRecorder.start();
+            } else if ("stop".equals(action)) {
+                sessionRecorder.stop();
+            } else {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unknown recording action");
+            }
+            updateFrameDemand();
+            return newFixedLengthResponse(Response.Status.OK, "application/json",
+                    "{\"recording\":" + sessionRecorder.isRecording() + "}");
+        }
+        
+        private Response handleRecordingOperation(String uri, Map<String, String> params) {
+            if ("/recordings/list".equals(uri)) {
+                StringBuilder json = new StringBuilder("{\"recording\":" + sessionRecorder.isRecording());
+                json.append(",\"dropped\":" + sessionRecorder.getDroppedRecords());
+                json.append(",\"segments\":[");
+                boolean first = true;
+                for (File segment : sessionRecorder.listSegments()) {
+                    if (!first) json.append(",");
+                    json.append("{\"name\":\"" + segment.getName() + "\",");
+                    json.append("\"size\":" + segment.length() + ",");
+                    json.append("\"date\":" + segment.lastModified() + "}");
+                    first = false;
                 }
-                
                 json.append("]}");
                 return newFixedLengthResponse(Response.Status.OK, "application/json", json.toString());
-            } else if (uri.startsWith("/files/download/")) {
-                // Download a specific file
-                String fileName = uri.substring("/files/download/".length());
-                File file = new File(DOWNLOAD_DIR, fileName);
-                
-                if (file.exists() && file.isFile()) {
+            } else if (uri.startsWith("/recordings/download/")) {
+                String name = uri.substring("/recordings/download/".length());
+                File segment = sessionRecorder.getSegment(name);
+                if (segment != null) {
                     try {
-                        FileInputStream fis = new FileInputStream(file);
-                        Response response = newFixedLengthResponse(Response.Status.OK, getMimeTypeForFile(fileName), fis, file.length());
-                        response.addHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+                        FileInputStream fis = new FileInputStream(segment);
+                        Response response = newFixedLengthResponse(Response.Status.OK, "application/octet-stream", fis, segment.length());
+                        response.addHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
                         return response;
                     } catch (IOException e) {
-                        Log.e(TAG, "Error serving file", e);
+                        Log.e(TAG, "Error serving recording", e);
                     }
                 }
-                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "File not found");
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Recording not found");
+            } else if ("/recordings/frame".equals(uri)) {
+                // Random-access playback: the frame on screen t milliseconds into a segment
+                try {
+                    long offsetMillis = Long.parseLong(params.get("t") != null ? params.get("t") : "0");
+                    byte[] frame = sessionRecorder.readFrameAt(params.get("segment"), offsetMillis);
+                    if (frame != null) {
+                        frame = singleImage(frame);
+                        return newFixedLengthResponse(Response.Status.OK, FrameEncoderRegistry.sniffMimeType(frame),
+                                new ByteArrayInputStream(frame), frame.length);
+                    }
+                } catch (NumberFormatException e) {
+                    return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid time offset");
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading recorded frame", e);
+                }
+                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Frame not found");
             }
             
-            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid file operation");
+            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid recording operation");
+        }
+        
+        private Response handleMacroControl(String uri, Map<String, String> params) {
+            String name = params.get("name");
+            if (name != null && !name.matches("[A-Za-z0-9_-]{1,64}")) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid macro name");
+            }
+            
+            switch (uri) {
+                case "/api/macro/record": {
+                    String action = params.get("action");
+                    if ("start".equals(action)) {
+                        macroRecorder.start();
+                        return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"recording\":true}");
+                    } else if ("stop".equals(action)) {
+                        if (name == null) {
+                            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Missing macro name");
+                        }
+                        InputMacro macro = macroRecorder.stop();
+                        if (!macroDir.exists() && !macroDir.mkdirs()) {
+                            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Cannot create macro directory");
+                        }
+                        try (FileOutputStream fos = new FileOutputStream(new File(macroDir, name + MACRO_SUFFIX))) {
+                            fos.write(macro.encode());
+                        } catch (IOException e) {
+                            Log.e(TAG, "Error saving macro", e);
+                            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error saving macro");
+                        }
+                        return newFixedLengthResponse(Response.Status.OK, "application/json",
+                                "{\"recording\":false,\"steps\":" + macro.getSteps().size() +
+                                ",\"durationUs\":" + macro.getDurationMicros() + "}");
+                    }
+                    return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unknown macro action");
+                }
+                case "/api/macro/checkpoint": {
+                    long timeout = 5000;
+                    try {
+                        if (params.get("timeout") != null) {
+                            timeout = Long.parseLong(params.get("timeout"));
+                        }
+                    } catch (NumberFormatException e) {
+                        return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid timeout");
+                    }
+                    macroRecorder.recordCheckpoint(timeout);
+                    return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"success\":true}");
+                }
+                case "/api/macro/play": {
+                    if (name == null) {
+                        return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Missing macro name");
+                    }
+                    File file = new File(macroDir, name + MACRO_SUFFIX);
+                    if (!file.isFile()) {
+                        return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Macro not found");
+                    }
+                    try {
+                        double speed = params.get("speed") != null ? Double.parseDouble(params.get("speed")) : 1.0;
+                        byte[] data = new byte[(int) file.length()];
+                        try (FileInputStream fis = new FileInputStream(file)) {
+                            int read = 0;
+                            while (read < data.length) {
+                                int n = fis.read(data, read, data.length - read);
+                                if (n < 0) break;
+                                read += n;
+                            }
+                        }
+                        boolean started = macroPlayer.play(InputMacro.decode(data), speed);
+                        updateFrameDemand();
+                        return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"success\":" + started + "}");
+                    } catch (IllegalArgumentException e) {
+                        return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error loading macro", e);
+                        return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Error loading macro");
+                    }
+                }
+                case "/api/macro/stop":
+                    macroPlayer.stop();
+                    return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"success\":true}");
+                default:
+                    return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+            }
+        }
+        
+        // Receivers subscribe from the address the HTTP request came from, so a
+        // client can only direct frames at itself
+        private Response handleUdpSubscription(String uri, IHTTPSession session, Map<String, String> params) {
+            String remoteAddress = session.getHeaders().get("remote-addr");
+            if (remoteAddress == null) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unknown client address");
+            }
+            InetSocketAddress address;
+            try {
+                int port = Integer.parseInt(params.get("port"));
+                if (port <= 0 || port > 65535) {
+                    throw new NumberFormatException();
+                }
+                address = new InetSocketAddress(remoteAddress, port);
+            } catch (NumberFormatException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid port");
+            }
+            
+            if ("/api/udp/subscribe".equals(uri)) {
+                if (!udpFrameSender.start()) {
+                    return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "UDP transport unavailable");
+                }
+                udpFrameSender.subscribe(address);
+                updateFrameDemand();
+                return newFixedLengthResponse(Response.Status.OK, "application/json",
+                        "{\"serverPort\":" + udpFrameSender.getLocalPort() +
+                        ",\"mtu\":" + udpFrameSender.getMtu() +
+                        ",\"groupSize\":" + udpFrameSender.getGroupSize() +
+                        ",\"leaseMs\":" + UdpFrameSender.LEASE_MS + "}");
+            } else if ("/api/udp/unsubscribe".equals(uri)) {
+                boolean removed = udpFrameSender.unsubscribe(address);
+                return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"success\":" + removed + "}");
+            }
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+        }
+        
+        private Response handleMacroList() {
+            StringBuilder json = new StringBuilder("{\"macros\":[");
+            File[] files = macroDir.listFiles((dir, fileName) -> fileName.endsWith(MACRO_SUFFIX));
+            if (files != null) {
+                boolean first = true;
+                for (File file : files) {
+                    if (!first) json.append(",");
+                    String macroName = file.getName().substring(0, file.getName().length() - MACRO_SUFFIX.length());
+                    json.append("{\"name\":\"" + macroName + "\",");
+                    json.append("\"size\":" + file.length() + "}");
+                    first = false;
+                }
+            }
+            json.append("]}");
+            return newFixedLengthResponse(Response.Status.OK, "application/json", json.toString());
         }
         
         private String getMimeTypeForFile(String fileName) {
@@ -399,7 +1970,27 @@ public class RemoteServerService extends Service implements ScreenCaptureService
             return "application/octet-stream";
         }
 
-        private Response handleCommand(Map<String, String> params) {
+        // Unique per WebSocket connection: tabs, clients behind one NAT and the
+        // relay all share a remote address, and latency stats and input
+        // sequences must not cross between them
+        private String connectionId(IHTTPSession handshake) {
+            String address = handshake.getHeaders().get("remote-addr");
+            return (address != null ? address : "unknown") + "#" + nextConnectionId.incrementAndGet();
+        }
+        
+        // HTTP commands come from the session that sent them, or from the
+        // address when authentication is off and there is no session. Only a
+        // digest of the token is used, so it can't leak through logs or stats.
+        private String commandOrigin(IHTTPSession session) {
+            String token = presentedToken(session);
+            if (token != null && sessionTokens.validate(token)) {
+                return "session-" + Integer.toHexString(token.hashCode());
+            }
+            String address = session.getHeaders().get("remote-addr");
+            return address != null ? address : "unknown";
+        }
+        
+        private Response handleCommand(Map<String, String> params, String clientId, long receivedNanos) {
             String command = params.get("command");
             String value = params.get("value");
             
@@ -407,22 +1998,73 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                 return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Missing command parameter");
             }
             
+            // Clients stamp input with their own clock (ms since epoch)
+            double clientMillis = 0;
+            String clientTime = params.get("t");
+            if (clientTime != null) {
+                try {
+                    clientMillis = Double.parseDouble(clientTime);
+                } catch (NumberFormatException e) {
+                    // Ignore a malformed timestamp; the command itself is still valid
+                }
+            }
+            
+            boolean success;
+            final double inputMillis = clientMillis;
+            try {
+                success = inputScheduler.call(() ->
+                        executeCommand(command, value, clientId, receivedNanos, inputMillis, 0));
+            } catch (IllegalArgumentException e) {
+                return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, e.getMessage());
+            } catch (Exception e) {
+                Log.e(TAG, "Error executing command", e);
+                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Command failed");
+            }
+            
+            Map<String, String> response = new HashMap<>();
+            response.put("success", String.valueOf(success));
+            
+            return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"success\":" + success + "}");
+        }
+        
+        // Shared by the HTTP command endpoint and INPUT envelopes on /screen.
+        // inputSequence is the envelope sequence, echoed in pointer messages so
+        // the client can match them to its predictions; 0 when there is none.
+        // Throws IllegalArgumentException for unknown commands or bad values.
+        private boolean executeCommand(String command, String value, String clientId,
+                                       long receivedNanos, double clientMillis, long inputSequence) {
+            if (clientMillis > 0) {
+                latencyTracker.onInputReceived(clientId, clientMillis, receivedNanos);
+            }
+            
+            DisplayMetrics display = getResources().getDisplayMetrics();
+            int[] tapPoint = null;
+            if ("tap".equals(command)) {
+                // Recorded and replayed in device pixels, whatever frame it was aimed at
+                tapPoint = PhoneController.tapPoint(value, display.widthPixels, display.heightPixels);
+                value = tapPoint[0] + "," + tapPoint[1];
+            }
+            
+            if (sessionRecorder.isRecording()) {
+                sessionRecorder.recordInput(command, value, System.nanoTime());
+            }
+            
             boolean success = false;
             
             switch (command) {
                 case "swipe":
                     success = phoneController.swipe(value);
+                    if (success) {
+                        int[] path = PhoneController.swipePath(value);
+                        pointerStream.swipe(path[0], path[1], path[2], path[3], PhoneController.SWIPE_DURATION_MS,
+                                display.widthPixels, display.heightPixels, clientId, inputSequence);
+                    }
                     break;
                 case "tap":
-                    String[] coords = value != null ? value.split(",") : null;
-                    if (coords != null && coords.length == 2) {
-                        try {
-                            int x = Integer.parseInt(coords[0]);
-                            int y = Integer.parseInt(coords[1]);
-                            success = phoneController.tap(x, y);
-                        } catch (NumberFormatException e) {
-                            return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Invalid coordinates");
-                        }
+                    success = phoneController.tap(tapPoint[0], tapPoint[1]);
+                    if (success) {
+                        pointerStream.tap(tapPoint[0], tapPoint[1], display.widthPixels, display.heightPixels,
+                                clientId, inputSequence);
                     }
                     break;
                 case "back":
@@ -437,14 +2079,52 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                 case "volume":
                     success = phoneController.adjustVolume(value);
                     break;
+                case "type":
+                    success = value != null && phoneController.injectBatch(
+                            Collections.singletonList(PhoneController.KeyAction.text(value)));
+                    break;
+                case "keys":
+                    success = phoneController.injectBatch(PhoneController.parseChords(value));
+                    break;
+                case "batch":
+                    // A JSON list of text and key steps, injected as one batch
+                    success = value != null && phoneController.injectBatch(PhoneController.parseBatch(value));
+                    break;
+                case "click_node":
+                    success = clickNode(value);
+                    break;
                 default:
-                    return newFixedLengthResponse(Response.Status.BAD_REQUEST, MIME_PLAINTEXT, "Unknown command");
+                    throw new IllegalArgumentException("Unknown command");
             }
             
-            Map<String, String> response = new HashMap<>();
-            response.put("success", String.valueOf(success));
+            // Only commands that ran go into a macro, so unknown commands and bad
+            // values (which throw above) can't be replayed. A macro's own replayed
+            // steps aren't recorded again.
+            if (success && macroRecorder.isRecording() && !MACRO_CLIENT_ID.equals(clientId)) {
+                macroRecorder.recordCommand(command, value, receivedNanos);
+            }
             
-            return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"success\":" + success + "}");
+            latencyTracker.onInputInjected(receivedNanos, System.nanoTime());
+            return success;
+        }
+        
+        // Clicks a node by its /uitree id. Falls back to a tap at the node's center
+        // when no clickable ancestor accepts the action.
+        private boolean clickNode(String value) {
+            UiNode node;
+            try {
+                node = uiTree.getNode(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid node id");
+            }
+            if (node == null) {
+                throw new IllegalArgumentException("Unknown node id");
+            }
+            RemoteAccessibilityService service = RemoteAccessibilityService.getInstance();
+            if (service != null && service.clickNode(node.key)) {
+                return true;
+            }
+            return phoneController.tap((node.left + node.right) / 2, (node.top + node.bottom) / 2);
         }
         
         private String getMainPage() {
@@ -460,6 +2140,8 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "    <div class=\"container\">\n" +
                    "        <h1>Phone Remote Control</h1>\n" +
                    "        <div class=\"touch-area\" id=\"touchArea\">\n" +
+                   "            <canvas id=\"screenCanvas\" class=\"screen-canvas\"></canvas>\n" +
+                   "            <canvas id=\"pointerCanvas\" class=\"pointer-canvas\"></canvas>\n" +
                    "            <div class=\"phone-screen\"></div>\n" +
                    "        </div>\n" +
                    "        <div class=\"controls\">\n" +
@@ -470,6 +2152,7 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "        <div class=\"volume-controls\">\n" +
                    "            <button id=\"volUpBtn\" class=\"control-btn\">Vol+</button>\n" +
                    "            <button id=\"volDownBtn\" class=\"control-btn\">Vol-</button>\n" +
+                   "            <button id=\"audioBtn\" class=\"control-btn\">Audio</button>\n" +
                    "        </div>\n" +
                    "    </div>\n" +
                    "    <script src=\"/control.js\"></script>\n" +
@@ -492,6 +2175,11 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "    touchArea.addEventListener('mousedown', function(e) {\n" +
                    "        startX = e.offsetX;\n" +
                    "        startY = e.offsetY;\n" +
+                   "        pointerDown(startX, startY);\n" +
+                   "    });\n" +
+                   "    \n" +
+                   "    touchArea.addEventListener('mousemove', function(e) {\n" +
+                   "        pointerMove(e.offsetX, e.offsetY);\n" +
                    "    });\n" +
                    "    \n" +
                    "    touchArea.addEventListener('mouseup', function(e) {\n" +
@@ -505,7 +2193,7 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "        \n" +
                    "        if (distance < 10) {\n" +
                    "            // It's a tap\n" +
-                   "            sendCommand('tap', endX + ',' + endY);\n" +
+                   "            pointerUp(endX, endY, sendTap(endX, endY));\n" +
                    "        } else {\n" +
                    "            // It's a swipe\n" +
                    "            let direction;\n" +
@@ -514,7 +2202,7 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "            } else {\n" +
                    "                direction = distY > 0 ? 'down' : 'up';\n" +
                    "            }\n" +
-                   "            sendCommand('swipe', direction);\n" +
+                   "            pointerUp(endX, endY, sendCommand('swipe', direction));\n" +
                    "        }\n" +
                    "    });\n" +
                    "    \n" +
@@ -539,10 +2227,19 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "        sendCommand('volume', 'down');\n" +
                    "    });\n" +
                    "    \n" +
-                   "    // Function to send commands to the server\n" +
+                   "    // Function to send commands to the server. Returns the input sequence\n" +
+                   "    // number, or 0 when the command went over HTTP.\n" +
                    "    function sendCommand(command, value = '') {\n" +
+                   "        // Prefer the multiplexed socket; fall back to HTTP while it is down\n" +
+                   "        if (screenSocket && screenSocket.readyState === WebSocket.OPEN) {\n" +
+                   "            const payload = new TextEncoder().encode(command + '\\0' + value);\n" +
+                   "            screenSocket.send(encodeEnvelope(MSG_INPUT, CH_INPUT, 0, ++inputSeq, Date.now() * 1000, payload));\n" +
+                   "            return inputSeq;\n" +
+                   "        }\n" +
+                   "        \n" +
                    "        const formData = new FormData();\n" +
                    "        formData.append('command', command);\n" +
+                   "        formData.append('t', Date.now());\n" +
                    "        if (value) {\n" +
                    "            formData.append('value', value);\n" +
                    "        }\n" +
@@ -558,6 +2255,7 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "        .catch(error => {\n" +
                    "            console.error('Error sending command:', error);\n" +
                    "        });\n" +
+                   "        return 0;\n" +
                    "    }\n" +
                    "    \n" +
                    "    // Add touch event support\n" +
@@ -566,6 +2264,14 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "        const rect = touchArea.getBoundingClientRect();\n" +
                    "        startX = touch.clientX - rect.left;\n" +
                    "        startY = touch.clientY - rect.top;\n" +
+                   "        pointerDown(startX, startY);\n" +
+                   "        e.preventDefault();\n" +
+                   "    });\n" +
+                   "    \n" +
+                   "    touchArea.addEventListener('touchmove', function(e) {\n" +
+                   "        const touch = e.touches[0];\n" +
+                   "        const rect = touchArea.getBoundingClientRect();\n" +
+                   "        pointerMove(touch.clientX - rect.left, touch.clientY - rect.top);\n" +
                    "        e.preventDefault();\n" +
                    "    });\n" +
                    "    \n" +
@@ -580,7 +2286,7 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "        const distance = Math.sqrt(distX * distX + distY * distY);\n" +
                    "        \n" +
                    "        if (distance < 10) {\n" +
-                   "            sendCommand('tap', endX + ',' + endY);\n" +
+                   "            pointerUp(endX, endY, sendTap(endX, endY));\n" +
                    "        } else {\n" +
                    "            let direction;\n" +
                    "            if (Math.abs(distX) > Math.abs(distY)) {\n" +
@@ -588,10 +2294,391 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "            } else {\n" +
                    "                direction = distY > 0 ? 'down' : 'up';\n" +
                    "            }\n" +
-                   "            sendCommand('swipe', direction);\n" +
+                   "            pointerUp(endX, endY, sendCommand('swipe', direction));\n" +
                    "        }\n" +
                    "        e.preventDefault();\n" +
                    "    });\n" +
+                   "    \n" +
+                   "    // Binary envelope (version 1): version, type, channel, flags (u8 each),\n" +
+                   "    // sequence (u32), timestamp in microseconds (i64), then the payload.\n" +
+                   "    // Frames, input, acks and control all share the one /screen socket.\n" +
+                   "    const ENVELOPE_VERSION = 1;\n" +
+                   "    const MSG_FRAME = 1, MSG_INPUT = 3, MSG_ACK = 4, MSG_CONTROL = 5, MSG_POINTER = 6;\n" +
+                   "    const CH_CONTROL = 0, CH_VIDEO = 1, CH_INPUT = 2, CH_POINTER = 3;\n" +
+                   "    const FLAG_KEYFRAME = 1, FLAG_SUCCESS = 2;\n" +
+                   "    // Frame codec ids, carried in the upper four flag bits\n" +
+                   "    const CODEC_MIME = {1: 'image/jpeg', 2: 'image/webp', 3: 'image/png', 4: 'image/webp'};\n" +
+                   "    \n" +
+                   "    function decodeEnvelope(buffer) {\n" +
+                   "        const view = new DataView(buffer);\n" +
+                   "        return {\n" +
+                   "            version: view.getUint8(0),\n" +
+                   "            type: view.getUint8(1),\n" +
+                   "            channel: view.getUint8(2),\n" +
+                   "            flags: view.getUint8(3),\n" +
+                   "            seq: view.getUint32(4),\n" +
+                   "            timestamp: view.getInt32(8) * 4294967296 + view.getUint32(12),\n" +
+                   "            payload: new Uint8Array(buffer, 16)\n" +
+                   "        };\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function encodeEnvelope(type, channel, flags, seq, timestampUs, payload) {\n" +
+                   "        const buffer = new ArrayBuffer(16 + payload.length);\n" +
+                   "        const view = new DataView(buffer);\n" +
+                   "        view.setUint8(0, ENVELOPE_VERSION);\n" +
+                   "        view.setUint8(1, type);\n" +
+                   "        view.setUint8(2, channel);\n" +
+                   "        view.setUint8(3, flags);\n" +
+                   "        view.setUint32(4, seq);\n" +
+                   "        view.setInt32(8, Math.floor(timestampUs / 4294967296));\n" +
+                   "        view.setUint32(12, timestampUs % 4294967296);\n" +
+                   "        new Uint8Array(buffer, 16).set(payload);\n" +
+                   "        return buffer;\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    // Live screen. Decode and paint times are acked back per frame so the\n" +
+                   "    // server can track glass-to-glass latency.\n" +
+                   "    const screenCanvas = document.getElementById('screenCanvas');\n" +
+                   "    const screenCtx = screenCanvas.getContext('2d');\n" +
+                   "    let screenSocket = null;\n" +
+                   "    let inputSeq = 0;\n" +
+                   "    // Size of the last painted frame, which taps are mapped onto\n" +
+                   "    let frameSize = null;\n" +
+                   "    \n" +
+                   "    // Strip containers (codec 15): magic, version, count, width, height, then\n" +
+                   "    // per strip codec, y, height, length and the image bytes\n" +
+                   "    const CODEC_STRIPS = 15;\n" +
+                   "    \n" +
+                   "    function decodeStrips(bytes) {\n" +
+                   "        const view = new DataView(bytes.buffer, bytes.byteOffset, bytes.byteLength);\n" +
+                   "        const count = view.getUint8(5);\n" +
+                   "        const result = {width: view.getUint16(6), height: view.getUint16(8), strips: []};\n" +
+                   "        let offset = 10;\n" +
+                   "        for (let i = 0; i < count; i++) {\n" +
+                   "            const codec = view.getUint8(offset);\n" +
+                   "            const y = view.getUint16(offset + 1);\n" +
+                   "            const length = view.getUint32(offset + 5);\n" +
+                   "            const data = bytes.subarray(offset + 9, offset + 9 + length);\n" +
+                   "            result.strips.push({y: y, blob: new Blob([data], {type: CODEC_MIME[codec] || 'image/jpeg'})});\n" +
+                   "            offset += 9 + length;\n" +
+                   "        }\n" +
+                   "        return result;\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function drawFrame(socket, seq, codec, imageBytes) {\n" +
+                   "        const receivedAt = Date.now();\n" +
+                   "        const decodeStart = performance.now();\n" +
+                   "        let layout;\n" +
+                   "        if (codec === CODEC_STRIPS) {\n" +
+                   "            layout = decodeStrips(imageBytes);\n" +
+                   "        } else {\n" +
+                   "            const type = CODEC_MIME[codec] || 'image/jpeg';\n" +
+                   "            layout = {width: 0, height: 0, strips: [{y: 0, blob: new Blob([imageBytes], {type: type})}]};\n" +
+                   "        }\n" +
+                   "        // Strips decode in parallel and are painted together in one frame\n" +
+                   "        Promise.all(layout.strips.map(function(strip) {\n" +
+                   "            return createImageBitmap(strip.blob);\n" +
+                   "        })).then(function(bitmaps) {\n" +
+                   "            const decodeEnd = performance.now();\n" +
+                   "            const width = layout.width || bitmaps[0].width;\n" +
+                   "            const height = layout.height || bitmaps[0].height;\n" +
+                   "            requestAnimationFrame(function() {\n" +
+                   "                if (screenCanvas.width !== width || screenCanvas.height !== height) {\n" +
+                   "                    screenCanvas.width = width;\n" +
+                   "                    screenCanvas.height = height;\n" +
+                   "                }\n" +
+                   "                frameSize = {width: width, height: height};\n" +
+                   "                bitmaps.forEach(function(bitmap, i) {\n" +
+                   "                    screenCtx.drawImage(bitmap, 0, layout.strips[i].y);\n" +
+                   "                    bitmap.close();\n" +
+                   "                });\n" +
+                   "                if (socket.readyState === WebSocket.OPEN) {\n" +
+                   "                    const ack = new DataView(new ArrayBuffer(16));\n" +
+                   "                    ack.setFloat64(0, receivedAt);\n" +
+                   "                    ack.setFloat32(8, decodeEnd - decodeStart);\n" +
+                   "                    ack.setFloat32(12, performance.now() - decodeEnd);\n" +
+                   "                    socket.send(encodeEnvelope(MSG_ACK, CH_VIDEO, 0, seq, Date.now() * 1000,\n" +
+                   "                        new Uint8Array(ack.buffer)));\n" +
+                   "                }\n" +
+                   "            });\n" +
+                   "        });\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function connectScreen() {\n" +
+                   "        const scheme = location.protocol === 'https:' ? 'wss://' : 'ws://';\n" +
+                   "        const socket = new WebSocket(scheme + location.host + '/screen?v=' + ENVELOPE_VERSION);\n" +
+                   "        socket.binaryType = 'arraybuffer';\n" +
+                   "        socket.onopen = function() {\n" +
+                   "            screenSocket = socket;\n" +
+                   "        };\n" +
+                   "        socket.onmessage = function(event) {\n" +
+                   "            if (typeof event.data === 'string') {\n" +
+                   "                return;\n" +
+                   "            }\n" +
+                   "            const msg = decodeEnvelope(event.data);\n" +
+                   "            if (msg.version !== ENVELOPE_VERSION) {\n" +
+                   "                return;\n" +
+                   "            }\n" +
+                   "            if (msg.type === MSG_FRAME) {\n" +
+                   "                drawFrame(socket, msg.seq, msg.flags >> 4, msg.payload);\n" +
+                   "            } else if (msg.type === MSG_POINTER) {\n" +
+                   "                onPointer(msg.payload);\n" +
+                   "            } else if (msg.type === MSG_ACK && msg.channel === CH_INPUT) {\n" +
+                   "                console.log('Command result:', {seq: msg.seq, success: (msg.flags & FLAG_SUCCESS) !== 0});\n" +
+                   "                if ((msg.flags & FLAG_SUCCESS) === 0) {\n" +
+                   "                    settleMark(msg.seq, 'failed');\n" +
+                   "                }\n" +
+                   "            }\n" +
+                   "        };\n" +
+                   "        socket.onclose = function() {\n" +
+                   "            if (screenSocket === socket) {\n" +
+                   "                screenSocket = null;\n" +
+                   "            }\n" +
+                   "            setTimeout(connectScreen, 1000);\n" +
+                   "        };\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    // Pointer feedback. Touches are drawn at once as predictions; the server\n" +
+                   "    // streams the positions it actually injected (MSG_POINTER), which confirm\n" +
+                   "    // or correct them without waiting for the next frame.\n" +
+                   "    const pointerCanvas = document.getElementById('pointerCanvas');\n" +
+                   "    const pointerCtx = pointerCanvas.getContext('2d');\n" +
+                   "    const POINTER_DOWN = 1, POINTER_MOVE = 2, POINTER_UP = 3;\n" +
+                   "    const SPACE_CLIENT = 0, SPACE_DEVICE = 1;\n" +
+                   "    const MARK_LIFETIME_MS = 600, PREDICTION_TIMEOUT_MS = 1500;\n" +
+                   "    let marks = [];\n" +
+                   "    let trail = [];\n" +
+                   "    let remoteCursor = null;\n" +
+                   "    let pointerFramePending = false;\n" +
+                   "    \n" +
+                   "    function pointerDown(x, y) {\n" +
+                   "        trail = [{x: x, y: y}];\n" +
+                   "        schedulePointerDraw();\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function pointerMove(x, y) {\n" +
+                   "        if (trail.length > 0) {\n" +
+                   "            trail.push({x: x, y: y});\n" +
+                   "            schedulePointerDraw();\n" +
+                   "        }\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function pointerUp(x, y, seq) {\n" +
+                   "        trail = [];\n" +
+                   "        marks.push({x: x, y: y, seq: seq, state: 'predicted', at: performance.now()});\n" +
+                   "        schedulePointerDraw();\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function settleMark(seq, state, x, y) {\n" +
+                   "        const mark = marks.find(m => m.seq === seq && m.state === 'predicted');\n" +
+                   "        if (mark) {\n" +
+                   "            mark.state = state;\n" +
+                   "            mark.at = performance.now();\n" +
+                   "            if (x !== undefined) {\n" +
+                   "                mark.x = x;\n" +
+                   "                mark.y = y;\n" +
+                   "            }\n" +
+                   "            schedulePointerDraw();\n" +
+                   "        }\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    // Maps device pixels onto the letterboxed screen image in the touch area\n" +
+                   "    function deviceToClient(x, y, width, height) {\n" +
+                   "        const areaW = touchArea.clientWidth, areaH = touchArea.clientHeight;\n" +
+                   "        const scale = Math.min(areaW / width, areaH / height);\n" +
+                   "        return {x: (areaW - width * scale) / 2 + x * scale, y: (areaH - height * scale) / 2 + y * scale};\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    // The inverse, onto pixels of the last frame: the tap value 'x,y,width,height'\n" +
+                   "    // that the server scales to the display. Empty before the first frame or\n" +
+                   "    // outside the image.\n" +
+                   "    function tapValue(x, y) {\n" +
+                   "        if (!frameSize) {\n" +
+                   "            return '';\n" +
+                   "        }\n" +
+                   "        const width = frameSize.width, height = frameSize.height;\n" +
+                   "        const areaW = touchArea.clientWidth, areaH = touchArea.clientHeight;\n" +
+                   "        const scale = Math.min(areaW / width, areaH / height);\n" +
+                   "        const fx = Math.floor((x - (areaW - width * scale) / 2) / scale);\n" +
+                   "        const fy = Math.floor((y - (areaH - height * scale) / 2) / scale);\n" +
+                   "        if (fx < 0 || fy < 0 || fx >= width || fy >= height) {\n" +
+                   "            return '';\n" +
+                   "        }\n" +
+                   "        return fx + ',' + fy + ',' + width + ',' + height;\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function sendTap(x, y) {\n" +
+                   "        const value = tapValue(x, y);\n" +
+                   "        return value ? sendCommand('tap', value) : 0;\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function onPointer(payload) {\n" +
+                   "        const view = new DataView(payload.buffer, payload.byteOffset, payload.byteLength);\n" +
+                   "        const action = view.getUint8(0);\n" +
+                   "        let pos = {x: view.getUint16(2), y: view.getUint16(4)};\n" +
+                   "        if (view.getUint8(1) === SPACE_DEVICE) {\n" +
+                   "            pos = deviceToClient(pos.x, pos.y, view.getUint16(6), view.getUint16(8));\n" +
+                   "        }\n" +
+                   "        remoteCursor = {x: pos.x, y: pos.y, down: action !== POINTER_UP, at: performance.now()};\n" +
+                   "        const seq = view.getUint32(12);\n" +
+                   "        if (seq !== 0 && action === POINTER_UP) {\n" +
+                   "            // The injected position wins over the predicted one\n" +
+                   "            settleMark(seq, 'confirmed', pos.x, pos.y);\n" +
+                   "        }\n" +
+                   "        schedulePointerDraw();\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function schedulePointerDraw() {\n" +
+                   "        if (!pointerFramePending) {\n" +
+                   "            pointerFramePending = true;\n" +
+                   "            requestAnimationFrame(drawPointers);\n" +
+                   "        }\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function drawPointers() {\n" +
+                   "        pointerFramePending = false;\n" +
+                   "        const now = performance.now();\n" +
+                   "        if (pointerCanvas.width !== touchArea.clientWidth || pointerCanvas.height !== touchArea.clientHeight) {\n" +
+                   "            pointerCanvas.width = touchArea.clientWidth;\n" +
+                   "            pointerCanvas.height = touchArea.clientHeight;\n" +
+                   "        }\n" +
+                   "        pointerCtx.clearRect(0, 0, pointerCanvas.width, pointerCanvas.height);\n" +
+                   "        \n" +
+                   "        if (trail.length > 1) {\n" +
+                   "            pointerCtx.strokeStyle = 'rgba(52, 152, 219, 0.6)';\n" +
+                   "            pointerCtx.lineWidth = 4;\n" +
+                   "            pointerCtx.beginPath();\n" +
+                   "            pointerCtx.moveTo(trail[0].x, trail[0].y);\n" +
+                   "            trail.forEach(p => pointerCtx.lineTo(p.x, p.y));\n" +
+                   "            pointerCtx.stroke();\n" +
+                   "        }\n" +
+                   "        if (trail.length > 0) {\n" +
+                   "            const last = trail[trail.length - 1];\n" +
+                   "            pointerCtx.fillStyle = 'rgba(52, 152, 219, 0.4)';\n" +
+                   "            pointerCtx.beginPath();\n" +
+                   "            pointerCtx.arc(last.x, last.y, 16, 0, 2 * Math.PI);\n" +
+                   "            pointerCtx.fill();\n" +
+                   "        }\n" +
+                   "        \n" +
+                   "        // Predictions stay hollow until confirmed; unconfirmed ones time out\n" +
+                   "        marks = marks.filter(m => m.state === 'predicted'\n" +
+                   "            ? now - m.at < PREDICTION_TIMEOUT_MS : now - m.at < MARK_LIFETIME_MS);\n" +
+                   "        marks.forEach(function(m) {\n" +
+                   "            const fade = m.state === 'predicted' ? 1 : 1 - (now - m.at) / MARK_LIFETIME_MS;\n" +
+                   "            pointerCtx.globalAlpha = Math.max(0, fade);\n" +
+                   "            pointerCtx.beginPath();\n" +
+                   "            pointerCtx.arc(m.x, m.y, 14, 0, 2 * Math.PI);\n" +
+                   "            if (m.state === 'predicted') {\n" +
+                   "                pointerCtx.strokeStyle = '#3498db';\n" +
+                   "                pointerCtx.lineWidth = 3;\n" +
+                   "                pointerCtx.stroke();\n" +
+                   "            } else {\n" +
+                   "                pointerCtx.fillStyle = m.state === 'confirmed' ? '#2ecc71' : '#e74c3c';\n" +
+                   "                pointerCtx.fill();\n" +
+                   "            }\n" +
+                   "        });\n" +
+                   "        pointerCtx.globalAlpha = 1;\n" +
+                   "        \n" +
+                   "        // Where the device pointer actually is, including other viewers' input\n" +
+                   "        if (remoteCursor && (remoteCursor.down || now - remoteCursor.at < MARK_LIFETIME_MS)) {\n" +
+                   "            pointerCtx.fillStyle = '#e67e22';\n" +
+                   "            pointerCtx.beginPath();\n" +
+                   "            pointerCtx.arc(remoteCursor.x, remoteCursor.y, 6, 0, 2 * Math.PI);\n" +
+                   "            pointerCtx.fill();\n" +
+                   "        }\n" +
+                   "        \n" +
+                   "        if (trail.length > 0 || marks.length > 0 || (remoteCursor && now - remoteCursor.at < MARK_LIFETIME_MS)) {\n" +
+                   "            schedulePointerDraw();\n" +
+                   "        }\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    connectScreen();\n" +
+                   "    \n" +
+                   "    // Device audio: IMA ADPCM packets on the /audio WebSocket, scheduled through\n" +
+                   "    // Web Audio with a jitter buffer sized by the server's hints\n" +
+                   "    const audioBtn = document.getElementById('audioBtn');\n" +
+                   "    const IMA_INDEX = [-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8];\n" +
+                   "    const IMA_STEP = [7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,\n" +
+                   "        50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,\n" +
+                   "        337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,\n" +
+                   "        2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,\n" +
+                   "        15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767];\n" +
+                   "    let audioSocket = null;\n" +
+                   "    let audioCtx = null;\n" +
+                   "    let audioPlayhead = 0;\n" +
+                   "    let audioTargetMs = 60;\n" +
+                   "    \n" +
+                   "    function decodeAdpcm(bytes, offset, count, out) {\n" +
+                   "        let pred = ((bytes[offset] | (bytes[offset + 1] << 8)) << 16) >> 16;\n" +
+                   "        let index = Math.min(88, bytes[offset + 2]);\n" +
+                   "        let n = 0;\n" +
+                   "        for (let i = offset + 4; i < bytes.length && n < count; i++) {\n" +
+                   "            for (let shift = 0; shift <= 4 && n < count; shift += 4) {\n" +
+                   "                const nibble = (bytes[i] >> shift) & 15;\n" +
+                   "                const step = IMA_STEP[index];\n" +
+                   "                let diff = step >> 3;\n" +
+                   "                if (nibble & 4) diff += step;\n" +
+                   "                if (nibble & 2) diff += step >> 1;\n" +
+                   "                if (nibble & 1) diff += step >> 2;\n" +
+                   "                pred = Math.max(-32768, Math.min(32767, (nibble & 8) ? pred - diff : pred + diff));\n" +
+                   "                index = Math.max(0, Math.min(88, index + IMA_INDEX[nibble]));\n" +
+                   "                out[n++] = pred / 32768;\n" +
+                   "            }\n" +
+                   "        }\n" +
+                   "        return n;\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    function playAudioPacket(buffer) {\n" +
+                   "        const view = new DataView(buffer);\n" +
+                   "        if (view.getUint8(1) !== 1) {\n" +
+                   "            return; // Unknown codec\n" +
+                   "        }\n" +
+                   "        const sampleRate = view.getInt32(4);\n" +
+                   "        const samples = view.getInt16(20);\n" +
+                   "        const audioBuffer = audioCtx.createBuffer(1, samples, sampleRate);\n" +
+                   "        decodeAdpcm(new Uint8Array(buffer), 22, samples, audioBuffer.getChannelData(0));\n" +
+                   "        \n" +
+                   "        // Resync when the queue has drained or grown far beyond the jitter target\n" +
+                   "        const now = audioCtx.currentTime;\n" +
+                   "        const target = audioTargetMs / 1000;\n" +
+                   "        if (audioPlayhead < now || audioPlayhead - now > target * 3) {\n" +
+                   "            audioPlayhead = now + target;\n" +
+                   "        }\n" +
+                   "        const source = audioCtx.createBufferSource();\n" +
+                   "        source.buffer = audioBuffer;\n" +
+                   "        source.connect(audioCtx.destination);\n" +
+                   "        source.start(audioPlayhead);\n" +
+                   "        audioPlayhead += audioBuffer.duration;\n" +
+                   "    }\n" +
+                   "    \n" +
+                   "    audioBtn.addEventListener('click', function() {\n" +
+                   "        if (audioSocket) {\n" +
+                   "            audioSocket.close();\n" +
+                   "            return;\n" +
+                   "        }\n" +
+                   "        audioCtx = audioCtx || new (window.AudioContext || window.webkitAudioContext)();\n" +
+                   "        audioCtx.resume();\n" +
+                   "        audioPlayhead = 0;\n" +
+                   "        const scheme = location.protocol === 'https:' ? 'wss://' : 'ws://';\n" +
+                   "        audioSocket = new WebSocket(scheme + location.host + '/audio');\n" +
+                   "        audioSocket.binaryType = 'arraybuffer';\n" +
+                   "        audioSocket.onmessage = function(event) {\n" +
+                   "            if (typeof event.data === 'string') {\n" +
+                   "                const msg = JSON.parse(event.data);\n" +
+                   "                if (msg.type === 'jitter') {\n" +
+                   "                    audioTargetMs = msg.targetMs;\n" +
+                   "                }\n" +
+                   "                return;\n" +
+                   "            }\n" +
+                   "            playAudioPacket(event.data);\n" +
+                   "        };\n" +
+                   "        audioSocket.onclose = function() {\n" +
+                   "            audioSocket = null;\n" +
+                   "            audioBtn.textContent = 'Audio';\n" +
+                   "        };\n" +
+                   "        audioBtn.textContent = 'Mute';\n" +
+                   "    });\n" +
+
                    "});\n";
         }
         
@@ -642,6 +2729,24 @@ public class RemoteServerService extends Service implements ScreenCaptureService
                    "    opacity: 0.1;\n" +
                    "}\n" +
                    "\n" +
+                   ".screen-canvas {\n" +
+                   "    position: absolute;\n" +
+                   "    top: 0;\n" +
+                   "    left: 0;\n" +
+                   "    width: 100%;\n" +
+                   "    height: 100%;\n" +
+                   "    object-fit: contain;\n" +
+                   "}\n" +
+                   "\n" +
+                   ".pointer-canvas {\n" +
+                   "    position: absolute;\n" +
+                   "    top: 0;\n" +
+                   "    left: 0;\n" +
+                   "    width: 100%;\n" +
+                   "    height: 100%;\n" +
+                   "    pointer-events: none;\n" +
+                   "}\n" +
+                   "\n" +
                    ".controls, .volume-controls {\n" +
                    "    display: flex;\n" +
                    "    justify-content: center;\n" +
@@ -6,6 +6,7 @@ import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ServiceInfo;
 import android.graphics.Bitmap;
 import android.graphics.PixelFormat;
 import android.hardware.display.DisplayManager;
@@ -25,24 +26,63 @@ import androidx.core.app.NotificationCompat;
 
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class ScreenCaptureService extends Service {
-    private static final int MAX_FRAME_RATE = 30;
-    private static final int MIN_FRAME_RATE = 5;
+public class ScreenCaptureService extends Service implements SnapshotCache.NativeFrameSource {
     private static final int INITIAL_FRAME_RATE = 15;
-    private static final int QUALITY_HIGH = 100;
-    private static final int QUALITY_LOW = 60;
+    
+    // Published by the tuning API and picked up by the capture loop at the next
+    // frame boundary; activeConfig is what the loop is currently running with
+    private static final AtomicReference<CaptureConfig> config = new AtomicReference<>(CaptureConfig.DEFAULT);
+    private static volatile CapturePipeline.FrameObserver rawFrameObserver;
+    private volatile CaptureConfig activeConfig = CaptureConfig.DEFAULT;
+    private volatile int captureWidth;
+    private volatile int captureHeight;
     
     private final AtomicInteger currentFrameRate = new AtomicInteger(INITIAL_FRAME_RATE);
-    private final AtomicInteger currentQuality = new AtomicInteger(QUALITY_HIGH);
-    private final ExecutorService imageProcessingExecutor = Executors.newFixedThreadPool(2);
+    private final AtomicInteger currentQuality = new AtomicInteger(CaptureConfig.DEFAULT.maxQuality);
+    
+    // Frames are split into horizontal strips that are encoded in parallel, one
+    // per core. Strip heights are multiples of the 16 pixel JPEG block size so
+    // the seams don't add artifacts.
+    private static final int ENCODER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int MIN_STRIP_HEIGHT = 128;
+    private static final int STRIP_ALIGNMENT = 16;
+    // A frame whose strips aren't all encoded by then is dropped
+    private static final int FRAME_BUDGET_MULTIPLIER = 2;
+    private final ExecutorService imageProcessingExecutor = Executors.newFixedThreadPool(ENCODER_THREADS,
+            runnable -> new Thread(() -> {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_DISPLAY);
+                runnable.run();
+            }, "FrameEncoder"));
+    private final FrameEncoderRegistry encoderRegistry = new FrameEncoderRegistry();
+    private final ThreadLocal<ContentClassifier> classifiers = new ThreadLocal<ContentClassifier>() {
+        @Override
+        protected ContentClassifier initialValue() {
+            return new ContentClassifier();
+        }
+    };
+    private Bitmap captureBitmap;
+    private ByteBuffer captureRows;
+    private Bitmap[] stripBitmaps = new Bitmap[0];
+    private ByteBuffer[] stripRows = new ByteBuffer[0];
+    private volatile boolean stripEncodingEnabled = true;
+    private volatile long framesOverBudget;
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     
     private byte[] previousFrame;
@@ -51,45 +91,95 @@ public class ScreenCaptureService extends Service {
     private static final int MAX_DROPPED_FRAMES = 30;
     
     private Runtime runtime;
-    private static final double MEMORY_THRESHOLD = 0.8; // 80% memory usage threshold
     private static final String TAG = "ScreenCaptureService";
     private static final int NOTIFICATION_ID = 2;
     private static final String CHANNEL_ID = "ScreenCaptureChannel";
     
-    private static final int SCREEN_CAPTURE_WIDTH = 720;  // Reduced resolution for streaming
-    private static final int SCREEN_CAPTURE_HEIGHT = 1280;
     private static final int SCREEN_DENSITY = DisplayMetrics.DENSITY_DEFAULT;
     
     private MediaProjection mediaProjection;
     private VirtualDisplay virtualDisplay;
-    private ImageReader imageReader;
+    private ImageReaderFrameSource projectionSource;
+    private volatile SyntheticFrameSource syntheticSource;
     private Handler handler;
     private Timer timer;
     private AtomicBoolean isCapturing = new AtomicBoolean(false);
+    private AudioStreamer audioStreamer;
     
     // Singleton instance for easy access from outside
     private static ScreenCaptureService instance;
     
-    // Callback interface for when new screenshots are available
-    public interface OnScreenCaptureListener {
-        void onScreenCaptureAvailable(byte[] jpegData);
-    }
+    // Acquire, encode and publish. Frames go to FrameBus.screen(), whose
+    // subscribers choose their own threads, so delivery is direct.
+    private final CapturePipeline pipeline = new CapturePipeline(this::encodeImage, Runnable::run,
+            InputScheduler::awaitInputIdle);
+    // With no active subscriber on either bus the virtual display is detached
+    // from its surface, so the compositor stops rendering into it
+    private boolean surfaceAttached = true;
     
-    private OnScreenCaptureListener captureListener;
+    // Thumbnails for dashboards, published on FrameBus.preview(). They are
+    // box-filtered straight from the captured plane, so no full-resolution
+    // encode is involved, and one thumbnail is shared by every preview viewer.
+    private static final int PREVIEW_WIDTH = 180;
+    private static final long PREVIEW_INTERVAL_MS = 500;
+    private static final int PREVIEW_QUALITY = 70;
+    private final ThumbnailScaler thumbnailScaler = new ThumbnailScaler(PREVIEW_WIDTH);
+    private long lastPreviewTime;
+    private long previewSequence;
     
-    public void setOnScreenCaptureListener(OnScreenCaptureListener listener) {
-        this.captureListener = listener;
-    }
+    // Native-resolution snapshots
+    private static final long SNAPSHOT_TIMEOUT_MS = 2000;
     
     public static ScreenCaptureService getInstance() {
         return instance;
     }
     
+    public static CaptureConfig getConfig() {
+        return config.get();
+    }
+    
+    // Persists the config and hands it to the running capture loop, if any
+    public static void setConfig(Context context, CaptureConfig next) {
+        next.validate();
+        next.save(context);
+        config.set(next);
+    }
+    
+    public static void loadConfig(Context context) {
+        config.set(CaptureConfig.load(context));
+    }
+    
+    // Also sees every captured frame before it is encoded, on the capture
+    // thread; static like the config, since either service may start first
+    public static void setRawFrameObserver(CapturePipeline.FrameObserver observer) {
+        rawFrameObserver = observer;
+    }
+    
+    // Playback capture shares the screen's MediaProjection and needs Android 10+
+    public synchronized boolean startAudioStream(AudioStreamer.OnAudioPacketListener listener) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || mediaProjection == null) {
+            return false;
+        }
+        if (audioStreamer == null) {
+            audioStreamer = new AudioStreamer(mediaProjection, listener);
+        }
+        return audioStreamer.start();
+    }
+    
+    public synchronized void stopAudioStream() {
+        if (audioStreamer != null) {
+            audioStreamer.stop();
+            audioStreamer = null;
+        }
+    }
+    
     @Override
     public void onCreate() {
         super.onCreate();
         instance = this;
         handler = new Handler();
+        pipeline.setFrameObserver(this::observeFrame);
+        loadConfig(this);
     }
     
     @Override
@@ -119,8 +209,6 @@ public class ScreenCaptureService extends Service {
     }
     
     private void startForeground() {
-
-        Notification 0.3s
         NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -138,7 +226,16 @@ public class ScreenCaptureService extends Service {
                 .setSmallIcon(R.drawable.ic_notification)
                 .build();
         
-        startForeground(NOTIFICATION_ID, notification);
+        // The types must match the manifest. The microphone type (Android 11+)
+        // keeps AudioRecord working while the app is in the background.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PROJECTION
+                    | ServiceInfo.FOREGROUND_SERVICE_TYPE_MICROPHONE);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PROJECTION);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
     }
     
     public void startCapture(int resultCode, Intent data) {
@@ -155,27 +252,23 @@ public class ScreenCaptureService extends Service {
         }
         
         // Create virtual display with reduced resolution for better performance
-        WindowManager windowManager = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
-        DisplayMetrics metrics = new DisplayMetrics();
-        windowManager.getDefaultDisplay().getMetrics(metrics);
-        
-        // Scale down proportionally based on the device's aspect ratio
-        int width = SCREEN_CAPTURE_WIDTH;
-        int height = SCREEN_CAPTURE_HEIGHT;
+        activeConfig = config.get();
+        int[] size = captureSize(activeConfig);
+        captureWidth = size[0];
+        captureHeight = size[1];
+        clampToConfig(activeConfig);
         
-        if (metrics.widthPixels > metrics.heightPixels) {
-            // Landscape
-            width = SCREEN_CAPTURE_HEIGHT;
-            height = SCREEN_CAPTURE_WIDTH;
+        projectionSource = new ImageReaderFrameSource(captureWidth, captureHeight);
+        if (syntheticSource == null) {
+            pipeline.setSource(projectionSource);
         }
         
-        imageReader = ImageReader.newInstance(width, height, PixelFormat.RGBA_8888, 2);
-        
+        surfaceAttached = true;
         virtualDisplay = mediaProjection.createVirtualDisplay(
                 "ScreenCapture",
-                width, height, SCREEN_DENSITY,
+                captureWidth, captureHeight, SCREEN_DENSITY,
                 DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                imageReader.getSurface(), null, handler
+                projectionSource.getSurface(), null, handler
         );
         
         // Start the capture timer
@@ -185,6 +278,7 @@ public class ScreenCaptureService extends Service {
     
     public void stopCapture() {
         isCapturing.set(false);
+        stopAudioStream();
         
         if (timer != null) {
             timer.cancel();
@@ -196,9 +290,11 @@ public class ScreenCaptureService extends Service {
             virtualDisplay = null;
         }
         
-        if (imageReader != null) {
-            imageReader.close();
-            imageReader = null;
+        pipeline.setSource(null);
+        syntheticSource = null;
+        if (projectionSource != null) {
+            projectionSource.close();
+            projectionSource = null;
         }
         
         if (mediaProjection != null) {
@@ -207,13 +303,81 @@ public class ScreenCaptureService extends Service {
         }
     }
     
+    // Scale down proportionally based on the device's aspect ratio
+    private int[] captureSize(CaptureConfig captureConfig) {
+        WindowManager windowManager = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
+        DisplayMetrics metrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getMetrics(metrics);
+        
+        if (metrics.widthPixels > metrics.heightPixels) {
+            // Landscape
+            return new int[] {captureConfig.height, captureConfig.width};
+        }
+        return new int[] {captureConfig.width, captureConfig.height};
+    }
+    
+    private void clampToConfig(CaptureConfig captureConfig) {
+        currentFrameRate.set(Math.max(captureConfig.minFrameRate,
+                Math.min(captureConfig.maxFrameRate, currentFrameRate.get())));
+        currentQuality.set(Math.max(captureConfig.minQuality,
+                Math.min(captureConfig.maxQuality, currentQuality.get())));
+    }
+    
+    // Runs on the timer thread between frames, so no frame is ever encoded
+    // under a mix of old and new settings. The MediaProjection is kept; only the
+    // virtual display is resized onto a new ImageReader.
+    private void applyPendingConfig() {
+        CaptureConfig next = config.get();
+        CaptureConfig previous = activeConfig;
+        if (next == previous) {
+            return;
+        }
+        activeConfig = next;
+        clampToConfig(next);
+        
+        if (!next.sameResolution(previous) && virtualDisplay != null) {
+            int[] size = captureSize(next);
+            ImageReaderFrameSource oldSource = projectionSource;
+            projectionSource = new ImageReaderFrameSource(size[0], size[1]);
+            virtualDisplay.resize(size[0], size[1], SCREEN_DENSITY);
+            if (surfaceAttached) {
+                virtualDisplay.setSurface(projectionSource.getSurface());
+            }
+            if (syntheticSource == null) {
+                pipeline.setSource(projectionSource);
+            }
+            captureWidth = size[0];
+            captureHeight = size[1];
+            if (oldSource != null) {
+                oldSource.close();
+            }
+        }
+        Log.i(TAG, "Applied capture config " + next.toJson());
+        
+        if (next.maxFrameRate != previous.maxFrameRate && timer != null) {
+            timer.cancel();
+            timer = null;
+            startCaptureTimer();
+        }
+    }
+    
     private void startCaptureTimer() {
         runtime = Runtime.getRuntime();
         timer = new Timer();
+        // Tick at the highest allowed rate; each tick decides whether a frame is due
         timer.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
-                if (imageReader != null && isCapturing.get()) {
+                if (pipeline.getSource() != null && isCapturing.get()) {
+                    applyPendingConfig();
+                    boolean streamWanted = FrameBus.screen().hasActiveSubscribers();
+                    boolean previewWanted = FrameBus.preview().hasActiveSubscribers();
+                    setSurfaceAttached(streamWanted || previewWanted);
+                    if (!streamWanted && !previewWanted) {
+                        return; // Nobody is watching
+                    }
+                    // Thumbnails alone don't need the full-size encode
+                    pipeline.setSink(streamWanted ? FrameBus.screen() : null);
                     long now = System.currentTimeMillis();
                     if (now - lastFrameTime < 1000 / currentFrameRate.get()) {
                         return; // Skip frame if too soon
@@ -223,7 +387,7 @@ public class ScreenCaptureService extends Service {
                     double memoryUsage = (runtime.totalMemory() - runtime.freeMemory()) / 
                             (double) runtime.maxMemory();
                     
-                    if (memoryUsage > MEMORY_THRESHOLD) {
+                    if (memoryUsage > activeConfig.memoryThreshold) {
                         // Reduce quality and frame rate under memory pressure
                         adjustPerformance(true);
                     } else if (droppedFrames < MAX_DROPPED_FRAMES / 2) {
@@ -235,56 +399,337 @@ public class ScreenCaptureService extends Service {
                     lastFrameTime = now;
                 }
             }
-        }, 0, 1000 / INITIAL_FRAME_RATE);
+        }, 0, 1000 / activeConfig.maxFrameRate);
     }
     
+    // The timer already ticks at the maximum rate, so changing the target rate
+    // needs no timer restart
     private void adjustPerformance(boolean reduce) {
+        CaptureConfig bounds = activeConfig;
         if (reduce) {
-            int newFrameRate = Math.max(MIN_FRAME_RATE, currentFrameRate.get() - 5);
-            int newQuality = Math.max(QUALITY_LOW, currentQuality.get() - 10);
+            int newFrameRate = Math.max(bounds.minFrameRate, currentFrameRate.get() - 5);
+            int newQuality = Math.max(bounds.minQuality, currentQuality.get() - 10);
             currentFrameRate.set(newFrameRate);
             currentQuality.set(newQuality);
             droppedFrames = 0;
         } else {
-            int newFrameRate = Math.min(MAX_FRAME_RATE, currentFrameRate.get() + 1);
-            int newQuality = Math.min(QUALITY_HIGH, currentQuality.get() + 5);
+            int newFrameRate = Math.min(bounds.maxFrameRate, currentFrameRate.get() + 1);
+            int newQuality = Math.min(bounds.maxQuality, currentQuality.get() + 5);
             currentFrameRate.set(newFrameRate);
             currentQuality.set(newQuality);
         }
-        
-        // Update timer interval
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
-            startCaptureTimer();
-        }
     }
     
     private void captureScreen() {
-        if (imageReader == null || !isCapturing.get()) {
+        if (!isCapturing.get()) {
             return;
         }
         
-        Image image = null;
         droppedFrames++;
         try {
-            image = imageReader.acquireLatestImage();
-            if (image != null) {
-                // Convert the image to JPEG bytes
-                byte[] jpegData = imageToByte(image);
-                
-                // Call the listener on the main thread
-                if (captureListener != null && jpegData != null) {
-                    final byte[] finalJpegData = jpegData;
-                    handler.post(() -> captureListener.onScreenCaptureAvailable(finalJpegData));
-                }
-            }
+            pipeline.captureOnce();
         } catch (Exception e) {
             Log.e(TAG, "Error capturing screen", e);
-        } finally {
-            if (image != null) {
+        }
+    }
+    
+    private void setSurfaceAttached(boolean attached) {
+        if (attached == surfaceAttached || virtualDisplay == null || projectionSource == null) {
+            return;
+        }
+        surfaceAttached = attached;
+        virtualDisplay.setSurface(attached ? projectionSource.getSurface() : null);
+    }
+    
+    private void observeFrame(RawFrame frame) {
+        CapturePipeline.FrameObserver observer = rawFrameObserver;
+        if (observer != null) {
+            observer.onRawFrame(frame);
+        }
+        capturePreview(frame);
+    }
+    
+    private void capturePreview(RawFrame frame) {
+        long now = System.currentTimeMillis();
+        if (!FrameBus.preview().hasActiveSubscribers() || now - lastPreviewTime < PREVIEW_INTERVAL_MS) {
+            return;
+        }
+        lastPreviewTime = now;
+        
+        int[] pixels = thumbnailScaler.scale(frame.rgba, frame.width, frame.height,
+                frame.rowStride, frame.pixelStride);
+        if (pixels.length == 0) {
+            return;
+        }
+        Bitmap thumbnail = Bitmap.createBitmap(pixels, thumbnailScaler.getOutputWidth(),
+                thumbnailScaler.getOutputHeight(), Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.JPEG, PREVIEW_QUALITY, out);
+        thumbnail.recycle();
+        long nanos = System.nanoTime();
+        FrameBus.preview().publish(new CapturedFrame(out.toByteArray(), FrameEncoder.CODEC_JPEG,
+                previewSequence++, nanos, nanos, nanos));
+    }
+    
+    @Override
+    public long getFrameSequence() {
+        return pipeline.getFrameSequence();
+    }
+    
+    // Replaces the screen with a deterministic synthetic scene at the current
+    // capture size, so performance runs on a device encode the same pixels
+    // every time; null goes back to the screen. Only takes effect while
+    // capture is running.
+    public void setSyntheticScene(String scene) {
+        SyntheticFrameSource synthetic = scene != null
+                ? new SyntheticFrameSource(scene, captureWidth, captureHeight, 0) : null;
+        syntheticSource = synthetic;
+        pipeline.setSource(synthetic != null ? synthetic : projectionSource);
+    }
+    
+    public String getSyntheticScene() {
+        SyntheticFrameSource synthetic = syntheticSource;
+        return synthetic != null ? synthetic.getScene() : null;
+    }
+    
+    // Grabs one frame at the display's real resolution through a short-lived
+    // second virtual display on the same projection, so the stream keeps its
+    // reduced size and its ImageReader. Blocks the calling thread; the
+    // display is set up and torn down on the capture handler.
+    @Override
+    public Bitmap captureNativeFrame() throws TimeoutException {
+        MediaProjection projection = mediaProjection;
+        if (projection == null || !isCapturing.get()) {
+            return null;
+        }
+        WindowManager windowManager = (WindowManager) getSystemService(Context.WINDOW_SERVICE);
+        DisplayMetrics metrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getRealMetrics(metrics);
+        
+        final ImageReader reader = ImageReader.newInstance(metrics.widthPixels, metrics.heightPixels,
+                PixelFormat.RGBA_8888, 2);
+        final AtomicReference<Bitmap> result = new AtomicReference<>();
+        final CountDownLatch captured = new CountDownLatch(1);
+        reader.setOnImageAvailableListener(availableReader -> {
+            Image image = availableReader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            try {
+                if (captured.getCount() > 0) {
+                    result.set(copyToBitmap(image));
+                    captured.countDown();
+                }
+            } finally {
                 image.close();
             }
+        }, handler);
+        
+        VirtualDisplay snapshotDisplay = null;
+        try {
+            snapshotDisplay = projection.createVirtualDisplay("Snapshot",
+                    metrics.widthPixels, metrics.heightPixels, metrics.densityDpi,
+                    DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR, reader.getSurface(), null, handler);
+            if (!captured.await(SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException("No screen frame within " + SNAPSHOT_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error capturing snapshot", e);
+        } finally {
+            // Torn down on the handler so it never races the image listener
+            final VirtualDisplay display = snapshotDisplay;
+            handler.post(() -> {
+                if (display != null) {
+                    display.release();
+                }
+                reader.close();
+            });
+        }
+        return result.get();
+    }
+    
+    private static Bitmap copyToBitmap(Image image) {
+        Image.Plane plane = image.getPlanes()[0];
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int paddedWidth = plane.getRowStride() / plane.getPixelStride();
+        Bitmap padded = Bitmap.createBitmap(paddedWidth, height, Bitmap.Config.ARGB_8888);
+        ByteBuffer buffer = plane.getBuffer();
+        buffer.rewind();
+        padded.copyPixelsFromBuffer(buffer);
+        if (paddedWidth == width) {
+            return padded;
         }
+        Bitmap bitmap = Bitmap.createBitmap(padded, 0, 0, width, height);
+        padded.recycle();
+        return bitmap;
+    }
+    
+    // Viewers that can only display a single image turn strip encoding off
+    public void setStripEncodingEnabled(boolean enabled) {
+        stripEncodingEnabled = enabled;
+    }
+    
+    private EncodedImage encodeImage(RawFrame frame) throws Exception {
+        int width = frame.width;
+        int height = frame.height;
+        int stripCount = stripEncodingEnabled ? Math.min(ENCODER_THREADS, height / MIN_STRIP_HEIGHT) : 1;
+        
+        if (stripCount <= 1) {
+            return encodeWhole(frame.rgba, frame.rowStride, width, height);
+        }
+        return encodeStrips(frame.rgba, frame.rowStride, width, height, stripCount);
+    }
+    
+    // Copies the RGBA plane into a reused bitmap and encodes it with whichever
+    // codec currently suits the content. Runs on the encoder pool like strips
+    // do, so the capture timer only waits for the result.
+    private EncodedImage encodeWhole(final ByteBuffer buffer, final int rowStride,
+                                                          final int width, final int height) throws Exception {
+        if (captureBitmap == null || captureBitmap.getWidth() != width || captureBitmap.getHeight() != height) {
+            if (captureBitmap != null) {
+                captureBitmap.recycle();
+            }
+            captureBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            captureRows = ByteBuffer.allocate(width * height * 4);
+        }
+        
+        final Bitmap bitmap = captureBitmap;
+        final ByteBuffer packed = captureRows;
+        final int quality = currentQuality.get();
+        final long budgetMicros = 1_000_000L / currentFrameRate.get();
+        List<Future<EncodedImage>> futures = Collections.singletonList(
+                imageProcessingExecutor.submit(() -> {
+                    copyRows(buffer, rowStride, 0, height, width, packed, bitmap);
+                    return encoderRegistry.encode(bitmap, quality, budgetMicros, classifiers.get());
+                }));
+        List<EncodedImage> encoded = awaitAll(futures, budgetMicros);
+        return encoded != null ? encoded.get(0) : null;
+    }
+    
+    // Each worker copies its own rows out of the frame buffer and encodes them, so
+    // both the copy and the encode run in parallel. The frame stays open until
+    // every strip is done, and strips are packed in order whatever order they
+    // finish in.
+    private EncodedImage encodeStrips(final ByteBuffer buffer, final int rowStride,
+                                                           final int width, int height, int stripCount) throws Exception {
+        int stripHeight = (height + stripCount - 1) / stripCount;
+        stripHeight = (stripHeight + STRIP_ALIGNMENT - 1) / STRIP_ALIGNMENT * STRIP_ALIGNMENT;
+        stripCount = (height + stripHeight - 1) / stripHeight;
+        
+        if (stripBitmaps.length != stripCount || stripBitmaps[0].getWidth() != width
+                || stripBitmaps[0].getHeight() != stripHeight) {
+            for (Bitmap strip : stripBitmaps) {
+                strip.recycle();
+            }
+            stripBitmaps = new Bitmap[stripCount];
+            stripRows = new ByteBuffer[stripCount];
+            for (int i = 0; i < stripCount; i++) {
+                int rows = Math.min(stripHeight, height - i * stripHeight);
+                stripBitmaps[i] = Bitmap.createBitmap(width, rows, Bitmap.Config.ARGB_8888);
+                stripRows[i] = ByteBuffer.allocate(width * rows * 4);
+            }
+        }
+        
+        long start = System.nanoTime();
+        final int quality = currentQuality.get();
+        final long budgetMicros = 1_000_000L / currentFrameRate.get();
+        List<Future<StripFrame.Strip>> futures = new ArrayList<>(stripCount);
+        for (int i = 0; i < stripCount; i++) {
+            final Bitmap stripBitmap = stripBitmaps[i];
+            final ByteBuffer packed = stripRows[i];
+            final int y = i * stripHeight;
+            futures.add(imageProcessingExecutor.submit(() -> {
+                copyRows(buffer, rowStride, y, stripBitmap.getHeight(), width, packed, stripBitmap);
+                EncodedImage encoded = encoderRegistry.encode(stripBitmap, quality,
+                        budgetMicros, classifiers.get());
+                if (encoded == null) {
+                    throw new IllegalStateException("Strip encoding failed");
+                }
+                return new StripFrame.Strip(encoded.codec, y, stripBitmap.getHeight(), encoded.data);
+            }));
+        }
+        
+        List<StripFrame.Strip> strips = awaitAll(futures, budgetMicros);
+        if (strips == null) {
+            return null;
+        }
+        // Content classes differ per strip
+        return new EncodedImage(FrameEncoder.CODEC_STRIPS, -1,
+                StripFrame.pack(width, height, strips), (System.nanoTime() - start) / 1000);
+    }
+    
+    // Fills the bitmap from rows of the frame buffer. When rows are padded past
+    // the visible width they are packed into a reused buffer first, instead of
+    // cropping a new bitmap every frame.
+    private static void copyRows(ByteBuffer buffer, int rowStride, int firstRow, int rows, int width,
+                                 ByteBuffer packed, Bitmap target) {
+        ByteBuffer source = buffer.duplicate();
+        int rowBytes = width * 4;
+        if (rowStride == rowBytes) {
+            source.position(firstRow * rowStride);
+            target.copyPixelsFromBuffer(source);
+            return;
+        }
+        packed.clear();
+        for (int row = 0; row < rows; row++) {
+            int offset = (firstRow + row) * rowStride;
+            source.limit(offset + rowBytes).position(offset);
+            packed.put(source);
+        }
+        packed.flip();
+        target.copyPixelsFromBuffer(packed);
+    }
+    
+    // Waits for every encode up to the frame budget. Returns the results in
+    // order, or null when one failed or ran out of time.
+    private <T> List<T> awaitAll(List<Future<T>> futures, long budgetMicros) throws InterruptedException {
+        long deadline = System.nanoTime() + budgetMicros * 1000 * FRAME_BUDGET_MULTIPLIER;
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+            return results;
+        } catch (TimeoutException | ExecutionException e) {
+            if (e instanceof TimeoutException) {
+                // Better to skip this frame than to let every later one fall behind
+                framesOverBudget++;
+            } else {
+                Log.e(TAG, "Error encoding frame", e.getCause());
+            }
+            // Nothing is cancelled: a cancelled future returns from get() at once
+            // while its task may still be running, and the workers read the frame
+            // buffer and write the reused bitmaps until they finish. The frame is
+            // only closed, and the bitmaps reused, once every task has returned.
+            for (Future<T> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ignored) {
+                    // Failed; the frame is dropped either way
+                }
+            }
+            return null;
+        }
+    }
+    
+    public String getCaptureStatsJson() {
+        CaptureConfig applied = activeConfig;
+        return "{\"frameRate\":" + currentFrameRate.get() +
+                ",\"quality\":" + currentQuality.get() +
+                ",\"width\":" + captureWidth +
+                ",\"height\":" + captureHeight +
+                ",\"configPending\":" + (applied != config.get()) +
+                ",\"config\":" + applied.toJson() + "}";
+    }
+    
+    public String getEncoderStatsJson() {
+        return "{\"threads\":" + ENCODER_THREADS +
+                ",\"strips\":" + stripBitmaps.length +
+                ",\"framesOverBudget\":" + framesOverBudget +
+                ",\"pipeline\":" + pipeline.statsJson() +
+                ",\"codecs\":" + encoderRegistry.toJson() + "}";
     }
 }
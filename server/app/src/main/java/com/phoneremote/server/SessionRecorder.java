@@ -0,0 +1,396 @@
+package com.phoneremote.server;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records frames and input events into preallocated, memory-mapped segment
+// files. Callers only enqueue; a single writer thread copies into the mapping,
+// so a slow disk drops recorded frames instead of stalling the live stream.
+//
+// Segment layout (big-endian):
+//   header  : magic "PRCS", version int, start wall-clock millis, data end long, reserved
+//   records : type byte, 3 reserved bytes, payload length int, micros since start long, payload
+// Each closed segment has a sibling ".idx" file: count int, then (micros, offset) longs
+// for every frame record, so playback can seek with a binary search.
+public class SessionRecorder {
+    private static final String TAG = "SessionRecorder";
+
+    public static final byte RECORD_FRAME = 1;
+    public static final byte RECORD_INPUT = 2;
+
+    private static final int MAGIC = 0x50524353; // "PRCS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int DATA_END_OFFSET = 16;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final String SEGMENT_SUFFIX = ".prcs";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    private final File directory;
+    private final long segmentSize;
+    private final int maxSegments;
+
+    // Queued by stop() behind everything already recorded. The writer is never
+    // interrupted: an interrupt during a channel operation closes the channel,
+    // and the segment could then no longer be truncated.
+    private static final Record STOP = new Record((byte) 0, new byte[0], 0);
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private volatile boolean recording;
+    // Set until the writer has closed its segment and exited; guarded by this
+    private Thread writerThread;
+
+    // Writer thread state
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer mapped;
+    private File segmentPath;
+    private long segmentStartNanos;
+    private volatile SegmentIndex activeIndex;
+
+    private static class Record {
+        final byte type;
+        final byte[] payload;
+        final long timestampNanos;
+
+        Record(byte type, byte[] payload, long timestampNanos) {
+            this.type = type;
+            this.payload = payload;
+            this.timestampNanos = timestampNanos;
+        }
+    }
+
+    // Growable parallel arrays; readers take a consistent prefix via size
+    private static class SegmentIndex {
+        final String name;
+        long[] micros = new long[1024];
+        long[] offsets = new long[1024];
+        volatile int size;
+
+        SegmentIndex(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(long time, long offset) {
+            if (size == micros.length) {
+                micros = Arrays.copyOf(micros, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            micros[size] = time;
+            offsets[size] = offset;
+            size++;
+        }
+
+        synchronized long find(long time) {
+            if (size == 0) {
+                return -1;
+            }
+            int pos = Arrays.binarySearch(micros, 0, size, time);
+            if (pos < 0) {
+                pos = Math.max(0, -pos - 2);
+            }
+            return offsets[pos];
+        }
+    }
+
+    public SessionRecorder(File directory, long segmentSize, int maxSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+    }
+
+    public synchronized void start() {
+        if (recording) {
+            return;
+        }
+        // Only one writer at a time: a stopped or failed one may still be
+        // closing its segment, and the two would share the writer state
+        if (!awaitWriterExit()) {
+            Log.e(TAG, "Previous writer is still closing its segment");
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + directory);
+            return;
+        }
+        // Records that raced with the previous writer's exit
+        queue.clear();
+        recording = true;
+        writerThread = new Thread(this::writeLoop, "SessionRecorder");
+        writerThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!recording) {
+            return;
+        }
+        recording = false;
+        try {
+            if (!queue.offer(STOP, STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Writer did not take the stop request");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!awaitWriterExit()) {
+            // start() waits for it again before another writer can begin
+            Log.e(TAG, "Writer did not finish in time");
+        }
+    }
+
+    // Caller holds the lock, which wait() gives up so the writer can finish.
+    // Returns false if the writer is still running after STOP_TIMEOUT_MS.
+    private boolean awaitWriterExit() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MS);
+        try {
+            while (writerThread != null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public void recordFrame(byte[] jpegData, long timestampNanos) {
+        enqueue(new Record(RECORD_FRAME, jpegData, timestampNanos));
+    }
+
+    public void recordInput(String command, String value, long timestampNanos) {
+        String text = value != null ? command + "=" + value : command;
+        enqueue(new Record(RECORD_INPUT, text.getBytes(StandardCharsets.UTF_8), timestampNanos));
+    }
+
+    private void enqueue(Record record) {
+        if (recording && !queue.offer(record)) {
+            droppedRecords.incrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            Record record;
+            while ((record = queue.take()) != STOP) {
+                append(record);
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Writer interrupted", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Recording failed", e);
+        } finally {
+            closeSegment();
+            // Only now can start() launch another writer
+            synchronized (this) {
+                queue.clear();
+                recording = false;
+                writerThread = null;
+                notifyAll();
+            }
+        }
+    }
+
+    private void append(Record record) throws IOException {
+        long needed = RECORD_HEADER_SIZE + record.payload.length;
+        if (needed > segmentSize - HEADER_SIZE) {
+            droppedRecords.incrementAndGet();
+            return;
+        }
+        if (mapped == null || mapped.remaining() < needed) {
+            closeSegment();
+            openSegment(record.timestampNanos);
+        }
+
+        long offset = mapped.position();
+        long micros = (record.timestampNanos - segmentStartNanos) / 1000;
+        mapped.put(record.type).put((byte) 0).put((byte) 0).put((byte) 0);
+        mapped.putInt(record.payload.length);
+        mapped.putLong(micros);
+        mapped.put(record.payload);
+        // Publish the new end only after the record is complete, so a crash never
+        // leaves a torn record inside the readable range
+        mapped.putLong(DATA_END_OFFSET, mapped.position());
+
+        if (record.type == RECORD_FRAME) {
+            activeIndex.add(micros, offset);
+        }
+    }
+
+    private void openSegment(long startNanos) throws IOException {
+        segmentStartNanos = startNanos;
+        segmentPath = new File(directory, "session_" + System.currentTimeMillis() + SEGMENT_SUFFIX);
+        segmentFile = new RandomAccessFile(segmentPath, "rw");
+        segmentFile.setLength(segmentSize);
+        mapped = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        mapped.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putLong(HEADER_SIZE).putLong(0);
+        activeIndex = new SegmentIndex(segmentPath.getName());
+        enforceDiskLimit();
+    }
+
+    private void closeSegment() {
+        if (mapped == null) {
+            return;
+        }
+        SegmentIndex index = activeIndex;
+        long end = mapped.position();
+        try {
+            mapped.force();
+            writeIndex(index);
+            // Give back the unused preallocation
+            segmentFile.getChannel().truncate(end);
+            segmentFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing segment " + segmentPath, e);
+        }
+        mapped = null;
+        segmentFile = null;
+        activeIndex = null;
+    }
+
+    private void writeIndex(SegmentIndex index) throws IOException {
+        File file = new File(directory, index.name + INDEX_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            synchronized (index) {
+                out.writeInt(index.size);
+                for (int i = 0; i < index.size; i++) {
+                    out.writeLong(index.micros[i]);
+                    out.writeLong(index.offsets[i]);
+                }
+            }
+        }
+    }
+
+    private void enforceDiskLimit() {
+        File[] segments = listSegmentFiles();
+        for (int i = 0; i < segments.length - maxSegments; i++) {
+            new File(directory, segments[i].getName() + INDEX_SUFFIX).delete();
+            if (!segments[i].delete()) {
+                Log.e(TAG, "Could not delete old segment " + segments[i]);
+            }
+        }
+    }
+
+    private File[] listSegmentFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // Names embed the creation time, so lexical order is chronological
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        return files;
+    }
+
+    public List<File> listSegments() {
+        return new ArrayList<>(Arrays.asList(listSegmentFiles()));
+    }
+
+    public File getSegment(String name) {
+        if (name == null || name.contains("/") || !name.endsWith(SEGMENT_SUFFIX)) {
+            return null;
+        }
+        File file = new File(directory, name);
+        return file.isFile() ? file : null;
+    }
+
+    // Returns the frame shown at the given offset into a segment, or null
+    public byte[] readFrameAt(String segmentName, long offsetMillis) throws IOException {
+        File file = getSegment(segmentName);
+        if (file == null) {
+            return null;
+        }
+
+        long micros = offsetMillis * 1000;
+        SegmentIndex active = activeIndex;
+        long recordOffset;
+        if (active != null && active.name.equals(segmentName)) {
+            recordOffset = active.find(micros);
+        } else {
+            recordOffset = findInIndexFile(new File(directory, segmentName + INDEX_SUFFIX), micros);
+        }
+        if (recordOffset < 0) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            channel.read(header, recordOffset);
+            header.flip();
+            if (header.get() != RECORD_FRAME) {
+                return null;
+            }
+            header.position(4);
+            int length = header.getInt();
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            long position = recordOffset + RECORD_HEADER_SIZE;
+            while (payload.hasRemaining()) {
+                int read = channel.read(payload, position + payload.position());
+                if (read < 0) {
+                    return null;
+                }
+            }
+            return payload.array();
+        }
+    }
+
+    // Index entries are fixed size, so the file is binary searched in place
+    private long findInIndexFile(File indexFile, long micros) throws IOException {
+        if (!indexFile.isFile()) {
+            return -1;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+            int count = raf.readInt();
+            if (count == 0) {
+                return -1;
+            }
+            int low = 0;
+            int high = count - 1;
+            int best = 0; // Before the first frame, show the first frame
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                raf.seek(4 + mid * 16L);
+                if (raf.readLong() <= micros) {
+                    best = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            raf.seek(4 + best * 16L + 8);
+            return raf.readLong();
+        }
+    }
+}
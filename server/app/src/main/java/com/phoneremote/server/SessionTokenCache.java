@@ -0,0 +1,122 @@
+package com.phoneremote.server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Issues short-lived session tokens after a single credential check so that
+// per-request auth is a hash lookup instead of Base64 decoding and splitting.
+public class SessionTokenCache {
+    private static final int TOKEN_BYTES = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final SecureRandom random = new SecureRandom();
+
+    // Keyed by the SHA-256 digest of the token, so the timing of the map lookup
+    // reveals nothing about the token itself
+    private final Map<String, Long> expiryByDigest = new ConcurrentHashMap<>();
+
+    public SessionTokenCache(long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+    }
+
+    public String issue() {
+        byte[] raw = new byte[TOKEN_BYTES];
+        random.nextBytes(raw);
+        String token = toHex(raw);
+
+        long now = System.currentTimeMillis();
+        if (expiryByDigest.size() >= maxEntries) {
+            evict(now);
+        }
+        expiryByDigest.put(digest(token), now + ttlMillis);
+        return token;
+    }
+
+    public boolean validate(String token) {
+        if (token == null || token.length() != TOKEN_BYTES * 2) {
+            return false;
+        }
+
+        String key = digest(token);
+        Long expiry = expiryByDigest.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry < System.currentTimeMillis()) {
+            expiryByDigest.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    public void revoke(String token) {
+        if (token != null) {
+            expiryByDigest.remove(digest(token));
+        }
+    }
+
+    public void clear() {
+        expiryByDigest.clear();
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    // Only runs when the cache is full: drop expired entries first, then the
+    // entry closest to expiry if the cache is still at capacity
+    private void evict(long now) {
+        String oldestKey = null;
+        long oldestExpiry = Long.MAX_VALUE;
+
+        Iterator<Map.Entry<String, Long>> it = expiryByDigest.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            long expiry = entry.getValue();
+            if (expiry < now) {
+                it.remove();
+            } else if (expiry < oldestExpiry) {
+                oldestExpiry = expiry;
+                oldestKey = entry.getKey();
+            }
+        }
+
+        if (expiryByDigest.size() >= maxEntries && oldestKey != null) {
+            expiryByDigest.remove(oldestKey);
+        }
+    }
+
+    // Constant-time comparison for credential checks done at login
+    public static boolean constantTimeEquals(String a, String b) {
+        if (a == null || b == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(a.getBytes(), b.getBytes());
+    }
+
+    private static String digest(String token) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return toHex(md.digest(token.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int v = bytes[i] & 0xFF;
+            out[i * 2] = HEX[v >>> 4];
+            out[i * 2 + 1] = HEX[v & 0x0F];
+        }
+        return new String(out);
+    }
+}
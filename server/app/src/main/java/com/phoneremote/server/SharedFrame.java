@@ -0,0 +1,40 @@
+package com.phoneremote.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A published frame shared by every FrameBus subscriber without copying. Each
+// holder owns one reference: retain() before handing the frame to another
+// thread or keeping it past the callback, release() when done. The last
+// release runs the publisher's hook, after which the frame must not be used.
+// The count only tracks lifetime: encoders allocate a fresh array per frame
+// and nothing recycles it, so a freed frame's bytes are left to the GC.
+public class SharedFrame {
+    public final CapturedFrame frame;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final Runnable onFreed;
+
+    SharedFrame(CapturedFrame frame, Runnable onFreed) {
+        this.frame = frame;
+        this.onFreed = onFreed;
+    }
+
+    public SharedFrame retain() {
+        int previous = references.getAndIncrement();
+        if (previous <= 0) {
+            references.getAndDecrement();
+            throw new IllegalStateException("Frame " + frame.sequence + " already freed");
+        }
+        return this;
+    }
+
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if (remaining == 0) {
+            if (onFreed != null) {
+                onFreed.run();
+            }
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame " + frame.sequence + " released too often");
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.phoneremote.server;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeoutException;
+
+// Lossless native-resolution screenshots, cached by the stream frame sequence
+// they were taken at. All requests that arrive during the same stream frame
+// share one native capture, and requests that also agree on format and region
+// share one encode: the first request runs the work on its own thread and the
+// rest wait for its result.
+public class SnapshotCache {
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_WEBP = "webp";
+
+    // A native ARGB frame is ~10 MB on a 1080p phone, so only the newest two are kept
+    private static final int MAX_MOMENTS = 2;
+    // The stream sequence stops advancing while nobody is watching, so a cached
+    // moment is only reused while it is this fresh
+    private static final long MAX_REUSE_MS = 1000;
+
+    public interface NativeFrameSource {
+        // Current stream frame sequence
+        long getFrameSequence();
+
+        // One frame at the display's native resolution, or null if capture is
+        // not running. Throws TimeoutException when no frame arrives in time.
+        Bitmap captureNativeFrame() throws TimeoutException;
+    }
+
+    public static class Snapshot {
+        public final byte[] data;
+        public final String mimeType;
+        public final long sequence;
+
+        Snapshot(byte[] data, String mimeType, long sequence) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class Moment {
+        final long sequence;
+        final long createdMillis = System.currentTimeMillis();
+        final FutureTask<Bitmap> frame;
+        final ConcurrentHashMap<String, FutureTask<byte[]>> encodes = new ConcurrentHashMap<>();
+
+        Moment(long sequence, final NativeFrameSource source) {
+            this.sequence = sequence;
+            this.frame = new FutureTask<>(() -> {
+                Bitmap bitmap = source.captureNativeFrame();
+                if (bitmap == null) {
+                    throw new IllegalStateException("Screen capture is not running");
+                }
+                return bitmap;
+            });
+        }
+    }
+
+    private final Map<Long, Moment> moments = new LinkedHashMap<Long, Moment>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Moment> eldest) {
+            return size() > MAX_MOMENTS;
+        }
+    };
+
+    // "x,y,width,height" in native pixels; null when no region was given
+    public static Rect parseRegion(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Region must be x,y,width,height");
+        }
+        try {
+            int x = Integer.parseInt(parts[0].trim());
+            int y = Integer.parseInt(parts[1].trim());
+            int width = Integer.parseInt(parts[2].trim());
+            int height = Integer.parseInt(parts[3].trim());
+            if (x < 0 || y < 0 || width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Region must be inside the screen and non-empty");
+            }
+            return new Rect(x, y, x + width, y + height);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid region " + value);
+        }
+    }
+
+    // WebP is only offered where it can be lossless: before WEBP_LOSSLESS
+    // (Android 11), quality 100 still goes through the lossy encoder
+    public static boolean isSupportedFormat(String format) {
+        return FORMAT_PNG.equals(format)
+                || (FORMAT_WEBP.equals(format) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R);
+    }
+
+    public Snapshot take(NativeFrameSource source, String format, Rect region) throws Exception {
+        Moment moment = momentFor(source);
+        try {
+            moment.frame.run();
+            Bitmap frame = moment.frame.get();
+            final Rect clipped = region != null ? new Rect(region) : null;
+            if (clipped != null && !clipped.intersect(0, 0, frame.getWidth(), frame.getHeight())) {
+                throw new IllegalArgumentException("Region is outside the " + frame.getWidth() + "x" +
+                        frame.getHeight() + " screen");
+            }
+            String key = format + ":" + (clipped != null ? clipped.flattenToString() : "full");
+            FutureTask<byte[]> encode = new FutureTask<>(() -> encode(frame, format, clipped));
+            FutureTask<byte[]> existing = moment.encodes.putIfAbsent(key, encode);
+            if (existing != null) {
+                encode = existing;
+            }
+            encode.run();
+            return new Snapshot(encode.get(), mimeType(format), moment.sequence);
+        } catch (ExecutionException e) {
+            // A failed capture must not be served to later requests
+            synchronized (moments) {
+                moments.remove(moment.sequence, moment);
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private Moment momentFor(NativeFrameSource source) {
+        long sequence = source.getFrameSequence();
+        synchronized (moments) {
+            Moment moment = moments.get(sequence);
+            if (moment == null || System.currentTimeMillis() - moment.createdMillis > MAX_REUSE_MS) {
+                moment = new Moment(sequence, source);
+                moments.put(sequence, moment);
+            }
+            return moment;
+        }
+    }
+
+    private static String mimeType(String format) {
+        return FORMAT_WEBP.equals(format) ? "image/webp" : "image/png";
+    }
+
+    private static byte[] encode(Bitmap frame, String format, Rect region) {
+        Bitmap bitmap = region != null
+                ? Bitmap.createBitmap(frame, region.left, region.top, region.width(), region.height())
+                : frame;
+        // isSupportedFormat() already turns WebP away where WEBP_LOSSLESS is missing
+        Bitmap.CompressFormat compressFormat = FORMAT_WEBP.equals(format)
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSLESS : Bitmap.CompressFormat.PNG;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(compressFormat, 100, out);
+        if (bitmap != frame) {
+            bitmap.recycle();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,113 @@
+package com.phoneremote.server;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// A frame encoded as independent horizontal strips, each with its own codec.
+// Layout (big-endian):
+//
+//   0  magic   "PRST"
+//   4  version u8
+//   5  count   u8
+//   6  width   u16
+//   8  height  u16
+//   10 strips, each: codec u8, y u16, height u16, length u32, image bytes
+//
+// The magic makes a container recognizable wherever frame bytes end up, such
+// as in recordings or on the UDP transport.
+public class StripFrame {
+    private static final byte[] MAGIC = {'P', 'R', 'S', 'T'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 10;
+    private static final int STRIP_HEADER_SIZE = 9;
+
+    public static class Strip {
+        public final int codec;
+        public final int y;
+        public final int height;
+        public final byte[] data;
+
+        public Strip(int codec, int y, int height, byte[] data) {
+            this.codec = codec;
+            this.y = y;
+            this.height = height;
+            this.data = data;
+        }
+    }
+
+    public static byte[] pack(int width, int height, List<Strip> strips) {
+        int size = HEADER_SIZE;
+        for (Strip strip : strips) {
+            size += STRIP_HEADER_SIZE + strip.data.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MAGIC)
+                .put((byte) VERSION)
+                .put((byte) strips.size())
+                .putShort((short) width)
+                .putShort((short) height);
+        for (Strip strip : strips) {
+            out.put((byte) strip.codec)
+                    .putShort((short) strip.y)
+                    .putShort((short) strip.height)
+                    .putInt(strip.data.length)
+                    .put(strip.data);
+        }
+        return out.array();
+    }
+
+    public static boolean isStripFrame(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Stitches the strips back into one JPEG for consumers that need a single
+    // image, such as /screen.jpg. Returns null if the container is malformed.
+    public static byte[] toJpeg(byte[] data, int quality) {
+        if (!isStripFrame(data)) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(data);
+        in.position(MAGIC.length + 1);
+        int count = in.get() & 0xFF;
+        int width = in.getShort() & 0xFFFF;
+        int height = in.getShort() & 0xFFFF;
+
+        Bitmap frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        try {
+            Canvas canvas = new Canvas(frame);
+            for (int i = 0; i < count; i++) {
+                in.get(); // Codec; BitmapFactory detects it
+                int y = in.getShort() & 0xFFFF;
+                in.getShort();
+                int length = in.getInt();
+                if (length < 0 || length > in.remaining()) {
+                    return null;
+                }
+                Bitmap strip = BitmapFactory.decodeByteArray(data, in.position(), length);
+                in.position(in.position() + length);
+                if (strip != null) {
+                    canvas.drawBitmap(strip, 0, y, null);
+                    strip.recycle();
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            frame.compress(Bitmap.CompressFormat.JPEG, quality, out);
+            return out.toByteArray();
+        } finally {
+            frame.recycle();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.phoneremote.server;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Deterministic RGBA frames for running the capture pipeline without a
+// screen. Frame n depends only on the scene, the seed and n, never on timing,
+// so two runs encode exactly the same pixels:
+//   static  a list-style UI that never changes
+//   scroll  the same UI scrolling SCROLL_STEP rows per frame
+//   video   the static UI with a 16:9 box of changing noise in the middle
+// A recording made with Recorder replays in a loop instead.
+public class SyntheticFrameSource implements FrameSource {
+    public static final String SCENE_STATIC = "static";
+    public static final String SCENE_SCROLL = "scroll";
+    public static final String SCENE_VIDEO = "video";
+
+    private static final int SCROLL_STEP = 24;
+    private static final int HEADER_HEIGHT = 120;
+    private static final int ITEM_HEIGHT = 96;
+    private static final int VIDEO_BLOCK = 8;
+    private static final int RECORDING_MAGIC = 0x50525246; // "PRRF"
+    private static final int[] PALETTE = {
+            0xFF3498DB, 0xFFE74C3C, 0xFF2ECC71, 0xFFF1C40F, 0xFF9B59B6, 0xFF1ABC9C, 0xFFE67E22, 0xFF34495E
+    };
+
+    private final int width;
+    private final int height;
+    private final String scene;
+    private final long seed;
+    private final List<byte[]> recording;
+    private final byte[] pixels;
+    private final ByteBuffer buffer;
+    private long frameIndex;
+    private boolean outstanding;
+
+    public SyntheticFrameSource(String scene, int width, int height, long seed) {
+        if (!SCENE_STATIC.equals(scene) && !SCENE_SCROLL.equals(scene) && !SCENE_VIDEO.equals(scene)) {
+            throw new IllegalArgumentException("Unknown scene " + scene);
+        }
+        this.scene = scene;
+        this.width = width;
+        this.height = height;
+        this.seed = seed;
+        this.recording = null;
+        this.pixels = new byte[width * height * 4];
+        this.buffer = ByteBuffer.wrap(pixels);
+    }
+
+    private SyntheticFrameSource(int width, int height, List<byte[]> recording) {
+        this.scene = null;
+        this.width = width;
+        this.height = height;
+        this.seed = 0;
+        this.recording = recording;
+        this.pixels = null;
+        this.buffer = null;
+    }
+
+    public static SyntheticFrameSource fromRecording(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != RECORDING_MAGIC) {
+                throw new IOException("Not a frame recording: " + file);
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            int count = in.readInt();
+            List<byte[]> frames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] frame = new byte[width * height * 4];
+                in.readFully(frame);
+                frames.add(frame);
+            }
+            if (frames.isEmpty()) {
+                throw new IOException("Empty frame recording: " + file);
+            }
+            return new SyntheticFrameSource(width, height, frames);
+        }
+    }
+
+    // null for a replayed recording
+    public String getScene() {
+        return scene;
+    }
+
+    public long getFrameIndex() {
+        return frameIndex;
+    }
+
+    // Every call produces the next frame; there is no notion of "nothing new"
+    @Override
+    public synchronized RawFrame acquireLatestFrame() {
+        if (outstanding) {
+            throw new IllegalStateException("Previous frame not closed");
+        }
+        outstanding = true;
+        long index = frameIndex++;
+        Runnable release = () -> {
+            synchronized (SyntheticFrameSource.this) {
+                outstanding = false;
+            }
+        };
+        if (recording != null) {
+            byte[] frame = recording.get((int) (index % recording.size()));
+            return new RawFrame(ByteBuffer.wrap(frame), width, height, width * 4, 4, 0, release);
+        }
+        render(index);
+        buffer.rewind();
+        return new RawFrame(buffer, width, height, width * 4, 4, 0, release);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+
+    private void render(long index) {
+        int scroll = SCENE_SCROLL.equals(scene) ? (int) (index * SCROLL_STEP) : 0;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width * 4;
+            if (y < HEADER_HEIGHT) {
+                fillRow(offset, 0, width, 0xFF2C3E50);
+                continue;
+            }
+            int pageY = y - HEADER_HEIGHT + scroll;
+            int item = pageY / ITEM_HEIGHT;
+            int itemY = pageY % ITEM_HEIGHT;
+            int hash = mix(item);
+            fillRow(offset, 0, width, itemY >= ITEM_HEIGHT - 2 ? 0xFFDDDDDD : 0xFFFFFFFF);
+            if (itemY >= 16 && itemY < 80) {
+                // Icon
+                fillRow(offset, 24, Math.min(width, 88), PALETTE[hash & 7]);
+            }
+            if (itemY >= 24 && itemY < 40) {
+                // Title, a bar standing in for text
+                fillRow(offset, 112, Math.min(width, 112 + 120 + ((hash >>> 3) & 255)), 0xFF333333);
+            } else if (itemY >= 52 && itemY < 64) {
+                fillRow(offset, 112, Math.min(width, 112 + 60 + ((hash >>> 11) & 127)), 0xFF999999);
+            }
+        }
+        if (SCENE_VIDEO.equals(scene)) {
+            renderVideo(index);
+        }
+    }
+
+    // Blocky noise that changes everywhere every frame, like decoded video
+    private void renderVideo(long index) {
+        int boxWidth = width - 32;
+        int boxHeight = boxWidth * 9 / 16;
+        int top = Math.max(HEADER_HEIGHT, (height - boxHeight) / 2);
+        int bottom = Math.min(height, top + boxHeight);
+        long state = seed ^ (index * 0x9E3779B97F4A7C15L);
+        for (int blockY = top; blockY < bottom; blockY += VIDEO_BLOCK) {
+            for (int blockX = 16; blockX < 16 + boxWidth; blockX += VIDEO_BLOCK) {
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                int color = 0xFF000000 | (int) (state & 0xFFFFFF);
+                int endX = Math.min(16 + boxWidth, blockX + VIDEO_BLOCK);
+                for (int y = blockY; y < Math.min(bottom, blockY + VIDEO_BLOCK); y++) {
+                    fillRow(y * width * 4, blockX, endX, color);
+                }
+            }
+        }
+    }
+
+    private void fillRow(int rowOffset, int fromX, int toX, int argb) {
+        byte r = (byte) (argb >> 16);
+        byte g = (byte) (argb >> 8);
+        byte b = (byte) argb;
+        byte a = (byte) (argb >>> 24);
+        for (int i = rowOffset + fromX * 4, end = rowOffset + toX * 4; i < end; i += 4) {
+            pixels[i] = r;
+            pixels[i + 1] = g;
+            pixels[i + 2] = b;
+            pixels[i + 3] = a;
+        }
+    }
+
+    private int mix(int value) {
+        long h = (value + seed) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    // Appends frames from any source to a file that fromRecording() replays.
+    // Padded rows are stored tightly packed.
+    public static class Recorder implements Closeable {
+        private final RandomAccessFile file;
+        private final int width;
+        private final int height;
+        private final byte[] row;
+        private int count;
+
+        public Recorder(File output, int width, int height) throws IOException {
+            this.file = new RandomAccessFile(output, "rw");
+            this.width = width;
+            this.height = height;
+            this.row = new byte[width * 4];
+            file.setLength(0);
+            file.writeInt(RECORDING_MAGIC);
+            file.writeInt(width);
+            file.writeInt(height);
+            file.writeInt(0);
+        }
+
+        public void append(RawFrame frame) throws IOException {
+            if (frame.width != width || frame.height != height) {
+                throw new IllegalArgumentException("Frame is " + frame.width + "x" + frame.height +
+                        ", recording is " + width + "x" + height);
+            }
+            ByteBuffer source = frame.rgba.duplicate();
+            for (int y = 0; y < height; y++) {
+                source.position(y * frame.rowStride);
+                source.get(row);
+                file.write(row);
+            }
+            count++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.seek(12);
+            file.writeInt(count);
+            file.close();
+        }
+    }
+}
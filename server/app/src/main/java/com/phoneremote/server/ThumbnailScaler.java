@@ -0,0 +1,90 @@
+package com.phoneremote.server;
+
+import java.nio.ByteBuffer;
+
+// Downscales an RGBA_8888 image plane to a thumbnail with an integer box
+// filter: every output pixel is the average of a factor x factor block of
+// source pixels. One pass over the source with integer sums only, so a
+// preview costs a fraction of a full-resolution encode. Not thread-safe; the
+// row and sum buffers are reused between calls.
+public class ThumbnailScaler {
+    private final int targetWidth;
+
+    private byte[] row = new byte[0];
+    private int[] sumR = new int[0];
+    private int[] sumG = new int[0];
+    private int[] sumB = new int[0];
+    private int outputWidth;
+    private int outputHeight;
+
+    public ThumbnailScaler(int targetWidth) {
+        this.targetWidth = targetWidth;
+    }
+
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    public int getOutputHeight() {
+        return outputHeight;
+    }
+
+    // Returns ARGB pixels of getOutputWidth() x getOutputHeight(). The factor
+    // is rounded up, so the thumbnail is at most targetWidth wide.
+    public int[] scale(ByteBuffer rgba, int width, int height, int rowStride, int pixelStride) {
+        int factor = Math.max(1, (width + targetWidth - 1) / targetWidth);
+        outputWidth = width / factor;
+        outputHeight = height / factor;
+        int[] pixels = new int[outputWidth * outputHeight];
+        if (outputWidth == 0 || outputHeight == 0) {
+            return pixels;
+        }
+
+        int rowBytes = outputWidth * factor * pixelStride;
+        if (row.length < rowBytes) {
+            row = new byte[rowBytes];
+        }
+        if (sumR.length < outputWidth) {
+            sumR = new int[outputWidth];
+            sumG = new int[outputWidth];
+            sumB = new int[outputWidth];
+        }
+
+        int area = factor * factor;
+        ByteBuffer source = rgba.duplicate();
+        for (int outY = 0; outY < outputHeight; outY++) {
+            for (int x = 0; x < outputWidth; x++) {
+                sumR[x] = 0;
+                sumG[x] = 0;
+                sumB[x] = 0;
+            }
+            for (int dy = 0; dy < factor; dy++) {
+                source.position((outY * factor + dy) * rowStride);
+                source.get(row, 0, rowBytes);
+                int offset = 0;
+                for (int x = 0; x < outputWidth; x++) {
+                    int r = 0;
+                    int g = 0;
+                    int b = 0;
+                    for (int dx = 0; dx < factor; dx++) {
+                        r += row[offset] & 0xFF;
+                        g += row[offset + 1] & 0xFF;
+                        b += row[offset + 2] & 0xFF;
+                        offset += pixelStride;
+                    }
+                    sumR[x] += r;
+                    sumG[x] += g;
+                    sumB[x] += b;
+                }
+            }
+            int base = outY * outputWidth;
+            for (int x = 0; x < outputWidth; x++) {
+                pixels[base + x] = 0xFF000000
+                        | (sumR[x] / area) << 16
+                        | (sumG[x] / area) << 8
+                        | (sumB[x] / area);
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,92 @@
+package com.phoneremote.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Splits frames into datagrams with XOR parity for forward error correction.
+// Every group of groupSize data packets is followed by one parity packet, so a
+// single loss per group is repaired without a retransmit.
+//
+// Packet header (big-endian, 20 bytes):
+//   0  version      u8
+//   1  flags        u8   (FLAG_PARITY)
+//   2  payload size u16  (bytes per full data packet)
+//   4  frame seq    u32
+//   8  index        u16  (data packet index, or group index for parity)
+//   10 data count   u16  (data packets in the frame)
+//   12 frame length u32
+//   16 group size   u8
+//   17 reserved     3 bytes
+public class UdpFramePacketizer {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+    public static final int FLAG_PARITY = 1;
+
+    public interface PacketSink {
+        void send(byte[] packet, int length);
+    }
+
+    private final int payloadSize;
+    private final int groupSize;
+    private final byte[] packet;
+    private final byte[] parity;
+
+    public UdpFramePacketizer(int mtu, int groupSize) {
+        this.payloadSize = mtu - HEADER_SIZE;
+        this.groupSize = Math.max(1, Math.min(255, groupSize));
+        this.packet = new byte[mtu];
+        this.parity = new byte[mtu];
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    // Reuses one packet buffer, so the sink must consume it before returning
+    public void packetize(byte[] frame, long frameSequence, PacketSink sink) {
+        int dataCount = Math.max(1, (frame.length + payloadSize - 1) / payloadSize);
+        if (dataCount > 0xFFFF) {
+            throw new IllegalArgumentException("Frame too large for UDP transport: " + frame.length);
+        }
+
+        for (int group = 0; group * groupSize < dataCount; group++) {
+            int first = group * groupSize;
+            int last = Math.min(dataCount, first + groupSize);
+            int parityLength = 0;
+            Arrays.fill(parity, HEADER_SIZE, parity.length, (byte) 0);
+
+            for (int index = first; index < last; index++) {
+                int offset = index * payloadSize;
+                int length = Math.min(payloadSize, frame.length - offset);
+                writeHeader(packet, 0, frameSequence, index, dataCount, frame.length);
+                System.arraycopy(frame, offset, packet, HEADER_SIZE, length);
+                for (int i = 0; i < length; i++) {
+                    parity[HEADER_SIZE + i] ^= frame[offset + i];
+                }
+                parityLength = Math.max(parityLength, length);
+                sink.send(packet, HEADER_SIZE + length);
+            }
+
+            // A one-packet group repairs itself by duplication, which still helps on lossy links
+            writeHeader(parity, FLAG_PARITY, frameSequence, group, dataCount, frame.length);
+            sink.send(parity, HEADER_SIZE + parityLength);
+        }
+    }
+
+    private void writeHeader(byte[] target, int flags, long frameSequence, int index, int dataCount, int frameLength) {
+        ByteBuffer.wrap(target, 0, HEADER_SIZE)
+                .put((byte) VERSION)
+                .put((byte) flags)
+                .putShort((short) payloadSize)
+                .putInt((int) frameSequence)
+                .putShort((short) index)
+                .putShort((short) dataCount)
+                .putInt(frameLength)
+                .put((byte) groupSize)
+                .put((byte) 0).put((byte) 0).put((byte) 0);
+    }
+}
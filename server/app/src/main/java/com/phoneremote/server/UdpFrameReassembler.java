@@ -0,0 +1,195 @@
+package com.phoneremote.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Receiver side of UdpFramePacketizer. Rebuilds frames from datagrams that may
+// arrive lost, duplicated or out of order, repairs one loss per parity group,
+// and never waits for an old frame: once a newer frame completes, every older
+// incomplete frame is dropped.
+public class UdpFrameReassembler {
+    private static final int MAX_PENDING_FRAMES = 8;
+    // The frame length comes from the packet header and sizes an allocation,
+    // so anything larger is treated as invalid rather than trusted
+    public static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    public interface FrameListener {
+        void onFrame(long frameSequence, byte[] frame);
+    }
+
+    private final FrameListener listener;
+    private final TreeMap<Long, PendingFrame> pending = new TreeMap<>();
+    private long lastDelivered = -1;
+
+    private long framesDelivered;
+    private long framesSkipped;
+    private long packetsRecovered;
+
+    private static class PendingFrame {
+        final int dataCount;
+        final int frameLength;
+        final int groupSize;
+        final int payloadSize;
+        final byte[] data;
+        final boolean[] received;
+        final byte[][] parity;
+        final int[] parityLength;
+        int receivedCount;
+
+        PendingFrame(int dataCount, int frameLength, int groupSize, int payloadSize) {
+            this.dataCount = dataCount;
+            this.frameLength = frameLength;
+            this.groupSize = groupSize;
+            this.payloadSize = payloadSize;
+            this.data = new byte[frameLength];
+            this.received = new boolean[dataCount];
+            int groups = (dataCount + groupSize - 1) / groupSize;
+            this.parity = new byte[groups][];
+            this.parityLength = new int[groups];
+        }
+
+        int lengthOf(int index) {
+            return Math.min(payloadSize, frameLength - index * payloadSize);
+        }
+
+        boolean isComplete() {
+            return receivedCount == dataCount;
+        }
+    }
+
+    public UdpFrameReassembler(FrameListener listener) {
+        this.listener = listener;
+    }
+
+    private static long unsigned(int value) {
+        return value & 0xFFFFFFFFL;
+    }
+
+    public synchronized void onPacket(byte[] packet, int length) {
+        if (length < UdpFramePacketizer.HEADER_SIZE) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.wrap(packet, 0, UdpFramePacketizer.HEADER_SIZE);
+        if ((header.get() & 0xFF) != UdpFramePacketizer.VERSION) {
+            return;
+        }
+        boolean isParity = (header.get() & UdpFramePacketizer.FLAG_PARITY) != 0;
+        int payloadSize = header.getShort() & 0xFFFF;
+        long sequence = unsigned(header.getInt());
+        int index = header.getShort() & 0xFFFF;
+        int dataCount = header.getShort() & 0xFFFF;
+        int frameLength = header.getInt();
+        int groupSize = header.get() & 0xFF;
+        int payloadLength = length - UdpFramePacketizer.HEADER_SIZE;
+
+        if (sequence + 1000 < lastDelivered) {
+            // Sender restarted or the 32-bit sequence wrapped
+            lastDelivered = -1;
+            pending.clear();
+        }
+        if (sequence <= lastDelivered || dataCount == 0 || groupSize == 0 || payloadSize == 0
+                || frameLength < 0 || frameLength > MAX_FRAME_SIZE
+                || dataCount != Math.max(1, (frameLength + payloadSize - 1) / payloadSize)) {
+            return; // Stale or invalid
+        }
+
+        PendingFrame frame = pending.get(sequence);
+        if (frame == null) {
+            frame = new PendingFrame(dataCount, frameLength, groupSize, payloadSize);
+            pending.put(sequence, frame);
+            while (pending.size() > MAX_PENDING_FRAMES) {
+                pending.pollFirstEntry();
+                framesSkipped++;
+            }
+        } else if (frame.frameLength != frameLength || frame.payloadSize != payloadSize
+                || frame.groupSize != groupSize) {
+            return; // Disagrees with the frame's earlier packets
+        }
+
+        if (isParity) {
+            int group = index;
+            if (group < frame.parity.length && frame.parity[group] == null
+                    && payloadLength <= frame.payloadSize) {
+                frame.parity[group] = new byte[payloadLength];
+                System.arraycopy(packet, UdpFramePacketizer.HEADER_SIZE, frame.parity[group], 0, payloadLength);
+                frame.parityLength[group] = payloadLength;
+                tryRecover(frame, group);
+            }
+        } else if (index < dataCount && !frame.received[index]) {
+            int expected = frame.lengthOf(index);
+            if (payloadLength != expected) {
+                return;
+            }
+            System.arraycopy(packet, UdpFramePacketizer.HEADER_SIZE, frame.data, index * frame.payloadSize, expected);
+            frame.received[index] = true;
+            frame.receivedCount++;
+            tryRecover(frame, index / frame.groupSize);
+        }
+
+        if (frame.isComplete()) {
+            deliver(sequence, frame);
+        }
+    }
+
+    private void tryRecover(PendingFrame frame, int group) {
+        byte[] parity = frame.parity[group];
+        if (parity == null) {
+            return;
+        }
+        int first = group * frame.groupSize;
+        int last = Math.min(frame.dataCount, first + frame.groupSize);
+        int missing = -1;
+        for (int i = first; i < last; i++) {
+            if (!frame.received[i]) {
+                if (missing >= 0) {
+                    return; // More than one loss; XOR can't repair it
+                }
+                missing = i;
+            }
+        }
+        if (missing < 0) {
+            return;
+        }
+
+        int length = frame.lengthOf(missing);
+        int target = missing * frame.payloadSize;
+        for (int b = 0; b < length; b++) {
+            int value = b < frame.parityLength[group] ? parity[b] : 0;
+            for (int i = first; i < last; i++) {
+                if (i != missing && b < frame.lengthOf(i)) {
+                    value ^= frame.data[i * frame.payloadSize + b];
+                }
+            }
+            frame.data[target + b] = (byte) value;
+        }
+        frame.received[missing] = true;
+        frame.receivedCount++;
+        packetsRecovered++;
+    }
+
+    private void deliver(long sequence, PendingFrame frame) {
+        // Everything older than this frame is now stale
+        Iterator<Map.Entry<Long, PendingFrame>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, PendingFrame> entry = it.next();
+            if (entry.getKey() > sequence) {
+                break;
+            }
+            if (entry.getKey() < sequence) {
+                framesSkipped++;
+            }
+            it.remove();
+        }
+        lastDelivered = sequence;
+        framesDelivered++;
+        listener.onFrame(sequence, frame.data);
+    }
+
+    public synchronized String statsJson() {
+        return "{\"delivered\":" + framesDelivered +
+                ",\"skipped\":" + framesSkipped +
+                ",\"recovered\":" + packetsRecovered + "}";
+    }
+}
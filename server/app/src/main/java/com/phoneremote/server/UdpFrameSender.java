@@ -0,0 +1,168 @@
+package com.phoneremote.server;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Optional UDP transport for screen frames. Receivers subscribe over HTTP and
+// hold a lease they renew by subscribing again. Frames are packetized once and
+// sent to every subscriber on a dedicated thread; if that thread falls behind,
+// only the newest frame is kept, so a slow link drops frames instead of
+// queueing them.
+public class UdpFrameSender {
+    private static final String TAG = "UdpFrameSender";
+
+    public static final int DEFAULT_MTU = 1200;
+    public static final int DEFAULT_GROUP_SIZE = 8;
+    public static final long LEASE_MS = 10_000;
+
+    private final UdpFramePacketizer packetizer;
+    private final Map<InetSocketAddress, Long> subscribers = new ConcurrentHashMap<>();
+    private final AtomicReference<CapturedFrame> pendingFrame = new AtomicReference<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // Created by start() and shut down by stop(), so the sender can be restarted
+    private volatile ExecutorService sendExecutor;
+
+    private DatagramSocket socket;
+    private DatagramPacket datagram;
+
+    private volatile long framesSent;
+    private volatile long framesDropped;
+    private volatile long packetsSent;
+
+    public UdpFrameSender(int mtu, int groupSize) {
+        this.packetizer = new UdpFramePacketizer(mtu, groupSize);
+    }
+
+    public synchronized boolean start() {
+        if (socket != null) {
+            return true;
+        }
+        try {
+            socket = new DatagramSocket();
+            socket.setSendBufferSize(256 * 1024);
+            datagram = new DatagramPacket(new byte[0], 0);
+            sendExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "UdpFrameSender"));
+            Log.i(TAG, "UDP transport on port " + socket.getLocalPort());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open UDP socket", e);
+            socket = null;
+            return false;
+        }
+    }
+
+    public synchronized void stop() {
+        subscribers.clear();
+        if (sendExecutor != null) {
+            sendExecutor.shutdownNow();
+            sendExecutor = null;
+        }
+        pendingFrame.set(null);
+        drainScheduled.set(false);
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    public synchronized int getLocalPort() {
+        return socket != null ? socket.getLocalPort() : -1;
+    }
+
+    public int getMtu() {
+        return packetizer.getPayloadSize() + UdpFramePacketizer.HEADER_SIZE;
+    }
+
+    public int getGroupSize() {
+        return packetizer.getGroupSize();
+    }
+
+    public void subscribe(InetSocketAddress address) {
+        subscribers.put(address, System.currentTimeMillis() + LEASE_MS);
+    }
+
+    public boolean unsubscribe(InetSocketAddress address) {
+        return subscribers.remove(address) != null;
+    }
+
+    public boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    // Called on the capture handler; never blocks
+    public void sendFrame(CapturedFrame frame) {
+        ExecutorService executor = sendExecutor;
+        if (subscribers.isEmpty() || executor == null) {
+            return;
+        }
+        if (pendingFrame.getAndSet(frame) != null) {
+            framesDropped++;
+        }
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (Exception e) {
+                drainScheduled.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        CapturedFrame frame = pendingFrame.getAndSet(null);
+        DatagramSocket out = socket;
+        if (frame == null || out == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<InetSocketAddress, Long>> leases = subscribers.entrySet().iterator();
+        while (leases.hasNext()) {
+            if (leases.next().getValue() < now) {
+                leases.remove();
+            }
+        }
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        try {
+            packetizer.packetize(frame.data, frame.sequence, (packet, length) -> {
+                for (InetSocketAddress address : subscribers.keySet()) {
+                    try {
+                        datagram.setData(packet, 0, length);
+                        datagram.setSocketAddress(address);
+                        out.send(datagram);
+                        packetsSent++;
+                    } catch (IOException e) {
+                        // Unreachable receivers lose their lease on the next frame
+                        Log.e(TAG, "UDP send to " + address + " failed", e);
+                        subscribers.put(address, 0L);
+                    }
+                }
+            });
+            framesSent++;
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending frame over UDP", e);
+        }
+    }
+
+    public String statsJson() {
+        return "{\"port\":" + getLocalPort() +
+                ",\"subscribers\":" + subscribers.size() +
+                ",\"framesSent\":" + framesSent +
+                ",\"framesDropped\":" + framesDropped +
+                ",\"packetsSent\":" + packetsSent + "}";
+    }
+}
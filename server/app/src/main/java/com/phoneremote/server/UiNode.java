@@ -0,0 +1,79 @@
+package com.phoneremote.server;
+
+import java.util.Objects;
+
+// One visible accessibility node as streamed to /uitree clients. The key is
+// derived from the node's position in the hierarchy (class, view id and index
+// among matching siblings) so the same widget keeps the same key across
+// updates, which AccessibilityNodeInfo itself does not expose.
+public class UiNode {
+    public static final int STATE_CLICKABLE = 1;
+    public static final int STATE_LONG_CLICKABLE = 1 << 1;
+    public static final int STATE_EDITABLE = 1 << 2;
+    public static final int STATE_SCROLLABLE = 1 << 3;
+    public static final int STATE_CHECKABLE = 1 << 4;
+    public static final int STATE_CHECKED = 1 << 5;
+    public static final int STATE_FOCUSED = 1 << 6;
+    public static final int STATE_SELECTED = 1 << 7;
+    public static final int STATE_ENABLED = 1 << 8;
+
+    public final String key;
+    public final String parentKey;
+    public final int childIndex;
+    public final String className;
+    public final String viewId;
+    public final String text;
+    public final String description;
+    public final int left;
+    public final int top;
+    public final int right;
+    public final int bottom;
+    public final int state;
+
+    public UiNode(String key, String parentKey, int childIndex, String className, String viewId,
+                  String text, String description, int left, int top, int right, int bottom, int state) {
+        this.key = key;
+        this.parentKey = parentKey;
+        this.childIndex = childIndex;
+        this.className = className;
+        this.viewId = viewId;
+        this.text = text;
+        this.description = description;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.state = state;
+    }
+
+    public boolean hasState(int flag) {
+        return (state & flag) != 0;
+    }
+
+    // Fields of this node that differ from a previous version of it
+    public int changedFields(UiNode previous) {
+        int mask = 0;
+        if (!Objects.equals(parentKey, previous.parentKey) || childIndex != previous.childIndex) {
+            mask |= UiTreeTracker.FIELD_PARENT;
+        }
+        if (left != previous.left || top != previous.top || right != previous.right || bottom != previous.bottom) {
+            mask |= UiTreeTracker.FIELD_BOUNDS;
+        }
+        if (!Objects.equals(className, previous.className)) {
+            mask |= UiTreeTracker.FIELD_CLASS;
+        }
+        if (!Objects.equals(viewId, previous.viewId)) {
+            mask |= UiTreeTracker.FIELD_VIEW_ID;
+        }
+        if (!Objects.equals(text, previous.text)) {
+            mask |= UiTreeTracker.FIELD_TEXT;
+        }
+        if (!Objects.equals(description, previous.description)) {
+            mask |= UiTreeTracker.FIELD_DESCRIPTION;
+        }
+        if (state != previous.state) {
+            mask |= UiTreeTracker.FIELD_STATE;
+        }
+        return mask;
+    }
+}
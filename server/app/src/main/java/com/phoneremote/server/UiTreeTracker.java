@@ -0,0 +1,188 @@
+package com.phoneremote.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Keeps the last streamed UI tree and turns each new capture into a compact
+// binary diff. Nodes get small integer ids the first time their key is seen
+// and keep them until they disappear.
+//
+// Message format (varints unless noted):
+//   kind u8 (KIND_SNAPSHOT or KIND_DIFF), version,
+//   removed count, removed ids,
+//   node count, per node: id, field mask, then the masked fields in order:
+//     FIELD_PARENT      parent id + 1 (0 for the root), child index
+//     FIELD_BOUNDS      left, top, right, bottom (zigzag)
+//     FIELD_CLASS       string
+//     FIELD_VIEW_ID     string
+//     FIELD_TEXT        string
+//     FIELD_DESCRIPTION string
+//     FIELD_STATE       UiNode.STATE_* flags
+// Strings are stored as UTF-8 byte length + 1, with 0 meaning null. A diff is
+// applied in order: removals first, then upserts.
+public class UiTreeTracker {
+    public static final int KIND_SNAPSHOT = 1;
+    public static final int KIND_DIFF = 2;
+
+    public static final int FIELD_PARENT = 1;
+    public static final int FIELD_BOUNDS = 1 << 1;
+    public static final int FIELD_CLASS = 1 << 2;
+    public static final int FIELD_VIEW_ID = 1 << 3;
+    public static final int FIELD_TEXT = 1 << 4;
+    public static final int FIELD_DESCRIPTION = 1 << 5;
+    public static final int FIELD_STATE = 1 << 6;
+    public static final int ALL_FIELDS = (1 << 7) - 1;
+
+    private final Map<String, Integer> idsByKey = new HashMap<>();
+    private final Map<Integer, UiNode> nodesById = new HashMap<>();
+    private Map<String, UiNode> current = new LinkedHashMap<>();
+    private int nextId = 1;
+    private long version;
+
+    // Returns the encoded diff, or null if nothing changed
+    public synchronized byte[] update(List<UiNode> nodes) {
+        Map<String, UiNode> next = new LinkedHashMap<>();
+        for (UiNode node : nodes) {
+            next.put(node.key, node);
+        }
+
+        List<Integer> removed = new ArrayList<>();
+        for (String key : current.keySet()) {
+            if (!next.containsKey(key)) {
+                Integer id = idsByKey.remove(key);
+                nodesById.remove(id);
+                removed.add(id);
+            }
+        }
+
+        // Parents come before children in capture order, so parent ids exist by
+        // the time a child refers to them
+        List<UiNode> changed = new ArrayList<>();
+        List<Integer> masks = new ArrayList<>();
+        Set<String> added = new HashSet<>();
+        for (UiNode node : next.values()) {
+            UiNode previous = current.get(node.key);
+            int mask;
+            if (previous == null) {
+                idsByKey.put(node.key, nextId++);
+                added.add(node.key);
+                mask = ALL_FIELDS;
+            } else {
+                mask = node.changedFields(previous);
+                if (node.parentKey != null && added.contains(node.parentKey)) {
+                    // The parent came back under a new id
+                    mask |= FIELD_PARENT;
+                }
+            }
+            nodesById.put(idsByKey.get(node.key), node);
+            if (mask != 0) {
+                changed.add(node);
+                masks.add(mask);
+            }
+        }
+
+        current = next;
+        if (removed.isEmpty() && changed.isEmpty()) {
+            return null;
+        }
+        version++;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + changed.size() * 32);
+        out.write(KIND_DIFF);
+        writeVarint(out, version);
+        writeVarint(out, removed.size());
+        for (int id : removed) {
+            writeVarint(out, id);
+        }
+        writeVarint(out, changed.size());
+        for (int i = 0; i < changed.size(); i++) {
+            writeNode(out, changed.get(i), masks.get(i));
+        }
+        return out.toByteArray();
+    }
+
+    // Full state for a client that is just joining
+    public synchronized byte[] snapshot() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + current.size() * 48);
+        out.write(KIND_SNAPSHOT);
+        writeVarint(out, version);
+        writeVarint(out, 0);
+        writeVarint(out, current.size());
+        for (UiNode node : current.values()) {
+            writeNode(out, node, ALL_FIELDS);
+        }
+        return out.toByteArray();
+    }
+
+    public synchronized UiNode getNode(int id) {
+        return nodesById.get(id);
+    }
+
+    public synchronized void reset() {
+        idsByKey.clear();
+        nodesById.clear();
+        current = new LinkedHashMap<>();
+        version = 0;
+    }
+
+    private void writeNode(ByteArrayOutputStream out, UiNode node, int mask) {
+        writeVarint(out, idsByKey.get(node.key));
+        writeVarint(out, mask);
+        if ((mask & FIELD_PARENT) != 0) {
+            Integer parentId = node.parentKey != null ? idsByKey.get(node.parentKey) : null;
+            writeVarint(out, parentId != null ? parentId + 1 : 0);
+            writeVarint(out, node.childIndex);
+        }
+        if ((mask & FIELD_BOUNDS) != 0) {
+            writeSignedVarint(out, node.left);
+            writeSignedVarint(out, node.top);
+            writeSignedVarint(out, node.right);
+            writeSignedVarint(out, node.bottom);
+        }
+        if ((mask & FIELD_CLASS) != 0) {
+            writeString(out, node.className);
+        }
+        if ((mask & FIELD_VIEW_ID) != 0) {
+            writeString(out, node.viewId);
+        }
+        if ((mask & FIELD_TEXT) != 0) {
+            writeString(out, node.text);
+        }
+        if ((mask & FIELD_DESCRIPTION) != 0) {
+            writeString(out, node.description);
+        }
+        if ((mask & FIELD_STATE) != 0) {
+            writeVarint(out, node.state);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    // Bounds can be negative for partially off-screen nodes
+    private static void writeSignedVarint(ByteArrayOutputStream out, int value) {
+        writeVarint(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+}
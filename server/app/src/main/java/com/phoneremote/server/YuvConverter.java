@@ -0,0 +1,203 @@
+package com.phoneremote.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// YUV 4:2:0 to the pipeline's RGBA, for camera frames. Takes the three planes
+// the way Image.Plane describes them, so planar (I420) and semi-planar
+// (NV12/NV21, chroma pixel stride 2) layouts both work. BT.601 limited range
+// in 10-bit fixed point.
+//
+// Frames can be rotated clockwise by a multiple of 90 degrees on the way, so
+// camera frames come out upright (see CameraFrameSource); for 90 and 270 the
+// output is height x width.
+//
+// Output frames come from a fixed pool of RGBA buffers and go back to it when
+// the RawFrame is closed, so no pixel memory is allocated per frame. When
+// every buffer is still held, convert() returns null and the frame is skipped.
+// No Android classes, so it can be timed on a plain JVM.
+public class YuvConverter {
+    private static final int[] Y_SCALED = new int[256];
+    private static final int[] V_TO_R = new int[256];
+    private static final int[] U_TO_G = new int[256];
+    private static final int[] V_TO_G = new int[256];
+    private static final int[] U_TO_B = new int[256];
+    // Saturates a channel without branches, which noisy camera content defeats;
+    // the sums above always land in [-CLAMP_OFFSET, CLAMP_OFFSET + 256)
+    private static final int CLAMP_OFFSET = 384;
+    private static final byte[] CLAMP = new byte[CLAMP_OFFSET * 2 + 256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_SCALED[i] = Math.round(1.164f * 1024 * (i - 16)) + 512; // + 512 rounds the final shift
+            V_TO_R[i] = Math.round(1.596f * 1024 * (i - 128));
+            U_TO_G[i] = Math.round(0.391f * 1024 * (i - 128));
+            V_TO_G[i] = Math.round(0.813f * 1024 * (i - 128));
+            U_TO_B[i] = Math.round(2.018f * 1024 * (i - 128));
+        }
+        for (int i = 0; i < CLAMP.length; i++) {
+            CLAMP[i] = (byte) Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int rotation;
+    private final int outWidth;
+    private final int outHeight;
+    private final int poolSize;
+    private final ArrayDeque<Slot> free = new ArrayDeque<>();
+    // Rows are copied out of the planes first; bulk gets are much faster than
+    // per-byte ByteBuffer access
+    private final byte[] yRow;
+    private final byte[] uRow;
+    private final byte[] vRow;
+    private int allocated;
+    private long framesConverted;
+    private long framesSkipped;
+
+    // A pooled output buffer; running it hands the buffer back
+    private class Slot implements Runnable {
+        final byte[] rgba = new byte[width * height * 4];
+        final ByteBuffer buffer = ByteBuffer.wrap(rgba);
+
+        @Override
+        public void run() {
+            recycle(this);
+        }
+    }
+
+    // width and height are the input's; rotation is clockwise, 0, 90, 180 or 270
+    public YuvConverter(int width, int height, int rotation, int poolSize) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90, got " + rotation);
+        }
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation;
+        boolean sideways = rotation == 90 || rotation == 270;
+        this.outWidth = sideways ? height : width;
+        this.outHeight = sideways ? width : height;
+        this.poolSize = poolSize;
+        this.yRow = new byte[width];
+        // Room for the widest chroma row: interleaved, pixel stride 2
+        this.uRow = new byte[width + 1];
+        this.vRow = new byte[width + 1];
+    }
+
+    // Output size, after rotation
+    public int getWidth() {
+        return outWidth;
+    }
+
+    public int getHeight() {
+        return outHeight;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    // The luma plane must have a pixel stride of 1, as YUV_420_888 guarantees.
+    // Returns null when every pooled buffer is in use.
+    public synchronized RawFrame convert(ByteBuffer yPlane, int yRowStride,
+                                         ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+                                         long timestampNanos) {
+        Slot slot = free.poll();
+        if (slot == null) {
+            if (allocated == poolSize) {
+                framesSkipped++;
+                return null;
+            }
+            // Buffers are only ever allocated while the pool fills up
+            slot = new Slot();
+            allocated++;
+        }
+        byte[] out = slot.rgba;
+        byte[] yRow = this.yRow;
+        byte[] uRow = this.uRow;
+        byte[] vRow = this.vRow;
+        int chromaWidth = (width + 1) / 2;
+        int chromaRowLength = (chromaWidth - 1) * uvPixelStride + 1;
+        // Each input row becomes an output row or column, walked with a fixed step
+        int step;
+        switch (rotation) {
+            case 90:
+                step = outWidth * 4;
+                break;
+            case 180:
+                step = -4;
+                break;
+            case 270:
+                step = -outWidth * 4;
+                break;
+            default:
+                step = 4;
+                break;
+        }
+        for (int row = 0; row < height; row++) {
+            int outIndex = rowStart(row);
+            yPlane.position(row * yRowStride);
+            yPlane.get(yRow, 0, width);
+            // Each chroma row serves two luma rows
+            if ((row & 1) == 0) {
+                int chromaOffset = (row >> 1) * uvRowStride;
+                uPlane.position(chromaOffset);
+                uPlane.get(uRow, 0, chromaRowLength);
+                vPlane.position(chromaOffset);
+                vPlane.get(vRow, 0, chromaRowLength);
+            }
+            // Two pixels per chroma sample, so the chroma terms are worked out once per pair
+            for (int x = 0, chromaIndex = 0; x < width; x += 2, chromaIndex += uvPixelStride) {
+                int u = uRow[chromaIndex] & 0xFF;
+                int v = vRow[chromaIndex] & 0xFF;
+                int red = V_TO_R[v];
+                int green = -U_TO_G[u] - V_TO_G[v];
+                int blue = U_TO_B[u];
+                putPixel(out, outIndex, Y_SCALED[yRow[x] & 0xFF], red, green, blue);
+                outIndex += step;
+                if (x + 1 < width) {
+                    putPixel(out, outIndex, Y_SCALED[yRow[x + 1] & 0xFF], red, green, blue);
+                    outIndex += step;
+                }
+            }
+        }
+        framesConverted++;
+        slot.buffer.rewind();
+        return new RawFrame(slot.buffer, outWidth, outHeight, outWidth * 4, 4, timestampNanos, slot);
+    }
+
+    // Byte offset of the output pixel that input pixel (0, row) lands on
+    private int rowStart(int row) {
+        switch (rotation) {
+            case 90:
+                return (outWidth - 1 - row) * 4;
+            case 180:
+                return ((outHeight - 1 - row) * outWidth + outWidth - 1) * 4;
+            case 270:
+                return ((outHeight - 1) * outWidth + row) * 4;
+            default:
+                return row * outWidth * 4;
+        }
+    }
+
+    private static void putPixel(byte[] out, int index, int y, int red, int green, int blue) {
+        out[index] = CLAMP[((y + red) >> 10) + CLAMP_OFFSET];
+        out[index + 1] = CLAMP[((y + green) >> 10) + CLAMP_OFFSET];
+        out[index + 2] = CLAMP[((y + blue) >> 10) + CLAMP_OFFSET];
+        out[index + 3] = (byte) 0xFF;
+    }
+
+    private synchronized void recycle(Slot slot) {
+        free.push(slot);
+    }
+
+    public synchronized String toJson() {
+        return "{\"width\":" + outWidth +
+                ",\"height\":" + outHeight +
+                ",\"rotation\":" + rotation +
+                ",\"buffers\":" + allocated +
+                ",\"converted\":" + framesConverted +
+                ",\"skipped\":" + framesSkipped + "}";
+    }
+}
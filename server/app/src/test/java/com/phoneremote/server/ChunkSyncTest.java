@@ -0,0 +1,171 @@
+package com.phoneremote.server;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Plays the client's side of a delta upload against ChunkSync directly
+public class ChunkSyncTest {
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+
+    private File directory;
+    private final ChunkSync sync = new ChunkSync();
+    private long uploadedBytes;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("chunksync").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        sync.close();
+        deleteRecursively(directory);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    // What a client computes for its local copy
+    private static List<ChunkSync.Chunk> chunk(byte[] data) throws IOException {
+        File scratch = File.createTempFile("chunksync", ".client");
+        try {
+            write(scratch, data);
+            try (RandomAccessFile in = new RandomAccessFile(scratch, "r")) {
+                return ChunkSync.chunk(in.getChannel());
+            }
+        } finally {
+            scratch.delete();
+        }
+    }
+
+    // begin, upload what's missing, commit
+    private void upload(File target, byte[] data) throws IOException {
+        List<ChunkSync.Chunk> chunks = chunk(data);
+        JSONObject begin = new JSONObject(sync.begin(target, ChunkSync.beginBody(chunks)));
+        JSONArray missing = begin.getJSONArray("missing");
+        String session = begin.getString("session");
+        for (int i = 0; i < missing.length(); i++) {
+            ChunkSync.Chunk chunk = chunks.get(missing.getInt(i));
+            sync.writeChunk(session, missing.getInt(i),
+                    new ByteArrayInputStream(data, (int) chunk.offset, chunk.length), chunk.length);
+            uploadedBytes += chunk.length;
+        }
+        assertTrue(sync.commit(session));
+    }
+
+    @Test
+    public void smallEditsUploadOnlyNearbyChunks() throws IOException {
+        File target = new File(directory, "asset.bin");
+        byte[] original = random(FILE_SIZE, 1);
+        write(target, original);
+
+        // Insert 1000 bytes near the start and flip one byte near the end
+        byte[] edited = new byte[FILE_SIZE + 1000];
+        System.arraycopy(original, 0, edited, 0, 100_000);
+        System.arraycopy(random(1000, 2), 0, edited, 100_000, 1000);
+        System.arraycopy(original, 100_000, edited, 101_000, FILE_SIZE - 100_000);
+        edited[7_000_000] ^= 1;
+
+        upload(target, edited);
+
+        assertArrayEquals(edited, Files.readAllBytes(target.toPath()));
+        // Two edits touch at most two chunks each
+        assertTrue("uploaded " + uploadedBytes, uploadedBytes <= 4 * ChunkSync.MAX_CHUNK);
+    }
+
+    @Test
+    public void newFileUploadsEverything() throws IOException {
+        File target = new File(directory, "new.bin");
+        byte[] data = random(300_000, 3);
+        upload(target, data);
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertEquals(data.length, uploadedBytes);
+    }
+
+    @Test
+    public void stagedFilesStayOutOfTheTargetDirectory() throws IOException {
+        File target = new File(directory, "asset.bin");
+        byte[] data = random(100_000, 4);
+        List<ChunkSync.Chunk> chunks = chunk(data);
+        sync.begin(target, ChunkSync.beginBody(chunks));
+
+        // Only the hidden staging directory appears; no file a listing would show
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].isDirectory());
+        assertTrue(files[0].getName().startsWith("."));
+    }
+
+    @Test
+    public void rejectedChunkBodyIsConsumed() throws IOException {
+        File target = new File(directory, "asset.bin");
+        byte[] data = random(50_000, 5);
+        List<ChunkSync.Chunk> chunks = chunk(data);
+        String session = new JSONObject(sync.begin(target, ChunkSync.beginBody(chunks))).getString("session");
+
+        byte[] wrong = random(chunks.get(0).length, 6);
+        InputStream body = new ByteArrayInputStream(wrong);
+        try {
+            sync.writeChunk(session, 0, body, wrong.length);
+            fail("Hash mismatch accepted");
+        } catch (IllegalArgumentException expected) {
+            // The next request on the connection starts where this body ended
+            assertEquals(0, body.available());
+        }
+    }
+
+    @Test
+    public void oversizedManifestIsRejected() throws IOException {
+        StringBuilder json = new StringBuilder("{\"chunks\":[");
+        String hash = new String(new char[64]).replace('\0', 'a');
+        for (int i = 0; i < 20000; i++) {
+            if (i > 0) json.append(",");
+            json.append("{\"hash\":\"").append(hash).append("\",\"length\":").append(ChunkSync.MAX_CHUNK).append("}");
+        }
+        try {
+            sync.begin(new File(directory, "huge.bin"), json.append("]}").toString());
+            fail("Manifest over the size limit accepted");
+        } catch (IllegalArgumentException expected) {
+            assertFalse(new File(directory, "huge.bin").exists());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.phoneremote.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// The header layout is shared with the web client and the relay, so it is
+// pinned down field by field
+public class EnvelopeTest {
+    @Test
+    public void headerFieldsRoundTrip() {
+        byte[] payload = {1, 2, 3, 4, 5};
+        long timestamp = 1_700_000_000_123_456L;
+        byte[] message = Envelope.encode(Envelope.TYPE_FRAME, Envelope.CHANNEL_VIDEO,
+                Envelope.FLAG_KEYFRAME, 42, timestamp, payload);
+        assertEquals(Envelope.HEADER_SIZE + payload.length, message.length);
+
+        Envelope envelope = Envelope.decode(message);
+        assertEquals(Envelope.VERSION, envelope.version);
+        assertEquals(Envelope.TYPE_FRAME, envelope.type);
+        assertEquals(Envelope.CHANNEL_VIDEO, envelope.channel);
+        assertEquals(Envelope.FLAG_KEYFRAME, envelope.flags);
+        assertEquals(42, envelope.sequence);
+        assertEquals(timestamp, envelope.timestampMicros);
+        assertEquals(payload.length, envelope.payloadLength);
+        ByteBuffer decoded = envelope.payload();
+        byte[] copy = new byte[decoded.remaining()];
+        decoded.get(copy);
+        assertArrayEquals(payload, copy);
+    }
+
+    @Test
+    public void sequenceAndTimestampKeepTheirFullRange() {
+        // u32 sequences come back unsigned; timestamps are signed 64-bit
+        Envelope envelope = Envelope.decode(Envelope.encode(Envelope.TYPE_ACK, Envelope.CHANNEL_INPUT, 0,
+                0xFFFFFFFFL, -1L, new byte[0]));
+        assertEquals(0xFFFFFFFFL, envelope.sequence);
+        assertEquals(-1L, envelope.timestampMicros);
+        assertEquals(0, envelope.payloadLength);
+    }
+
+    @Test
+    public void payloadSliceAndTextUseOnlyTheRequestedBytes() {
+        byte[] source = "xxhello, envelopeyy".getBytes(StandardCharsets.UTF_8);
+        Envelope envelope = Envelope.decode(Envelope.encode(Envelope.TYPE_CONTROL, Envelope.CHANNEL_CONTROL, 0,
+                1, 0, source, 2, source.length - 4));
+        assertEquals("hello, envelope", envelope.payloadText());
+        assertEquals(0, envelope.payload().position());
+        assertEquals(source.length - 4, envelope.payload().remaining());
+
+        Envelope text = Envelope.decode(Envelope.encodeText(Envelope.TYPE_INPUT, Envelope.CHANNEL_INPUT, 0,
+                2, 0, "tap\u0000100,200"));
+        assertEquals("tap\u0000100,200", text.payloadText());
+    }
+
+    @Test
+    public void codecBitsSitAboveTheFlagBits() {
+        for (int codec = 0; codec < 16; codec++) {
+            int flags = Envelope.codecFlags(codec) | Envelope.FLAG_KEYFRAME | Envelope.FLAG_SUCCESS;
+            Envelope envelope = Envelope.decode(Envelope.encode(Envelope.TYPE_FRAME, Envelope.CHANNEL_VIDEO,
+                    flags, 0, 0, new byte[0]));
+            assertEquals(codec, envelope.codec());
+            assertTrue(envelope.hasFlag(Envelope.FLAG_KEYFRAME));
+            assertTrue(envelope.hasFlag(Envelope.FLAG_SUCCESS));
+        }
+        // Codec ids past four bits can't spill into the other flags
+        assertEquals(0, Envelope.codecFlags(16) & ~Envelope.CODEC_MASK);
+        Envelope plain = Envelope.decode(Envelope.encode(Envelope.TYPE_FRAME, Envelope.CHANNEL_VIDEO,
+                Envelope.codecFlags(15), 0, 0, new byte[0]));
+        assertEquals(15, plain.codec());
+        assertFalse(plain.hasFlag(Envelope.FLAG_KEYFRAME));
+        assertFalse(plain.hasFlag(Envelope.FLAG_SUCCESS));
+    }
+
+    @Test
+    public void shortMessagesAreRejected() {
+        assertRejected(null);
+        assertRejected(new byte[0]);
+        assertRejected(new byte[Envelope.HEADER_SIZE - 1]);
+    }
+
+    @Test
+    public void otherVersionsAreRejected() {
+        byte[] message = Envelope.encode(Envelope.TYPE_FRAME, Envelope.CHANNEL_VIDEO, 0, 1, 0, new byte[3]);
+        message[0] = (byte) (Envelope.VERSION + 1);
+        assertRejected(message);
+        message[0] = 0;
+        assertRejected(message);
+    }
+
+    private static void assertRejected(byte[] message) {
+        try {
+            Envelope.decode(message);
+            fail("Decoded an invalid envelope");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
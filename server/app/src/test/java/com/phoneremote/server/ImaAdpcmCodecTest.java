@@ -0,0 +1,74 @@
+package com.phoneremote.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImaAdpcmCodecTest {
+    private static final int SAMPLES = 960;
+
+    private static short[] sine(int count, double amplitude) {
+        short[] pcm = new short[count];
+        for (int i = 0; i < count; i++) {
+            pcm[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 440 * i / 48000.0));
+        }
+        return pcm;
+    }
+
+    @Test
+    public void roundTripTracksTheSignal() {
+        ImaAdpcmCodec encoder = new ImaAdpcmCodec();
+        ImaAdpcmCodec decoder = new ImaAdpcmCodec();
+        short[] pcm = sine(SAMPLES, 12000);
+        byte[] encoded = new byte[encoder.maxEncodedSize(SAMPLES)];
+        short[] decoded = new short[SAMPLES];
+
+        // The first block converges from a zero predictor; the second shows the steady state
+        for (int block = 0; block < 2; block++) {
+            int length = encoder.encode(pcm, 0, SAMPLES, encoded, 0);
+            assertEquals(4 + SAMPLES / 2, length);
+            assertEquals(SAMPLES, decoder.decode(encoded, 0, length, decoded, 0));
+        }
+
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            signal += (double) pcm[i] * pcm[i];
+            noise += (double) (pcm[i] - decoded[i]) * (pcm[i] - decoded[i]);
+        }
+        double snr = 10 * Math.log10(signal / noise);
+        assertTrue("SNR " + snr + " dB", snr > 20);
+    }
+
+    @Test
+    public void blocksDecodeIndependently() {
+        ImaAdpcmCodec encoder = new ImaAdpcmCodec();
+        short[] pcm = sine(SAMPLES * 2, 8000);
+        byte[] first = new byte[encoder.maxEncodedSize(SAMPLES)];
+        byte[] second = new byte[encoder.maxEncodedSize(SAMPLES)];
+        encoder.encode(pcm, 0, SAMPLES, first, 0);
+        int length = encoder.encode(pcm, SAMPLES, SAMPLES, second, 0);
+
+        // A decoder that never saw the first block gets the same samples
+        short[] alone = new short[SAMPLES];
+        short[] inSequence = new short[SAMPLES];
+        new ImaAdpcmCodec().decode(second, 0, length, alone, 0);
+        ImaAdpcmCodec decoder = new ImaAdpcmCodec();
+        decoder.decode(first, 0, first.length, new short[SAMPLES], 0);
+        decoder.decode(second, 0, length, inSequence, 0);
+        for (int i = 0; i < SAMPLES; i++) {
+            assertEquals(inSequence[i], alone[i]);
+        }
+    }
+
+    @Test
+    public void oddSampleCountPadsTheLastByte() {
+        ImaAdpcmCodec codec = new ImaAdpcmCodec();
+        short[] pcm = sine(7, 4000);
+        byte[] encoded = new byte[codec.maxEncodedSize(7)];
+        assertEquals(4 + 4, codec.encode(pcm, 0, 7, encoded, 0));
+        // Whole bytes decode, so the padding nibble comes back as an extra sample
+        assertEquals(8, codec.decode(encoded, 0, 8, new short[8], 0));
+    }
+}
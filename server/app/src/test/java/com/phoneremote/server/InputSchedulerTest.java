@@ -0,0 +1,162 @@
+package com.phoneremote.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// The pending-input count is process-wide, so every test leaves it at zero
+public class InputSchedulerTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private final InputScheduler scheduler = new InputScheduler();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void idleWhenNothingIsQueued() {
+        assertFalse(InputScheduler.isInputPending());
+        long start = System.nanoTime();
+        assertFalse(InputScheduler.awaitInputIdle(1000));
+        assertTrue(elapsedMillis(start) < 100);
+    }
+
+    @Test
+    public void queuedInputIsPendingUntilItHasRun() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(() -> {
+            running.countDown();
+            await(release);
+        });
+        // Queued behind the first one; pending while it waits too
+        CountDownLatch secondRan = new CountDownLatch(1);
+        scheduler.submit(secondRan::countDown);
+        assertTrue(running.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(InputScheduler.isInputPending());
+
+        release.countDown();
+        assertTrue(secondRan.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        awaitIdle();
+        assertFalse(InputScheduler.isInputPending());
+    }
+
+    @Test
+    public void frameWorkWaitsAtMostTheBudget() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(() -> {
+            running.countDown();
+            await(release);
+        });
+        assertTrue(running.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Input that outlasts the budget doesn't hold the frame any longer
+        long start = System.nanoTime();
+        assertTrue(InputScheduler.awaitInputIdle(CapturePipeline.INPUT_YIELD_MS));
+        long waited = elapsedMillis(start);
+        assertTrue("Waited " + waited + " ms", waited >= CapturePipeline.INPUT_YIELD_MS - 1);
+        assertTrue("Waited " + waited + " ms", waited < 1000);
+        assertTrue(InputScheduler.isInputPending());
+
+        release.countDown();
+        awaitIdle();
+    }
+
+    @Test
+    public void frameWorkResumesAsSoonAsInputIsDone() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        scheduler.submit(() -> {
+            running.countDown();
+            sleep(50);
+        });
+        assertTrue(running.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Woken by the input finishing, well before the generous budget runs out
+        long start = System.nanoTime();
+        assertTrue(InputScheduler.awaitInputIdle(TIMEOUT_MS));
+        assertTrue(elapsedMillis(start) < TIMEOUT_MS / 2);
+        assertFalse(InputScheduler.isInputPending());
+    }
+
+    @Test
+    public void inputRunsInArrivalOrder() throws Exception {
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            final int step = i;
+            scheduler.submit(() -> order.append(step));
+        }
+        assertEquals("01234", scheduler.call(order::toString));
+        awaitIdle();
+    }
+
+    @Test
+    public void callReturnsResultsAndRethrows() throws Exception {
+        assertEquals(Integer.valueOf(42), scheduler.call(() -> 42));
+        try {
+            scheduler.call(() -> {
+                throw new IllegalArgumentException("Bad coordinates");
+            });
+            fail("Expected the task's exception");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Bad coordinates", e.getMessage());
+        }
+        awaitIdle();
+        assertFalse(InputScheduler.isInputPending());
+    }
+
+    @Test
+    public void rejectedInputIsNotCountedAsPending() throws Exception {
+        scheduler.shutdown();
+        scheduler.submit(() -> fail("Ran after shutdown"));
+        try {
+            scheduler.call(() -> true);
+            fail("Expected rejection after shutdown");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        assertFalse(InputScheduler.isInputPending());
+    }
+
+    // The counter drops in the task's finally block, just after the work the
+    // test synchronised on, so allow it a moment
+    private static void awaitIdle() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (InputScheduler.isInputPending()) {
+            if (System.nanoTime() > deadline) {
+                fail("Input still pending");
+            }
+            InputScheduler.awaitInputIdle(10);
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
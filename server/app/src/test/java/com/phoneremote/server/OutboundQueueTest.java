@@ -0,0 +1,208 @@
+package com.phoneremote.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+// Drives the queue with a manual executor, so each test decides when the
+// drain runs, and a fake connection that records what was written
+public class OutboundQueueTest {
+    private final ManualExecutor executor = new ManualExecutor();
+    private final FakeConnection connection = new FakeConnection();
+    private final RecordingCallback callback = new RecordingCallback();
+    private final OutboundQueue queue = new OutboundQueue(connection, executor, callback);
+
+    @Test
+    public void controlGoesBeforeAPendingFrame() {
+        queue.sendFrame(frame(1), "frame-1");
+        queue.sendControl("ack-1");
+        queue.sendControl(bytes("pointer-1"));
+        executor.runAll();
+
+        assertEquals(listOf("ack-1", "pointer-1", "frame-1"), connection.written);
+    }
+
+    @Test
+    public void onlyTheNewestUnsentFrameIsKept() {
+        CapturedFrame newest = frame(3);
+        queue.sendFrame(frame(1), "frame-1");
+        queue.sendFrame(frame(2), "frame-2");
+        queue.sendFrame(newest, "frame-3a", bytes("frame-3b"));
+        executor.runAll();
+
+        assertEquals(listOf("frame-3a", "frame-3b"), connection.written);
+        assertEquals(2, queue.getFramesReplaced());
+        assertEquals(1, callback.sent.size());
+        assertSame(newest, callback.sent.get(0));
+    }
+
+    @Test
+    public void aFrameBeingWrittenFinishesBeforeNewControl() {
+        // Control that arrives mid-frame waits for the frame's last part, since
+        // WebSocket messages can't be interleaved, then goes before the next frame
+        connection.onWrite = message -> {
+            if ("frame-1a".equals(message)) {
+                queue.sendControl("ack-1");
+                queue.sendFrame(frame(2), "frame-2");
+            }
+        };
+        queue.sendFrame(frame(1), "frame-1a", "frame-1b");
+        executor.runAll();
+
+        assertEquals(listOf("frame-1a", "frame-1b", "ack-1", "frame-2"), connection.written);
+        assertEquals(0, queue.getFramesReplaced());
+    }
+
+    @Test
+    public void oneDrainRunsAtATime() {
+        queue.sendControl("a");
+        queue.sendControl("b");
+        queue.sendFrame(frame(1), "frame-1");
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(listOf("a", "b", "frame-1"), connection.written);
+
+        // Idle again, so the next message schedules a new drain
+        queue.sendControl("c");
+        assertEquals(1, executor.tasks.size());
+    }
+
+    @Test
+    public void controlBacklogIsBounded() {
+        for (int i = 0; i < 600; i++) {
+            queue.sendControl("ack-" + i);
+        }
+        assertEquals(600 - 512, queue.getControlDropped());
+        executor.runAll();
+        assertEquals(512, connection.written.size());
+    }
+
+    @Test
+    public void sendFailureStopsTheQueue() {
+        connection.failOn = "frame-1";
+        queue.sendControl("ack-1");
+        queue.sendFrame(frame(1), "frame-1");
+        executor.runAll();
+        assertEquals(1, callback.failures);
+
+        queue.sendControl("ack-2");
+        queue.sendFrame(frame(2), "frame-2");
+        executor.runAll();
+        assertEquals(listOf("ack-1"), connection.written);
+        assertEquals(1, callback.failures);
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void closedConnectionWritesNothing() {
+        connection.open = false;
+        queue.sendControl("ack-1");
+        queue.sendFrame(frame(1), "frame-1");
+        executor.runAll();
+
+        assertTrue(connection.written.isEmpty());
+        assertTrue(callback.sent.isEmpty());
+        assertEquals(0, callback.failures);
+    }
+
+    @Test
+    public void connectFrameIsReportedWithoutInfo() {
+        queue.sendFrame(null, "latest");
+        executor.runAll();
+        assertEquals(1, callback.sent.size());
+        assertNull(callback.sent.get(0));
+        assertFalse(connection.written.isEmpty());
+    }
+
+    private static CapturedFrame frame(long sequence) {
+        long now = System.nanoTime();
+        return new CapturedFrame(new byte[0], 0, sequence, now, now, now);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> listOf(String... items) {
+        List<String> list = new ArrayList<>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private interface WriteListener {
+        void onWrite(String message);
+    }
+
+    // Records binary messages as text, so both kinds compare the same way
+    private static class FakeConnection implements OutboundQueue.Connection {
+        final List<String> written = new ArrayList<>();
+        boolean open = true;
+        String failOn;
+        WriteListener onWrite;
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void send(byte[] message) throws IOException {
+            send(new String(message, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void send(String message) throws IOException {
+            if (message.equals(failOn)) {
+                throw new IOException("Broken pipe");
+            }
+            written.add(message);
+            if (onWrite != null) {
+                onWrite.onWrite(message);
+            }
+        }
+    }
+
+    private static class RecordingCallback implements OutboundQueue.Callback {
+        final List<CapturedFrame> sent = new ArrayList<>();
+        int failures;
+
+        @Override
+        public void onFrameSent(CapturedFrame frame, long sendStartNanos, long sendEndNanos) {
+            sent.add(frame);
+        }
+
+        @Override
+        public void onSendFailed(IOException e) {
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.phoneremote.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PcmRingBufferTest {
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(8, new PcmRingBuffer(5).capacity());
+        assertEquals(8, new PcmRingBuffer(8).capacity());
+        assertEquals(16, new PcmRingBuffer(9).capacity());
+    }
+
+    @Test
+    public void readsBackAcrossTheWrap() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        short[] out = new short[8];
+        // Move both cursors to 6 so the next write wraps
+        ring.write(new short[6], 0, 6);
+        assertEquals(6, ring.read(out, 0, 6));
+
+        short[] samples = {1, 2, 3, 4, 5};
+        assertEquals(5, ring.write(samples, 0, 5));
+        assertEquals(5, ring.available());
+        assertEquals(5, ring.read(out, 0, 8));
+        assertArrayEquals(samples, Arrays.copyOf(out, 5));
+        assertEquals(0, ring.available());
+        assertEquals(11, ring.getReadPosition());
+    }
+
+    @Test
+    public void countsOverrunsWhenFull() {
+        PcmRingBuffer ring = new PcmRingBuffer(4);
+        short[] samples = {1, 2, 3, 4, 5, 6};
+        assertEquals(4, ring.write(samples, 0, 6));
+        assertEquals(2, ring.getOverruns());
+
+        // The oldest samples are kept; the excess is what got dropped
+        short[] out = new short[4];
+        assertEquals(4, ring.read(out, 0, 4));
+        assertArrayEquals(new short[]{1, 2, 3, 4}, out);
+    }
+
+    @Test
+    public void clearDiscardsUnreadSamples() {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        ring.write(new short[]{1, 2, 3}, 0, 3);
+        ring.clear();
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.read(new short[8], 0, 8));
+    }
+}
@@ -0,0 +1,145 @@
+package com.phoneremote.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Drives the packetizer straight into the reassembler, dropping, duplicating
+// and reordering datagrams in between the way a lossy link would
+public class UdpFrameReassemblerTest {
+    private static final int MTU = 200;
+    private static final int GROUP_SIZE = 4;
+
+    private final UdpFramePacketizer packetizer = new UdpFramePacketizer(MTU, GROUP_SIZE);
+    private final List<Long> deliveredSequences = new ArrayList<>();
+    private final List<byte[]> deliveredFrames = new ArrayList<>();
+    private UdpFrameReassembler reassembler;
+
+    @Before
+    public void setUp() {
+        reassembler = new UdpFrameReassembler((sequence, frame) -> {
+            deliveredSequences.add(sequence);
+            deliveredFrames.add(frame.clone());
+        });
+    }
+
+    private static byte[] frame(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private List<byte[]> packets(byte[] frame, long sequence) {
+        final List<byte[]> packets = new ArrayList<>();
+        packetizer.packetize(frame, sequence, (packet, length) -> {
+            byte[] copy = new byte[length];
+            System.arraycopy(packet, 0, copy, 0, length);
+            packets.add(copy);
+        });
+        return packets;
+    }
+
+    private void feed(List<byte[]> packets) {
+        for (byte[] packet : packets) {
+            reassembler.onPacket(packet, packet.length);
+        }
+    }
+
+    @Test
+    public void rebuildsShuffledFrameWithDuplicates() {
+        byte[] frame = frame(1500, 1);
+        List<byte[]> packets = packets(frame, 7);
+        packets.addAll(new ArrayList<>(packets.subList(0, 3)));
+        Collections.shuffle(packets, new Random(2));
+        feed(packets);
+
+        assertEquals(Collections.singletonList(7L), deliveredSequences);
+        assertArrayEquals(frame, deliveredFrames.get(0));
+    }
+
+    @Test
+    public void repairsOneLossPerGroupFromParity() {
+        byte[] frame = frame(2000, 3);
+        List<byte[]> packets = packets(frame, 1);
+        // Layout is 4 data packets then a parity packet per group; drop one data packet from each
+        List<byte[]> lossy = new ArrayList<>();
+        for (int i = 0; i < packets.size(); i++) {
+            if (i % (GROUP_SIZE + 1) != 1) {
+                lossy.add(packets.get(i));
+            }
+        }
+        Collections.shuffle(lossy, new Random(4));
+        feed(lossy);
+
+        assertEquals(1, deliveredFrames.size());
+        assertArrayEquals(frame, deliveredFrames.get(0));
+        assertTrue(reassembler.statsJson().contains("\"recovered\":" + (packets.size() / (GROUP_SIZE + 1))));
+    }
+
+    @Test
+    public void repairsShortLastPacket() {
+        // 2 full packets and a 20 byte tail in one group; losing the tail exercises the short-length XOR
+        byte[] frame = frame(2 * (MTU - UdpFramePacketizer.HEADER_SIZE) + 20, 5);
+        List<byte[]> packets = packets(frame, 1);
+        packets.remove(2);
+        feed(packets);
+
+        assertEquals(1, deliveredFrames.size());
+        assertArrayEquals(frame, deliveredFrames.get(0));
+    }
+
+    @Test
+    public void newerFrameSkipsUnrecoverableOlderOne() {
+        List<byte[]> first = packets(frame(1000, 6), 1);
+        // Two losses in the first group can't be repaired
+        first.remove(1);
+        first.remove(0);
+        byte[] second = frame(1000, 7);
+        feed(first);
+        feed(packets(second, 2));
+        // Late packets of the skipped frame are ignored
+        feed(packets(frame(1000, 6), 1));
+
+        assertEquals(Collections.singletonList(2L), deliveredSequences);
+        assertArrayEquals(second, deliveredFrames.get(0));
+        assertTrue(reassembler.statsJson().contains("\"skipped\":1"));
+    }
+
+    @Test
+    public void ignoresFrameLengthAboveLimit() {
+        byte[] packet = packets(frame(100, 8), 1).get(0);
+        int oversized = UdpFrameReassembler.MAX_FRAME_SIZE + 1;
+        int payloadSize = MTU - UdpFramePacketizer.HEADER_SIZE;
+        ByteBuffer.wrap(packet)
+                .putShort(10, (short) ((oversized + payloadSize - 1) / payloadSize))
+                .putInt(12, oversized);
+        reassembler.onPacket(packet, packet.length);
+
+        assertTrue(deliveredFrames.isEmpty());
+        assertTrue(reassembler.statsJson().contains("\"skipped\":0"));
+    }
+
+    @Test
+    public void ignoresPacketThatDisagreesWithItsFrame() {
+        byte[] frame = frame(1000, 9);
+        List<byte[]> packets = packets(frame, 1);
+        byte[] forged = packets.get(1).clone();
+        // Claims a larger frame under the same sequence
+        ByteBuffer.wrap(forged).putShort(10, (short) 7).putInt(12, 7 * (MTU - UdpFramePacketizer.HEADER_SIZE));
+        reassembler.onPacket(packets.get(0), packets.get(0).length);
+        reassembler.onPacket(forged, forged.length);
+        feed(packets);
+
+        assertEquals(1, deliveredFrames.size());
+        assertArrayEquals(frame, deliveredFrames.get(0));
+    }
+}
@@ -0,0 +1,104 @@
+package com.phoneremote.server;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Sends real datagrams over loopback into a reassembler
+public class UdpFrameSenderTest {
+    private final UdpFrameSender sender = new UdpFrameSender(UdpFrameSender.DEFAULT_MTU,
+            UdpFrameSender.DEFAULT_GROUP_SIZE);
+    private final List<byte[]> received = new ArrayList<>();
+    private final UdpFrameReassembler reassembler = new UdpFrameReassembler(
+            (sequence, frame) -> received.add(frame.clone()));
+
+    @After
+    public void tearDown() {
+        sender.stop();
+    }
+
+    private static byte[] frame(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static CapturedFrame captured(byte[] data, long sequence) {
+        long now = System.nanoTime();
+        return new CapturedFrame(data, 0, sequence, now, now, now);
+    }
+
+    // Reads until a frame completes or the socket goes quiet
+    private void receive(DatagramSocket socket) throws Exception {
+        byte[] buffer = new byte[UdpFrameSender.DEFAULT_MTU];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        int frames = received.size();
+        try {
+            while (received.size() == frames) {
+                socket.receive(packet);
+                reassembler.onPacket(packet.getData(), packet.getLength());
+            }
+        } catch (SocketTimeoutException e) {
+            // Nothing more is coming
+        }
+    }
+
+    @Test
+    public void deliversFrameToSubscriberOverLoopback() throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            receiver.setSoTimeout(2000);
+            assertTrue(sender.start());
+            sender.subscribe(new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalPort()));
+
+            byte[] data = frame(20000, 1);
+            sender.sendFrame(captured(data, 1));
+            receive(receiver);
+
+            assertEquals(1, received.size());
+            assertArrayEquals(data, received.get(0));
+        }
+    }
+
+    @Test
+    public void canBeRestartedAfterStop() throws Exception {
+        try (DatagramSocket receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            receiver.setSoTimeout(2000);
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    receiver.getLocalPort());
+            assertTrue(sender.start());
+            sender.stop();
+            assertEquals(-1, sender.getLocalPort());
+
+            assertTrue(sender.start());
+            sender.subscribe(address);
+            byte[] data = frame(5000, 2);
+            sender.sendFrame(captured(data, 1));
+            receive(receiver);
+
+            assertEquals(1, received.size());
+            assertArrayEquals(data, received.get(0));
+        }
+    }
+
+    @Test
+    public void unsubscribeEndsLease() {
+        assertTrue(sender.start());
+        sender.subscribe(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9));
+        assertTrue(sender.hasSubscribers());
+        assertTrue(sender.unsubscribe(new InetSocketAddress(InetAddress.getLoopbackAddress(), 9)));
+        assertFalse(sender.hasSubscribers());
+    }
+}
@@ -0,0 +1,215 @@
+package com.phoneremote.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class YuvConverterTest {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    // One YUV 4:2:0 image, kept as separate planes so it can be laid out either way
+    private static class Yuv {
+        final int width;
+        final int height;
+        final byte[] y;
+        final byte[] u;
+        final byte[] v;
+        // The same chroma interleaved, as most cameras deliver it
+        final byte[] uv;
+
+        Yuv(int width, int height, long seed) {
+            this.width = width;
+            this.height = height;
+            y = new byte[width * height];
+            u = new byte[((width + 1) / 2) * ((height + 1) / 2)];
+            v = new byte[u.length];
+            Random random = new Random(seed);
+            random.nextBytes(y);
+            random.nextBytes(u);
+            random.nextBytes(v);
+            uv = new byte[u.length * 2];
+            for (int i = 0; i < u.length; i++) {
+                uv[i * 2] = u[i];
+                uv[i * 2 + 1] = v[i];
+            }
+        }
+
+        int chromaWidth() {
+            return (width + 1) / 2;
+        }
+
+        // Semi-planar: the U and V planes view the interleaved bytes one apart
+        RawFrame convertNv12(YuvConverter converter) {
+            int chromaWidth = chromaWidth();
+            ByteBuffer uPlane = ByteBuffer.wrap(uv);
+            ByteBuffer vPlane = ByteBuffer.wrap(uv, 1, uv.length - 1).slice();
+            return converter.convert(ByteBuffer.wrap(y), width, uPlane, vPlane, chromaWidth * 2, 2, 0);
+        }
+
+        RawFrame convertI420(YuvConverter converter) {
+            return converter.convert(ByteBuffer.wrap(y), width, ByteBuffer.wrap(u), ByteBuffer.wrap(v),
+                    chromaWidth(), 1, 0);
+        }
+
+        // Floating-point BT.601 limited range
+        int[] reference(int x, int row) {
+            int index = (row / 2) * chromaWidth() + x / 2;
+            double luma = 1.164 * ((y[row * width + x] & 0xFF) - 16);
+            double cb = (u[index] & 0xFF) - 128;
+            double cr = (v[index] & 0xFF) - 128;
+            return new int[] {
+                    clamp(luma + 1.596 * cr),
+                    clamp(luma - 0.391 * cb - 0.813 * cr),
+                    clamp(luma + 2.018 * cb)
+            };
+        }
+
+        private static int clamp(double value) {
+            return (int) Math.max(0, Math.min(255, Math.round(value)));
+        }
+    }
+
+    private static byte[] pixels(RawFrame frame) {
+        byte[] out = new byte[frame.width * frame.height * 4];
+        frame.rgba.rewind();
+        frame.rgba.get(out);
+        return out;
+    }
+
+    @Test
+    public void staysWithinOneStepOfFloatingPoint() {
+        Yuv yuv = new Yuv(WIDTH, HEIGHT, 1);
+        RawFrame frame = yuv.convertNv12(new YuvConverter(WIDTH, HEIGHT, 0, 1));
+        byte[] out = pixels(frame);
+
+        int maxError = 0;
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int[] expected = yuv.reference(x, row);
+                int offset = (row * WIDTH + x) * 4;
+                for (int channel = 0; channel < 3; channel++) {
+                    maxError = Math.max(maxError, Math.abs((out[offset + channel] & 0xFF) - expected[channel]));
+                }
+                assertEquals((byte) 0xFF, out[offset + 3]);
+            }
+        }
+        assertTrue("Max error " + maxError, maxError <= 1);
+    }
+
+    @Test
+    public void planarAndSemiPlanarAgree() {
+        Yuv yuv = new Yuv(322, 242, 2);
+        byte[] nv12 = pixels(yuv.convertNv12(new YuvConverter(322, 242, 0, 1)));
+        byte[] i420 = pixels(yuv.convertI420(new YuvConverter(322, 242, 0, 1)));
+
+        assertArrayEquals(nv12, i420);
+    }
+
+    @Test
+    public void oddSizesConvertEveryPixel() {
+        Yuv yuv = new Yuv(33, 17, 3);
+        RawFrame frame = yuv.convertI420(new YuvConverter(33, 17, 0, 1));
+        byte[] out = pixels(frame);
+
+        int[] expected = yuv.reference(32, 16);
+        int offset = (16 * 33 + 32) * 4;
+        assertTrue(Math.abs((out[offset] & 0xFF) - expected[0]) <= 1);
+        assertEquals((byte) 0xFF, out[offset + 3]);
+    }
+
+    @Test
+    public void rotatesClockwise() {
+        int width = 6;
+        int height = 4;
+        Yuv yuv = new Yuv(width, height, 4);
+        byte[] upright = pixels(yuv.convertI420(new YuvConverter(width, height, 0, 1)));
+
+        for (int rotation = 90; rotation < 360; rotation += 90) {
+            YuvConverter converter = new YuvConverter(width, height, rotation, 1);
+            RawFrame frame = yuv.convertI420(converter);
+            boolean sideways = rotation != 180;
+            assertEquals(sideways ? height : width, frame.width);
+            assertEquals(sideways ? width : height, frame.height);
+            assertEquals(frame.width, converter.getWidth());
+            assertEquals(frame.width * 4, frame.rowStride);
+            byte[] rotated = pixels(frame);
+            for (int row = 0; row < height; row++) {
+                for (int x = 0; x < width; x++) {
+                    int outX;
+                    int outY;
+                    if (rotation == 90) {
+                        outX = height - 1 - row;
+                        outY = x;
+                    } else if (rotation == 180) {
+                        outX = width - 1 - x;
+                        outY = height - 1 - row;
+                    } else {
+                        outX = row;
+                        outY = width - 1 - x;
+                    }
+                    for (int channel = 0; channel < 4; channel++) {
+                        assertEquals("rotation " + rotation + " at " + x + "," + row,
+                                upright[(row * width + x) * 4 + channel],
+                                rotated[(outY * frame.width + outX) * 4 + channel]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOddRotations() {
+        new YuvConverter(WIDTH, HEIGHT, 45, 1);
+    }
+
+    @Test
+    public void skipsFramesWhilePoolIsExhausted() {
+        Yuv yuv = new Yuv(64, 48, 5);
+        YuvConverter converter = new YuvConverter(64, 48, 0, 2);
+
+        RawFrame first = yuv.convertI420(converter);
+        RawFrame second = yuv.convertI420(converter);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(yuv.convertI420(converter));
+
+        first.close();
+        RawFrame third = yuv.convertI420(converter);
+        assertNotNull(third);
+        // The freed buffer is reused, not a new one allocated
+        assertTrue(third.rgba == first.rgba);
+        assertTrue(converter.toJson(), converter.toJson().contains("\"buffers\":2"));
+        assertTrue(converter.toJson(), converter.toJson().contains("\"skipped\":1"));
+    }
+
+    // Not a pass/fail bound on speed, which depends on the machine; prints the
+    // per-frame cost of a 720p NV12 conversion, rotated and not. Skipped unless
+    // run with -Dbenchmarks=true, so the normal test run stays quiet.
+    @Test
+    public void benchmark720p() {
+        assumeTrue(Boolean.getBoolean("benchmarks"));
+        Yuv yuv = new Yuv(WIDTH, HEIGHT, 6);
+        for (int rotation : new int[] {0, 90}) {
+            YuvConverter converter = new YuvConverter(WIDTH, HEIGHT, rotation, 1);
+            for (int i = 0; i < 20; i++) {
+                yuv.convertNv12(converter).close();
+            }
+            int frames = 50;
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                yuv.convertNv12(converter).close();
+            }
+            double millis = (System.nanoTime() - start) / 1e6 / frames;
+            System.out.printf("YuvConverter 720p NV12, rotation %d: %.2f ms/frame%n", rotation, millis);
+        }
+    }
+}
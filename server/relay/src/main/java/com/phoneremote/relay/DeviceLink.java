@@ -0,0 +1,300 @@
+package com.phoneremote.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// The relay's single upstream /screen connection to one device. Frames from
+// the device are fanned out to every viewer and the newest one is cached for
+// viewers that join later, so the device sends each frame once no matter how
+// many people watch.
+//
+// Viewers number their input independently, so input is renumbered on the way
+// up. Acks are mapped back and go only to the viewer that sent the input;
+// pointer events go to everyone, with the input sequence kept only for the
+// originating viewer, as the device itself does.
+public class DeviceLink {
+    private static final Logger LOG = Logger.getLogger("DeviceLink");
+
+    private static final long RECONNECT_MIN_MS = 500;
+    private static final long RECONNECT_MAX_MS = 10000;
+    // Swipes keep producing pointer events after their ack, so mappings are
+    // kept for the most recent inputs rather than removed on ack
+    private static final int MAX_TRACKED_INPUTS = 1024;
+
+    private static class SentInput {
+        final Viewer viewer;
+        final long sequence;
+
+        SentInput(Viewer viewer, long sequence) {
+            this.viewer = viewer;
+            this.sequence = sequence;
+        }
+    }
+
+    private final String id;
+    private final URI screenUri;
+    private final String authorization;
+    private final HttpClient httpClient;
+    private final ScheduledExecutorService scheduler;
+
+    private final Set<Viewer> viewers = ConcurrentHashMap.newKeySet();
+    private volatile WebSocket upstream;
+    private volatile byte[] latestFrame;
+    private volatile boolean stopped;
+    private long reconnectDelay = RECONNECT_MIN_MS;
+    private CompletableFuture<?> sendChain = CompletableFuture.completedFuture(null);
+
+    private final AtomicLong nextInputSequence = new AtomicLong();
+    private final Map<Long, SentInput> sentInputs = new LinkedHashMap<Long, SentInput>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SentInput> eldest) {
+            return size() > MAX_TRACKED_INPUTS;
+        }
+    };
+
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong inputsForwarded = new AtomicLong();
+    private final AtomicLong connects = new AtomicLong();
+
+    // address is host:port; credentials is user:password for devices with
+    // authentication enabled, null otherwise
+    public DeviceLink(String id, String address, String credentials, HttpClient httpClient,
+                      ScheduledExecutorService scheduler) {
+        this.id = id;
+        URI parsed = URI.create("ws://" + address + "/screen?v=" + RelayEnvelope.VERSION);
+        if (parsed.getUserInfo() != null) {
+            throw new IllegalArgumentException("Device addresses can't carry credentials: " + id);
+        }
+        this.screenUri = parsed;
+        this.authorization = credentials != null
+                ? "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8))
+                : null;
+        this.httpClient = httpClient;
+        this.scheduler = scheduler;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void start() {
+        connect();
+    }
+
+    public void stop() {
+        stopped = true;
+        WebSocket socket = upstream;
+        if (socket != null) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "Relay shutting down");
+        }
+    }
+
+    private void connect() {
+        if (stopped) {
+            return;
+        }
+        WebSocket.Builder builder = httpClient.newWebSocketBuilder();
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        builder.buildAsync(screenUri, new UpstreamListener()).whenComplete((socket, error) -> {
+            if (error != null) {
+                LOG.log(Level.FINE, "Connecting to " + id + " failed", error);
+                scheduleReconnect();
+            }
+        });
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (stopped) {
+            return;
+        }
+        long delay = reconnectDelay;
+        reconnectDelay = Math.min(RECONNECT_MAX_MS, reconnectDelay * 2);
+        scheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private class UpstreamListener implements WebSocket.Listener {
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+
+        @Override
+        public void onOpen(WebSocket socket) {
+            upstream = socket;
+            connects.incrementAndGet();
+            synchronized (DeviceLink.this) {
+                reconnectDelay = RECONNECT_MIN_MS;
+            }
+            LOG.info("Connected to " + id);
+            socket.request(1);
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket socket, ByteBuffer data, boolean last) {
+            byte[] chunk = new byte[data.remaining()];
+            data.get(chunk);
+            if (last && partial.size() == 0) {
+                handleUpstream(chunk);
+            } else {
+                partial.write(chunk, 0, chunk.length);
+                if (last) {
+                    handleUpstream(partial.toByteArray());
+                    partial.reset();
+                }
+            }
+            socket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket socket, CharSequence data, boolean last) {
+            // Envelope connections carry no text
+            socket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket socket, int statusCode, String reason) {
+            disconnected("closed: " + reason);
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket socket, Throwable error) {
+            disconnected(String.valueOf(error));
+        }
+    }
+
+    private void disconnected(String reason) {
+        upstream = null;
+        LOG.info("Lost " + id + " (" + reason + ")");
+        scheduleReconnect();
+    }
+
+    private void handleUpstream(byte[] message) {
+        if (!RelayEnvelope.isValid(message)) {
+            return;
+        }
+        switch (RelayEnvelope.type(message)) {
+            case RelayEnvelope.TYPE_FRAME:
+                framesReceived.incrementAndGet();
+                if ((RelayEnvelope.flags(message) & RelayEnvelope.FLAG_KEYFRAME) != 0) {
+                    latestFrame = message;
+                }
+                for (Viewer viewer : viewers) {
+                    viewer.sendFrame(message);
+                }
+                break;
+            case RelayEnvelope.TYPE_ACK: {
+                if (RelayEnvelope.channel(message) != RelayEnvelope.CHANNEL_INPUT) {
+                    break;
+                }
+                SentInput input = sentInput(RelayEnvelope.sequence(message));
+                if (input != null) {
+                    byte[] ack = message.clone();
+                    RelayEnvelope.setSequence(ack, input.sequence);
+                    input.viewer.send(ack);
+                }
+                break;
+            }
+            case RelayEnvelope.TYPE_POINTER: {
+                if (message.length < RelayEnvelope.POINTER_SEQUENCE_OFFSET + 4) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(message);
+                SentInput input = sentInput(buffer.getInt(RelayEnvelope.POINTER_SEQUENCE_OFFSET) & 0xFFFFFFFFL);
+                byte[] anonymous = message.clone();
+                ByteBuffer.wrap(anonymous).putInt(RelayEnvelope.POINTER_SEQUENCE_OFFSET, 0);
+                for (Viewer viewer : viewers) {
+                    if (input != null && input.viewer == viewer) {
+                        byte[] own = message.clone();
+                        ByteBuffer.wrap(own).putInt(RelayEnvelope.POINTER_SEQUENCE_OFFSET, (int) input.sequence);
+                        viewer.send(own);
+                    } else {
+                        viewer.send(anonymous);
+                    }
+                }
+                break;
+            }
+            default:
+                // Control replies are for the relay's own link
+                break;
+        }
+    }
+
+    private SentInput sentInput(long relaySequence) {
+        synchronized (sentInputs) {
+            return sentInputs.get(relaySequence);
+        }
+    }
+
+    public void addViewer(Viewer viewer) {
+        viewers.add(viewer);
+        byte[] latest = latestFrame;
+        if (latest != null) {
+            viewer.sendFrame(latest);
+        }
+    }
+
+    public void removeViewer(Viewer viewer) {
+        viewers.remove(viewer);
+    }
+
+    // Forwards an INPUT envelope from a viewer, renumbered into the relay's
+    // sequence space. Fails it back to the viewer while the device is offline.
+    public void forwardInput(Viewer viewer, byte[] message) {
+        long viewerSequence = RelayEnvelope.sequence(message);
+        if (upstream == null) {
+            viewer.send(RelayEnvelope.encode(RelayEnvelope.TYPE_ACK, RelayEnvelope.CHANNEL_INPUT, 0,
+                    viewerSequence, System.currentTimeMillis() * 1000, new byte[0]));
+            return;
+        }
+        long relaySequence = nextInputSequence.incrementAndGet() & 0xFFFFFFFFL;
+        synchronized (sentInputs) {
+            sentInputs.put(relaySequence, new SentInput(viewer, viewerSequence));
+        }
+        byte[] forwarded = message.clone();
+        RelayEnvelope.setSequence(forwarded, relaySequence);
+        inputsForwarded.incrementAndGet();
+        sendUpstream(forwarded);
+    }
+
+    // The JDK WebSocket allows one outstanding send, so sends are chained
+    private synchronized void sendUpstream(byte[] message) {
+        sendChain = sendChain.handle((result, error) -> null).thenCompose(ignored -> {
+            WebSocket socket = upstream;
+            return socket != null
+                    ? socket.sendBinary(ByteBuffer.wrap(message), true)
+                    : CompletableFuture.completedFuture(null);
+        });
+    }
+
+    public String statusJson() {
+        long skipped = 0;
+        for (Viewer viewer : viewers) {
+            skipped += viewer.getFramesSkipped();
+        }
+        return "{\"id\":\"" + id + "\"" +
+                ",\"connected\":" + (upstream != null) +
+                ",\"connects\":" + connects.get() +
+                ",\"viewers\":" + viewers.size() +
+                ",\"framesReceived\":" + framesReceived.get() +
+                ",\"framesSkippedForSlowViewers\":" + skipped +
+                ",\"inputsForwarded\":" + inputsForwarded.get() + "}";
+    }
+}
@@ -0,0 +1,187 @@
+package com.phoneremote.relay;
+
+import fi.iki.elonen.NanoWSD;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Stand-in for a phone's RemoteServer, for running the relay without
+// devices. Serves /screen?v=1 with generated JPEG frames, acks INPUT
+// envelopes and answers taps with POINTER events. GET /status reports how
+// many connections and frames the "device" is serving, which is the number
+// the relay keeps constant.
+public class FakeDevice extends NanoWSD {
+    private static final Logger LOG = Logger.getLogger("FakeDevice");
+    private static final int WIDTH = 360;
+    private static final int HEIGHT = 640;
+    private static final int CODEC_JPEG = 1;
+
+    private final String name;
+    private final int frameRate;
+    private final Set<WebSocket> screens = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FakeDevice");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong frameSequence = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private volatile int lastTapX = -1;
+    private volatile int lastTapY = -1;
+
+    public FakeDevice(String name, int port, int frameRate) {
+        super(port);
+        this.name = name;
+        this.frameRate = frameRate;
+    }
+
+    @Override
+    public void start(int timeout, boolean daemon) throws IOException {
+        super.start(timeout, daemon);
+        ticker.scheduleAtFixedRate(this::sendFrame, 0, 1000 / frameRate, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+        ticker.shutdownNow();
+        super.stop();
+    }
+
+    @Override
+    protected Response serveHttp(IHTTPSession session) {
+        if ("/status".equals(session.getUri())) {
+            return newFixedLengthResponse(Response.Status.OK, "application/json",
+                    "{\"name\":\"" + name + "\",\"connections\":" + screens.size() +
+                            ",\"framesSent\":" + framesSent.get() + "}");
+        }
+        return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+    }
+
+    @Override
+    protected WebSocket openWebSocket(IHTTPSession handshake) {
+        return new WebSocket(handshake) {
+            @Override
+            protected void onOpen() {
+                screens.add(this);
+            }
+
+            @Override
+            protected void onClose(WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+                screens.remove(this);
+            }
+
+            @Override
+            protected void onMessage(WebSocketFrame message) {
+                byte[] data = message.getBinaryPayload();
+                if (message.getOpCode() == WebSocketFrame.OpCode.Binary && RelayEnvelope.isValid(data)
+                        && RelayEnvelope.type(data) == RelayEnvelope.TYPE_INPUT) {
+                    handleInput(this, data);
+                }
+            }
+
+            @Override
+            protected void onPong(WebSocketFrame pong) {
+                // Keep connection alive
+            }
+
+            @Override
+            protected void onException(IOException exception) {
+                screens.remove(this);
+            }
+        };
+    }
+
+    private void handleInput(WebSocket socket, byte[] message) {
+        long sequence = RelayEnvelope.sequence(message);
+        String text = RelayEnvelope.payloadText(message);
+        int separator = text.indexOf('\0');
+        String command = separator >= 0 ? text.substring(0, separator) : text;
+        String value = separator >= 0 ? text.substring(separator + 1) : "";
+        boolean success = true;
+
+        if ("tap".equals(command)) {
+            String[] coords = value.split(",");
+            try {
+                int x = Integer.parseInt(coords[0].trim());
+                int y = Integer.parseInt(coords[1].trim());
+                lastTapX = x;
+                lastTapY = y;
+                // Down and up at the tap, like PointerStream on a device
+                for (int action = 1; action <= 3; action += 2) {
+                    byte[] payload = new byte[16];
+                    ByteBuffer.wrap(payload).put((byte) action).put((byte) 0)
+                            .putShort((short) x).putShort((short) y)
+                            .putInt(12, (int) sequence);
+                    broadcast(RelayEnvelope.encode(RelayEnvelope.TYPE_POINTER, RelayEnvelope.CHANNEL_POINTER, 0,
+                            0, System.nanoTime() / 1000, payload));
+                }
+            } catch (RuntimeException e) {
+                success = false;
+            }
+        }
+        try {
+            socket.send(RelayEnvelope.encode(RelayEnvelope.TYPE_ACK, RelayEnvelope.CHANNEL_INPUT,
+                    success ? RelayEnvelope.FLAG_SUCCESS : 0, sequence, System.nanoTime() / 1000, new byte[0]));
+        } catch (IOException e) {
+            LOG.fine("Ack failed: " + e);
+        }
+    }
+
+    private void sendFrame() {
+        if (screens.isEmpty()) {
+            return;
+        }
+        try {
+            long sequence = frameSequence.incrementAndGet();
+            byte[] frame = RelayEnvelope.encode(RelayEnvelope.TYPE_FRAME, RelayEnvelope.CHANNEL_VIDEO,
+                    RelayEnvelope.FLAG_KEYFRAME | (CODEC_JPEG << RelayEnvelope.CODEC_SHIFT),
+                    sequence, System.nanoTime() / 1000, renderFrame(sequence));
+            broadcast(frame);
+            framesSent.addAndGet(screens.size());
+        } catch (IOException e) {
+            LOG.warning("Frame render failed: " + e);
+        }
+    }
+
+    // A sweeping bar and the frame number, so motion and staleness are visible
+    private byte[] renderFrame(long sequence) throws IOException {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(30, 30, 40));
+        g.fillRect(0, 0, WIDTH, HEIGHT);
+        g.setColor(new Color(52, 152, 219));
+        g.fillRect(0, (int) (sequence * 8 % HEIGHT), WIDTH, 24);
+        if (lastTapX >= 0) {
+            g.setColor(Color.ORANGE);
+            g.fillOval(lastTapX - 10, lastTapY - 10, 20, 20);
+        }
+        g.setColor(Color.WHITE);
+        g.drawString(name + " #" + sequence, 12, 24);
+        g.dispose();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private void broadcast(byte[] message) {
+        for (WebSocket socket : screens) {
+            try {
+                socket.send(message);
+            } catch (IOException e) {
+                screens.remove(socket);
+            }
+        }
+    }
+}
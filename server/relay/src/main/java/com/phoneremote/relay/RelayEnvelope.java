@@ -0,0 +1,79 @@
+package com.phoneremote.relay;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Header access for the device's binary envelope (see Envelope in the server
+// app). The relay passes messages through untouched except for sequence
+// numbers, so it only needs to read and rewrite header fields in place.
+//
+//   0  version   u8
+//   1  type      u8
+//   2  channel   u8
+//   3  flags     u8
+//   4  sequence  u32
+//   8  timestamp i64, microseconds on the sender's clock
+//   16 payload
+public class RelayEnvelope {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    public static final int TYPE_FRAME = 1;
+    public static final int TYPE_INPUT = 3;
+    public static final int TYPE_ACK = 4;
+    public static final int TYPE_CONTROL = 5;
+    public static final int TYPE_POINTER = 6;
+
+    public static final int CHANNEL_CONTROL = 0;
+    public static final int CHANNEL_VIDEO = 1;
+    public static final int CHANNEL_INPUT = 2;
+    public static final int CHANNEL_POINTER = 3;
+
+    public static final int FLAG_KEYFRAME = 1;
+    public static final int FLAG_SUCCESS = 1 << 1;
+    public static final int CODEC_SHIFT = 4;
+
+    // Input sequence inside a POINTER payload
+    public static final int POINTER_SEQUENCE_OFFSET = HEADER_SIZE + 12;
+
+    public static boolean isValid(byte[] message) {
+        return message != null && message.length >= HEADER_SIZE && (message[0] & 0xFF) == VERSION;
+    }
+
+    public static int type(byte[] message) {
+        return message[1] & 0xFF;
+    }
+
+    public static int channel(byte[] message) {
+        return message[2] & 0xFF;
+    }
+
+    public static int flags(byte[] message) {
+        return message[3] & 0xFF;
+    }
+
+    public static long sequence(byte[] message) {
+        return ByteBuffer.wrap(message).getInt(4) & 0xFFFFFFFFL;
+    }
+
+    public static void setSequence(byte[] message, long sequence) {
+        ByteBuffer.wrap(message).putInt(4, (int) sequence);
+    }
+
+    public static String payloadText(byte[] message) {
+        return new String(message, HEADER_SIZE, message.length - HEADER_SIZE, StandardCharsets.UTF_8);
+    }
+
+    public static byte[] encode(int type, int channel, int flags, long sequence, long timestampMicros, byte[] payload) {
+        byte[] message = new byte[HEADER_SIZE + payload.length];
+        ByteBuffer.wrap(message)
+                .put((byte) VERSION)
+                .put((byte) type)
+                .put((byte) channel)
+                .put((byte) flags)
+                .putInt((int) sequence)
+                .putLong(timestampMicros)
+                .put(payload);
+        return message;
+    }
+}
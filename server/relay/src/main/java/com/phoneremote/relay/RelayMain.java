@@ -0,0 +1,114 @@
+package com.phoneremote.relay;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Logger;
+
+// Usage:
+//   relay [--port 9090] [--token-file FILE] [--credentials FILE]
+//         [--device id=host:port]... [--fake N]
+//
+// Viewers need the relay token, read from the first line of --token-file or
+// from the RELAY_TOKEN environment variable. --device adds a phone. Phones
+// with authentication enabled get their user:password from the --credentials
+// file, a properties file of id=user:password lines, so passwords never show
+// up in the process list. --fake N starts N FakeDevice stand-ins on ports
+// 18081 and up and relays them as fake-1 .. fake-N.
+public class RelayMain {
+    private static final Logger LOG = Logger.getLogger("RelayMain");
+    private static final int DEFAULT_PORT = 9090;
+    private static final int FAKE_BASE_PORT = 18080;
+    private static final int FAKE_FRAME_RATE = 10;
+    private static final String TOKEN_ENV = "RELAY_TOKEN";
+    private static final String USAGE = "Usage: relay [--port 9090] [--token-file FILE] [--credentials FILE]"
+            + " [--device id=host:port]... [--fake N]";
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int fakeCount = 0;
+        String token = System.getenv(TOKEN_ENV);
+        Properties credentials = new Properties();
+        List<String[]> deviceSpecs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--port".equals(arg) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("--fake".equals(arg) && i + 1 < args.length) {
+                fakeCount = Integer.parseInt(args[++i]);
+            } else if ("--token-file".equals(arg) && i + 1 < args.length) {
+                List<String> lines = Files.readAllLines(Paths.get(args[++i]), StandardCharsets.UTF_8);
+                token = lines.isEmpty() ? null : lines.get(0).trim();
+            } else if ("--credentials".equals(arg) && i + 1 < args.length) {
+                try (Reader reader = Files.newBufferedReader(Paths.get(args[++i]), StandardCharsets.UTF_8)) {
+                    credentials.load(reader);
+                }
+            } else if ("--device".equals(arg) && i + 1 < args.length) {
+                String[] spec = args[++i].split("=", 2);
+                if (spec.length != 2) {
+                    usage("Expected --device id=host:port, got " + args[i]);
+                }
+                if (spec[1].contains("@")) {
+                    // Don't echo it back: it is probably a password
+                    usage("Put device credentials in the --credentials file, not in --device " + spec[0]);
+                }
+                deviceSpecs.add(spec);
+            } else {
+                usage("Unknown argument " + arg);
+            }
+        }
+
+        final List<FakeDevice> fakes = new ArrayList<>();
+        for (int i = 1; i <= fakeCount; i++) {
+            FakeDevice fake = new FakeDevice("fake-" + i, FAKE_BASE_PORT + i, FAKE_FRAME_RATE);
+            fake.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+            fakes.add(fake);
+            deviceSpecs.add(new String[] {"fake-" + i, "127.0.0.1:" + (FAKE_BASE_PORT + i)});
+        }
+        if (deviceSpecs.isEmpty()) {
+            usage("No devices given");
+        }
+        if (token == null || token.isEmpty()) {
+            usage("No relay token; set " + TOKEN_ENV + " or pass --token-file");
+        }
+
+        HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "RelayReconnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final RelayServer relay = new RelayServer(port, token);
+        for (String[] spec : deviceSpecs) {
+            relay.addDevice(new DeviceLink(spec[0], spec[1], credentials.getProperty(spec[0]),
+                    httpClient, scheduler));
+        }
+        // Not a daemon thread, so the JVM stays up while the relay runs
+        relay.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            relay.stop();
+            for (FakeDevice fake : fakes) {
+                fake.stop();
+            }
+        }));
+        LOG.info("Relaying " + deviceSpecs.size() + " devices on port " + port +
+                "; viewers connect to /devices/<id>/screen?v=1");
+    }
+
+    private static void usage(String error) {
+        LOG.severe(error + "\n" + USAGE);
+        System.exit(2);
+    }
+}
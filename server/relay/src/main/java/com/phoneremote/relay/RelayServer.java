@@ -0,0 +1,169 @@
+package com.phoneremote.relay;
+
+import fi.iki.elonen.NanoWSD;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+// Downstream side of the relay. Viewers open /devices/<id>/screen?v=1 and
+// speak the same envelope protocol as a device's own /screen socket: frames
+// arrive as FRAME envelopes, input goes up as INPUT envelopes and is acked.
+// GET /devices lists every device with its link state.
+//
+// Viewers can send input to the phones, so every request has to carry the
+// relay token, as "Authorization: Bearer <token>" or, since browsers can't
+// set headers on WebSocket upgrades, a token query parameter. The relay's own
+// credentials for the devices never reach the viewers.
+public class RelayServer extends NanoWSD {
+    private static final Logger LOG = Logger.getLogger("RelayServer");
+    private static final String DEVICE_PREFIX = "/devices/";
+    private static final String SCREEN_SUFFIX = "/screen";
+
+    private final byte[] token;
+    private final Map<String, DeviceLink> devices = new ConcurrentHashMap<>();
+    private final ExecutorService sendExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "RelayViewerSend");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RelayServer(int port, String token) {
+        super(port);
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("A relay token is required");
+        }
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void addDevice(DeviceLink link) {
+        devices.put(link.getId(), link);
+        link.start();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        for (DeviceLink link : devices.values()) {
+            link.stop();
+        }
+        sendExecutor.shutdownNow();
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        // Checked before anything else, so device ids don't leak either
+        if (!isAuthorized(session)) {
+            Response response = newFixedLengthResponse(Response.Status.UNAUTHORIZED, MIME_PLAINTEXT, "Unauthorized");
+            response.addHeader("WWW-Authenticate", "Bearer realm=\"Phone Remote Relay\"");
+            return response;
+        }
+        // Unknown devices are refused before the WebSocket handshake
+        if (isWebsocketRequested(session) && deviceFor(session.getUri()) == null) {
+            return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Unknown device");
+        }
+        return super.serve(session);
+    }
+
+    @Override
+    protected Response serveHttp(IHTTPSession session) {
+        if (Method.GET.equals(session.getMethod()) && "/devices".equals(session.getUri())) {
+            StringBuilder json = new StringBuilder("{\"devices\":[");
+            boolean first = true;
+            for (DeviceLink link : devices.values()) {
+                if (!first) json.append(",");
+                json.append(link.statusJson());
+                first = false;
+            }
+            json.append("]}");
+            return newFixedLengthResponse(Response.Status.OK, "application/json", json.toString());
+        }
+        return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Not Found");
+    }
+
+    @Override
+    protected WebSocket openWebSocket(IHTTPSession handshake) {
+        return new ViewerSocket(handshake, deviceFor(handshake.getUri()));
+    }
+
+    private boolean isAuthorized(IHTTPSession session) {
+        String presented = session.getParms().get("token");
+        String header = session.getHeaders().get("authorization");
+        if (header != null && header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            presented = header.substring(7).trim();
+        }
+        // Constant time, so the comparison doesn't reveal how much of the token matched
+        return presented != null && MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private DeviceLink deviceFor(String uri) {
+        if (!uri.startsWith(DEVICE_PREFIX) || !uri.endsWith(SCREEN_SUFFIX)) {
+            return null;
+        }
+        String id = uri.substring(DEVICE_PREFIX.length(), uri.length() - SCREEN_SUFFIX.length());
+        return devices.get(id);
+    }
+
+    private class ViewerSocket extends WebSocket {
+        private final DeviceLink link;
+        private final Viewer viewer;
+
+        ViewerSocket(IHTTPSession handshake, DeviceLink link) {
+            super(handshake);
+            this.link = link;
+            this.viewer = new Viewer(this, sendExecutor);
+        }
+
+        @Override
+        protected void onOpen() {
+            link.addViewer(viewer);
+        }
+
+        @Override
+        protected void onClose(WebSocketFrame.CloseCode code, String reason, boolean initiatedByRemote) {
+            link.removeViewer(viewer);
+        }
+
+        @Override
+        protected void onMessage(WebSocketFrame message) {
+            if (message.getOpCode() != WebSocketFrame.OpCode.Binary) {
+                return;
+            }
+            byte[] data = message.getBinaryPayload();
+            if (!RelayEnvelope.isValid(data)) {
+                return;
+            }
+            switch (RelayEnvelope.type(data)) {
+                case RelayEnvelope.TYPE_INPUT:
+                    link.forwardInput(viewer, data);
+                    break;
+                case RelayEnvelope.TYPE_CONTROL:
+                    // Keepalives end at the relay
+                    if ("ping".equals(RelayEnvelope.payloadText(data))) {
+                        viewer.send(RelayEnvelope.encode(RelayEnvelope.TYPE_CONTROL, RelayEnvelope.CHANNEL_CONTROL,
+                                0, 0, System.currentTimeMillis() * 1000, "pong".getBytes()));
+                    }
+                    break;
+                default:
+                    // Frame acks measure the device-to-viewer path, which the relay breaks
+                    break;
+            }
+        }
+
+        @Override
+        protected void onPong(WebSocketFrame pong) {
+            // Keep connection alive
+        }
+
+        @Override
+        protected void onException(IOException exception) {
+            LOG.fine("Viewer of " + link.getId() + " failed: " + exception);
+            link.removeViewer(viewer);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.phoneremote.relay;
+
+import fi.iki.elonen.NanoWSD;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// One downstream viewer. Sends run on a shared pool so a slow viewer never
+// holds up the device link or other viewers. Only the newest frame is kept
+// while a send is in progress; small messages (acks, pointer) are never
+// dropped and go out ahead of the pending frame.
+public class Viewer {
+    private final NanoWSD.WebSocket socket;
+    private final Executor sendExecutor;
+
+    private final AtomicReference<byte[]> pendingFrame = new AtomicReference<>();
+    private final Queue<byte[]> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesSkipped = new AtomicLong();
+
+    public Viewer(NanoWSD.WebSocket socket, Executor sendExecutor) {
+        this.socket = socket;
+        this.sendExecutor = sendExecutor;
+    }
+
+    public void sendFrame(byte[] frame) {
+        if (pendingFrame.getAndSet(frame) != null) {
+            framesSkipped.incrementAndGet();
+        }
+        schedule();
+    }
+
+    public void send(byte[] message) {
+        pendingMessages.add(message);
+        schedule();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesSkipped() {
+        return framesSkipped.get();
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            sendExecutor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            byte[] message;
+            while ((message = pendingMessages.poll()) != null) {
+                write(message);
+            }
+            byte[] frame = pendingFrame.getAndSet(null);
+            if (frame != null) {
+                write(frame);
+                framesSent.incrementAndGet();
+                continue;
+            }
+            draining.set(false);
+            // Something may have been queued after the last poll
+            if ((pendingMessages.isEmpty() && pendingFrame.get() == null) || !draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void write(byte[] message) {
+        if (!socket.isOpen()) {
+            return;
+        }
+        try {
+            socket.send(message);
+        } catch (IOException e) {
+            // The socket's onException/onClose removes the viewer
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.phoneremote.relay;
+
+import fi.iki.elonen.NanoHTTPD;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.net.http.WebSocketHandshakeException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Runs the relay against a FakeDevice over real sockets on loopback
+public class RelayServerTest {
+    private static final long TIMEOUT_MS = 5000;
+    private static final int FRAME_RATE = 20;
+    private static final String TOKEN = "relay-test-token";
+
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private ScheduledExecutorService scheduler;
+    private FakeDevice device;
+    private RelayServer relay;
+    private int devicePort;
+    private int relayPort;
+
+    @Before
+    public void setUp() throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        devicePort = freePort();
+        relayPort = freePort();
+        device = new FakeDevice("fake", devicePort, FRAME_RATE);
+        device.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+        relay = new RelayServer(relayPort, TOKEN);
+        relay.addDevice(new DeviceLink("fake", "127.0.0.1:" + devicePort, null, httpClient, scheduler));
+        relay.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+    }
+
+    @After
+    public void tearDown() {
+        relay.stop();
+        device.stop();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void viewersShareOneDeviceConnection() throws Exception {
+        ViewerClient first = ViewerClient.connect(httpClient, screenUri("fake"));
+        ViewerClient second = ViewerClient.connect(httpClient, screenUri("fake"));
+
+        assertNotNull(first.await(RelayEnvelope.TYPE_FRAME));
+        assertNotNull(second.await(RelayEnvelope.TYPE_FRAME));
+        assertTrue(get(devicePort, "/status").contains("\"connections\":1"));
+        String devices = getDevices(TOKEN).body();
+        assertTrue(devices, devices.contains("\"connected\":true"));
+        assertTrue(devices, devices.contains("\"viewers\":2"));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void inputIsAckedToItsSenderInItsOwnSequence() throws Exception {
+        ViewerClient sender = ViewerClient.connect(httpClient, screenUri("fake"));
+        ViewerClient watcher = ViewerClient.connect(httpClient, screenUri("fake"));
+        // Frames only flow once the link is up, so input won't be failed back as offline
+        assertNotNull(sender.await(RelayEnvelope.TYPE_FRAME));
+        assertNotNull(watcher.await(RelayEnvelope.TYPE_FRAME));
+
+        sender.send(RelayEnvelope.encode(RelayEnvelope.TYPE_INPUT, RelayEnvelope.CHANNEL_INPUT, 0, 7,
+                System.currentTimeMillis() * 1000, "tap\u0000100,200".getBytes(StandardCharsets.UTF_8)));
+
+        byte[] ack = sender.await(RelayEnvelope.TYPE_ACK);
+        assertNotNull(ack);
+        assertEquals(7, RelayEnvelope.sequence(ack));
+        assertTrue((RelayEnvelope.flags(ack) & RelayEnvelope.FLAG_SUCCESS) != 0);
+
+        byte[] own = sender.await(RelayEnvelope.TYPE_POINTER);
+        byte[] other = watcher.await(RelayEnvelope.TYPE_POINTER);
+        assertNotNull(own);
+        assertNotNull(other);
+        assertEquals(7, ByteBuffer.wrap(own).getInt(RelayEnvelope.POINTER_SEQUENCE_OFFSET));
+        assertEquals(0, ByteBuffer.wrap(other).getInt(RelayEnvelope.POINTER_SEQUENCE_OFFSET));
+        assertNull(watcher.poll(RelayEnvelope.TYPE_ACK, 200));
+        sender.close();
+        watcher.close();
+    }
+
+    @Test
+    public void inputIsFailedBackWhileDeviceIsOffline() throws Exception {
+        ViewerClient viewer = ViewerClient.connect(httpClient, screenUri("fake"));
+        assertNotNull(viewer.await(RelayEnvelope.TYPE_FRAME));
+        device.stop();
+        awaitDisconnected();
+
+        viewer.send(RelayEnvelope.encode(RelayEnvelope.TYPE_INPUT, RelayEnvelope.CHANNEL_INPUT, 0, 3,
+                System.currentTimeMillis() * 1000, "tap\u00001,1".getBytes(StandardCharsets.UTF_8)));
+        byte[] ack = viewer.await(RelayEnvelope.TYPE_ACK);
+        assertNotNull(ack);
+        assertEquals(3, RelayEnvelope.sequence(ack));
+        assertEquals(0, RelayEnvelope.flags(ack) & RelayEnvelope.FLAG_SUCCESS);
+        viewer.close();
+    }
+
+    @Test
+    public void lateViewerGetsLatestKeyframe() throws Exception {
+        ViewerClient first = ViewerClient.connect(httpClient, screenUri("fake"));
+        assertNotNull(first.await(RelayEnvelope.TYPE_FRAME));
+        device.stop();
+        awaitDisconnected();
+
+        // No new frames are coming, so this one can only be the cached keyframe
+        ViewerClient late = ViewerClient.connect(httpClient, screenUri("fake"));
+        byte[] frame = late.await(RelayEnvelope.TYPE_FRAME);
+        assertNotNull(frame);
+        assertTrue((RelayEnvelope.flags(frame) & RelayEnvelope.FLAG_KEYFRAME) != 0);
+        first.close();
+        late.close();
+    }
+
+    @Test
+    public void unknownDeviceIsRefused() throws Exception {
+        try {
+            ViewerClient.connect(httpClient, screenUri("missing"));
+            fail("Handshake should have been refused");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WebSocketHandshakeException);
+            assertEquals(404, ((WebSocketHandshakeException) e.getCause()).getResponse().statusCode());
+        }
+    }
+
+    @Test
+    public void viewerWithoutTokenIsRefused() throws Exception {
+        assertHandshakeRefused(null, 401);
+        assertHandshakeRefused("wrong-token", 401);
+        // Refused as unauthorized before the device id is even looked at
+        try {
+            ViewerClient.connect(httpClient, screenUri("missing"), null);
+            fail("Handshake should have been refused");
+        } catch (ExecutionException e) {
+            assertEquals(401, ((WebSocketHandshakeException) e.getCause()).getResponse().statusCode());
+        }
+    }
+
+    @Test
+    public void tokenQueryParameterIsAccepted() throws Exception {
+        // The way browsers authenticate, since they can't set the header
+        URI uri = URI.create(screenUri("fake") + "&token=" + TOKEN);
+        ViewerClient viewer = ViewerClient.connect(httpClient, uri, null);
+        assertNotNull(viewer.await(RelayEnvelope.TYPE_FRAME));
+        viewer.close();
+    }
+
+    @Test
+    public void deviceListNeedsToken() throws Exception {
+        assertEquals(401, getDevices(null).statusCode());
+        assertEquals(401, getDevices("wrong-token").statusCode());
+        assertEquals(200, getDevices(TOKEN).statusCode());
+    }
+
+    @Test
+    public void credentialsInDeviceAddressAreRejected() {
+        try {
+            new DeviceLink("lab", "user:secret@127.0.0.1:" + devicePort, null, httpClient, scheduler);
+            fail("Credentials in the address should have been rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), !e.getMessage().contains("secret"));
+        }
+    }
+
+    @Test
+    public void pingIsAnsweredByTheRelay() throws Exception {
+        ViewerClient viewer = ViewerClient.connect(httpClient, screenUri("fake"));
+        viewer.send(RelayEnvelope.encode(RelayEnvelope.TYPE_CONTROL, RelayEnvelope.CHANNEL_CONTROL, 0, 0,
+                System.currentTimeMillis() * 1000, "ping".getBytes(StandardCharsets.UTF_8)));
+        byte[] pong = viewer.await(RelayEnvelope.TYPE_CONTROL);
+        assertNotNull(pong);
+        assertEquals("pong", RelayEnvelope.payloadText(pong));
+        viewer.close();
+    }
+
+    private URI screenUri(String id) {
+        return URI.create("ws://127.0.0.1:" + relayPort + "/devices/" + id + "/screen?v=" + RelayEnvelope.VERSION);
+    }
+
+    private void assertHandshakeRefused(String token, int status) throws Exception {
+        try {
+            ViewerClient.connect(httpClient, screenUri("fake"), token);
+            fail("Handshake should have been refused");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof WebSocketHandshakeException);
+            assertEquals(status, ((WebSocketHandshakeException) e.getCause()).getResponse().statusCode());
+        }
+    }
+
+    private String get(int port, String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + path)).build();
+        return httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+    private HttpResponse<String> getDevices(String token) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + relayPort + "/devices"));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private void awaitDisconnected() throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!getDevices(TOKEN).body().contains("\"connected\":false")) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Relay never noticed the device going away");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // A viewer that keeps every envelope it receives
+    private static class ViewerClient implements WebSocket.Listener {
+        private final List<byte[]> received = new ArrayList<>();
+        private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        private WebSocket socket;
+
+        static ViewerClient connect(HttpClient httpClient, URI uri) throws Exception {
+            return connect(httpClient, uri, TOKEN);
+        }
+
+        // token goes in the Authorization header; null sends none
+        static ViewerClient connect(HttpClient httpClient, URI uri, String token) throws Exception {
+            ViewerClient client = new ViewerClient();
+            WebSocket.Builder builder = httpClient.newWebSocketBuilder();
+            if (token != null) {
+                builder.header("Authorization", "Bearer " + token);
+            }
+            client.socket = builder.buildAsync(uri, client).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return client;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            byte[] chunk = new byte[data.remaining()];
+            data.get(chunk);
+            partial.write(chunk, 0, chunk.length);
+            if (last) {
+                synchronized (received) {
+                    received.add(partial.toByteArray());
+                    received.notifyAll();
+                }
+                partial.reset();
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        void send(byte[] message) throws Exception {
+            socket.sendBinary(ByteBuffer.wrap(message), true).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        byte[] await(int type) throws InterruptedException {
+            return poll(type, TIMEOUT_MS);
+        }
+
+        // Takes the first envelope of that type, leaving the others for later
+        // calls; null if none arrives in time
+        byte[] poll(int type, long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            synchronized (received) {
+                while (true) {
+                    for (Iterator<byte[]> iterator = received.iterator(); iterator.hasNext(); ) {
+                        byte[] message = iterator.next();
+                        if (RelayEnvelope.isValid(message) && RelayEnvelope.type(message) == type) {
+                            iterator.remove();
+                            return message;
+                        }
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    received.wait(remaining);
+                }
+            }
+        }
+
+        void close() {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "done");
+        }
+    }
+}